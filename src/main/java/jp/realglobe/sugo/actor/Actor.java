@@ -5,10 +5,19 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
 import java.util.logging.Logger;
 
+import org.json.JSONArray;
 import org.json.JSONObject;
 
 import io.socket.client.Ack;
@@ -38,6 +47,49 @@ public class Actor {
     private static final String KEY_METHOD = "method";
     private static final String KEY_STATUS = "status";
     private static final String KEY_PAYLOAD = "payload";
+    private static final String KEY_PID = "pid";
+    private static final String KEY_SEQ = "seq";
+    private static final String KEY_CHUNK = "chunk";
+    private static final String KEY_CHUNKS = "chunks";
+    private static final String KEY_PROGRESS = "progress";
+    private static final String KEY_REASON = "reason";
+    private static final String KEY_RETRY_AFTER = "retryAfter";
+    private static final String KEY_PRIORITY = "priority";
+    private static final String KEY_DEADLINE = "deadline";
+
+    // 実行せずに断ったときの理由
+    private static final String REASON_OVERLOADED = "overloaded";
+    private static final String REASON_TIMEOUT = "timeout";
+    private static final String REASON_CANCELLED = "cancelled";
+    private static final String REASON_RATE_LIMITED = "rateLimited";
+    private static final String REASON_TOO_LARGE = "tooLarge";
+    private static final String REASON_CIRCUIT_OPEN = "circuitOpen";
+
+    /**
+     * モジュール全体で順番を守るときの単位
+     */
+    private static final Object MODULE_ORDER_KEY = new Object();
+
+    /**
+     * 少しずつ返す結果を PIPE で送るときのイベント名
+     */
+    static final String STREAM_EVENT = "$chunk";
+
+    /**
+     * 呼び出し元が実行中のモジュール関数を取り消すイベント名。
+     * PERFORM と同じ key と pid を載せてくる
+     */
+    static final String CANCEL_EVENT = "cancel";
+
+    /**
+     * 途中経過を PIPE で送るときのイベント名
+     */
+    static final String PROGRESS_EVENT = "$progress";
+
+    /**
+     * 途中経過を送る既定の間隔 (ミリ秒)
+     */
+    private static final long DEFAULT_PROGRESS_INTERVAL = 200;
 
     private final String key;
 
@@ -47,7 +99,46 @@ public class Actor {
     private Socket socket;
     private boolean greeted;
 
-    private final ExecutorService performer;
+    /**
+     * モジュールごとの実行器
+     */
+    private final Map<String, Bulkhead> bulkheads;
+    private Bulkhead.Config defaultBulkheadConfig;
+
+    /**
+     * 期限の無いモジュール関数の期限 (ミリ秒)。0 なら期限無し
+     */
+    private long defaultDeadline;
+
+    /**
+     * 実行依頼に ID が付いていなかったときに振る番号
+     */
+    private final AtomicLong performCount;
+
+    /**
+     * 呼び出し元が pid を付けてきた、応答前の実行
+     */
+    private final Map<String, PerformContext> performing;
+
+    /**
+     * 途中経過を送る間隔 (ミリ秒)
+     */
+    private long progressInterval;
+
+    /**
+     * Idempotent なモジュール関数の相乗り
+     */
+    private final SingleFlight singleFlight;
+
+    /**
+     * 実行依頼を受け取ったスレッドで実行して、警告を出すほど長く掛かった数
+     */
+    private final AtomicLong inlineOverrunCount;
+
+    /**
+     * 応答前の実行依頼の引数と結果が使うメモリの上限。null なら制限しない
+     */
+    private MemoryBudget memoryBudget;
 
     /**
      * 作成する
@@ -58,7 +149,13 @@ public class Actor {
     public Actor(final String key, final String name, final String description) {
         this.key = key;
         this.modules = new HashMap<>();
-        this.performer = Executors.newCachedThreadPool();
+        this.bulkheads = new HashMap<>();
+        this.defaultBulkheadConfig = Bulkhead.Config.DEFAULT;
+        this.performCount = new AtomicLong();
+        this.performing = new ConcurrentHashMap<>();
+        this.progressInterval = DEFAULT_PROGRESS_INTERVAL;
+        this.singleFlight = new SingleFlight();
+        this.inlineOverrunCount = new AtomicLong();
     }
 
     /**
@@ -103,6 +200,13 @@ public class Actor {
                 Actor.this.perform(args);
             }
         });
+        this.socket.on(CANCEL_EVENT, new Listener() {
+
+            @Override
+            public void call(final Object... args) {
+                Actor.this.cancel(args);
+            }
+        });
         this.socket.on(Socket.EVENT_CONNECT_ERROR, new Listener() {
             @Override
             public void call(final Object... args) {
@@ -180,53 +284,621 @@ public class Actor {
      * モジュール関数を実行
      * @param args io.socket.client.Ack.call を参照
      */
-    private void perform(final Object[] args) {
+    void perform(final Object[] args) {
         final JSONObject data = (JSONObject) args[0];
         if (!this.key.equals(data.getString(KEY_KEY))) {
             return;
         }
+        final String moduleName = data.getString(KEY_MODULE);
         final Module module;
+        final Bulkhead bulkhead;
+        final MemoryBudget budget;
         synchronized (this) {
-            final String moduleName = data.getString(KEY_MODULE);
             if (!this.modules.containsKey(moduleName)) {
                 return;
             }
             module = this.modules.get(moduleName);
+            bulkhead = this.bulkheads.get(moduleName);
+            budget = this.memoryBudget;
         }
         final String methodName = data.getString(KEY_METHOD);
-        final Class<?> returnType = module.getReturnType(methodName);
-        if (returnType == null) {
-            throw new RuntimeException("function " + methodName + " does not exist");
+        final long wait = module.tryAcquireRate(methodName);
+        if (wait > 0) {
+            // 引数も見ずにすぐ断る
+            final long retryAfter = TimeUnit.NANOSECONDS.toMillis(wait) + 1;
+            LOG.fine("Rate limited " + moduleName + "." + methodName + ", retry after " + retryAfter + " ms");
+            final JSONObject response = newRejectResponse(REASON_RATE_LIMITED, moduleName, methodName);
+            response.getJSONObject(KEY_PAYLOAD).put(KEY_RETRY_AFTER, retryAfter);
+            ((Ack) args[args.length - 1]).call(response);
+            return;
+        }
+        // JSONObject, JSONArray の変換は引数の型が決まってからにする
+        final JSONArray rawParameters = data.getJSONArray(KEY_PARAMS);
+        final Ack rawAck = (Ack) args[args.length - 1];
+        // 要素は変換せずに並べるだけなので、確保する前でも写しはできない
+        final Object[] parameters = JsonUtils.toArray(rawParameters);
+        // 変換後の写しの分も見込んで、変換する前に確保する
+        final long requestSize = (budget == null ? 0 : JsonUtils.estimateRequestSize(parameters));
+        if (budget != null && !budget.tryAcquire(requestSize)) {
+            final String reason = (budget.isTooLarge(requestSize) ? REASON_TOO_LARGE : REASON_OVERLOADED);
+            LOG.warning("Rejected " + moduleName + "." + methodName + " of " + requestSize + " bytes: " + budget);
+            rawAck.call(newRejectResponse(reason, moduleName, methodName));
+            return;
+        }
+        // 実行に引き継ぐまでに抜けたら返す
+        boolean budgetHandedOver = false;
+        try {
+            final Invoker invoker;
+            final Object[] arguments;
+            try {
+                invoker = module.getInvoker(methodName, parameters);
+                arguments = (invoker == null ? null : invoker.coerce(parameters));
+            } catch (final IllegalArgumentException e) {
+                // 引数が合わない。呼び出し側の誤りなのでスタックトレースは付けない
+                LOG.warning(e.getMessage());
+                rawAck.call(newErrorResponse(e.getMessage()));
+                return;
+            }
+            if (invoker == null) {
+                throw new RuntimeException("function " + methodName + " does not exist");
+            }
+            final ResultCache cache = module.getCache(methodName);
+            final CallKey callKey = (cache != null || invoker.isIdempotent() ? new CallKey(moduleName, methodName, parameters) : null);
+            final Ack replyAck;
+            if (cache != null) {
+                final JSONObject cached = cache.get(callKey);
+                if (cached != null) {
+                    // 覚えておいた結果はこのスレッドで返す
+                    rawAck.call(cached);
+                    return;
+                }
+                replyAck = new Ack() {
+                    @Override
+                    public void call(final Object... ackArgs) {
+                        final JSONObject response = (JSONObject) ackArgs[0];
+                        if (Constants.AcknowledgeStatus.OK.equals(response.opt(KEY_STATUS))) {
+                            cache.put(callKey, response);
+                        }
+                        rawAck.call(ackArgs);
+                    }
+                };
+            } else {
+                replyAck = rawAck;
+            }
+            final String pid = data.has(KEY_PID) ? data.getString(KEY_PID) : this.key + "-" + this.performCount.incrementAndGet();
+            // 実行依頼で指定があればそちらを優先する
+            final int priority = data.optInt(KEY_PRIORITY, module.getPriority(invoker));
+            // 同時実行数の制限は応答するまで占有する
+            final ConcurrencyLimiter.Permits permits = new ConcurrencyLimiter.Permits(invoker.getLimiter(), module.getLimiter());
+            final Circuit circuit = module.getCircuit(methodName);
+            // 遮断器を通った世代。相乗りした呼び出しは実行しないので通さず、結果も記録しない
+            final AtomicLong generation = new AtomicLong(-1);
+            final Ack resultAck;
+            if (circuit != null) {
+                // 待ち行列にいる時間も含めて計る
+                final long start = System.nanoTime();
+                resultAck = new Ack() {
+                    @Override
+                    public void call(final Object... ackArgs) {
+                        final long generation0 = generation.getAndSet(-1);
+                        if (generation0 >= 0) {
+                            record(circuit, generation0, (JSONObject) ackArgs[0], System.nanoTime() - start);
+                        }
+                        replyAck.call(ackArgs);
+                    }
+                };
+            } else {
+                resultAck = replyAck;
+            }
+            final Invocation ack = new Invocation(resultAck, permits);
+            if (budget != null) {
+                // 期限切れで応答しても、実行が本当に終わるまで引数は使われている
+                ack.addOnFinished(new Runnable() {
+                    @Override
+                    public void run() {
+                        budget.release(requestSize);
+                    }
+                });
+            }
+            budgetHandedOver = true;
+            final ProgressReporter progress = new ProgressReporter(ack, getProgressInterval(), new ProgressReporter.Sender() {
+                @Override
+                public void send(final int seq, final Object value) {
+                    final Map<String, Object> data = new HashMap<>();
+                    data.put(KEY_PID, pid);
+                    data.put(KEY_SEQ, seq);
+                    data.put(KEY_PROGRESS, value);
+                    emit(moduleName, PROGRESS_EVENT, data);
+                }
+            });
+            final PerformContext context = new PerformContext(moduleName, methodName, pid, ack, progress);
+            if (data.has(KEY_PID)) {
+                // 呼び出し元から取り消せるようにする
+                if (this.performing.putIfAbsent(pid, context) == null) {
+                    ack.addOnDone(new Runnable() {
+                        @Override
+                        public void run() {
+                            Actor.this.performing.remove(pid, context);
+                        }
+                    });
+                } else {
+                    LOG.warning("Duplicate pid " + pid + " cannot be cancelled");
+                }
+            }
+            // 待ち行列にいる間も期限に含める
+            final long deadline = getDeadline(data, module, invoker);
+            if (deadline > 0) {
+                ack.setTimeout(HashedWheelTimer.SHARED.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        LOG.warning("Timed out " + moduleName + "." + methodName + " after " + deadline + " ms");
+                        ack.abort(newRejectResponse(REASON_TIMEOUT, moduleName, methodName));
+                    }
+                }, deadline, TimeUnit.MILLISECONDS));
+            }
+            if (invoker.isIdempotent() && !this.singleFlight.join(callKey, ack)) {
+                // 実行中の同じ呼び出しの応答を受け取る
+                return;
+            }
+            if (circuit != null) {
+                final long generation0 = circuit.tryAcquire();
+                if (generation0 < 0) {
+                    // 失敗が続いているので、実行せずにすぐ断る
+                    final long retryAfter = TimeUnit.NANOSECONDS.toMillis(circuit.getRetryAfter()) + 1;
+                    LOG.fine("Circuit open " + moduleName + "." + methodName + ": " + circuit);
+                    final JSONObject response = newRejectResponse(REASON_CIRCUIT_OPEN, moduleName, methodName);
+                    response.getJSONObject(KEY_PAYLOAD).put(KEY_RETRY_AFTER, retryAfter);
+                    ack.call(response);
+                    return;
+                }
+                generation.set(generation0);
+                if (ack.isDone()) {
+                    // 通る前に期限切れか取り消しで応答した
+                    final long generation1 = generation.getAndSet(-1);
+                    if (generation1 >= 0) {
+                        circuit.abandon(generation1);
+                    }
+                }
+            }
+            final AdaptiveConcurrencyLimiter adaptiveLimiter = module.getAdaptiveLimiter();
+            if (adaptiveLimiter != null) {
+                if (!adaptiveLimiter.tryAcquire()) {
+                    // 応答が遅れてきているので溜めずに断る
+                    LOG.warning("Shed " + moduleName + "." + methodName + ": " + adaptiveLimiter);
+                    final long generation0 = generation.getAndSet(-1);
+                    if (generation0 >= 0) {
+                        circuit.abandon(generation0);
+                    }
+                    ack.call(newRejectResponse(REASON_OVERLOADED, moduleName, methodName));
+                    return;
+                }
+                // 待ち行列にいる時間も含めて、実行が本当に終わるまでを計る
+                final long start = System.nanoTime();
+                ack.addOnFinished(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (ack.isCompleted()) {
+                            adaptiveLimiter.release(System.nanoTime() - start);
+                        } else {
+                            // 断ったか取り消したので、時間は当てにならない
+                            adaptiveLimiter.abandon();
+                        }
+                    }
+                });
+            }
+            final Runnable task = new Runnable() {
+                @Override
+                public void run() {
+                    if (!ack.enter(true)) {
+                        // 待っている間に期限が過ぎた
+                        return;
+                    }
+                    try {
+                        execute(ack, invoker, arguments, context);
+                    } finally {
+                        ack.exit();
+                    }
+                }
+            };
+            final Runnable onRejected = new Runnable() {
+                @Override
+                public void run() {
+                    if (!ack.isDone()) {
+                        // 詰まったモジュールの実行依頼は溜めずに断る。期限切れや取り消しで諦めたものは数えない
+                        LOG.warning("Rejected " + moduleName + "." + methodName + ": " + bulkhead);
+                    }
+                    ack.call(newRejectResponse(REASON_OVERLOADED, moduleName, methodName));
+                }
+            };
+            final Object orderKey = getOrderKey(invoker, parameters);
+            if (invoker.getOrdering() != null) {
+                // 同じ鍵の前のものが、非同期な結果も含めて終わるまでは空きを得ない
+                bulkhead.submit(orderKey, permits, new KeyedExecutor.Task() {
+                    @Override
+                    public void run(final Runnable done) {
+                        ack.addOnFinished(done);
+                        task.run();
+                    }
+                }, onRejected, priority);
+                return;
+            }
+            // 空きを待った NonBlocking な関数は、空きを返したスレッドで実行しないように実行器に回す
+            final Thread receiver = Thread.currentThread();
+            final AtomicBoolean acquiring = new AtomicBoolean(true);
+            // 制限に空きが無ければスレッドを使わずに順番を待つ
+            permits.acquire(new Runnable() {
+                @Override
+                public void run() {
+                    if (invoker.isNonBlocking() && acquiring.get() && Thread.currentThread() == receiver) {
+                        executeInline(ack, invoker, arguments, context);
+                    } else {
+                        bulkhead.submit(task, onRejected, priority);
+                    }
+                }
+            }, onRejected);
+            acquiring.set(false);
+        } finally {
+            if (!budgetHandedOver) {
+                release(budget, requestSize);
+            }
+        }
+    }
+
+    /**
+     * 確保したメモリを返す
+     * @param budget メモリの上限。null なら何もしない
+     * @param bytes 確保した大きさ
+     */
+    private static void release(final MemoryBudget budget, final long bytes) {
+        if (budget != null) {
+            budget.release(bytes);
+        }
+    }
+
+    /**
+     * 応答を遮断器に数える。
+     * 期限切れは失敗に数え、混雑や取り消しで実行せずに断ったものは数えない
+     * @param circuit 遮断器
+     * @param generation 遮断器が通したときの世代
+     * @param response 応答
+     * @param elapsedNanos 応答までの時間 (ナノ秒)
+     */
+    private static void record(final Circuit circuit, final long generation, final JSONObject response, final long elapsedNanos) {
+        if (Constants.AcknowledgeStatus.OK.equals(response.opt(KEY_STATUS))) {
+            circuit.record(generation, false, elapsedNanos);
+            return;
+        }
+        final JSONObject payload = response.optJSONObject(KEY_PAYLOAD);
+        final String reason = (payload == null ? null : payload.optString(KEY_REASON, null));
+        if (reason == null || REASON_TIMEOUT.equals(reason)) {
+            circuit.record(generation, true, elapsedNanos);
+        } else {
+            circuit.abandon(generation);
+        }
+    }
+
+    /**
+     * 順番を守る単位を返す
+     * @param invoker モジュール関数
+     * @param parameters 変換前の引数
+     * @return 同じ順番で実行するものどうしで等しい値
+     */
+    private static Object getOrderKey(final Invoker invoker, final Object[] parameters) {
+        final Integer ordering = invoker.getOrdering();
+        if (ordering == null) {
+            return null;
+        } else if (ordering == Ordered.MODULE) {
+            return MODULE_ORDER_KEY;
         }
-        final Object[] parameters = JsonUtils.convertToObject(data.getJSONArray(KEY_PARAMS));
+        // 中身で比べる。JSON の文字列はキーの順番や数の型で変わるので使わない
+        return CallKey.canonicalize(ordering < parameters.length ? parameters[ordering] : null);
+    }
+
+    /**
+     * 実行中のモジュール関数を取り消す。
+     * まだ実行していなければ実行せず、実行中ならスレッドに割り込み、非同期な結果を取り消す。
+     * 取り消した実行依頼には cancelled で断る
+     * @param args io.socket.client.Ack.call を参照。Ack があれば、取り消したかどうかを返す
+     */
+    void cancel(final Object[] args) {
+        final JSONObject data = (JSONObject) args[0];
+        if (!this.key.equals(data.getString(KEY_KEY))) {
+            return;
+        }
+        final String pid = data.getString(KEY_PID);
+        final PerformContext context = this.performing.get(pid);
+        if (context != null) {
+            LOG.info("Cancelled " + context.getModule() + "." + context.getMethod() + " (" + pid + ")");
+            final Invocation invocation = context.getInvocation();
+            invocation.abort(newRejectResponse(REASON_CANCELLED, context.getModule(), context.getMethod()));
+        }
+        if (args.length > 1 && args[args.length - 1] instanceof Ack) {
+            final Map<String, Object> response = new HashMap<>();
+            response.put(KEY_STATUS, Constants.AcknowledgeStatus.OK);
+            response.put(KEY_PAYLOAD, context != null);
+            ((Ack) args[args.length - 1]).call(new JSONObject(response));
+        }
+    }
 
-        this.performer.submit(new Runnable() {
+    /**
+     * @return 呼び出し元から取り消せる、応答前の実行の数
+     */
+    int getCancellableCount() {
+        return this.performing.size();
+    }
+
+    /**
+     * モジュール関数を実行して応答する
+     * @param ack 応答先
+     * @param invoker モジュール関数
+     * @param arguments 引数
+     * @param context 実行中のモジュール関数の情報。実行中はこのスレッドから取り出せる
+     */
+    private void execute(final Invocation ack, final Invoker invoker, final Object[] arguments, final PerformContext context) {
+        final PerformContext previous = context.enter();
+        try {
+            final Object returnValue;
+            try {
+                returnValue = invoker.invoke(arguments);
+            } catch (final Exception e) {
+                ack.call(newErrorResponse(e));
+                return;
+            }
+            if (invoker.isAsync()) {
+                ack.setResult(returnValue);
+                replyLater(ack, invoker, returnValue);
+            } else if (invoker.isStream()) {
+                // 送り終えるまで実行中とみなす
+                ack.defer();
+                stream(ack, context.getModule(), context.getPid(), returnValue);
+            } else {
+                reply(ack, invoker, returnValue);
+            }
+        } finally {
+            PerformContext.exit(previous);
+        }
+    }
+
+    /**
+     * NonBlocking なモジュール関数をこのスレッドで実行して応答する。
+     * 長く掛かっていたら、そのときのスタックトレースを付けて警告する。
+     * このスレッドは通信にも使うので、期限切れでも割り込まない
+     * @param ack 応答先
+     * @param invoker モジュール関数
+     * @param arguments 引数
+     * @param context 実行中のモジュール関数の情報
+     */
+    private void executeInline(final Invocation ack, final Invoker invoker, final Object[] arguments, final PerformContext context) {
+        if (!ack.enter(false)) {
+            return;
+        }
+        final Thread thread = Thread.currentThread();
+        final HashedWheelTimer.Timeout watchdog = HashedWheelTimer.SHARED.schedule(new Runnable() {
             @Override
             public void run() {
+                Actor.this.inlineOverrunCount.incrementAndGet();
+                final StringBuilder message = new StringBuilder();
+                message.append("Non-blocking ").append(context.getModule()).append('.').append(invoker.getName()).append(" has been running for over ").append(invoker.getInlineLimit())
+                        .append(" ms on ").append(thread.getName());
+                for (final StackTraceElement element : thread.getStackTrace()) {
+                    message.append(System.lineSeparator()).append("\tat ").append(element);
+                }
+                LOG.warning(message.toString());
+            }
+        }, invoker.getInlineLimit(), TimeUnit.MILLISECONDS);
+        try {
+            execute(ack, invoker, arguments, context);
+        } finally {
+            watchdog.cancel();
+            ack.exit();
+        }
+    }
 
-                final Ack ack = (Ack) args[args.length - 1];
-                JSONObject response;
-                try {
-                    final Map<String, Object> responseData = new HashMap<>();
-                    final Object returnValue = module.invoke(methodName, parameters);
-                    responseData.put(KEY_STATUS, Constants.AcknowledgeStatus.OK);
-                    if (returnType != Void.TYPE) {
-                        responseData.put(KEY_PAYLOAD, returnValue);
+    /**
+     * 期限を決める
+     * @param data 実行依頼
+     * @param module モジュール
+     * @param invoker モジュール関数
+     * @return 期限 (ミリ秒)。0 以下なら期限無し
+     */
+    private long getDeadline(final JSONObject data, final Module module, final Invoker invoker) {
+        // 実行依頼で指定があればそちらを優先する
+        if (data.has(KEY_DEADLINE)) {
+            return data.optLong(KEY_DEADLINE, 0);
+        }
+        final Long deadline = module.getDeadline(invoker);
+        if (deadline != null) {
+            return deadline;
+        }
+        synchronized (this) {
+            return this.defaultDeadline;
+        }
+    }
+
+    /**
+     * 非同期なモジュール関数の結果が出てから応答する。
+     * CompletionStage なら完了時に応答するのでスレッドを占有しないが、完了するまで実行中とみなす。
+     * それ以外の Future は完了を待つ
+     * @param ack 応答先
+     * @param invoker モジュール関数
+     * @param returnValue モジュール関数の返り値
+     */
+    private void replyLater(final Invocation ack, final Invoker invoker, final Object returnValue) {
+        if (returnValue instanceof CompletionStage) {
+            ack.defer();
+            ((CompletionStage<?>) returnValue).whenComplete(new BiConsumer<Object, Throwable>() {
+                @Override
+                public void accept(final Object result, final Throwable error) {
+                    try {
+                        if (error != null) {
+                            ack.call(newErrorResponse(unwrap(error)));
+                        } else {
+                            reply(ack, invoker, result);
+                        }
+                    } finally {
+                        ack.finish();
                     }
-                    response = new JSONObject(responseData);
-                } catch (final Exception e) {
-                    final String warning = StackTraces.getString(e);
-                    LOG.warning(warning);
-                    final Map<String, Object> responseData = new HashMap<>();
-                    responseData.put(KEY_STATUS, Constants.AcknowledgeStatus.NG);
-                    responseData.put(KEY_PAYLOAD, warning);
-                    response = new JSONObject(responseData);
                 }
-                ack.call(response);
+            });
+            return;
+        }
+
+        final Object result;
+        try {
+            result = (returnValue == null ? null : ((Future<?>) returnValue).get());
+        } catch (final ExecutionException e) {
+            ack.call(newErrorResponse(unwrap(e)));
+            return;
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            ack.call(newErrorResponse(e));
+            return;
+        }
+        reply(ack, invoker, result);
+    }
+
+    /**
+     * 結果を応答する。
+     * メモリの上限があれば、応答をつくって送り終えるまで結果の分も確保する。
+     * 実行し終えた結果は断れないので、上限を超えても確保する
+     * @param ack 応答先
+     * @param invoker モジュール関数
+     * @param result 結果
+     */
+    private void reply(final Ack ack, final Invoker invoker, final Object result) {
+        final MemoryBudget budget = getMemoryBudget();
+        if (budget == null || !invoker.hasResult()) {
+            ack.call(newResponse(invoker, result));
+            return;
+        }
+        final long size = JsonUtils.estimateSize(result);
+        budget.acquire(size);
+        try {
+            ack.call(newResponse(invoker, result));
+        } finally {
+            budget.release(size);
+        }
+    }
+
+    /**
+     * 結果を少しずつ PIPE で送り、送り終えたら応答する。
+     * 各要素には実行 ID と通し番号を付ける
+     * @param ack 応答先
+     * @param moduleName モジュール名
+     * @param pid 実行 ID
+     * @param returnValue モジュール関数の返り値
+     */
+    private void stream(final Invocation ack, final String moduleName, final String pid, final Object returnValue) {
+        Streams.drain(returnValue, new Streams.Sink() {
+
+            private int count;
+
+            @Override
+            public void subscribed(final Runnable cancel) {
+                // 中断されたら次の要素を待たずにやめる
+                ack.addOnCancel(cancel);
+            }
+
+            @Override
+            public void next(final Object element) {
+                if (ack.isCancelled()) {
+                    // 中断された。残りは送らない
+                    throw new CancellationException();
+                }
+                final Map<String, Object> chunk = new HashMap<>();
+                chunk.put(KEY_PID, pid);
+                chunk.put(KEY_SEQ, this.count++);
+                chunk.put(KEY_CHUNK, element);
+                emit(moduleName, STREAM_EVENT, chunk);
+            }
+
+            @Override
+            public void error(final Throwable error) {
+                try {
+                    ack.call(newErrorResponse(error));
+                } finally {
+                    ack.finish();
+                }
+            }
+
+            @Override
+            public void complete() {
+                final Map<String, Object> summary = new HashMap<>();
+                summary.put(KEY_PID, pid);
+                summary.put(KEY_CHUNKS, this.count);
+                final Map<String, Object> responseData = new HashMap<>();
+                responseData.put(KEY_STATUS, Constants.AcknowledgeStatus.OK);
+                responseData.put(KEY_PAYLOAD, summary);
+                try {
+                    ack.call(new JSONObject(responseData));
+                } finally {
+                    ack.finish();
+                }
             }
         });
     }
 
+    private static Throwable unwrap(final Throwable error) {
+        if ((error instanceof CompletionException || error instanceof ExecutionException) && error.getCause() != null) {
+            return error.getCause();
+        }
+        return error;
+    }
+
+    /**
+     * 成功の応答をつくる
+     * @param invoker モジュール関数
+     * @param result 結果
+     * @return 応答
+     */
+    private static JSONObject newResponse(final Invoker invoker, final Object result) {
+        final Map<String, Object> responseData = new HashMap<>();
+        responseData.put(KEY_STATUS, Constants.AcknowledgeStatus.OK);
+        if (invoker.hasResult()) {
+            responseData.put(KEY_PAYLOAD, result);
+        }
+        return new JSONObject(responseData);
+    }
+
+    /**
+     * 失敗の応答をつくる
+     * @param e 失敗の原因
+     * @return 応答
+     */
+    private static JSONObject newErrorResponse(final Throwable e) {
+        final String warning = StackTraces.getString(e);
+        LOG.warning(warning);
+        return newErrorResponse(warning);
+    }
+
+    /**
+     * 実行せずに断ったときの応答をつくる。
+     * 呼び出し側が理由を見て待ち直せるように、添付データは {reason, module, method} にする
+     * @param reason 理由
+     * @param moduleName モジュール名
+     * @param methodName 関数名
+     * @return 応答
+     */
+    private static JSONObject newRejectResponse(final String reason, final String moduleName, final String methodName) {
+        final Map<String, Object> payload = new HashMap<>();
+        payload.put(KEY_REASON, reason);
+        payload.put(KEY_MODULE, moduleName);
+        payload.put(KEY_METHOD, methodName);
+        return newErrorResponse(payload);
+    }
+
+    /**
+     * 失敗の応答をつくる
+     * @param payload 添付データ
+     * @return 応答
+     */
+    private static JSONObject newErrorResponse(final Object payload) {
+        final Map<String, Object> responseData = new HashMap<>();
+        responseData.put(KEY_STATUS, Constants.AcknowledgeStatus.NG);
+        responseData.put(KEY_PAYLOAD, payload);
+        return new JSONObject(responseData);
+    }
+
     /**
      * つながったときに実行する関数を登録する
      * @param onConnect つながったときに実行する関数
@@ -236,7 +908,164 @@ public class Actor {
     }
 
     /**
-     * モジュールを登録する
+     * 以降に登録するモジュールの実行器の既定の設定を変える
+     * @param config 設定
+     */
+    public synchronized void setDefaultBulkheadConfig(final Bulkhead.Config config) {
+        this.defaultBulkheadConfig = config;
+    }
+
+    /**
+     * @return モジュールの実行器の既定の設定
+     */
+    public synchronized Bulkhead.Config getDefaultBulkheadConfig() {
+        return this.defaultBulkheadConfig;
+    }
+
+    /**
+     * 期限の無いモジュール関数の期限を設定する。
+     * 期限は実行依頼の deadline、関数やモジュールに付いた Deadline、この設定の順に探す
+     * @param millis 期限 (ミリ秒)。0 なら期限無し
+     */
+    public synchronized void setDefaultDeadline(final long millis) {
+        this.defaultDeadline = millis;
+    }
+
+    /**
+     * @return 期限の無いモジュール関数の期限 (ミリ秒)。0 なら期限無し
+     */
+    public synchronized long getDefaultDeadline() {
+        return this.defaultDeadline;
+    }
+
+    /**
+     * モジュール関数が途中経過を送る間隔を設定する。
+     * 間隔より短く報告された途中経過は最新のものだけを送る
+     * @param millis 間隔 (ミリ秒)。0 なら報告ごとに送る
+     */
+    public synchronized void setProgressInterval(final long millis) {
+        if (millis < 0) {
+            throw new IllegalArgumentException("interval must not be negative: " + millis);
+        }
+        this.progressInterval = millis;
+    }
+
+    /**
+     * @return モジュール関数が途中経過を送る間隔 (ミリ秒)
+     */
+    public synchronized long getProgressInterval() {
+        return this.progressInterval;
+    }
+
+    /**
+     * 応答前の実行依頼の引数と結果が使うメモリの上限を設定する。
+     * 大きさは見積もりで数え、引数の分を確保できない実行依頼は変換する前に断る
+     * @param bytes 上限 (バイト)。0 なら制限しない
+     */
+    public synchronized void setMemoryBudget(final long bytes) {
+        if (bytes < 0) {
+            throw new IllegalArgumentException("bytes must not be negative: " + bytes);
+        }
+        this.memoryBudget = (bytes == 0 ? null : new MemoryBudget(bytes));
+    }
+
+    /**
+     * @return 応答前の実行依頼の引数と結果が使うメモリの上限。使い具合を見るのに使う。制限しないなら null
+     */
+    public synchronized MemoryBudget getMemoryBudget() {
+        return this.memoryBudget;
+    }
+
+    /**
+     * 頻度の制限を設定する。RateLimit の設定も上書きする
+     * @param moduleName モジュール名
+     * @param methodName 関数名。null ならモジュール全体
+     * @param permitsPerSecond 1 秒あたりに呼べる回数。0 なら制限しない
+     * @param burst 間を空けずに続けて呼べる回数
+     */
+    public void setRateLimit(final String moduleName, final String methodName, final double permitsPerSecond, final int burst) {
+        final Module module;
+        synchronized (this) {
+            module = this.modules.get(moduleName);
+        }
+        if (module == null) {
+            throw new IllegalArgumentException("no module " + moduleName);
+        }
+        module.setRateLimit(methodName, permitsPerSecond == 0 ? null : new TokenBucket(permitsPerSecond, burst));
+    }
+
+    /**
+     * @param moduleName モジュール名
+     * @param methodName 関数名。null ならモジュール全体
+     * @return 頻度の制限で断った数
+     */
+    public long getRateLimitedCount(final String moduleName, final String methodName) {
+        final Module module;
+        synchronized (this) {
+            module = this.modules.get(moduleName);
+        }
+        final TokenBucket bucket = (module == null ? null : module.getRateLimit(methodName));
+        return bucket == null ? 0 : bucket.getRejectedCount();
+    }
+
+    /**
+     * @param moduleName モジュール名
+     * @return 応答時間で調整する同時実行数の制限。AdaptiveConcurrency が付いていなければ null
+     */
+    public synchronized AdaptiveConcurrencyLimiter getAdaptiveLimiter(final String moduleName) {
+        final Module module = this.modules.get(moduleName);
+        return module == null ? null : module.getAdaptiveLimiter();
+    }
+
+    /**
+     * @param moduleName モジュール名
+     * @param methodName 関数名
+     * @return 遮断器。状態を見るのに使う。CircuitBreaker が付いていなければ null
+     */
+    public synchronized Circuit getCircuit(final String moduleName, final String methodName) {
+        final Module module = this.modules.get(moduleName);
+        return module == null ? null : module.getCircuit(methodName);
+    }
+
+    /**
+     * @return これまでに実行中の同じ呼び出しに相乗りした実行依頼の数
+     */
+    public long getCoalescedCount() {
+        return this.singleFlight.getCoalescedCount();
+    }
+
+    /**
+     * @return NonBlocking なモジュール関数が警告を出すほど長く掛かった数
+     */
+    public long getInlineOverrunCount() {
+        return this.inlineOverrunCount.get();
+    }
+
+    /**
+     * モジュール関数の結果の覚え書きを返す。
+     * 使われ具合を見るのに使う
+     * @param moduleName モジュール名
+     * @param methodName 関数名
+     * @return 覚え書き。そんなモジュールが無いか、関数に Cached が付いていなければ null
+     */
+    public synchronized ResultCache getResultCache(final String moduleName, final String methodName) {
+        final Module module = this.modules.get(moduleName);
+        return module == null ? null : module.getCache(methodName);
+    }
+
+    /**
+     * モジュールの実行器を返す。
+     * 設定と実行状況を見るのに使う
+     * @param moduleName モジュール名
+     * @return 実行器。そんなモジュール無い場合は null
+     */
+    public synchronized Bulkhead getBulkhead(final String moduleName) {
+        return this.bulkheads.get(moduleName);
+    }
+
+    /**
+     * モジュールを登録する。
+     * 実行器は既定の設定でつくる
      * @param moduleName モジュール名
      * @param moduleVersion モジュールバージョン
      * @param moduleDescription モジュールの説明
@@ -244,7 +1073,26 @@ public class Actor {
      * @return モジュール用のイベント送信機
      */
     public synchronized Emitter addModule(final String moduleName, final String moduleVersion, final String moduleDescription, final Object module) {
+        return addModule(moduleName, moduleVersion, moduleDescription, module, this.defaultBulkheadConfig);
+    }
+
+    /**
+     * モジュールを登録する
+     * @param moduleName モジュール名
+     * @param moduleVersion モジュールバージョン
+     * @param moduleDescription モジュールの説明
+     * @param module モジュール
+     * @param bulkheadConfig モジュールの実行器の設定
+     * @return モジュール用のイベント送信機
+     */
+    public synchronized Emitter addModule(final String moduleName, final String moduleVersion, final String moduleDescription, final Object module,
+            final Bulkhead.Config bulkheadConfig) {
         this.modules.put(moduleName, new Module(moduleVersion, moduleDescription, module));
+        final Bulkhead oldBulkhead = this.bulkheads.put(moduleName, new Bulkhead(moduleName, bulkheadConfig));
+        if (oldBulkhead != null) {
+            // 置き換えられたモジュールの実行中のものは最後までやらせる
+            oldBulkhead.shutdown();
+        }
         final Emitter emitter;
         if (module instanceof Emitter) {
             emitter = (Emitter) module;
@@ -283,7 +1131,16 @@ public class Actor {
         if (data != null) {
             wrapData.put(KEY_DATA, data);
         }
-        this.socket.emit(Constants.RemoteEvents.PIPE, new JSONObject(wrapData));
+        send(Constants.RemoteEvents.PIPE, new JSONObject(wrapData));
+    }
+
+    /**
+     * サーバーに送る
+     * @param event イベント
+     * @param data データ
+     */
+    synchronized void send(final String event, final JSONObject data) {
+        this.socket.emit(event, data);
     }
 
     /**
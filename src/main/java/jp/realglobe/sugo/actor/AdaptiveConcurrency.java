@@ -0,0 +1,34 @@
+package jp.realglobe.sugo.actor;
+
+import static java.lang.annotation.ElementType.TYPE;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * モジュール全体の同時実行数の上限を、応答までの時間を見ながら自動で調整することを示す。
+ * 応答が遅くなってきたら上限を下げ、上限を超えた実行依頼は待たせずに断る
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target(TYPE)
+@Documented
+public @interface AdaptiveConcurrency {
+
+    /**
+     * @return 最初の上限
+     */
+    int initialLimit() default 20;
+
+    /**
+     * @return 上限の下限。1 以上
+     */
+    int minLimit() default 1;
+
+    /**
+     * @return 上限の上限
+     */
+    int maxLimit() default 200;
+
+}
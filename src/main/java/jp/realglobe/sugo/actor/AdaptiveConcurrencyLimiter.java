@@ -0,0 +1,199 @@
+package jp.realglobe.sugo.actor;
+
+/**
+ * 応答までの時間から同時実行数の上限を決める制限。
+ * 長い目で見た応答時間 (基準) と最近の応答時間の比を勾配として、
+ * 最近の応答時間が基準の TOLERANCE 倍を超えたら上限を縮め、収まっていれば少しずつ広げる。
+ * 上限に空きが無い実行依頼は待たせずに断る
+ */
+public final class AdaptiveConcurrencyLimiter {
+
+    /**
+     * 基準からここまでの遅れは許す
+     */
+    private static final double TOLERANCE = 1.5;
+
+    /**
+     * 新しい上限をどれだけ取り入れるか
+     */
+    private static final double SMOOTHING = 0.2;
+
+    /**
+     * 基準と最近の応答時間の平均を取る標本数
+     */
+    private static final double LONG_WINDOW = 100;
+    private static final double SHORT_WINDOW = 10;
+
+    /**
+     * 最初にこれだけの標本を集めてから調整を始める
+     */
+    private static final int WARMUP = 10;
+
+    /**
+     * 断った割合の平均を取る実行依頼の数
+     */
+    private static final double RATE_WINDOW = 100;
+
+    private final int minLimit;
+    private final int maxLimit;
+
+    private double limit;
+    private int inFlight;
+
+    /**
+     * 基準の応答時間 (ナノ秒)
+     */
+    private double longRtt;
+
+    /**
+     * 最近の応答時間 (ナノ秒)
+     */
+    private double shortRtt;
+    private long samples;
+
+    private long accepted;
+    private long rejected;
+    private double rejectionRate;
+
+    /**
+     * 作成する
+     * @param initialLimit 最初の上限
+     * @param minLimit 上限の下限。1 以上
+     * @param maxLimit 上限の上限
+     */
+    AdaptiveConcurrencyLimiter(final int initialLimit, final int minLimit, final int maxLimit) {
+        if (minLimit < 1) {
+            throw new IllegalArgumentException("minLimit must be positive: " + minLimit);
+        } else if (maxLimit < minLimit) {
+            throw new IllegalArgumentException("maxLimit must not be less than minLimit: " + maxLimit);
+        } else if (initialLimit < minLimit || maxLimit < initialLimit) {
+            throw new IllegalArgumentException("initialLimit is out of range: " + initialLimit);
+        }
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.limit = initialLimit;
+    }
+
+    /**
+     * 注釈から作成する
+     * @param moduleClass モジュールのクラス
+     * @return AdaptiveConcurrency が付いていなければ null
+     */
+    static AdaptiveConcurrencyLimiter of(final Class<?> moduleClass) {
+        final AdaptiveConcurrency annotation = moduleClass.getAnnotation(AdaptiveConcurrency.class);
+        if (annotation == null) {
+            return null;
+        }
+        return new AdaptiveConcurrencyLimiter(annotation.initialLimit(), annotation.minLimit(), annotation.maxLimit());
+    }
+
+    /**
+     * 空きを得る
+     * @return 得られたら true。そのときは実行し終えたら release を、実行しなかったら abandon を呼ぶこと
+     */
+    synchronized boolean tryAcquire() {
+        final boolean acquired = this.inFlight < (int) this.limit;
+        this.rejectionRate += ((acquired ? 0 : 1) - this.rejectionRate) / RATE_WINDOW;
+        if (!acquired) {
+            this.rejected++;
+            return false;
+        }
+        this.inFlight++;
+        this.accepted++;
+        return true;
+    }
+
+    /**
+     * 空きを返し、応答までの時間から上限を調整する
+     * @param rttNanos 空きを得てから応答するまでの時間 (ナノ秒)
+     */
+    synchronized void release(final long rttNanos) {
+        final int inFlight0 = this.inFlight;
+        this.inFlight--;
+        final double rtt = Math.max(1, rttNanos);
+        this.samples++;
+        if (this.samples <= WARMUP) {
+            this.longRtt += (rtt - this.longRtt) / this.samples;
+            this.shortRtt = this.longRtt;
+            return;
+        }
+        this.shortRtt += (rtt - this.shortRtt) / SHORT_WINDOW;
+        this.longRtt += (rtt - this.longRtt) / LONG_WINDOW;
+        if (this.longRtt > 2 * this.shortRtt) {
+            // 速くなった。基準を早めに追い付かせる
+            this.longRtt *= 0.95;
+        }
+        final double gradient = Math.max(0.5, Math.min(1.0, TOLERANCE * this.longRtt / this.shortRtt));
+        // 待ち行列の分として平方根だけ余裕を持たせる
+        double newLimit = this.limit * gradient + Math.sqrt(this.limit);
+        if (inFlight0 < this.limit / 2) {
+            // 上限まで使っていないので広げる根拠が無い
+            newLimit = Math.min(newLimit, this.limit);
+        }
+        newLimit = this.limit * (1 - SMOOTHING) + newLimit * SMOOTHING;
+        this.limit = Math.max(this.minLimit, Math.min(this.maxLimit, newLimit));
+    }
+
+    /**
+     * 空きを返す。
+     * 断ったり取り消したりして、実行し終えていない呼び出しの時間は上限の調整に使わない
+     */
+    synchronized void abandon() {
+        this.inFlight--;
+    }
+
+    /**
+     * @return 今の上限
+     */
+    public synchronized int getLimit() {
+        return (int) this.limit;
+    }
+
+    /**
+     * @return 実行中の数
+     */
+    public synchronized int getInFlightCount() {
+        return this.inFlight;
+    }
+
+    /**
+     * @return これまでに受け付けた数
+     */
+    public synchronized long getAcceptedCount() {
+        return this.accepted;
+    }
+
+    /**
+     * @return これまでに断った数
+     */
+    public synchronized long getRejectedCount() {
+        return this.rejected;
+    }
+
+    /**
+     * @return 最近の実行依頼のうち断った割合。0 以上 1 以下
+     */
+    public synchronized double getRejectionRate() {
+        return this.rejectionRate;
+    }
+
+    /**
+     * @return 基準の応答時間 (ミリ秒)
+     */
+    public synchronized double getBaselineLatency() {
+        return this.longRtt / 1_000_000;
+    }
+
+    /**
+     * @return 最近の応答時間 (ミリ秒)
+     */
+    public synchronized double getRecentLatency() {
+        return this.shortRtt / 1_000_000;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "limit=" + getLimit() + ", inFlight=" + this.inFlight + ", rejected=" + this.rejected;
+    }
+
+}
@@ -0,0 +1,297 @@
+package jp.realglobe.sugo.actor;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.AccessibleObject;
+import java.lang.reflect.Array;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.Type;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.json.JSONObject;
+
+/**
+ * JSON オブジェクトから POJO や record をつくる変換器。
+ * クラスごとにコンストラクタと setter / フィールドの MethodHandle を 1 度だけ用意し、
+ * JSONObject から中間の Map を経ずに値を入れる
+ */
+final class Beans {
+
+    private Beans() {}
+
+    private static final MethodType CONSTRUCTOR_TYPE = MethodType.methodType(Object.class);
+    private static final MethodType SETTER_TYPE = MethodType.methodType(void.class, Object.class, Object.class);
+
+    /**
+     * 作成済みの変換器。
+     * 自身を含むクラスのために、作成途中のものも入れる
+     */
+    private static final Map<Class<?>, BeanConverter> CONVERTERS = new HashMap<>();
+
+    /**
+     * 値を入れる口
+     */
+    private static final class Property {
+
+        private final Type type;
+        private final Converters.Converter converter;
+
+        /**
+         * POJO なら (Object,Object)void の setter。record なら null
+         */
+        private final MethodHandle setter;
+
+        /**
+         * record の何番目の要素か
+         */
+        private final int index;
+
+        Property(final Type type, final MethodHandle setter, final int index) {
+            this.type = type;
+            this.converter = Converters.of(type);
+            this.setter = setter;
+            this.index = index;
+        }
+
+    }
+
+    private static final class BeanConverter implements Converters.Converter {
+
+        private final Class<?> type;
+
+        /**
+         * POJO なら ()Object、record なら (Object[])Object
+         */
+        private MethodHandle constructor;
+
+        /**
+         * record の要素の型。POJO なら null
+         */
+        private Class<?>[] components;
+
+        private Map<String, Property> properties;
+
+        BeanConverter(final Class<?> type) {
+            this.type = type;
+        }
+
+        @Override
+        public Object convert(final Object value) {
+            if (value == null || this.type.isInstance(value)) {
+                return value;
+            }
+            try {
+                if (this.components != null) {
+                    return newRecord(value);
+                }
+                final Object bean = this.constructor.invokeExact();
+                if (value instanceof JSONObject) {
+                    final JSONObject object = (JSONObject) value;
+                    for (final String key : object.keySet()) {
+                        final Property property = this.properties.get(key);
+                        if (property != null) {
+                            final Object element = object.get(key);
+                            property.setter.invokeExact(bean, property.converter.convert(element == JSONObject.NULL ? null : element));
+                        }
+                    }
+                } else if (value instanceof Map) {
+                    for (final Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                        final Property property = this.properties.get(entry.getKey());
+                        if (property != null) {
+                            property.setter.invokeExact(bean, property.converter.convert(entry.getValue()));
+                        }
+                    }
+                } else {
+                    throw Converters.mismatch(value, this.type);
+                }
+                return bean;
+            } catch (final RuntimeException | Error e) {
+                throw e;
+            } catch (final Throwable e) {
+                throw new IllegalArgumentException("cannot create " + this.type.getName(), e);
+            }
+        }
+
+        private Object newRecord(final Object value) throws Throwable {
+            final Object[] values = new Object[this.components.length];
+            for (int i = 0; i < values.length; i++) {
+                if (this.components[i].isPrimitive()) {
+                    // 無い要素は既定値
+                    values[i] = Array.get(Array.newInstance(this.components[i], 1), 0);
+                }
+            }
+            if (value instanceof JSONObject) {
+                final JSONObject object = (JSONObject) value;
+                for (final String key : object.keySet()) {
+                    final Property property = this.properties.get(key);
+                    if (property != null) {
+                        final Object element = object.get(key);
+                        values[property.index] = property.converter.convert(element == JSONObject.NULL ? null : element);
+                    }
+                }
+            } else if (value instanceof Map) {
+                for (final Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                    final Property property = this.properties.get(entry.getKey());
+                    if (property != null) {
+                        values[property.index] = property.converter.convert(entry.getValue());
+                    }
+                }
+            } else {
+                throw Converters.mismatch(value, this.type);
+            }
+            return this.constructor.invokeExact(values);
+        }
+
+    }
+
+    /**
+     * JSON オブジェクトから作れるクラスか。
+     * 標準ライブラリ以外の具象クラスで、引数無しの public コンストラクタを持つか record であるもの
+     * @param type クラス
+     * @return 作れるなら true
+     */
+    static boolean isBindable(final Class<?> type) {
+        if (type.isPrimitive() || type.isArray() || type.isInterface() || type.isEnum() || Modifier.isAbstract(type.getModifiers())) {
+            return false;
+        }
+        final String name = type.getName();
+        if (name.startsWith("java.") || name.startsWith("javax.") || name.startsWith("org.json.")) {
+            return false;
+        }
+        if (getRecordComponents(type) != null) {
+            return true;
+        }
+        try {
+            type.getConstructor();
+            return true;
+        } catch (final NoSuchMethodException e) {
+            return false;
+        }
+    }
+
+    /**
+     * 変換器を返す
+     * @param type isBindable なクラス
+     * @return 変換器
+     */
+    static Converters.Converter of(final Class<?> type) {
+        synchronized (CONVERTERS) {
+            BeanConverter converter = CONVERTERS.get(type);
+            if (converter == null) {
+                converter = new BeanConverter(type);
+                CONVERTERS.put(type, converter);
+                try {
+                    initialize(converter);
+                } catch (final RuntimeException e) {
+                    CONVERTERS.remove(type);
+                    throw e;
+                }
+            }
+            return converter;
+        }
+    }
+
+    /**
+     * 要素の並びを返す
+     * @param type クラス
+     * @return 要素名と型。isBindable でなければ null
+     */
+    static Map<String, Type> getLayout(final Class<?> type) {
+        if (!isBindable(type)) {
+            return null;
+        }
+        final BeanConverter converter = (BeanConverter) of(type);
+        final Map<String, Type> layout = new LinkedHashMap<>();
+        for (final Map.Entry<String, Property> entry : converter.properties.entrySet()) {
+            layout.put(entry.getKey(), entry.getValue().type);
+        }
+        return Collections.unmodifiableMap(layout);
+    }
+
+    private static void initialize(final BeanConverter converter) {
+        final Class<?> type = converter.type;
+        final Map<String, Property> properties = new LinkedHashMap<>();
+        try {
+            final Object[] recordComponents = getRecordComponents(type);
+            if (recordComponents != null) {
+                final Class<?>[] components = new Class<?>[recordComponents.length];
+                final Type[] genericTypes = new Type[recordComponents.length];
+                final String[] names = new String[recordComponents.length];
+                for (int i = 0; i < recordComponents.length; i++) {
+                    final Class<?> componentClass = recordComponents[i].getClass();
+                    names[i] = (String) componentClass.getMethod("getName").invoke(recordComponents[i]);
+                    components[i] = (Class<?>) componentClass.getMethod("getType").invoke(recordComponents[i]);
+                    genericTypes[i] = (Type) componentClass.getMethod("getGenericType").invoke(recordComponents[i]);
+                }
+                final Constructor<?> constructor = type.getDeclaredConstructor(components);
+                converter.constructor = lookup(constructor).unreflectConstructor(constructor).asType(MethodType.methodType(Object.class, components).generic())
+                        .asSpreader(Object[].class, components.length);
+                converter.components = components;
+                for (int i = 0; i < components.length; i++) {
+                    properties.put(names[i], new Property(genericTypes[i], null, i));
+                }
+                converter.properties = properties;
+                return;
+            }
+
+            final Constructor<?> constructor = type.getConstructor();
+            converter.constructor = lookup(constructor).unreflectConstructor(constructor).asType(CONSTRUCTOR_TYPE);
+            for (final Field field : type.getFields()) {
+                if (Modifier.isStatic(field.getModifiers()) || Modifier.isFinal(field.getModifiers())) {
+                    continue;
+                }
+                properties.put(field.getName(), new Property(field.getGenericType(), lookup(field).unreflectSetter(field).asType(SETTER_TYPE), -1));
+            }
+            for (final Method method : type.getMethods()) {
+                final String name = method.getName();
+                if (Modifier.isStatic(method.getModifiers()) || method.getParameterTypes().length != 1 || name.length() <= 3 || !name.startsWith("set")) {
+                    continue;
+                }
+                // setter があればフィールドより優先する
+                final String propertyName = Character.toLowerCase(name.charAt(3)) + name.substring(4);
+                // 返り値は捨てる
+                final MethodHandle setter = lookup(method).unreflect(method);
+                properties.put(propertyName, new Property(method.getGenericParameterTypes()[0], setter.asType(SETTER_TYPE), -1));
+            }
+        } catch (final ReflectiveOperationException e) {
+            throw new IllegalArgumentException("cannot bind " + type.getName(), e);
+        }
+        converter.properties = properties;
+    }
+
+    /**
+     * public でないクラスのものも使えるようにする
+     * @param object コンストラクタ、フィールドや関数
+     * @return MethodHandle をつくるための Lookup
+     */
+    private static MethodHandles.Lookup lookup(final AccessibleObject object) {
+        try {
+            object.setAccessible(true);
+        } catch (final SecurityException e) {
+            // 使えるかどうかは unreflect に任せる
+        }
+        return MethodHandles.lookup();
+    }
+
+    /**
+     * record の要素を返す。
+     * Java 16 より前でも動くようにリフレクションで呼ぶ
+     * @param type クラス
+     * @return java.lang.reflect.RecordComponent の配列。record でなければ null
+     */
+    private static Object[] getRecordComponents(final Class<?> type) {
+        try {
+            return (Object[]) Class.class.getMethod("getRecordComponents").invoke(type);
+        } catch (final ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+}
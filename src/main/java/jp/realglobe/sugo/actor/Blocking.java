@@ -0,0 +1,86 @@
+package jp.realglobe.sugo.actor;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+
+/**
+ * モジュール関数の中で待つ処理の包み。
+ * WORK_STEALING の実行器で待つときに、ForkJoinPool.ManagedBlocker として実行して、
+ * 待っている間は他のスレッドを補って並列度を保つ。
+ * それ以外のスレッドではそのまま実行する
+ */
+public final class Blocking {
+
+    private Blocking() {}
+
+    private static final class Blocker<T> implements ForkJoinPool.ManagedBlocker {
+
+        private final Callable<T> callable;
+        private T result;
+        private Exception error;
+        private boolean done;
+
+        Blocker(final Callable<T> callable) {
+            this.callable = callable;
+        }
+
+        @Override
+        public boolean block() {
+            try {
+                this.result = this.callable.call();
+            } catch (final Exception e) {
+                this.error = e;
+            }
+            this.done = true;
+            return true;
+        }
+
+        @Override
+        public boolean isReleasable() {
+            return this.done;
+        }
+
+    }
+
+    /**
+     * 待つ処理を実行する
+     * @param callable 待つ処理
+     * @return 処理の結果
+     * @throws Exception 処理が投げた例外。待っている間に割り込まれたら InterruptedException
+     */
+    public static <T> T call(final Callable<T> callable) throws Exception {
+        if (!(Thread.currentThread() instanceof ForkJoinWorkerThread)) {
+            return callable.call();
+        }
+        final Blocker<T> blocker = new Blocker<>(callable);
+        ForkJoinPool.managedBlock(blocker);
+        if (blocker.error != null) {
+            throw blocker.error;
+        }
+        return blocker.result;
+    }
+
+    /**
+     * 眠る
+     * @param millis 眠る時間 (ミリ秒)
+     * @throws InterruptedException 割り込まれた
+     */
+    public static void sleep(final long millis) throws InterruptedException {
+        try {
+            call(new Callable<Void>() {
+                @Override
+                public Void call() throws InterruptedException {
+                    Thread.sleep(millis);
+                    return null;
+                }
+            });
+        } catch (final InterruptedException | RuntimeException e) {
+            throw e;
+        } catch (final Exception e) {
+            // Thread.sleep は他の例外を投げない
+            throw new IllegalStateException(e);
+        }
+    }
+
+}
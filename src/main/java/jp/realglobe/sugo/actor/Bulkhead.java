@@ -0,0 +1,683 @@
+package jp.realglobe.sugo.actor;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * モジュールごとの実行器。
+ * スレッド数と待ち行列の長さに上限があり、溢れた実行依頼は RejectionPolicy に従って待たせずに断る。
+ * 1 つのモジュールが詰まっても他のモジュールの実行は妨げない
+ */
+public final class Bulkhead {
+
+    private static final Logger LOG = Logger.getLogger(Bulkhead.class.getName());
+
+    /**
+     * 空いたスレッドを残しておく時間 (秒)
+     */
+    private static final long KEEP_ALIVE_SECONDS = 60;
+
+    /**
+     * 仮想スレッドの無い JVM で VIRTUAL を指定されたときのスレッド数の上限
+     */
+    static final int PLATFORM_THREAD_LIMIT = 256;
+
+    /**
+     * スレッドも待ち行列も埋まっているときにどれを断るか
+     */
+    public enum RejectionPolicy {
+
+        /**
+         * 新しい実行依頼を断る
+         */
+        REJECT_NEW,
+
+        /**
+         * 待ち行列で最も優先度の低いものの中で最も長く待っているものを断り、新しい実行依頼を受け付ける。
+         * 古い依頼の呼び出し元が既に諦めていそうな場合に使う
+         */
+        DROP_OLDEST,
+
+    }
+
+    /**
+     * モジュール関数をどのスレッドで実行するか
+     */
+    public enum ThreadMode {
+
+        /**
+         * 普通のスレッド
+         */
+        PLATFORM,
+
+        /**
+         * 仮想スレッド。
+         * 実行依頼ごとに仮想スレッドをつくり、threads は同時に実行する数の上限になる。
+         * 待ちの多いモジュール関数でも OS のスレッドを占有しないので、上限を大きくできる。
+         * 仮想スレッドの無い JVM (Java 21 より前) では、スレッド数を PLATFORM_THREAD_LIMIT までに抑えて PLATFORM になる
+         */
+        VIRTUAL,
+
+        /**
+         * ForkJoinPool による work-stealing。
+         * 細かく分けて並列に計算するモジュール関数向けで、threads は並列度になる。
+         * モジュール関数の中で ForkJoinTask を fork すれば同じプールで実行する。
+         * 待ちは Blocking を通して ForkJoinPool.ManagedBlocker にすると、その間だけスレッドを補って並列度を保つ。
+         * 優先度と DROP_OLDEST は効かず、threads と queueCapacity の和を超える実行依頼を断る
+         */
+        WORK_STEALING,
+
+    }
+
+    /**
+     * 設定
+     */
+    public static final class Config {
+
+        /**
+         * 既定の設定。16 スレッド、待ち行列 256、新しい実行依頼を断る
+         */
+        public static final Config DEFAULT = new Config(16, 256);
+
+        private final int threads;
+        private final int queueCapacity;
+        private final RejectionPolicy rejectionPolicy;
+        private final ThreadMode threadMode;
+        private final long queueDelayTarget;
+        private final long queueDelayInterval;
+        private final boolean adaptiveLifo;
+
+        /**
+         * 新しい実行依頼を断る設定を作成する
+         * @param threads 最大スレッド数。1 以上
+         * @param queueCapacity 待ち行列の長さ。0 なら待たせない
+         */
+        public Config(final int threads, final int queueCapacity) {
+            this(threads, queueCapacity, RejectionPolicy.REJECT_NEW);
+        }
+
+        /**
+         * 作成する
+         * @param threads 最大スレッド数。1 以上
+         * @param queueCapacity 待ち行列の長さ。0 なら待たせない
+         * @param rejectionPolicy 溢れたときにどれを断るか
+         */
+        public Config(final int threads, final int queueCapacity, final RejectionPolicy rejectionPolicy) {
+            this(threads, queueCapacity, rejectionPolicy, ThreadMode.PLATFORM);
+        }
+
+        /**
+         * 作成する
+         * @param threads 最大スレッド数。1 以上。VIRTUAL なら同時に実行する数の上限
+         * @param queueCapacity 待ち行列の長さ。0 なら待たせない
+         * @param rejectionPolicy 溢れたときにどれを断るか
+         * @param threadMode どのスレッドで実行するか
+         */
+        public Config(final int threads, final int queueCapacity, final RejectionPolicy rejectionPolicy, final ThreadMode threadMode) {
+            this(threads, queueCapacity, rejectionPolicy, threadMode, 0, 0, false);
+        }
+
+        private Config(final int threads, final int queueCapacity, final RejectionPolicy rejectionPolicy, final ThreadMode threadMode, final long queueDelayTarget,
+                final long queueDelayInterval, final boolean adaptiveLifo) {
+            if (threads < 1) {
+                throw new IllegalArgumentException("threads must be positive: " + threads);
+            } else if (queueCapacity < 0) {
+                throw new IllegalArgumentException("queueCapacity must not be negative: " + queueCapacity);
+            } else if (rejectionPolicy == null) {
+                throw new IllegalArgumentException("rejectionPolicy is null");
+            } else if (threadMode == null) {
+                throw new IllegalArgumentException("threadMode is null");
+            }
+            this.threads = threads;
+            this.queueCapacity = queueCapacity;
+            this.rejectionPolicy = rejectionPolicy;
+            this.threadMode = threadMode;
+            this.queueDelayTarget = queueDelayTarget;
+            this.queueDelayInterval = queueDelayInterval;
+            this.adaptiveLifo = adaptiveLifo;
+        }
+
+        /**
+         * 待ち行列で待ち過ぎた実行依頼を断る設定を作成する。
+         * 待ち行列が空にならない状態が interval 続いたら target より、そうでなければ interval より長く待ったものを、
+         * 取り出すときに実行せずに断る。呼び出し元が諦めていそうなものに時間を使わないため。
+         * 待ち行列の無い設定と WORK_STEALING では効かない
+         * @param targetMillis 混んでいるときの待ち時間の目標 (ミリ秒)。0 なら断らない
+         * @param intervalMillis 混んでいると判断するまでの時間 (ミリ秒)。target 以上
+         * @param adaptiveLifo 混んでいる間は新しい実行依頼から実行するなら true。混んでいても新しい呼び出し元には応えられる
+         * @return 新しい設定
+         */
+        public Config withQueueDelay(final long targetMillis, final long intervalMillis, final boolean adaptiveLifo) {
+            if (targetMillis < 0) {
+                throw new IllegalArgumentException("targetMillis must not be negative: " + targetMillis);
+            } else if (intervalMillis < targetMillis || intervalMillis <= 0) {
+                throw new IllegalArgumentException("intervalMillis must be positive and not less than targetMillis: " + intervalMillis);
+            }
+            return new Config(this.threads, this.queueCapacity, this.rejectionPolicy, this.threadMode, targetMillis, intervalMillis, adaptiveLifo);
+        }
+
+        /**
+         * @return 最大スレッド数
+         */
+        public int getThreads() {
+            return this.threads;
+        }
+
+        /**
+         * @return 待ち行列の長さ
+         */
+        public int getQueueCapacity() {
+            return this.queueCapacity;
+        }
+
+        /**
+         * @return 溢れたときにどれを断るか
+         */
+        public RejectionPolicy getRejectionPolicy() {
+            return this.rejectionPolicy;
+        }
+
+        /**
+         * @return どのスレッドで実行するか
+         */
+        public ThreadMode getThreadMode() {
+            return this.threadMode;
+        }
+
+        /**
+         * @return 混んでいるときの待ち時間の目標 (ミリ秒)。0 なら待ち過ぎでも断らない
+         */
+        public long getQueueDelayTarget() {
+            return this.queueDelayTarget;
+        }
+
+        /**
+         * @return 混んでいると判断するまでの時間 (ミリ秒)。0 なら判断しない
+         */
+        public long getQueueDelayInterval() {
+            return this.queueDelayInterval;
+        }
+
+        /**
+         * @return 混んでいる間は新しい実行依頼から実行するなら true
+         */
+        public boolean isAdaptiveLifo() {
+            return this.adaptiveLifo;
+        }
+
+        @Override
+        public String toString() {
+            String string = "threads=" + this.threads + ", queueCapacity=" + this.queueCapacity + ", rejectionPolicy=" + this.rejectionPolicy + ", threadMode=" + this.threadMode;
+            if (this.queueDelayInterval > 0) {
+                string += ", queueDelayTarget=" + this.queueDelayTarget + ", queueDelayInterval=" + this.queueDelayInterval + ", adaptiveLifo=" + this.adaptiveLifo;
+            }
+            return string;
+        }
+
+    }
+
+    /**
+     * 断られたときの処理を添えた実行依頼
+     */
+    private static final class Task implements Runnable, PriorityTaskQueue.Prioritized {
+
+        private final Runnable task;
+        private final Runnable onRejected;
+        private final int priority;
+
+        Task(final Runnable task, final Runnable onRejected, final int priority) {
+            this.task = task;
+            this.onRejected = onRejected;
+            this.priority = priority;
+        }
+
+        @Override
+        public int getPriority() {
+            return this.priority;
+        }
+
+        @Override
+        public void run() {
+            this.task.run();
+        }
+
+    }
+
+    /**
+     * Thread.ofVirtual()。
+     * Java 8 向けにビルドするのでリフレクションで呼ぶ。無ければ null
+     */
+    private static final Method OF_VIRTUAL;
+    private static final Method BUILDER_NAME;
+    private static final Method BUILDER_FACTORY;
+
+    static {
+        Method ofVirtual = null;
+        Method builderName = null;
+        Method builderFactory = null;
+        try {
+            ofVirtual = Thread.class.getMethod("ofVirtual");
+            final Class<?> builder = Class.forName("java.lang.Thread$Builder");
+            builderName = builder.getMethod("name", String.class, long.class);
+            builderFactory = builder.getMethod("factory");
+            // Java 19, 20 ではプレビュー機能を有効にしないと例外になる
+            ofVirtual.invoke(null);
+        } catch (final ReflectiveOperationException | RuntimeException e) {
+            ofVirtual = null;
+        }
+        OF_VIRTUAL = ofVirtual;
+        BUILDER_NAME = builderName;
+        BUILDER_FACTORY = builderFactory;
+    }
+
+    private final String name;
+    private final Config config;
+    private final boolean virtual;
+    /**
+     * WORK_STEALING か仮想スレッドなら null
+     */
+    private final ThreadPoolExecutor executor;
+
+    /**
+     * 仮想スレッドでなければ null
+     */
+    private final ThreadPerTaskExecutor virtualExecutor;
+
+    /**
+     * WORK_STEALING でなければ null
+     */
+    private final ForkJoinPool forkJoinPool;
+
+    /**
+     * 待ち行列。長さが 0 か WORK_STEALING なら null
+     */
+    private final PriorityTaskQueue queue;
+
+    /**
+     * WORK_STEALING のとき、受け付けて終わっていない数
+     */
+    private final AtomicInteger inFlight;
+
+    /**
+     * WORK_STEALING のとき、終わった数
+     */
+    private final AtomicLong completed;
+
+    private final AtomicLong accepted;
+    private final AtomicLong rejected;
+    private final AtomicLong dropped;
+    private final AtomicLong stale;
+
+    /**
+     * 順番を守る実行依頼の受け口
+     */
+    private final KeyedExecutor keyed;
+
+    /**
+     * 作成する
+     * @param name モジュール名
+     * @param config 設定
+     */
+    Bulkhead(final String name, final Config config) {
+        this.name = name;
+        this.config = config;
+        this.accepted = new AtomicLong();
+        this.rejected = new AtomicLong();
+        this.dropped = new AtomicLong();
+        this.stale = new AtomicLong();
+        this.inFlight = new AtomicInteger();
+        this.completed = new AtomicLong();
+        this.keyed = new KeyedExecutor(new KeyedExecutor.Submitter() {
+            @Override
+            public boolean submit(final Runnable task, final Runnable onRejected, final int priority) {
+                return Bulkhead.this.submit(task, onRejected, priority);
+            }
+        });
+        if (config.getThreadMode() == ThreadMode.WORK_STEALING) {
+            this.virtual = false;
+            this.executor = null;
+            this.virtualExecutor = null;
+            this.queue = null;
+            this.forkJoinPool = new ForkJoinPool(config.getThreads(), newForkJoinWorkerThreadFactory(name), null, true);
+            return;
+        }
+        this.forkJoinPool = null;
+        final BlockingQueue<Runnable> queue;
+        if (config.getQueueCapacity() == 0) {
+            this.queue = null;
+            queue = new SynchronousQueue<>();
+        } else {
+            this.queue = new PriorityTaskQueue(config.getQueueCapacity(), PriorityTaskQueue.AGING_MILLIS, config.getQueueDelayTarget(), config.getQueueDelayInterval(),
+                    config.isAdaptiveLifo(), new PriorityTaskQueue.DropHandler() {
+                        @Override
+                        public void dropped(final Runnable task) {
+                            Bulkhead.this.stale.incrementAndGet();
+                            ((Task) task).onRejected.run();
+                        }
+                    });
+            queue = this.queue;
+        }
+        int threads = config.getThreads();
+        if (config.getThreadMode() == ThreadMode.VIRTUAL) {
+            final ThreadFactory virtualThreadFactory = newVirtualThreadFactory(name);
+            if (virtualThreadFactory != null) {
+                // 仮想スレッドは使い回さない
+                this.virtual = true;
+                this.executor = null;
+                this.virtualExecutor = new ThreadPerTaskExecutor(virtualThreadFactory, threads, this.queue);
+                return;
+            }
+            if (threads > PLATFORM_THREAD_LIMIT) {
+                // 仮想スレッドのつもりの数だけ OS のスレッドをつくらない
+                LOG.warning("Virtual threads are not available. " + name + " uses at most " + PLATFORM_THREAD_LIMIT + " platform threads instead of " + threads);
+                threads = PLATFORM_THREAD_LIMIT;
+            } else {
+                LOG.warning("Virtual threads are not available. " + name + " uses platform threads");
+            }
+        }
+        this.virtual = false;
+        this.virtualExecutor = null;
+        this.executor = new ThreadPoolExecutor(threads, threads, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, queue, newThreadFactory(name), new ThreadPoolExecutor.AbortPolicy());
+        // 暇なモジュールにスレッドを残さない
+        this.executor.allowCoreThreadTimeOut(true);
+    }
+
+    private static ThreadFactory newThreadFactory(final String name) {
+        final AtomicInteger count = new AtomicInteger();
+        return new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable r) {
+                return new Thread(r, "sugo-actor-" + name + "-" + count.incrementAndGet());
+            }
+        };
+    }
+
+    private static ForkJoinPool.ForkJoinWorkerThreadFactory newForkJoinWorkerThreadFactory(final String name) {
+        final AtomicInteger count = new AtomicInteger();
+        return new ForkJoinPool.ForkJoinWorkerThreadFactory() {
+            @Override
+            public ForkJoinWorkerThread newThread(final ForkJoinPool pool) {
+                final ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+                thread.setName("sugo-actor-" + name + "-" + count.incrementAndGet());
+                return thread;
+            }
+        };
+    }
+
+    /**
+     * 仮想スレッドをつくる ThreadFactory を返す
+     * @param name モジュール名
+     * @return 仮想スレッドの無い JVM なら null
+     */
+    private static ThreadFactory newVirtualThreadFactory(final String name) {
+        if (OF_VIRTUAL == null) {
+            return null;
+        }
+        try {
+            final Object builder = BUILDER_NAME.invoke(OF_VIRTUAL.invoke(null), "sugo-actor-" + name + "-", 1L);
+            return (ThreadFactory) BUILDER_FACTORY.invoke(builder);
+        } catch (final IllegalAccessException | InvocationTargetException e) {
+            LOG.warning("Cannot create virtual threads: " + e);
+            return null;
+        }
+    }
+
+    /**
+     * @return この JVM で仮想スレッドを使えるなら true
+     */
+    public static boolean isVirtualThreadSupported() {
+        return OF_VIRTUAL != null;
+    }
+
+    /**
+     * 普通の優先度で実行を依頼する
+     * @param task 処理
+     * @param onRejected 断られたときの処理。待ち行列から追い出されたときも呼ぶ
+     * @return 受け付けたら true。断ったら false
+     */
+    boolean submit(final Runnable task, final Runnable onRejected) {
+        return submit(task, onRejected, Priority.NORMAL);
+    }
+
+    /**
+     * 実行を依頼する。
+     * 断った実行依頼の onRejected はこのスレッドで呼ぶ
+     * @param task 処理
+     * @param onRejected 断られたときの処理。待ち行列から追い出されたときも呼ぶ
+     * @param priority 優先度。待ち行列から取り出す順に使う
+     * @return 受け付けたら true。断ったら false
+     */
+    boolean submit(final Runnable task, final Runnable onRejected, final int priority) {
+        if (this.forkJoinPool != null) {
+            return submitToForkJoinPool(task, onRejected);
+        }
+        final Task wrapped = new Task(task, onRejected, PriorityTaskQueue.clamp(priority));
+        while (true) {
+            try {
+                if (this.virtualExecutor != null) {
+                    this.virtualExecutor.execute(wrapped);
+                } else {
+                    this.executor.execute(wrapped);
+                }
+                this.accepted.incrementAndGet();
+                return true;
+            } catch (final RejectedExecutionException e) {
+                if (this.config.getRejectionPolicy() != RejectionPolicy.DROP_OLDEST || this.queue == null || isShutdown()) {
+                    break;
+                }
+                // 最も古いものを追い出して入れ直す。追い出せなければ新しいものを断る
+                final Runnable oldest = this.queue.evict();
+                if (oldest == null) {
+                    break;
+                }
+                this.dropped.incrementAndGet();
+                ((Task) oldest).onRejected.run();
+            }
+        }
+        this.rejected.incrementAndGet();
+        onRejected.run();
+        return false;
+    }
+
+    private boolean submitToForkJoinPool(final Runnable task, final Runnable onRejected) {
+        if (this.inFlight.incrementAndGet() > this.config.getThreads() + this.config.getQueueCapacity() || this.forkJoinPool.isShutdown()) {
+            this.inFlight.decrementAndGet();
+            this.rejected.incrementAndGet();
+            onRejected.run();
+            return false;
+        }
+        this.forkJoinPool.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    task.run();
+                } finally {
+                    Bulkhead.this.inFlight.decrementAndGet();
+                    Bulkhead.this.completed.incrementAndGet();
+                }
+            }
+        });
+        this.accepted.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * 鍵ごとに順番を守って実行を依頼する。
+     * 同じ鍵の実行依頼は前のものが終わるか断られるまで待ち行列に入れない
+     * @param key 順番を守る単位
+     * @param task 処理
+     * @param onRejected 断られたときの処理。待ち行列から追い出されたときも呼ぶ
+     * @param priority 優先度
+     */
+    void submit(final Object key, final Runnable task, final Runnable onRejected, final int priority) {
+        this.keyed.submit(key, task, onRejected, priority);
+    }
+
+    /**
+     * 鍵ごとに順番を守り、同時実行数の制限の空きを得てから実行を依頼する。
+     * 空きは順番が来てから得るので、同じ鍵の後ろに並んでいる実行依頼は空きを占有しない。
+     * 次の実行依頼には、task が終わったと知らせてから進む
+     * @param key 順番を守る単位
+     * @param permits 順番が来たら得る空き。返すのは呼び出し側
+     * @param task 処理
+     * @param onRejected 空きを得られなかったか、断られたときの処理。待ち行列から追い出されたときも呼ぶ
+     * @param priority 優先度
+     */
+    void submit(final Object key, final ConcurrencyLimiter.Permits permits, final KeyedExecutor.Task task, final Runnable onRejected, final int priority) {
+        this.keyed.submit(key, permits, task, onRejected, priority);
+    }
+
+    /**
+     * 新しい実行依頼を断り、受け付け済みのものが終わったらスレッドを止める
+     */
+    void shutdown() {
+        if (this.forkJoinPool != null) {
+            this.forkJoinPool.shutdown();
+        } else if (this.virtualExecutor != null) {
+            this.virtualExecutor.shutdown();
+        } else {
+            this.executor.shutdown();
+        }
+    }
+
+    private boolean isShutdown() {
+        return this.virtualExecutor != null ? this.virtualExecutor.isShutdown() : this.executor.isShutdown();
+    }
+
+    /**
+     * @return モジュール名
+     */
+    public String getName() {
+        return this.name;
+    }
+
+    /**
+     * @return 設定
+     */
+    public Config getConfig() {
+        return this.config;
+    }
+
+    /**
+     * @return 仮想スレッドで実行しているなら true。VIRTUAL を指定しても JVM が対応していなければ false
+     */
+    public boolean isVirtual() {
+        return this.virtual;
+    }
+
+    /**
+     * @return 実行中の数
+     */
+    public int getActiveCount() {
+        if (this.forkJoinPool != null) {
+            return this.forkJoinPool.getActiveThreadCount();
+        } else if (this.virtualExecutor != null) {
+            return this.virtualExecutor.getActiveCount();
+        }
+        return this.executor.getActiveCount();
+    }
+
+    /**
+     * @return 待ち行列に入っている数
+     */
+    public int getQueuedCount() {
+        if (this.forkJoinPool != null) {
+            return Math.max(0, this.inFlight.get() - this.forkJoinPool.getActiveThreadCount());
+        } else if (this.virtualExecutor != null) {
+            return this.queue == null ? 0 : this.queue.size();
+        }
+        return this.executor.getQueue().size();
+    }
+
+    /**
+     * @param priority 優先度。Priority.MIN 以上 Priority.MAX 以下
+     * @return その優先度で待ち行列に入っている数
+     */
+    public int getQueuedCount(final int priority) {
+        return this.queue == null ? 0 : this.queue.size(priority);
+    }
+
+    /**
+     * @return これまでに同時に存在したスレッドの最大数。WORK_STEALING なら今のスレッド数
+     */
+    public int getLargestPoolSize() {
+        if (this.forkJoinPool != null) {
+            // 最大数は記録されないので今の数
+            return this.forkJoinPool.getPoolSize();
+        } else if (this.virtualExecutor != null) {
+            return this.virtualExecutor.getLargestPoolSize();
+        }
+        return this.executor.getLargestPoolSize();
+    }
+
+    /**
+     * @return 前の実行依頼が終わるのを待っている、順番を守る実行依頼の数
+     */
+    public int getOrderedWaitingCount() {
+        return this.keyed.getWaitingCount();
+    }
+
+    /**
+     * @return これまでに受け付けた数
+     */
+    public long getAcceptedCount() {
+        return this.accepted.get();
+    }
+
+    /**
+     * @return これまでに断った数
+     */
+    public long getRejectedCount() {
+        return this.rejected.get();
+    }
+
+    /**
+     * @return これまでに待ち行列から追い出した数。受け付けた数に含む
+     */
+    public long getDroppedCount() {
+        return this.dropped.get();
+    }
+
+    /**
+     * @return これまでに待ち行列で待ち過ぎて断った数。受け付けた数に含む
+     */
+    public long getStaleCount() {
+        return this.stale.get();
+    }
+
+    /**
+     * @return 待ち行列が空にならない状態が続いていて、混んでいるとみなしているなら true
+     */
+    public boolean isOverloaded() {
+        return this.queue != null && this.queue.isOverloaded();
+    }
+
+    /**
+     * @return これまでに終わった数。おおよその値
+     */
+    public long getCompletedCount() {
+        if (this.forkJoinPool != null) {
+            return this.completed.get();
+        } else if (this.virtualExecutor != null) {
+            return this.virtualExecutor.getCompletedTaskCount();
+        }
+        return this.executor.getCompletedTaskCount();
+    }
+
+    @Override
+    public String toString() {
+        return this.name + "[" + this.config + ", active=" + getActiveCount() + ", queued=" + getQueuedCount() + ", rejected=" + getRejectedCount() + ", dropped=" + getDroppedCount() + "]";
+    }
+
+}
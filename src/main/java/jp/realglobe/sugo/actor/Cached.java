@@ -0,0 +1,30 @@
+package jp.realglobe.sugo.actor;
+
+import static java.lang.annotation.ElementType.METHOD;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * モジュール関数の結果を覚えておくことを示す。
+ * 同じ引数の実行依頼には、実行せずに覚えておいた結果を返す。
+ * 覚えるのは成功した結果だけ。少しずつ返すモジュール関数には効かない
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target(METHOD)
+@Documented
+public @interface Cached {
+
+    /**
+     * @return 結果を覚えておく時間 (ミリ秒)。0 なら追い出されるまで覚えておく
+     */
+    long ttl() default 0;
+
+    /**
+     * @return 覚えておく結果の数の上限。超えたら最も長く使われていないものを追い出す
+     */
+    int maxEntries() default 1024;
+
+}
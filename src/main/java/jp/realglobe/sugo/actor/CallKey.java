@@ -0,0 +1,89 @@
+package jp.realglobe.sugo.actor;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 同じ呼び出しかどうかを見分けるためのキー。
+ * モジュール名、関数名と、JSON から変換した引数からつくる。
+ * 引数は配列をリストに、整数を Long に、小数を Double に揃えて比べる
+ */
+final class CallKey {
+
+    private final String moduleName;
+    private final String methodName;
+    private final List<Object> parameters;
+    private final int hash;
+
+    /**
+     * 作成する
+     * @param moduleName モジュール名
+     * @param methodName 関数名
+     * @param parameters JSON の引数。JsonUtils.toArray の出力
+     */
+    CallKey(final String moduleName, final String methodName, final Object[] parameters) {
+        this.moduleName = moduleName;
+        this.methodName = methodName;
+        this.parameters = canonicalize(parameters == null ? new Object[0] : parameters);
+        this.hash = (moduleName.hashCode() * 31 + methodName.hashCode()) * 31 + this.parameters.hashCode();
+    }
+
+    private static List<Object> canonicalize(final Object[] array) {
+        final List<Object> list = new ArrayList<>(array.length);
+        for (final Object element : array) {
+            list.add(canonicalize(element));
+        }
+        return Collections.unmodifiableList(list);
+    }
+
+    /**
+     * 中身で比べられる値に揃える
+     * @param value JSON から変換した値
+     * @return 配列をリストに、JSON オブジェクトを Map に、整数を Long に、小数を Double に揃えた値
+     */
+    static Object canonicalize(final Object value) {
+        final Object decoded = JsonUtils.convertValueToObject(value);
+        if (decoded instanceof Object[]) {
+            return canonicalize((Object[]) decoded);
+        } else if (decoded instanceof Map) {
+            final Map<Object, Object> map = new HashMap<>();
+            for (final Map.Entry<?, ?> entry : ((Map<?, ?>) decoded).entrySet()) {
+                map.put(entry.getKey(), canonicalize(entry.getValue()));
+            }
+            return Collections.unmodifiableMap(map);
+        } else if (decoded instanceof Integer || decoded instanceof Long || decoded instanceof Short || decoded instanceof Byte) {
+            return ((Number) decoded).longValue();
+        } else if (decoded instanceof BigInteger && ((BigInteger) decoded).bitLength() < Long.SIZE) {
+            return ((BigInteger) decoded).longValue();
+        } else if (decoded instanceof Float) {
+            return ((Float) decoded).doubleValue();
+        }
+        return decoded;
+    }
+
+    @Override
+    public int hashCode() {
+        return this.hash;
+    }
+
+    @Override
+    public boolean equals(final Object obj) {
+        if (this == obj) {
+            return true;
+        } else if (!(obj instanceof CallKey)) {
+            return false;
+        }
+        final CallKey other = (CallKey) obj;
+        return this.hash == other.hash && this.moduleName.equals(other.moduleName) && this.methodName.equals(other.methodName) && this.parameters.equals(other.parameters);
+    }
+
+    @Override
+    public String toString() {
+        return this.moduleName + "." + this.methodName + this.parameters;
+    }
+
+}
@@ -0,0 +1,310 @@
+package jp.realglobe.sugo.actor;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * モジュール関数 1 つ分の遮断器。
+ * 閉じている間は全て通し、最近の window 回の結果のうち失敗か遅い応答の割合が閾値を超えたら開く。
+ * 開いている間は全て断り、open だけ経ったら半開きにして probes 回だけ通す。
+ * 通した呼び出しが閾値を超えずに終われば閉じ、超えたらまた開く。
+ * 状態が変わる前に通した呼び出しの結果は数えないように、状態が変わるたびに世代を進める
+ */
+public final class Circuit {
+
+    /**
+     * 遮断器の状態
+     */
+    public enum State {
+
+        /**
+         * 全て通す
+         */
+        CLOSED,
+
+        /**
+         * 全て断る
+         */
+        OPEN,
+
+        /**
+         * 回復を確かめるために少しだけ通す
+         */
+        HALF_OPEN,
+
+    }
+
+    private static final byte FAILURE = 1;
+    private static final byte SLOW = 2;
+
+    private final double failureRate;
+    private final long slowCallNanos;
+    private final double slowCallRate;
+    private final int minimumCalls;
+    private final long openNanos;
+    private final int probes;
+
+    private State state;
+
+    /**
+     * 状態が変わるたびに進める
+     */
+    private long generation;
+
+    /**
+     * 最近の結果。FAILURE と SLOW の組み合わせ
+     */
+    private final byte[] outcomes;
+    private int next;
+    private int size;
+    private int failures;
+    private int slowCalls;
+
+    /**
+     * 開いた時刻 (System.nanoTime)
+     */
+    private long openedAt;
+
+    /**
+     * 半開きで通した数と、その結果
+     */
+    private int probing;
+    private int probed;
+    private int probeFailures;
+    private int probeSlowCalls;
+
+    private long rejected;
+    private long opened;
+
+    /**
+     * 作成する
+     * @param failureRate 開く失敗の割合。0 より大きく 1 以下
+     * @param slowCallMillis 遅いとみなす応答までの時間 (ミリ秒)。0 なら遅さでは開かない
+     * @param slowCallRate 開く遅い応答の割合。0 より大きく 1 以下
+     * @param window 割合を計る最近の呼び出しの数
+     * @param minimumCalls 割合を計り始めるのに要る呼び出しの数。1 以上 window 以下
+     * @param openMillis 開いてから半開きにするまでの時間 (ミリ秒)
+     * @param probes 半開きで通す数。1 以上
+     */
+    Circuit(final double failureRate, final long slowCallMillis, final double slowCallRate, final int window, final int minimumCalls, final long openMillis, final int probes) {
+        if (!(failureRate > 0 && failureRate <= 1)) {
+            throw new IllegalArgumentException("failureRate is out of range: " + failureRate);
+        } else if (slowCallMillis < 0) {
+            throw new IllegalArgumentException("slowCall must not be negative: " + slowCallMillis);
+        } else if (!(slowCallRate > 0 && slowCallRate <= 1)) {
+            throw new IllegalArgumentException("slowCallRate is out of range: " + slowCallRate);
+        } else if (minimumCalls < 1 || window < minimumCalls) {
+            throw new IllegalArgumentException("minimumCalls must be between 1 and window(" + window + "): " + minimumCalls);
+        } else if (openMillis < 0) {
+            throw new IllegalArgumentException("open must not be negative: " + openMillis);
+        } else if (probes < 1) {
+            throw new IllegalArgumentException("probes must be positive: " + probes);
+        }
+        this.failureRate = failureRate;
+        this.slowCallNanos = TimeUnit.MILLISECONDS.toNanos(slowCallMillis);
+        this.slowCallRate = slowCallRate;
+        this.minimumCalls = minimumCalls;
+        this.openNanos = TimeUnit.MILLISECONDS.toNanos(openMillis);
+        this.probes = probes;
+        this.state = State.CLOSED;
+        this.outcomes = new byte[window];
+    }
+
+    /**
+     * 注釈から作成する
+     * @param circuitBreaker 注釈
+     * @return 遮断器。注釈が null なら null
+     */
+    static Circuit of(final CircuitBreaker circuitBreaker) {
+        if (circuitBreaker == null) {
+            return null;
+        }
+        return new Circuit(circuitBreaker.failureRate(), circuitBreaker.slowCall(), circuitBreaker.slowCallRate(), circuitBreaker.window(), circuitBreaker.minimumCalls(),
+                circuitBreaker.open(), circuitBreaker.probes());
+    }
+
+    /**
+     * 通してもらう
+     * @return 通すなら今の世代。結果は record に、実行しなかったら abandon にこの値を渡すこと。断るなら -1
+     */
+    synchronized long tryAcquire() {
+        if (this.state == State.OPEN && System.nanoTime() - this.openedAt >= this.openNanos) {
+            transition(State.HALF_OPEN);
+        }
+        switch (this.state) {
+        case CLOSED:
+            return this.generation;
+        case HALF_OPEN:
+            if (this.probing < this.probes) {
+                this.probing++;
+                return this.generation;
+            }
+            break;
+        default:
+            break;
+        }
+        this.rejected++;
+        return -1;
+    }
+
+    /**
+     * 結果を数える
+     * @param generation tryAcquire が返した世代
+     * @param failed 失敗したなら true
+     * @param elapsedNanos 応答までの時間 (ナノ秒)
+     */
+    synchronized void record(final long generation, final boolean failed, final long elapsedNanos) {
+        if (generation != this.generation) {
+            // 状態が変わる前に通したもの
+            return;
+        }
+        final boolean slow = (this.slowCallNanos > 0 && elapsedNanos >= this.slowCallNanos);
+        if (this.state == State.HALF_OPEN) {
+            this.probed++;
+            if (failed) {
+                this.probeFailures++;
+            }
+            if (slow) {
+                this.probeSlowCalls++;
+            }
+            if (exceeds(this.probeFailures, this.probeSlowCalls, this.probes)) {
+                transition(State.OPEN);
+            } else if (this.probed >= this.probes) {
+                transition(State.CLOSED);
+            }
+            return;
+        }
+
+        if (this.size == this.outcomes.length) {
+            // 最も古い結果を忘れる
+            final byte oldest = this.outcomes[this.next];
+            if ((oldest & FAILURE) != 0) {
+                this.failures--;
+            }
+            if ((oldest & SLOW) != 0) {
+                this.slowCalls--;
+            }
+        } else {
+            this.size++;
+        }
+        this.outcomes[this.next] = (byte) ((failed ? FAILURE : 0) | (slow ? SLOW : 0));
+        this.next = (this.next + 1) % this.outcomes.length;
+        if (failed) {
+            this.failures++;
+        }
+        if (slow) {
+            this.slowCalls++;
+        }
+        if (this.size >= this.minimumCalls && exceeds(this.failures, this.slowCalls, this.size)) {
+            transition(State.OPEN);
+        }
+    }
+
+    /**
+     * 通したが実行しなかった。
+     * 半開きなら通せる数を戻す
+     * @param generation tryAcquire が返した世代
+     */
+    synchronized void abandon(final long generation) {
+        if (generation == this.generation && this.state == State.HALF_OPEN) {
+            this.probing--;
+        }
+    }
+
+    private boolean exceeds(final int failures0, final int slowCalls0, final int total) {
+        return failures0 >= this.failureRate * total || (this.slowCallNanos > 0 && slowCalls0 >= this.slowCallRate * total);
+    }
+
+    private void transition(final State newState) {
+        this.state = newState;
+        this.generation++;
+        this.probing = 0;
+        this.probed = 0;
+        this.probeFailures = 0;
+        this.probeSlowCalls = 0;
+        if (newState == State.OPEN) {
+            this.openedAt = System.nanoTime();
+            this.opened++;
+        } else if (newState == State.CLOSED) {
+            this.next = 0;
+            this.size = 0;
+            this.failures = 0;
+            this.slowCalls = 0;
+        }
+    }
+
+    /**
+     * @return 半開きになるまでの時間 (ナノ秒)。開いていなければ 0
+     */
+    synchronized long getRetryAfter() {
+        if (this.state != State.OPEN) {
+            return 0;
+        }
+        return Math.max(0, this.openNanos - (System.nanoTime() - this.openedAt));
+    }
+
+    /**
+     * @return 今の状態
+     */
+    public synchronized State getState() {
+        if (this.state == State.OPEN && System.nanoTime() - this.openedAt >= this.openNanos) {
+            // 次の呼び出しは通す
+            return State.HALF_OPEN;
+        }
+        return this.state;
+    }
+
+    /**
+     * @return 最近の呼び出しのうち失敗した割合。0 以上 1 以下
+     */
+    public synchronized double getFailureRate() {
+        return this.size == 0 ? 0 : (double) this.failures / this.size;
+    }
+
+    /**
+     * @return 最近の呼び出しのうち遅かった割合。0 以上 1 以下
+     */
+    public synchronized double getSlowCallRate() {
+        return this.size == 0 ? 0 : (double) this.slowCalls / this.size;
+    }
+
+    /**
+     * @return これまでに断った数
+     */
+    public synchronized long getRejectedCount() {
+        return this.rejected;
+    }
+
+    /**
+     * @return これまでに開いた回数
+     */
+    public synchronized long getOpenedCount() {
+        return this.opened;
+    }
+
+    /**
+     * @return 開く失敗の割合
+     */
+    double getFailureRateThreshold() {
+        return this.failureRate;
+    }
+
+    /**
+     * @return 遅いとみなす応答までの時間 (ミリ秒)。0 なら遅さでは開かない
+     */
+    long getSlowCallMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(this.slowCallNanos);
+    }
+
+    /**
+     * @return 開いてから半開きにするまでの時間 (ミリ秒)
+     */
+    long getOpenMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(this.openNanos);
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "state=" + this.state + ", failures=" + this.failures + "/" + this.size + ", slowCalls=" + this.slowCalls + "/" + this.size + ", rejected=" + this.rejected;
+    }
+
+}
@@ -0,0 +1,57 @@
+package jp.realglobe.sugo.actor;
+
+import static java.lang.annotation.ElementType.METHOD;
+import static java.lang.annotation.ElementType.TYPE;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * 失敗や遅い応答が続くモジュール関数を一時的に止めることを示す。
+ * 関数に付ければその関数に、モジュールのクラスに付ければ全関数にそれぞれ遮断器を置く。
+ * 最近の呼び出しのうち失敗か遅い応答の割合が閾値を超えたら遮断し、
+ * 遮断中の実行依頼は実行せずにすぐ断る。遮断してしばらく経ったら少しだけ通して回復を確かめる
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target({ METHOD, TYPE })
+@Documented
+public @interface CircuitBreaker {
+
+    /**
+     * @return 遮断する失敗の割合。0 より大きく 1 以下
+     */
+    double failureRate() default 0.5;
+
+    /**
+     * @return 遅いとみなす応答までの時間 (ミリ秒)。0 なら遅さでは遮断しない
+     */
+    long slowCall() default 0;
+
+    /**
+     * @return 遮断する遅い応答の割合。0 より大きく 1 以下
+     */
+    double slowCallRate() default 0.5;
+
+    /**
+     * @return 割合を計る最近の呼び出しの数
+     */
+    int window() default 20;
+
+    /**
+     * @return 割合を計り始めるのに要る呼び出しの数。1 以上 window 以下
+     */
+    int minimumCalls() default 10;
+
+    /**
+     * @return 遮断してから回復を確かめ始めるまでの時間 (ミリ秒)
+     */
+    long open() default 10_000;
+
+    /**
+     * @return 回復を確かめるために通す呼び出しの数
+     */
+    int probes() default 3;
+
+}
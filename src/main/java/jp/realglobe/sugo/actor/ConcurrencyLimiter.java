@@ -0,0 +1,221 @@
+package jp.realglobe.sugo.actor;
+
+import java.lang.reflect.AnnotatedElement;
+import java.util.ArrayDeque;
+import java.util.Queue;
+
+/**
+ * 同時実行数の制限。
+ * 空きが無いときは呼び出し元を止めずに、空いたときに実行する処理を預かる
+ */
+final class ConcurrencyLimiter {
+
+    private final int limit;
+    private final int queueCapacity;
+
+    /**
+     * 空きを待っている処理
+     */
+    private final Queue<Runnable> waiting;
+    private int running;
+
+    /**
+     * 作成する
+     * @param limit 同時に実行する数の上限
+     * @param queueCapacity 空きを待たせる数の上限
+     */
+    ConcurrencyLimiter(final int limit, final int queueCapacity) {
+        if (limit < 1) {
+            throw new IllegalArgumentException("limit must be positive: " + limit);
+        } else if (queueCapacity < 0) {
+            throw new IllegalArgumentException("queueCapacity must not be negative: " + queueCapacity);
+        }
+        this.limit = limit;
+        this.queueCapacity = queueCapacity;
+        this.waiting = new ArrayDeque<>();
+    }
+
+    /**
+     * 注釈から作成する
+     * @param element モジュールのクラスかモジュール関数
+     * @return MaxConcurrency も Serialized も付いていなければ null
+     */
+    static ConcurrencyLimiter of(final AnnotatedElement element) {
+        final MaxConcurrency maxConcurrency = element.getAnnotation(MaxConcurrency.class);
+        if (maxConcurrency != null) {
+            return new ConcurrencyLimiter(maxConcurrency.value(), maxConcurrency.queueCapacity());
+        }
+        final Serialized serialized = element.getAnnotation(Serialized.class);
+        if (serialized != null) {
+            return new ConcurrencyLimiter(1, serialized.queueCapacity());
+        }
+        return null;
+    }
+
+    /**
+     * 空きを得る。
+     * 空いていればこのスレッドで、空いていなければ空いたときに release を呼んだスレッドで onGranted を実行する
+     * @param onGranted 空きを得たら実行する処理
+     * @return 待たせる数も上限に達していたら false
+     */
+    boolean acquire(final Runnable onGranted) {
+        synchronized (this) {
+            if (this.running >= this.limit) {
+                if (this.waiting.size() >= this.queueCapacity) {
+                    return false;
+                }
+                this.waiting.add(onGranted);
+                return true;
+            }
+            this.running++;
+        }
+        onGranted.run();
+        return true;
+    }
+
+    /**
+     * 空きを返す。
+     * 待っている処理があれば、空きをそのまま渡してこのスレッドで実行する
+     */
+    void release() {
+        final Runnable next;
+        synchronized (this) {
+            next = this.waiting.poll();
+            if (next == null) {
+                this.running--;
+            }
+        }
+        if (next != null) {
+            next.run();
+        }
+    }
+
+    /**
+     * @return 同時に実行する数の上限
+     */
+    int getLimit() {
+        return this.limit;
+    }
+
+    /**
+     * @return 空きを待たせる数の上限
+     */
+    int getQueueCapacity() {
+        return this.queueCapacity;
+    }
+
+    /**
+     * @return 実行中の数
+     */
+    synchronized int getRunningCount() {
+        return this.running;
+    }
+
+    /**
+     * @return 空きを待っている数
+     */
+    synchronized int getWaitingCount() {
+        return this.waiting.size();
+    }
+
+    /**
+     * 1 回の実行で得る空きの組。
+     * 前から順に得て、返すときは得た分だけ返す
+     */
+    static final class Permits {
+
+        private final ConcurrencyLimiter[] limiters;
+
+        /**
+         * 得た数
+         */
+        private int held;
+        private boolean released;
+
+        /**
+         * 作成する
+         * @param limiters 空きを得る先。null は飛ばす
+         */
+        Permits(final ConcurrencyLimiter... limiters) {
+            int count = 0;
+            for (final ConcurrencyLimiter limiter : limiters) {
+                if (limiter != null) {
+                    count++;
+                }
+            }
+            this.limiters = new ConcurrencyLimiter[count];
+            count = 0;
+            for (final ConcurrencyLimiter limiter : limiters) {
+                if (limiter != null) {
+                    this.limiters[count++] = limiter;
+                }
+            }
+        }
+
+        /**
+         * 全ての空きを得る
+         * @param onGranted 全て得たら実行する処理
+         * @param onRejected どこかで断られたか、得る前に release で諦めていたら実行する処理。
+         *        それまでに得た空きは返さないので release を呼ぶこと
+         */
+        void acquire(final Runnable onGranted, final Runnable onRejected) {
+            final int count;
+            final boolean abandoned;
+            synchronized (this) {
+                count = this.held;
+                abandoned = this.released;
+            }
+            if (abandoned) {
+                // 順番を待つ間に諦めた。待っている側が先へ進めるように必ず知らせる
+                onRejected.run();
+                return;
+            }
+            if (count == this.limiters.length) {
+                onGranted.run();
+                return;
+            }
+            final ConcurrencyLimiter limiter = this.limiters[count];
+            final boolean accepted = limiter.acquire(new Runnable() {
+                @Override
+                public void run() {
+                    final boolean abandoned;
+                    synchronized (Permits.this) {
+                        abandoned = Permits.this.released;
+                        if (!abandoned) {
+                            Permits.this.held++;
+                        }
+                    }
+                    if (abandoned) {
+                        // 待っている間に諦めた。待っている側が先へ進めるように必ず知らせる
+                        limiter.release();
+                        onRejected.run();
+                        return;
+                    }
+                    acquire(onGranted, onRejected);
+                }
+            });
+            if (!accepted) {
+                onRejected.run();
+            }
+        }
+
+        /**
+         * 得た空きを返す。2 回目以降は何もしない
+         */
+        void release() {
+            final int count;
+            synchronized (this) {
+                if (this.released) {
+                    return;
+                }
+                this.released = true;
+                count = this.held;
+            }
+            for (int i = count - 1; i >= 0; i--) {
+                this.limiters[i].release();
+            }
+        }
+
+    }
+
+}
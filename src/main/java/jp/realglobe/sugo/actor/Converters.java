@@ -0,0 +1,455 @@
+package jp.realglobe.sugo.actor;
+
+import java.lang.reflect.Array;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.GenericArrayType;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * JSON の値からモジュール関数の引数の型への変換器。
+ * 変換器は引数の型ごとに登録時につくっておき、呼び出し時は型を調べ直さずに使う。
+ * 入力は JsonUtils.convertToObject の出力でも、変換前の JSONObject, JSONArray でもよい。
+ * 変換前のものは必要になった所でだけ一般的なオブジェクトに変換する
+ */
+final class Converters {
+
+    private Converters() {}
+
+    /**
+     * 変換器
+     */
+    interface Converter {
+
+        /**
+         * 変換する
+         * @param value JSON の値。JSONObject.NULL ではなく null で渡す
+         * @return 変換後
+         * @throws IllegalArgumentException 変換できない
+         */
+        Object convert(Object value);
+
+    }
+
+    /**
+     * 型を変換しない変換器。
+     * 変換前の JSONObject, JSONArray は一般的なオブジェクトにする
+     */
+    static final Converter IDENTITY = new Converter() {
+        @Override
+        public Object convert(final Object value) {
+            return JsonUtils.convertValueToObject(value);
+        }
+    };
+
+    /**
+     * プリミティブ型ごとの変換器
+     */
+    private static final Map<Class<?>, Converter> PRIMITIVES;
+
+    static {
+        final Map<Class<?>, Converter> primitives = new HashMap<>();
+        for (final Class<?> type : new Class<?>[] { Boolean.TYPE, Character.TYPE, Byte.TYPE, Short.TYPE, Integer.TYPE, Long.TYPE, Float.TYPE, Double.TYPE }) {
+            primitives.put(type, newPrimitiveConverter(type));
+        }
+        PRIMITIVES = primitives;
+    }
+
+    /**
+     * プリミティブ型の変換器を返す
+     * @param type プリミティブ型
+     * @return 変換器
+     */
+    static Converter ofPrimitive(final Class<?> type) {
+        final Converter converter = PRIMITIVES.get(type);
+        if (converter == null) {
+            throw new IllegalArgumentException("not a primitive type: " + type);
+        }
+        return converter;
+    }
+
+    /**
+     * 型に合う変換器をつくる
+     * @param type 変換先の型
+     * @return 変換器
+     */
+    static Converter of(final Type type) {
+        if (type instanceof Class) {
+            return of((Class<?>) type, new Type[0]);
+        } else if (type instanceof ParameterizedType) {
+            final ParameterizedType parameterized = (ParameterizedType) type;
+            return of((Class<?>) parameterized.getRawType(), parameterized.getActualTypeArguments());
+        } else if (type instanceof GenericArrayType) {
+            final Type component = ((GenericArrayType) type).getGenericComponentType();
+            return newArrayConverter(Array.newInstance(rawType(component), 0).getClass(), of(component));
+        }
+        // 型変数やワイルドカードは変換しない
+        return IDENTITY;
+    }
+
+    private static Class<?> rawType(final Type type) {
+        if (type instanceof Class) {
+            return (Class<?>) type;
+        } else if (type instanceof ParameterizedType) {
+            return (Class<?>) ((ParameterizedType) type).getRawType();
+        } else if (type instanceof GenericArrayType) {
+            return Array.newInstance(rawType(((GenericArrayType) type).getGenericComponentType()), 0).getClass();
+        }
+        return Object.class;
+    }
+
+    private static Converter of(final Class<?> type, final Type[] typeArguments) {
+        if (type == Object.class) {
+            return IDENTITY;
+        } else if (type.isPrimitive()) {
+            return ofPrimitive(type);
+        } else if (primitiveOf(type) != null) {
+            return newNullable(ofPrimitive(primitiveOf(type)));
+        } else if (type == BigDecimal.class || type == BigInteger.class) {
+            return newBigNumberConverter(type);
+        } else if (type.isArray()) {
+            return newArrayConverter(type, of(type.getComponentType()));
+        } else if (Collection.class.isAssignableFrom(type) || type == Iterable.class) {
+            return newCollectionConverter(type, typeArguments.length == 1 ? of(typeArguments[0]) : IDENTITY);
+        } else if (Map.class.isAssignableFrom(type)) {
+            return newMapConverter(type, typeArguments.length == 2 ? of(typeArguments[1]) : IDENTITY);
+        } else if (Beans.isBindable(type)) {
+            return Beans.of(type);
+        }
+        return newCastConverter(type);
+    }
+
+    static IllegalArgumentException mismatch(final Object value, final Class<?> type) {
+        return new IllegalArgumentException("cannot convert " + (value == null ? "null" : value.getClass().getSimpleName() + " " + value) + " to " + type.getName());
+    }
+
+    /**
+     * @param type ラッパー型
+     * @return 対応するプリミティブ型。無ければ null
+     */
+    private static Class<?> primitiveOf(final Class<?> type) {
+        if (type == Boolean.class) {
+            return Boolean.TYPE;
+        } else if (type == Character.class) {
+            return Character.TYPE;
+        } else if (type == Byte.class) {
+            return Byte.TYPE;
+        } else if (type == Short.class) {
+            return Short.TYPE;
+        } else if (type == Integer.class) {
+            return Integer.TYPE;
+        } else if (type == Long.class) {
+            return Long.TYPE;
+        } else if (type == Float.class) {
+            return Float.TYPE;
+        } else if (type == Double.class) {
+            return Double.TYPE;
+        }
+        return null;
+    }
+
+    private static Converter newNullable(final Converter converter) {
+        return new Converter() {
+            @Override
+            public Object convert(final Object value) {
+                return value == null ? null : converter.convert(value);
+            }
+        };
+    }
+
+    private static Converter newCastConverter(final Class<?> type) {
+        return new Converter() {
+            @Override
+            public Object convert(final Object value) {
+                final Object object = JsonUtils.convertValueToObject(value);
+                if (object != null && !type.isInstance(object)) {
+                    throw mismatch(object, type);
+                }
+                return object;
+            }
+        };
+    }
+
+    /**
+     * 整数に変換する。
+     * 縮小変換は値が変わらない場合だけ認める
+     * @param value 変換前
+     * @param type 変換先の型
+     * @param min 最小値
+     * @param max 最大値
+     * @return 変換後
+     */
+    private static long toIntegral(final Object value, final Class<?> type, final long min, final long max) {
+        final long integral;
+        if (value instanceof Integer || value instanceof Long || value instanceof Short || value instanceof Byte) {
+            integral = ((Number) value).longValue();
+        } else if (value instanceof Double || value instanceof Float) {
+            final double real = ((Number) value).doubleValue();
+            if (real != Math.rint(real) || real < -0x1p63 || real >= 0x1p63) {
+                throw mismatch(value, type);
+            }
+            integral = (long) real;
+        } else if (value instanceof Number) {
+            try {
+                integral = new BigDecimal(value.toString()).longValueExact();
+            } catch (final ArithmeticException | NumberFormatException e) {
+                throw mismatch(value, type);
+            }
+        } else {
+            throw mismatch(value, type);
+        }
+        if (integral < min || integral > max) {
+            throw mismatch(value, type);
+        }
+        return integral;
+    }
+
+    private static Converter newPrimitiveConverter(final Class<?> type) {
+        if (type == Boolean.TYPE) {
+            return new Converter() {
+                @Override
+                public Object convert(final Object value) {
+                    if (!(value instanceof Boolean)) {
+                        throw mismatch(value, type);
+                    }
+                    return value;
+                }
+            };
+        } else if (type == Character.TYPE) {
+            return new Converter() {
+                @Override
+                public Object convert(final Object value) {
+                    if (value instanceof Character) {
+                        return value;
+                    } else if (value instanceof String && ((String) value).length() == 1) {
+                        return ((String) value).charAt(0);
+                    }
+                    throw mismatch(value, type);
+                }
+            };
+        } else if (type == Byte.TYPE) {
+            return new Converter() {
+                @Override
+                public Object convert(final Object value) {
+                    return value instanceof Byte ? value : (byte) toIntegral(value, type, Byte.MIN_VALUE, Byte.MAX_VALUE);
+                }
+            };
+        } else if (type == Short.TYPE) {
+            return new Converter() {
+                @Override
+                public Object convert(final Object value) {
+                    return value instanceof Short ? value : (short) toIntegral(value, type, Short.MIN_VALUE, Short.MAX_VALUE);
+                }
+            };
+        } else if (type == Integer.TYPE) {
+            return new Converter() {
+                @Override
+                public Object convert(final Object value) {
+                    return value instanceof Integer ? value : (int) toIntegral(value, type, Integer.MIN_VALUE, Integer.MAX_VALUE);
+                }
+            };
+        } else if (type == Long.TYPE) {
+            return new Converter() {
+                @Override
+                public Object convert(final Object value) {
+                    return value instanceof Long ? value : toIntegral(value, type, Long.MIN_VALUE, Long.MAX_VALUE);
+                }
+            };
+        } else if (type == Float.TYPE) {
+            return new Converter() {
+                @Override
+                public Object convert(final Object value) {
+                    if (!(value instanceof Number)) {
+                        throw mismatch(value, type);
+                    }
+                    // 範囲外の値は無限大にせず断る
+                    final float real = ((Number) value).floatValue();
+                    if (Float.isNaN(real) || Float.isInfinite(real)) {
+                        throw mismatch(value, type);
+                    }
+                    return value instanceof Float ? value : real;
+                }
+            };
+        }
+        return new Converter() {
+            @Override
+            public Object convert(final Object value) {
+                if (value instanceof Double) {
+                    return value;
+                } else if (!(value instanceof Number)) {
+                    throw mismatch(value, type);
+                }
+                return ((Number) value).doubleValue();
+            }
+        };
+    }
+
+    private static Converter newBigNumberConverter(final Class<?> type) {
+        return new Converter() {
+            @Override
+            public Object convert(final Object value) {
+                if (value == null || type.isInstance(value)) {
+                    return value;
+                } else if (!(value instanceof Number)) {
+                    throw mismatch(value, type);
+                }
+                final BigDecimal decimal = new BigDecimal(value.toString());
+                if (type == BigDecimal.class) {
+                    return decimal;
+                }
+                try {
+                    return decimal.toBigIntegerExact();
+                } catch (final ArithmeticException e) {
+                    throw mismatch(value, type);
+                }
+            }
+        };
+    }
+
+    private static Converter newArrayConverter(final Class<?> type, final Converter componentConverter) {
+        final Class<?> componentType = type.getComponentType();
+        if (componentType == Object.class && componentConverter == IDENTITY) {
+            return newCastConverter(type);
+        }
+        return new Converter() {
+            @Override
+            public Object convert(final Object value) {
+                if (value == null) {
+                    return null;
+                }
+                final Object[] source = elements(value, type);
+                final Object array = Array.newInstance(componentType, source.length);
+                for (int i = 0; i < source.length; i++) {
+                    Array.set(array, i, componentConverter.convert(source[i]));
+                }
+                return array;
+            }
+        };
+    }
+
+    /**
+     * 配列として扱う
+     * @param value Object[] か JSONArray
+     * @param type 変換先の型
+     * @return 配列。JSONArray の要素は変換しない
+     */
+    private static Object[] elements(final Object value, final Class<?> type) {
+        if (value instanceof Object[]) {
+            return (Object[]) value;
+        } else if (value instanceof JSONArray) {
+            return JsonUtils.toArray((JSONArray) value);
+        }
+        throw mismatch(value, type);
+    }
+
+    /**
+     * 空のコンテナをつくる関数を選ぶ
+     * @param type コンテナの型
+     * @param candidates 型がインターフェースや抽象クラスだった場合の実装の候補
+     * @return 空のコンテナをつくる関数。つくれない場合は null
+     */
+    private static Constructor<?> containerConstructor(final Class<?> type, final Class<?>... candidates) {
+        Class<?> implementation = null;
+        if (!type.isInterface() && !Modifier.isAbstract(type.getModifiers())) {
+            implementation = type;
+        } else {
+            for (final Class<?> candidate : candidates) {
+                if (type.isAssignableFrom(candidate)) {
+                    implementation = candidate;
+                    break;
+                }
+            }
+        }
+        if (implementation == null) {
+            return null;
+        }
+        try {
+            return implementation.getConstructor();
+        } catch (final NoSuchMethodException e) {
+            return null;
+        }
+    }
+
+    private static Converter newCollectionConverter(final Class<?> type, final Converter elementConverter) {
+        final Constructor<?> constructor = containerConstructor(type, ArrayList.class, LinkedHashSet.class, TreeSet.class, ArrayDeque.class);
+        if (constructor == null) {
+            return newCastConverter(type);
+        }
+        return new Converter() {
+            @SuppressWarnings("unchecked")
+            @Override
+            public Object convert(final Object value) {
+                if (value == null) {
+                    return null;
+                }
+                final Object[] elements = elements(value, type);
+                final Collection<Object> collection;
+                try {
+                    collection = (Collection<Object>) constructor.newInstance();
+                } catch (final ReflectiveOperationException e) {
+                    throw new IllegalStateException(e);
+                }
+                for (final Object element : elements) {
+                    collection.add(elementConverter.convert(element));
+                }
+                return collection;
+            }
+        };
+    }
+
+    private static Converter newMapConverter(final Class<?> type, final Converter valueConverter) {
+        if (valueConverter == IDENTITY && type.isAssignableFrom(HashMap.class)) {
+            // JsonUtils は HashMap をつくる
+            return newCastConverter(type);
+        }
+        final Constructor<?> constructor = containerConstructor(type, LinkedHashMap.class, TreeMap.class);
+        if (constructor == null) {
+            return newCastConverter(type);
+        }
+        return new Converter() {
+            @SuppressWarnings("unchecked")
+            @Override
+            public Object convert(final Object value) {
+                if (value == null) {
+                    return null;
+                } else if (!(value instanceof Map) && !(value instanceof JSONObject)) {
+                    throw mismatch(value, type);
+                }
+                final Map<Object, Object> map;
+                try {
+                    map = (Map<Object, Object>) constructor.newInstance();
+                } catch (final ReflectiveOperationException e) {
+                    throw new IllegalStateException(e);
+                }
+                if (value instanceof JSONObject) {
+                    final JSONObject object = (JSONObject) value;
+                    for (final String key : object.keySet()) {
+                        final Object element = object.get(key);
+                        map.put(key, valueConverter.convert(element == JSONObject.NULL ? null : element));
+                    }
+                } else {
+                    for (final Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                        map.put(entry.getKey(), valueConverter.convert(entry.getValue()));
+                    }
+                }
+                return map;
+            }
+        };
+    }
+
+}
@@ -0,0 +1,27 @@
+package jp.realglobe.sugo.actor;
+
+import static java.lang.annotation.ElementType.METHOD;
+import static java.lang.annotation.ElementType.TYPE;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * モジュール関数の実行の期限を示す。
+ * 関数に付ければその関数の、モジュールのクラスに付ければモジュール全体の既定になる。
+ * 実行依頼に deadline があればそちらを優先する。
+ * 実行依頼を受けてから期限までに応答できなければ、実行を中断して失敗を返す
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target({ METHOD, TYPE })
+@Documented
+public @interface Deadline {
+
+    /**
+     * @return 実行依頼を受けてから期限までの時間 (ミリ秒)。1 以上
+     */
+    long value();
+
+}
@@ -0,0 +1,213 @@
+package jp.realglobe.sugo.actor;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * ハッシュ化タイマーホイール。
+ * 1 本のスレッドで刻みごとに 1 つの枠を見て、期限の来た処理を実行する。
+ * 登録と取り消しは O(1) なので、期限待ちが何万あっても軽い。
+ * 期限の精度は刻みの幅まで
+ */
+final class HashedWheelTimer {
+
+    private static final Logger LOG = Logger.getLogger(HashedWheelTimer.class.getName());
+
+    /**
+     * 全 Actor で共有するタイマー。刻み 10 ミリ秒、512 枠
+     */
+    static final HashedWheelTimer SHARED = new HashedWheelTimer("sugo-actor-timer", 10, TimeUnit.MILLISECONDS, 512);
+
+    /**
+     * 登録した処理。取り消しに使う
+     */
+    static final class Timeout {
+
+        private static final int PENDING = 0;
+        private static final int CANCELLED = 1;
+        private static final int EXPIRED = 2;
+
+        private final Runnable task;
+        private final long deadline;
+        private final AtomicInteger state;
+
+        /**
+         * 残りの周回数。タイマーのスレッドだけが触る
+         */
+        private long remainingRounds;
+
+        Timeout(final Runnable task, final long deadline) {
+            this.task = task;
+            this.deadline = deadline;
+            this.state = new AtomicInteger(PENDING);
+        }
+
+        /**
+         * 取り消す
+         * @return まだ実行していなかったら true
+         */
+        boolean cancel() {
+            return this.state.compareAndSet(PENDING, CANCELLED);
+        }
+
+        /**
+         * @return 取り消したら true
+         */
+        boolean isCancelled() {
+            return this.state.get() == CANCELLED;
+        }
+
+        private boolean expire() {
+            return this.state.compareAndSet(PENDING, EXPIRED);
+        }
+
+    }
+
+    private final long tickNanos;
+    private final List<LinkedList<Timeout>> wheel;
+    private final int mask;
+
+    /**
+     * 登録されてまだ枠に入れていないもの
+     */
+    private final Queue<Timeout> incoming;
+
+    private final long startTime;
+    private final Thread worker;
+
+    /**
+     * 作成する
+     * @param name スレッド名
+     * @param tick 刻みの幅
+     * @param unit tick の単位
+     * @param wheelSize 枠の数。2 の累乗に切り上げる
+     */
+    HashedWheelTimer(final String name, final long tick, final TimeUnit unit, final int wheelSize) {
+        if (tick <= 0) {
+            throw new IllegalArgumentException("tick must be positive: " + tick);
+        }
+        int size = 1;
+        while (size < wheelSize) {
+            size <<= 1;
+        }
+        this.tickNanos = unit.toNanos(tick);
+        this.wheel = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            this.wheel.add(new LinkedList<Timeout>());
+        }
+        this.mask = size - 1;
+        this.incoming = new ConcurrentLinkedQueue<>();
+        this.startTime = System.nanoTime();
+        this.worker = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                work();
+            }
+        }, name);
+        this.worker.setDaemon(true);
+        this.worker.start();
+    }
+
+    /**
+     * 処理を登録する
+     * @param task 期限が来たらタイマーのスレッドで実行する処理。すぐに終わること
+     * @param delay 期限までの時間
+     * @param unit delay の単位
+     * @return 取り消しに使うもの
+     */
+    Timeout schedule(final Runnable task, final long delay, final TimeUnit unit) {
+        final Timeout timeout = new Timeout(task, System.nanoTime() - this.startTime + unit.toNanos(Math.max(0, delay)));
+        this.incoming.add(timeout);
+        return timeout;
+    }
+
+    /**
+     * @return 取り消されていない期限待ちの数。おおよその値
+     */
+    int getPendingCount() {
+        int count = 0;
+        for (final Timeout timeout : this.incoming) {
+            if (!timeout.isCancelled()) {
+                count++;
+            }
+        }
+        synchronized (this.wheel) {
+            for (final LinkedList<Timeout> bucket : this.wheel) {
+                for (final Timeout timeout : bucket) {
+                    if (!timeout.isCancelled()) {
+                        count++;
+                    }
+                }
+            }
+        }
+        return count;
+    }
+
+    private void work() {
+        long tick = 0;
+        while (true) {
+            // 次の刻みまで待つ
+            final long tickEnd = (tick + 1) * this.tickNanos;
+            long sleepNanos;
+            while ((sleepNanos = tickEnd - (System.nanoTime() - this.startTime)) > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(sleepNanos);
+                } catch (final InterruptedException e) {
+                    // デーモンなので止めない
+                }
+            }
+            synchronized (this.wheel) {
+                transfer(tick);
+                expire(this.wheel.get((int) (tick & this.mask)), tickEnd);
+            }
+            tick++;
+        }
+    }
+
+    /**
+     * 登録されたものを枠に入れる
+     * @param currentTick 今の刻み
+     */
+    private void transfer(final long currentTick) {
+        Timeout timeout;
+        while ((timeout = this.incoming.poll()) != null) {
+            if (timeout.isCancelled()) {
+                continue;
+            }
+            // 過ぎた期限は今の枠に入れる
+            final long target = Math.max(currentTick, timeout.deadline / this.tickNanos);
+            timeout.remainingRounds = (target - currentTick) >> Integer.numberOfTrailingZeros(this.mask + 1);
+            this.wheel.get((int) (target & this.mask)).add(timeout);
+        }
+    }
+
+    private static void expire(final LinkedList<Timeout> bucket, final long tickEnd) {
+        final Iterator<Timeout> iterator = bucket.iterator();
+        while (iterator.hasNext()) {
+            final Timeout timeout = iterator.next();
+            if (timeout.isCancelled()) {
+                iterator.remove();
+            } else if (timeout.remainingRounds > 0) {
+                timeout.remainingRounds--;
+            } else if (timeout.deadline <= tickEnd) {
+                iterator.remove();
+                if (timeout.expire()) {
+                    try {
+                        timeout.task.run();
+                    } catch (final RuntimeException e) {
+                        LOG.log(Level.WARNING, "Timer task failed", e);
+                    }
+                }
+            }
+        }
+    }
+
+}
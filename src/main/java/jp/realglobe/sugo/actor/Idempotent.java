@@ -0,0 +1,18 @@
+package jp.realglobe.sugo.actor;
+
+import static java.lang.annotation.ElementType.METHOD;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * 同じ引数なら何度実行しても同じ結果になるモジュール関数であることを示す。
+ * 同じ引数の実行依頼が実行中のものと重なったら、新たに実行せずに実行中のものの結果を返す。
+ * 少しずつ返すモジュール関数には効かない
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target(METHOD)
+@Documented
+public @interface Idempotent {}
@@ -0,0 +1,437 @@
+package jp.realglobe.sugo.actor;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import io.socket.client.Ack;
+
+/**
+ * 1 回のモジュール関数の実行。
+ * 応答は最初の 1 回だけ送り、送ったら期限の監視をやめる。
+ * 同時実行数の制限は実行が本当に終わるまで返さない。
+ * 実行を始めていなければ応答したとき、始めていれば実行を終えたとき、非同期な結果なら結果が出たときに返す。
+ * 期限切れなどで中断するときは、実行中のスレッドに割り込み、非同期な結果や購読を取り消す。
+ * 相乗りした呼び出しには実行の結果だけを送る。
+ * 期限切れや取り消しはその呼び出しだけに応答して抜けさせ、誰も待っていなくなったら実行を中断する
+ */
+final class Invocation implements Ack {
+
+    private final Ack ack;
+    private final ConcurrencyLimiter.Permits permits;
+    private final AtomicBoolean done;
+
+    /**
+     * 実行中のスレッド。実行していないか、割り込まないなら null
+     */
+    private Thread thread;
+
+    /**
+     * 実行を始めたら true
+     */
+    private boolean entered;
+
+    /**
+     * 実行を終えても結果が出ていなければ true
+     */
+    private boolean deferred;
+
+    /**
+     * 取り消せる非同期な結果
+     */
+    private Object result;
+    private HashedWheelTimer.Timeout timeout;
+
+    /**
+     * 相乗りした呼び出し
+     */
+    private List<Invocation> followers;
+
+    /**
+     * 相乗りした先。相乗りしていなければ null
+     */
+    private Invocation leader;
+
+    /**
+     * 実行の結果を送り始めたか、誰も待たなくなったら true。以降は相乗りできず、実行も始めない
+     */
+    private boolean closed;
+
+    /**
+     * 自分の呼び出し元に応答を送り始めたら true
+     */
+    private boolean replied;
+    private List<Runnable> onDone;
+    private List<Runnable> onFinished;
+    private List<Runnable> onCancel;
+
+    /**
+     * 同時実行数の制限を返したら true
+     */
+    private boolean finished;
+
+    /**
+     * 中断したら true
+     */
+    private volatile boolean cancelled;
+
+    /**
+     * 作成する
+     * @param ack 応答先
+     * @param permits 実行が終わるまで占有する同時実行数の制限
+     */
+    Invocation(final Ack ack, final ConcurrencyLimiter.Permits permits) {
+        this.ack = ack;
+        this.permits = permits;
+        this.done = new AtomicBoolean();
+    }
+
+    /**
+     * 実行の結果を応答する。
+     * まだ応答していなければ自分の呼び出し元に、残っている相乗りした呼び出しにも送る。2 回目以降は何もしない
+     */
+    @Override
+    public void call(final Object... args) {
+        final boolean own = this.done.compareAndSet(false, true);
+        final List<Invocation> followers0;
+        final List<Runnable> onDone0;
+        final HashedWheelTimer.Timeout timeout0;
+        final boolean finish;
+        synchronized (this) {
+            if (this.closed) {
+                followers0 = null;
+            } else {
+                this.closed = true;
+                followers0 = this.followers;
+                this.followers = null;
+            }
+            onDone0 = (own ? reply() : null);
+            timeout0 = this.timeout;
+            // 始めていなければもう実行しない
+            finish = !this.entered;
+        }
+        if (own) {
+            send(timeout0, onDone0, args);
+        }
+        if (finish) {
+            finish();
+        }
+        if (followers0 != null) {
+            for (final Invocation follower : followers0) {
+                follower.call(args);
+            }
+        }
+    }
+
+    /**
+     * 期限切れや取り消しで、自分の呼び出し元にだけ応答して抜ける。
+     * 相乗りした先があればそこから抜け、誰も待っていなくなったら実行を中断する。2 回目以降は何もしない
+     * @param args 応答
+     */
+    void abort(final Object... args) {
+        if (!this.done.compareAndSet(false, true)) {
+            return;
+        }
+        final Invocation leader0;
+        final List<Runnable> onDone0;
+        final HashedWheelTimer.Timeout timeout0;
+        final boolean abandon;
+        synchronized (this) {
+            leader0 = this.leader;
+            onDone0 = reply();
+            timeout0 = this.timeout;
+            abandon = close();
+        }
+        send(timeout0, onDone0, args);
+        if (leader0 != null) {
+            leader0.unfollow(this);
+        }
+        if (abandon) {
+            abandon();
+        }
+    }
+
+    /**
+     * 自分の呼び出し元に応答すると決める
+     * @return 応答を送る前に実行する処理
+     */
+    private List<Runnable> reply() {
+        this.replied = true;
+        final List<Runnable> onDone0 = this.onDone;
+        this.onDone = null;
+        return onDone0;
+    }
+
+    /**
+     * 誰も待っていなければ締め切る
+     * @return 締め切ったら true。そのときは abandon を呼ぶこと
+     */
+    private boolean close() {
+        if (this.closed || !this.done.get() || (this.followers != null && !this.followers.isEmpty())) {
+            return false;
+        }
+        this.closed = true;
+        return true;
+    }
+
+    /**
+     * 誰も待っていない実行を中断する
+     */
+    private void abandon() {
+        final boolean finish;
+        synchronized (this) {
+            finish = !this.entered;
+        }
+        cancel();
+        if (finish) {
+            finish();
+        }
+    }
+
+    private void send(final HashedWheelTimer.Timeout timeout0, final List<Runnable> onDone0, final Object[] args) {
+        if (timeout0 != null) {
+            timeout0.cancel();
+        }
+        if (onDone0 != null) {
+            for (final Runnable runnable : onDone0) {
+                runnable.run();
+            }
+        }
+        this.ack.call(args);
+    }
+
+    /**
+     * 相乗りする
+     * @param follower 実行の結果を受け取る呼び出し
+     * @return 実行の結果を送り始めていたら false
+     */
+    synchronized boolean follow(final Invocation follower) {
+        if (this.closed) {
+            return false;
+        }
+        synchronized (follower) {
+            if (follower.done.get()) {
+                // 相乗りする前に抜けた
+                return true;
+            }
+            follower.leader = this;
+        }
+        if (this.followers == null) {
+            this.followers = new ArrayList<>();
+        }
+        this.followers.add(follower);
+        return true;
+    }
+
+    /**
+     * 相乗りした呼び出しを抜けさせる
+     * @param follower 抜ける呼び出し
+     */
+    private void unfollow(final Invocation follower) {
+        final boolean abandon;
+        synchronized (this) {
+            if (this.followers != null) {
+                this.followers.remove(follower);
+            }
+            abandon = close();
+        }
+        if (abandon) {
+            abandon();
+        }
+    }
+
+    /**
+     * 応答するときに実行する処理を加える。
+     * 既に応答済みならすぐ実行する
+     * @param onDone 自分の呼び出し元に応答を送る前に実行する処理
+     */
+    void addOnDone(final Runnable onDone) {
+        synchronized (this) {
+            if (!this.replied) {
+                if (this.onDone == null) {
+                    this.onDone = new ArrayList<>(1);
+                }
+                this.onDone.add(onDone);
+                return;
+            }
+        }
+        onDone.run();
+    }
+
+    /**
+     * 実行が本当に終わったときに実行する処理を加える。
+     * 既に終わっていればすぐ実行する
+     * @param onFinished 同時実行数の制限を返した後に実行する処理
+     */
+    void addOnFinished(final Runnable onFinished) {
+        synchronized (this) {
+            if (!this.finished) {
+                if (this.onFinished == null) {
+                    this.onFinished = new ArrayList<>(1);
+                }
+                this.onFinished.add(onFinished);
+                return;
+            }
+        }
+        onFinished.run();
+    }
+
+    /**
+     * 中断したときに実行する処理を加える。
+     * 既に中断していればすぐ実行する
+     * @param onCancel 中断したときに実行する処理。結果を待たずに終わらせるのに使う
+     */
+    void addOnCancel(final Runnable onCancel) {
+        synchronized (this) {
+            if (!this.cancelled) {
+                if (this.onCancel == null) {
+                    this.onCancel = new ArrayList<>(1);
+                }
+                this.onCancel.add(onCancel);
+                return;
+            }
+        }
+        onCancel.run();
+    }
+
+    /**
+     * 実行を終わらせる。
+     * 同時実行数の制限を返す。2 回目以降は何もしない
+     */
+    void finish() {
+        final List<Runnable> onFinished0;
+        synchronized (this) {
+            if (this.finished) {
+                return;
+            }
+            this.finished = true;
+            onFinished0 = this.onFinished;
+        }
+        this.permits.release();
+        if (onFinished0 != null) {
+            for (final Runnable runnable : onFinished0) {
+                runnable.run();
+            }
+        }
+    }
+
+    /**
+     * @return 応答済みなら true
+     */
+    boolean isDone() {
+        return this.done.get();
+    }
+
+    /**
+     * @return 期限切れや取り消しで誰も待っていなくなり、中断したなら true
+     */
+    boolean isCancelled() {
+        return this.cancelled;
+    }
+
+    /**
+     * @return 実行を始めて、中断されずに終えたなら true
+     */
+    synchronized boolean isCompleted() {
+        return this.finished && this.entered && !this.cancelled;
+    }
+
+    /**
+     * 期限の監視を登録する
+     * @param timeout 期限の監視
+     */
+    synchronized void setTimeout(final HashedWheelTimer.Timeout timeout) {
+        this.timeout = timeout;
+    }
+
+    /**
+     * 実行を始める
+     * @param interruptible 中断するときにこのスレッドに割り込むなら true
+     * @return 既に結果が決まったか、誰も待っていなければ false。そのときは実行しないこと
+     */
+    synchronized boolean enter(final boolean interruptible) {
+        if (this.closed) {
+            return false;
+        }
+        this.entered = true;
+        if (interruptible) {
+            this.thread = Thread.currentThread();
+        }
+        return true;
+    }
+
+    /**
+     * 実行を終える。
+     * 中断のための割り込みがスレッドに残らないようにする。
+     * 結果を待つなら、結果が出たときに finish を呼ぶこと
+     */
+    void exit() {
+        final boolean deferred0;
+        synchronized (this) {
+            if (this.thread != null) {
+                this.thread = null;
+                Thread.interrupted();
+            }
+            deferred0 = this.deferred;
+        }
+        if (!deferred0) {
+            finish();
+        }
+    }
+
+    /**
+     * 実行を終えても、結果が出るまで同時実行数の制限を返さないようにする。
+     * 実行中に呼ぶ
+     */
+    synchronized void defer() {
+        this.deferred = true;
+    }
+
+    /**
+     * 非同期な結果を取り消せるように登録する。
+     * 既に中断していればすぐ取り消す
+     * @param value モジュール関数の返り値
+     */
+    void setResult(final Object value) {
+        synchronized (this) {
+            this.result = value;
+        }
+        if (this.cancelled) {
+            cancel();
+        }
+    }
+
+    /**
+     * 実行を中断する
+     */
+    private void cancel() {
+        this.cancelled = true;
+        final Object result0;
+        final List<Runnable> onCancel0;
+        synchronized (this) {
+            if (this.thread != null) {
+                this.thread.interrupt();
+            }
+            result0 = this.result;
+            onCancel0 = this.onCancel;
+            this.onCancel = null;
+        }
+        if (onCancel0 != null) {
+            for (final Runnable runnable : onCancel0) {
+                runnable.run();
+            }
+        }
+        if (result0 instanceof Future) {
+            ((Future<?>) result0).cancel(true);
+        } else if (result0 instanceof CompletionStage) {
+            try {
+                ((CompletionStage<?>) result0).toCompletableFuture().cancel(true);
+            } catch (final UnsupportedOperationException e) {
+                // 取り消せない
+            }
+        }
+    }
+
+}
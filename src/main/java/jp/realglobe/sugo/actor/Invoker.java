@@ -0,0 +1,561 @@
+package jp.realglobe.sugo.actor;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.AnnotatedElement;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.math.BigInteger;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Future;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * モジュール関数の呼び出し口。
+ * モジュール登録時に 1 度だけつくり、実行時はリフレクションを通さずに呼び出す
+ */
+final class Invoker {
+
+    private static final MethodHandle DISPATCH;
+
+    /**
+     * 引数が無いときの引数
+     */
+    private static final Object[] NO_ARGS = new Object[0];
+
+    static {
+        try {
+            DISPATCH = MethodHandles.publicLookup().findVirtual(ModuleDispatcher.class, "invoke", MethodType.methodType(Object.class, Object.class, int.class, Object[].class));
+        } catch (final NoSuchMethodException | IllegalAccessException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    /**
+     * 引数が JSON のどの型から来るか。
+     * オーバーロードの選択に使う
+     */
+    private enum Kind {
+        ANY, BOOLEAN, INTEGER, NUMBER, STRING, ARRAY, OBJECT;
+
+        static Kind of(final Class<?> type) {
+            if (type == Boolean.TYPE || type == Boolean.class) {
+                return BOOLEAN;
+            } else if (type == Byte.TYPE || type == Short.TYPE || type == Integer.TYPE || type == Long.TYPE || type == Byte.class || type == Short.class || type == Integer.class
+                    || type == Long.class || type == BigInteger.class) {
+                return INTEGER;
+            } else if (type.isPrimitive() && type != Character.TYPE || Number.class.isAssignableFrom(type)) {
+                return NUMBER;
+            } else if (type == Character.TYPE || CharSequence.class.isAssignableFrom(type) || type == Character.class) {
+                return STRING;
+            } else if (type.isArray() || Collection.class.isAssignableFrom(type)) {
+                return ARRAY;
+            } else if (Map.class.isAssignableFrom(type) || Beans.isBindable(type)) {
+                return OBJECT;
+            }
+            return ANY;
+        }
+
+        /**
+         * @return 型の絞り込み具合。大きいほど優先する
+         */
+        int getSpecificity() {
+            switch (this) {
+            case ANY:
+                return 0;
+            case NUMBER:
+                return 1;
+            default:
+                return 2;
+            }
+        }
+
+        /**
+         * null 以外で両方が受け付ける値があるか
+         * @param other もう一方
+         * @return あれば true
+         */
+        boolean overlaps(final Kind other) {
+            if (this == other || this == ANY || other == ANY) {
+                return true;
+            }
+            // 整数は NUMBER も受け付ける
+            return (this == INTEGER && other == NUMBER) || (this == NUMBER && other == INTEGER);
+        }
+
+        boolean accepts(final Object value, final boolean primitive) {
+            if (value == null) {
+                return !primitive;
+            }
+            switch (this) {
+            case BOOLEAN:
+                return value instanceof Boolean;
+            case INTEGER:
+                return value instanceof Integer || value instanceof Long || value instanceof BigInteger;
+            case NUMBER:
+                return value instanceof Number;
+            case STRING:
+                return value instanceof String;
+            case ARRAY:
+                return value instanceof Object[] || value instanceof JSONArray;
+            case OBJECT:
+                return value instanceof Map || value instanceof JSONObject;
+            default:
+                return true;
+            }
+        }
+    }
+
+    private final Method method;
+    private final Class<?> returnType;
+    private final boolean async;
+    private final boolean stream;
+    private final boolean idempotent;
+
+    /**
+     * 実行依頼を受け取ったスレッドで実行するなら、警告を出すまでの時間 (ミリ秒)。そうでなければ 0
+     */
+    private final long inlineLimit;
+    private final Class<?> resultType;
+    private final Class<?>[] parameterTypes;
+    private final Kind[] parameterKinds;
+    private final int specificity;
+
+    /**
+     * 関数に付いた同時実行数の制限。無ければ null
+     */
+    private final ConcurrencyLimiter limiter;
+
+    /**
+     * 関数に付いた優先度。無ければ null
+     */
+    private final Integer priority;
+
+    /**
+     * 関数に付いた期限 (ミリ秒)。無ければ null
+     */
+    private final Long deadline;
+
+    /**
+     * 順番を守るなら、その単位にする引数の位置か Ordered.MODULE。守らないなら null
+     */
+    private final Integer ordering;
+
+    /**
+     * 引数ごとの変換器。全て型を変換しないなら null
+     */
+    private final Converters.Converter[] converters;
+
+    /**
+     * 関数に付いた Cached。無ければ null
+     */
+    private final Cached cached;
+
+    /**
+     * 関数に付いた RateLimit。無ければ null
+     */
+    private final RateLimit rateLimit;
+
+    /**
+     * 関数に付いた CircuitBreaker。無ければ null
+     */
+    private final CircuitBreaker circuitBreaker;
+
+    /**
+     * (Object[])Object 型に揃えた呼び出し口
+     */
+    private final MethodHandle handle;
+
+    /**
+     * 作成する
+     * @param instance モジュール
+     * @param method モジュール関数
+     */
+    Invoker(final Object instance, final Method method) {
+        this(method, unreflect(instance, method));
+    }
+
+    /**
+     * 生成された呼び出し表を使って作成する
+     * @param instance モジュール
+     * @param method モジュール関数
+     * @param dispatcher 呼び出し表
+     * @param index 呼び出し表での関数の番号
+     */
+    Invoker(final Object instance, final Method method, final ModuleDispatcher dispatcher, final int index) {
+        this(method, MethodHandles.insertArguments(DISPATCH.bindTo(dispatcher), 0, instance, index));
+    }
+
+    /**
+     * 関数に付いた設定を読んで作成する
+     * @param method モジュール関数
+     * @param handle (Object[])Object 型に揃えた呼び出し口
+     */
+    private Invoker(final Method method, final MethodHandle handle) {
+        this.method = method;
+        this.returnType = method.getReturnType();
+        this.async = isAsync(method);
+        this.stream = Streams.isStream(this.returnType);
+        this.idempotent = !this.stream && method.isAnnotationPresent(Idempotent.class);
+        this.inlineLimit = getInlineLimit(method);
+        this.resultType = getResultType(method);
+        this.parameterTypes = method.getParameterTypes();
+        this.parameterKinds = toKinds(this.parameterTypes);
+        this.specificity = getSpecificity(this.parameterKinds);
+        this.converters = toConverters(method);
+        this.limiter = ConcurrencyLimiter.of(method);
+        this.priority = getPriority(method);
+        this.deadline = getDeadline(method);
+        this.ordering = getOrdering(method);
+        this.cached = method.getAnnotation(Cached.class);
+        this.rateLimit = method.getAnnotation(RateLimit.class);
+        this.circuitBreaker = method.getAnnotation(CircuitBreaker.class);
+        this.handle = handle;
+    }
+
+    /**
+     * リフレクションで呼ぶ呼び出し口をつくる
+     * @param instance モジュール
+     * @param method モジュール関数
+     * @return (Object[])Object 型に揃えた呼び出し口
+     */
+    private static MethodHandle unreflect(final Object instance, final Method method) {
+        try {
+            // public でないクラスの関数も呼べるようにする
+            method.setAccessible(true);
+        } catch (final SecurityException e) {
+            // 呼べるかどうかは unreflect に任せる
+        }
+        MethodHandle base;
+        try {
+            base = MethodHandles.lookup().unreflect(method);
+        } catch (final IllegalAccessException e) {
+            throw new IllegalArgumentException("cannot access " + method, e);
+        }
+        if (!Modifier.isStatic(method.getModifiers())) {
+            base = base.bindTo(instance);
+        }
+        final int arity = method.getParameterTypes().length;
+        return base.asFixedArity().asType(MethodType.genericMethodType(arity)).asSpreader(Object[].class, arity);
+    }
+
+    private static Kind[] toKinds(final Class<?>[] types) {
+        final Kind[] kinds = new Kind[types.length];
+        for (int i = 0; i < types.length; i++) {
+            kinds[i] = Kind.of(types[i]);
+        }
+        return kinds;
+    }
+
+    /**
+     * 引数の変換方法を決める
+     * @param method モジュール関数
+     * @return 引数ごとの変換器。全て型を変換しないなら null
+     */
+    private static Converters.Converter[] toConverters(final Method method) {
+        final Type[] types = method.getGenericParameterTypes();
+        final Converters.Converter[] converters = new Converters.Converter[types.length];
+        boolean identity = true;
+        for (int i = 0; i < types.length; i++) {
+            converters[i] = Converters.of(types[i]);
+            identity &= (converters[i] == Converters.IDENTITY);
+        }
+        return identity ? null : converters;
+    }
+
+    private static int getSpecificity(final Kind[] kinds) {
+        int specificity = 0;
+        for (final Kind kind : kinds) {
+            specificity += kind.getSpecificity();
+        }
+        return specificity;
+    }
+
+    Method getMethod() {
+        return this.method;
+    }
+
+    /**
+     * @return 関数に付いた Cached。無ければ null
+     */
+    Cached getCached() {
+        return this.cached;
+    }
+
+    /**
+     * @return 関数に付いた RateLimit。無ければ null
+     */
+    RateLimit getRateLimit() {
+        return this.rateLimit;
+    }
+
+    /**
+     * @return 関数に付いた CircuitBreaker。無ければ null
+     */
+    CircuitBreaker getCircuitBreaker() {
+        return this.circuitBreaker;
+    }
+
+    String getName() {
+        return this.method.getName();
+    }
+
+    /**
+     * @return 返り値の型
+     */
+    Class<?> getReturnType() {
+        return this.returnType;
+    }
+
+    /**
+     * @return 返り値が CompletionStage か Future なら true
+     */
+    boolean isAsync() {
+        return this.async;
+    }
+
+    /**
+     * @return 返り値が Iterator, Stream, Flow.Publisher なら true
+     */
+    boolean isStream() {
+        return this.stream;
+    }
+
+    /**
+     * @return 関数に付いた同時実行数の制限。無ければ null
+     */
+    ConcurrencyLimiter getLimiter() {
+        return this.limiter;
+    }
+
+    /**
+     * @return 関数に付いた優先度。無ければ null
+     */
+    Integer getPriority() {
+        return this.priority;
+    }
+
+    /**
+     * 注釈から優先度を読む
+     * @param element モジュールのクラスかモジュール関数
+     * @return 優先度。Priority が付いていなければ null
+     */
+    static Integer getPriority(final AnnotatedElement element) {
+        final Priority priority = element.getAnnotation(Priority.class);
+        return priority == null ? null : PriorityTaskQueue.clamp(priority.value());
+    }
+
+    /**
+     * @return 関数に付いた期限 (ミリ秒)。無ければ null
+     */
+    Long getDeadline() {
+        return this.deadline;
+    }
+
+    /**
+     * 注釈から期限を読む
+     * @param element モジュールのクラスかモジュール関数
+     * @return 期限 (ミリ秒)。Deadline が付いていなければ null
+     */
+    static Long getDeadline(final AnnotatedElement element) {
+        final Deadline deadline = element.getAnnotation(Deadline.class);
+        return deadline == null ? null : deadline.value();
+    }
+
+    /**
+     * @return Idempotent が付いていて、少しずつ返す関数でなければ true
+     */
+    boolean isIdempotent() {
+        return this.idempotent;
+    }
+
+    /**
+     * @return NonBlocking が付いていて、待つことの無い返り値の型で、順番を守らないなら true
+     */
+    boolean isNonBlocking() {
+        return this.inlineLimit > 0 && this.ordering == null;
+    }
+
+    /**
+     * @return 順番を守るなら、その単位にする引数の位置か Ordered.MODULE。守らないなら null
+     */
+    Integer getOrdering() {
+        return this.ordering;
+    }
+
+    /**
+     * 関数に付いた順番の単位を返す
+     * @param method モジュール関数
+     * @return 引数の位置か Ordered.MODULE。Ordered が付いていなければ null
+     */
+    static Integer getOrdering(final Method method) {
+        final Ordered ordered = method.getAnnotation(Ordered.class);
+        if (ordered == null) {
+            return null;
+        }
+        final int index = ordered.value();
+        if (index != Ordered.MODULE && (index < 0 || index >= method.getParameterTypes().length)) {
+            throw new IllegalArgumentException("ordering argument " + index + " is out of range: " + method);
+        }
+        return index;
+    }
+
+    /**
+     * @return 実行依頼を受け取ったスレッドで実行するとき、警告を出すまでの時間 (ミリ秒)
+     */
+    long getInlineLimit() {
+        return this.inlineLimit;
+    }
+
+    private static long getInlineLimit(final Method method) {
+        final NonBlocking nonBlocking = method.getAnnotation(NonBlocking.class);
+        if (nonBlocking == null) {
+            return 0;
+        }
+        final Class<?> type = method.getReturnType();
+        if (Streams.isStream(type) || (Future.class.isAssignableFrom(type) && !CompletionStage.class.isAssignableFrom(type))) {
+            // 結果を待つことになる
+            return 0;
+        }
+        return Math.max(1, nonBlocking.warnAfter());
+    }
+
+    /**
+     * @return 応答に結果を載せるなら true
+     */
+    boolean hasResult() {
+        return this.resultType != Void.TYPE && this.resultType != Void.class;
+    }
+
+    /**
+     * 非同期なモジュール関数か
+     * @param method モジュール関数
+     * @return 返り値が CompletionStage か Future なら true
+     */
+    static boolean isAsync(final Method method) {
+        final Class<?> type = method.getReturnType();
+        return CompletionStage.class.isAssignableFrom(type) || Future.class.isAssignableFrom(type);
+    }
+
+    /**
+     * 応答に載せる結果の型を返す。
+     * 非同期なモジュール関数なら CompletionStage や Future の中身の型、
+     * 少しずつ返すモジュール関数なら要素の型
+     * @param method モジュール関数
+     * @return 結果の型
+     */
+    static Class<?> getResultType(final Method method) {
+        if (!isAsync(method) && !Streams.isStream(method.getReturnType())) {
+            return method.getReturnType();
+        }
+        final Type type = method.getGenericReturnType();
+        if (type instanceof ParameterizedType) {
+            final Type[] arguments = ((ParameterizedType) type).getActualTypeArguments();
+            if (arguments.length == 1) {
+                if (arguments[0] instanceof Class) {
+                    return (Class<?>) arguments[0];
+                } else if (arguments[0] instanceof ParameterizedType) {
+                    return (Class<?>) ((ParameterizedType) arguments[0]).getRawType();
+                }
+            }
+        }
+        return Object.class;
+    }
+
+    int getArity() {
+        return this.parameterTypes.length;
+    }
+
+    /**
+     * @return 引数の型の絞り込み具合。同じ名前と引数の数のオーバーロードでは大きいものから試す
+     */
+    int getSpecificity() {
+        return this.specificity;
+    }
+
+    /**
+     * 同じ引数の数のオーバーロードと、どちらを選ぶか決められない場合があるか。
+     * 絞り込み具合が同じで、どの位置でも両方が受け付ける値があれば決められない
+     * @param other 同じ名前と引数の数のオーバーロード
+     * @return 決められない場合があるなら true
+     */
+    boolean isAmbiguousWith(final Invoker other) {
+        if (this.specificity != other.specificity) {
+            return false;
+        }
+        for (int i = 0; i < this.parameterKinds.length; i++) {
+            if (!this.parameterKinds[i].overlaps(other.parameterKinds[i])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * JSON の引数を受け付けるか。
+     * 引数の数は合っているものとする
+     * @param args 引数
+     * @return 受け付けるなら true
+     */
+    boolean accepts(final Object[] args) {
+        for (int i = 0; i < this.parameterKinds.length; i++) {
+            if (!this.parameterKinds[i].accepts(args[i], this.parameterTypes[i].isPrimitive())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * JSON の引数を引数の型に合わせる。
+     * どの引数も変わらなければ args をそのまま返す
+     * @param args JsonUtils.convertToObject の出力か、JsonUtils.toArray で要素を変換せずに配列にしたもの
+     * @return 引数の型に合わせたもの
+     * @throws IllegalArgumentException 合わせられない
+     */
+    Object[] coerce(final Object[] args) {
+        final int arity = (args == null ? 0 : args.length);
+        if (arity != this.parameterTypes.length) {
+            throw new IllegalArgumentException("function " + getName() + " takes " + this.parameterTypes.length + " arguments but got " + arity);
+        } else if (arity == 0) {
+            return NO_ARGS;
+        }
+        Object[] coerced = null;
+        for (int i = 0; i < arity; i++) {
+            // 型を変換しないなら、JSONObject, JSONArray を一般的なオブジェクトにするだけ
+            final Object value = (this.converters == null ? Converters.IDENTITY : this.converters[i]).convert(args[i]);
+            if (value != args[i]) {
+                if (coerced == null) {
+                    coerced = args.clone();
+                }
+                coerced[i] = value;
+            }
+        }
+        return coerced == null ? args : coerced;
+    }
+
+    /**
+     * 呼び出す
+     * @param args 引数
+     * @return 返り値。返り値の型が void なら null
+     * @throws Exception モジュール関数が投げた例外。例外でない Throwable は InvocationTargetException に包む
+     */
+    Object invoke(final Object[] args) throws Exception {
+        try {
+            return this.handle.invokeExact(args);
+        } catch (final Exception e) {
+            throw e;
+        } catch (final Throwable e) {
+            throw new InvocationTargetException(e);
+        }
+    }
+
+}
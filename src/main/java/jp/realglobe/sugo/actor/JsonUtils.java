@@ -1,5 +1,7 @@
 package jp.realglobe.sugo.actor;
 
+import java.lang.reflect.Array;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -14,6 +16,21 @@ final class JsonUtils {
 
     private JsonUtils() {}
 
+    /**
+     * 見積もりに使うオブジェクト 1 つ分の大きさ (バイト)
+     */
+    private static final long OBJECT_SIZE = 16;
+
+    /**
+     * 見積もりに使う参照 1 つ分の大きさ (バイト)
+     */
+    private static final long REFERENCE_SIZE = 8;
+
+    /**
+     * 見積もりに使う Map の要素 1 つ分の大きさ (バイト)
+     */
+    private static final long ENTRY_SIZE = 32;
+
     /**
      * JSONObject を一般的なオブジェクトに変換する
      * @param jsonObject 変換前
@@ -23,16 +40,7 @@ final class JsonUtils {
         final Map<String, Object> map = new HashMap<>();
         try {
             for (final String key : jsonObject.keySet()) {
-                final Object obj = jsonObject.get(key);
-                if (obj == JSONObject.NULL) {
-                    map.put(key, null);
-                } else if (obj instanceof JSONObject) {
-                    map.put(key, convertToObject((JSONObject) obj));
-                } else if (obj instanceof JSONArray) {
-                    map.put(key, convertToObject((JSONArray) obj));
-                } else {
-                    map.put(key, obj);
-                }
+                map.put(key, convertValueToObject(jsonObject.get(key)));
             }
         } catch (final JSONException e) {
             // 無い key の指定。ここには来ないはず
@@ -47,19 +55,47 @@ final class JsonUtils {
      * @return 変換後
      */
     static Object[] convertToObject(final JSONArray jsonArray) {
+        final Object[] array = new Object[jsonArray.length()];
+        try {
+            for (int i = 0; i < array.length; i++) {
+                array[i] = convertValueToObject(jsonArray.get(i));
+            }
+        } catch (final JSONException e) {
+            // 範囲外指定。ここには来ないはず
+            throw new RuntimeException(e);
+        }
+        return array;
+    }
+
+    /**
+     * JSON の値を一般的なオブジェクトに変換する。
+     * 変換済みの値はそのまま返す
+     * @param value 変換前
+     * @return 変換後
+     */
+    static Object convertValueToObject(final Object value) {
+        if (value == JSONObject.NULL) {
+            return null;
+        } else if (value instanceof JSONObject) {
+            return convertToObject((JSONObject) value);
+        } else if (value instanceof JSONArray) {
+            return convertToObject((JSONArray) value);
+        }
+        return value;
+    }
+
+    /**
+     * JSONArray を要素を変換せずに配列にする。
+     * JSONObject.NULL だけは null にする
+     * @param jsonArray 変換前
+     * @return 変換後
+     */
+    static Object[] toArray(final JSONArray jsonArray) {
         final Object[] array = new Object[jsonArray.length()];
         try {
             for (int i = 0; i < array.length; i++) {
                 final Object obj = jsonArray.get(i);
-                if (obj == JSONObject.NULL) {
-                    array[i] = null;
-                } else if (obj instanceof JSONObject) {
-                    array[i] = convertToObject((JSONObject) obj);
-                } else if (obj instanceof JSONArray) {
-                    array[i] = convertToObject((JSONArray) obj);
-                } else {
-                    array[i] = obj;
-                }
+                array[i] = (obj == JSONObject.NULL ? null : obj);
             }
         } catch (final JSONException e) {
             // 範囲外指定。ここには来ないはず
@@ -68,4 +104,95 @@ final class JsonUtils {
         return array;
     }
 
+    /**
+     * 実行依頼の引数が実行を終えるまでにヒープで使う大きさを見積もる。
+     * 引数の型に合わせるときに写しをつくる JSONObject, JSONArray は写しの分も数える。
+     * 文字列や数値は写さずに使い回すので 1 回だけ数える
+     * @param parameters toArray の出力
+     * @return 大きさ (バイト)
+     */
+    static long estimateRequestSize(final Object[] parameters) {
+        long size = OBJECT_SIZE;
+        for (final Object parameter : parameters) {
+            size += REFERENCE_SIZE + estimateConvertedSize(parameter);
+        }
+        return size;
+    }
+
+    private static long estimateConvertedSize(final Object value) {
+        if (value instanceof JSONObject) {
+            final JSONObject object = (JSONObject) value;
+            long size = 2 * (OBJECT_SIZE + OBJECT_SIZE);
+            for (final String key : object.keySet()) {
+                size += 2 * ENTRY_SIZE + estimateSize(key) + estimateConvertedSize(object.opt(key));
+            }
+            return size;
+        } else if (value instanceof JSONArray) {
+            final JSONArray array = (JSONArray) value;
+            long size = 2 * (OBJECT_SIZE + OBJECT_SIZE);
+            for (int i = 0; i < array.length(); i++) {
+                size += 2 * REFERENCE_SIZE + estimateConvertedSize(array.opt(i));
+            }
+            return size;
+        }
+        return estimateSize(value);
+    }
+
+    /**
+     * JSON の値がヒープで使う大きさを見積もる。
+     * JSONObject, JSONArray に加えて、変換後の Map, Collection, 配列もたどる。
+     * 文字列は 1 文字 2 バイトで数える
+     * @param value 値
+     * @return 大きさ (バイト)
+     */
+    static long estimateSize(final Object value) {
+        if (value == null || value == JSONObject.NULL || value instanceof Boolean) {
+            // 使い回されるもの
+            return REFERENCE_SIZE;
+        } else if (value instanceof Number) {
+            // 一番多い数値はインターフェースとの比較より先に片付ける
+            return OBJECT_SIZE + REFERENCE_SIZE;
+        } else if (value instanceof CharSequence) {
+            return OBJECT_SIZE + REFERENCE_SIZE + OBJECT_SIZE + 2L * ((CharSequence) value).length();
+        } else if (value instanceof JSONObject) {
+            final JSONObject object = (JSONObject) value;
+            long size = OBJECT_SIZE + OBJECT_SIZE;
+            for (final String key : object.keySet()) {
+                size += ENTRY_SIZE + estimateSize(key) + estimateSize(object.opt(key));
+            }
+            return size;
+        } else if (value instanceof JSONArray) {
+            final JSONArray array = (JSONArray) value;
+            long size = OBJECT_SIZE + OBJECT_SIZE;
+            for (int i = 0; i < array.length(); i++) {
+                size += REFERENCE_SIZE + estimateSize(array.opt(i));
+            }
+            return size;
+        } else if (value instanceof Map) {
+            long size = OBJECT_SIZE + OBJECT_SIZE;
+            for (final Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                size += ENTRY_SIZE + estimateSize(entry.getKey()) + estimateSize(entry.getValue());
+            }
+            return size;
+        } else if (value instanceof Collection) {
+            long size = OBJECT_SIZE + OBJECT_SIZE;
+            for (final Object element : (Collection<?>) value) {
+                size += REFERENCE_SIZE + estimateSize(element);
+            }
+            return size;
+        } else if (value.getClass().isArray()) {
+            final int length = Array.getLength(value);
+            if (value.getClass().getComponentType().isPrimitive()) {
+                return OBJECT_SIZE + REFERENCE_SIZE * length;
+            }
+            long size = OBJECT_SIZE;
+            for (int i = 0; i < length; i++) {
+                size += REFERENCE_SIZE + estimateSize(Array.get(value, i));
+            }
+            return size;
+        }
+        // 数値など。POJO の中身は数えない
+        return OBJECT_SIZE + REFERENCE_SIZE;
+    }
+
 }
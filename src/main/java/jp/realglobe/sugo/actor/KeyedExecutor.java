@@ -0,0 +1,240 @@
+package jp.realglobe.sugo.actor;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * 鍵ごとに順番を守る実行器。
+ * 同じ鍵の処理は届いた順に 1 つずつ、違う鍵の処理は並行して下の実行器で実行する。
+ * 鍵ごとにスレッドを占有せず、先頭の処理が終わってから次の処理を下の実行器に渡す。
+ * Task で渡した処理は、実行を終えたときでなく、終わったと知らせたときに次へ進む。
+ * 同時実行数の制限の空きは、下の実行器に渡すときに得る
+ */
+final class KeyedExecutor {
+
+    /**
+     * 下の実行器
+     */
+    interface Submitter {
+
+        /**
+         * 実行を依頼する
+         * @param task 処理
+         * @param onRejected 断られたときの処理
+         * @param priority 優先度
+         * @return 受け付けたら true
+         */
+        boolean submit(Runnable task, Runnable onRejected, int priority);
+
+    }
+
+    /**
+     * 終わったことを自分で知らせる処理
+     */
+    interface Task {
+
+        /**
+         * 実行する
+         * @param done 処理が本当に終わったときに 1 回呼ぶ。非同期な結果を待つなら結果が出てから呼ぶ
+         */
+        void run(Runnable done);
+
+    }
+
+    private final Submitter submitter;
+
+    /**
+     * 鍵ごとの、先頭の処理の後に待っている処理。
+     * 実行中か下の実行器に渡している鍵だけを持つ
+     */
+    private final Map<Object, Queue<Entry>> queues;
+
+    private final class Entry implements Runnable {
+
+        private final Object key;
+        private final ConcurrencyLimiter.Permits permits;
+        private final Task task;
+        private final Runnable onRejected;
+        private final int priority;
+
+        /**
+         * 下の実行器に渡し終えたか、処理が終わったら true。
+         * 後から来た方が次の処理に進む
+         */
+        private final AtomicBoolean handedOff;
+
+        /**
+         * 処理が終わったら呼ぶ。2 回目以降は何もしない
+         */
+        private final Runnable done;
+
+        Entry(final Object key, final ConcurrencyLimiter.Permits permits, final Task task, final Runnable onRejected, final int priority) {
+            this.key = key;
+            this.permits = permits;
+            this.task = task;
+            this.onRejected = onRejected;
+            this.priority = priority;
+            this.handedOff = new AtomicBoolean();
+            final AtomicBoolean finished = new AtomicBoolean();
+            this.done = new Runnable() {
+                @Override
+                public void run() {
+                    if (finished.compareAndSet(false, true)) {
+                        finish();
+                    }
+                }
+            };
+        }
+
+        @Override
+        public void run() {
+            try {
+                this.task.run(this.done);
+            } catch (final RuntimeException | Error e) {
+                this.done.run();
+                throw e;
+            }
+        }
+
+        void reject() {
+            try {
+                this.onRejected.run();
+            } finally {
+                finish();
+            }
+        }
+
+        private void finish() {
+            if (this.handedOff.compareAndSet(false, true)) {
+                // 渡している最中に終わった。渡した側が次に進む
+                return;
+            }
+            dispatch(next(this.key));
+        }
+
+    }
+
+    /**
+     * 作成する
+     * @param submitter 下の実行器
+     */
+    KeyedExecutor(final Submitter submitter) {
+        this.submitter = submitter;
+        this.queues = new HashMap<>();
+    }
+
+    /**
+     * 実行を依頼する。
+     * 同じ鍵の処理が実行中か待っていれば、その後に並ぶ
+     * @param key 順番を守る単位。null も使える
+     * @param task 処理
+     * @param onRejected 下の実行器に断られたときの処理
+     * @param priority 優先度
+     */
+    void submit(final Object key, final Runnable task, final Runnable onRejected, final int priority) {
+        submit(key, null, new Task() {
+            @Override
+            public void run(final Runnable done) {
+                try {
+                    task.run();
+                } finally {
+                    done.run();
+                }
+            }
+        }, onRejected, priority);
+    }
+
+    /**
+     * 同時実行数の制限の空きを得てから実行を依頼する。
+     * 空きは下の実行器に渡す番が来てから得るので、並んでいる間は占有しない。
+     * 次の処理には、task が終わったと知らせてから進む
+     * @param key 順番を守る単位。null も使える
+     * @param permits 下の実行器に渡す前に得る空き。null なら得ない。返すのは呼び出し側
+     * @param task 処理
+     * @param onRejected 空きを得られなかったか、下の実行器に断られたときの処理。そのときは task を実行しない
+     * @param priority 優先度
+     */
+    void submit(final Object key, final ConcurrencyLimiter.Permits permits, final Task task, final Runnable onRejected, final int priority) {
+        final Entry entry = new Entry(key, permits, task, onRejected, priority);
+        synchronized (this) {
+            final Queue<Entry> queue = this.queues.get(key);
+            if (queue != null) {
+                queue.add(entry);
+                return;
+            }
+            this.queues.put(key, new ArrayDeque<Entry>());
+        }
+        dispatch(entry);
+    }
+
+    /**
+     * 下の実行器に渡す。
+     * 空きを待つ処理は、空きを得たときに渡す。
+     * その場で終わったり断られたりしたら、続けて次の処理を渡す
+     * @param first 最初に渡す処理
+     */
+    private void dispatch(final Entry first) {
+        Entry entry = first;
+        while (entry != null) {
+            final Entry current = entry;
+            final Runnable onRejected = new Runnable() {
+                @Override
+                public void run() {
+                    current.reject();
+                }
+            };
+            if (current.permits == null) {
+                this.submitter.submit(current, onRejected, current.priority);
+            } else {
+                // 空きを待つ間も鍵の順番は進めない
+                current.permits.acquire(new Runnable() {
+                    @Override
+                    public void run() {
+                        KeyedExecutor.this.submitter.submit(current, onRejected, current.priority);
+                    }
+                }, onRejected);
+            }
+            if (current.handedOff.compareAndSet(false, true)) {
+                // 終わった側が次に進む
+                return;
+            }
+            entry = next(current.key);
+        }
+    }
+
+    /**
+     * 次の処理を取り出す
+     * @param key 鍵
+     * @return 次の処理。無ければ鍵を忘れて null
+     */
+    private synchronized Entry next(final Object key) {
+        final Queue<Entry> queue = this.queues.get(key);
+        final Entry entry = queue.poll();
+        if (entry == null) {
+            this.queues.remove(key);
+        }
+        return entry;
+    }
+
+    /**
+     * @return 実行中か待っている処理のある鍵の数
+     */
+    synchronized int getKeyCount() {
+        return this.queues.size();
+    }
+
+    /**
+     * @return 先頭の処理の後に待っている数
+     */
+    synchronized int getWaitingCount() {
+        int count = 0;
+        for (final Queue<Entry> queue : this.queues.values()) {
+            count += queue.size();
+        }
+        return count;
+    }
+
+}
@@ -0,0 +1,31 @@
+package jp.realglobe.sugo.actor;
+
+import static java.lang.annotation.ElementType.METHOD;
+import static java.lang.annotation.ElementType.TYPE;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * 同時に実行するモジュール関数の数の上限を示す。
+ * 関数に付ければその関数の、モジュールのクラスに付ければモジュール全体の上限になる。
+ * 上限を超えた実行依頼はスレッドを使わずに Actor の中で順番を待つ
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target({ METHOD, TYPE })
+@Documented
+public @interface MaxConcurrency {
+
+    /**
+     * @return 同時に実行する数の上限。1 以上
+     */
+    int value();
+
+    /**
+     * @return 順番を待たせる数の上限。超えた実行依頼は断る
+     */
+    int queueCapacity() default 256;
+
+}
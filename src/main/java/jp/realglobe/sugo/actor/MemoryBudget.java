@@ -0,0 +1,143 @@
+package jp.realglobe.sugo.actor;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 応答前の実行依頼の引数と結果が使うメモリの上限。
+ * 大きさは JsonUtils.estimateRequestSize, JsonUtils.estimateSize による見積もりで数える。
+ * 大きな実行依頼が使い切って小さな実行依頼が通らなくならないように、
+ * 上限の 1 / LARGE_DIVISOR を超える実行依頼は上限の LARGE_SHARE までしか使えない
+ */
+public final class MemoryBudget {
+
+    /**
+     * これより大きな割合を使う実行依頼を大きいとみなす
+     */
+    private static final int LARGE_DIVISOR = 16;
+
+    /**
+     * 大きな実行依頼が使える割合
+     */
+    private static final double LARGE_SHARE = 0.75;
+
+    private final long capacity;
+    private final long largeThreshold;
+    private final long largeLimit;
+
+    private final AtomicLong used;
+    private final AtomicLong peak;
+    private final AtomicLong rejected;
+
+    /**
+     * 作成する
+     * @param capacity 上限 (バイト)。1 以上
+     */
+    MemoryBudget(final long capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity must be positive: " + capacity);
+        }
+        this.capacity = capacity;
+        this.largeThreshold = capacity / LARGE_DIVISOR;
+        this.largeLimit = (long) (capacity * LARGE_SHARE);
+        this.used = new AtomicLong();
+        this.peak = new AtomicLong();
+        this.rejected = new AtomicLong();
+    }
+
+    /**
+     * @param bytes 大きさ
+     * @return その大きさの実行依頼が使える上限
+     */
+    private long getLimit(final long bytes) {
+        return bytes > this.largeThreshold ? this.largeLimit : this.capacity;
+    }
+
+    /**
+     * 空いていても入らない大きさか
+     * @param bytes 大きさ
+     * @return 入らないなら true
+     */
+    boolean isTooLarge(final long bytes) {
+        return bytes > getLimit(bytes);
+    }
+
+    /**
+     * 空いていれば確保する
+     * @param bytes 大きさ
+     * @return 確保できたら true
+     */
+    boolean tryAcquire(final long bytes) {
+        final long limit = getLimit(bytes);
+        while (true) {
+            final long current = this.used.get();
+            if (current + bytes > limit) {
+                this.rejected.incrementAndGet();
+                return false;
+            }
+            if (this.used.compareAndSet(current, current + bytes)) {
+                updatePeak(current + bytes);
+                return true;
+            }
+        }
+    }
+
+    /**
+     * 上限を超えても確保する。
+     * 実行し終えた結果のように、もう断れないものに使う
+     * @param bytes 大きさ
+     */
+    void acquire(final long bytes) {
+        updatePeak(this.used.addAndGet(bytes));
+    }
+
+    /**
+     * 返す
+     * @param bytes 確保した大きさ
+     */
+    void release(final long bytes) {
+        this.used.addAndGet(-bytes);
+    }
+
+    private void updatePeak(final long value) {
+        while (true) {
+            final long current = this.peak.get();
+            if (value <= current || this.peak.compareAndSet(current, value)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * @return 上限 (バイト)
+     */
+    public long getCapacity() {
+        return this.capacity;
+    }
+
+    /**
+     * @return 使っている大きさ (バイト)。見積もり
+     */
+    public long getUsed() {
+        return this.used.get();
+    }
+
+    /**
+     * @return これまでに最も多く使った大きさ (バイト)。見積もり
+     */
+    public long getPeak() {
+        return this.peak.get();
+    }
+
+    /**
+     * @return これまでに断った数
+     */
+    public long getRejectedCount() {
+        return this.rejected.get();
+    }
+
+    @Override
+    public String toString() {
+        return "used=" + getUsed() + ", capacity=" + this.capacity + ", peak=" + getPeak() + ", rejected=" + getRejectedCount();
+    }
+
+}
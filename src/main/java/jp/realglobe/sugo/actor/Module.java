@@ -1,12 +1,16 @@
 package jp.realglobe.sugo.actor;
 
 import java.lang.annotation.Annotation;
-import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.Logger;
 
 /**
@@ -16,20 +20,108 @@ final class Module {
 
     private static final Logger LOG = Logger.getLogger(Module.class.getName());
 
+    private static final Comparator<Invoker> SPECIFICITY_ORDER = new Comparator<Invoker>() {
+        @Override
+        public int compare(final Invoker o1, final Invoker o2) {
+            return Integer.compare(o2.getSpecificity(), o1.getSpecificity());
+        }
+    };
+
     private final String version;
     private final String description;
     private final Object instance;
-    private final Map<String, Method> methods;
+    /**
+     * モジュール全体の同時実行数の制限。無ければ null
+     */
+    private final ConcurrencyLimiter limiter;
+    /**
+     * モジュール全体の、応答時間で調整する同時実行数の制限。無ければ null
+     */
+    private final AdaptiveConcurrencyLimiter adaptiveLimiter;
+    /**
+     * モジュール全体の既定の優先度
+     */
+    private final int priority;
+    /**
+     * モジュール全体の既定の期限 (ミリ秒)。無ければ null
+     */
+    private final Long deadline;
+    /**
+     * 関数名と引数の数で引く呼び出し口。
+     * 同じ名前と引数の数のオーバーロードは、型の絞り込みが強い順に並べておく
+     */
+    private final Map<String, Invoker[][]> invokers;
+    /**
+     * 関数名ごとの結果の覚え書き。Cached が付いた関数のものだけ
+     */
+    private final Map<String, ResultCache> caches;
+    /**
+     * モジュール全体の頻度の制限。無ければ null。実行中に差し替えられる
+     */
+    private volatile TokenBucket rateLimit;
+    /**
+     * 関数名ごとの頻度の制限。RateLimit が付いた関数か、実行中に設定した関数のものだけ
+     */
+    private final Map<String, TokenBucket> rateLimits;
+    /**
+     * 関数名ごとの遮断器。CircuitBreaker が付いた関数か、モジュールに付いていれば全関数のもの
+     */
+    private final Map<String, Circuit> circuits;
 
     Module(final String version, final String description, final Object instance) {
         this.version = version;
         this.description = description;
         this.instance = instance;
+        this.limiter = ConcurrencyLimiter.of(instance.getClass());
+        this.adaptiveLimiter = AdaptiveConcurrencyLimiter.of(instance.getClass());
+        final Integer modulePriority = Invoker.getPriority(instance.getClass());
+        this.priority = (modulePriority == null ? Priority.NORMAL : modulePriority);
+        this.deadline = Invoker.getDeadline(instance.getClass());
 
-        // 関数実行時に java.lang.Class.getMethod() しようとすると、引数の型を指定する必要があるので先にマップしておく。
-        // よって、オーバーロードは捨てる
-        this.methods = new HashMap<>();
+        final Map<String, List<Invoker>> overloads = new LinkedHashMap<>();
+        final ModuleDispatcher dispatcher = findDispatcher(instance.getClass());
+        if (dispatcher != null) {
+            // 生成された呼び出し表があれば、全関数の注釈を調べずに済む
+            final String[] names = dispatcher.getMethodNames();
+            final Class<?>[][] parameterTypes = dispatcher.getParameterTypes();
+            // 関数ごとに getMethod で探さず、public な関数を 1 度だけ並べて引く
+            final Map<String, List<Method>> publicMethods = new HashMap<>();
+            for (final Method method : instance.getClass().getMethods()) {
+                if (method.isBridge() || method.isSynthetic()) {
+                    continue;
+                }
+                List<Method> list = publicMethods.get(method.getName());
+                if (list == null) {
+                    list = new ArrayList<>(1);
+                    publicMethods.put(method.getName(), list);
+                }
+                list.add(method);
+            }
+            for (int i = 0; i < names.length; i++) {
+                final Method method = find(publicMethods.get(names[i]), parameterTypes[i]);
+                if (method == null) {
+                    // 生成後にクラスが変わった
+                    throw new IllegalStateException("Dispatcher is out of date: " + dispatcher.getClass().getName() + " has no " + names[i]);
+                }
+                put(overloads, new Invoker(instance, method, dispatcher, i));
+            }
+        } else {
+            // 関数実行時に java.lang.Class.getMethod() しようとすると、引数の型を指定する必要があるので先にマップしておく
+            collect(overloads, instance);
+        }
+        this.invokers = index(overloads);
+        this.caches = createCaches(overloads);
+        this.rateLimit = TokenBucket.of(instance.getClass().getAnnotation(RateLimit.class));
+        this.rateLimits = createRateLimits(overloads);
+        this.circuits = createCircuits(overloads, instance.getClass().getAnnotation(CircuitBreaker.class));
+    }
+
+    private static void collect(final Map<String, List<Invoker>> overloads, final Object instance) {
         for (final Method method : instance.getClass().getMethods()) {
+            if (method.isBridge() || method.isSynthetic()) {
+                // 注釈が写されていても、元の関数と重なるだけ
+                continue;
+            }
             boolean use = false;
             for (final Annotation annotation : method.getAnnotations()) {
                 if (annotation instanceof ModuleMethod) {
@@ -40,10 +132,164 @@ final class Module {
             if (!use) {
                 continue;
             }
-            if (this.methods.containsKey(method.getName())) {
-                LOG.warning("Method overload is not supported: " + method.getName());
+            put(overloads, new Invoker(instance, method));
+        }
+    }
+
+    private static Method find(final List<Method> candidates, final Class<?>[] parameterTypes) {
+        if (candidates != null) {
+            for (final Method method : candidates) {
+                if (Arrays.equals(method.getParameterTypes(), parameterTypes)) {
+                    return method;
+                }
             }
-            this.methods.put(method.getName(), method);
+        }
+        return null;
+    }
+
+    private static void put(final Map<String, List<Invoker>> overloads, final Invoker invoker) {
+        List<Invoker> list = overloads.get(invoker.getName());
+        if (list == null) {
+            list = new ArrayList<>();
+            overloads.put(invoker.getName(), list);
+        }
+        list.add(invoker);
+    }
+
+    /**
+     * 関数名と引数の数で引けるようにする。
+     * どれを選ぶかが関数の並び順で変わるオーバーロードは受け付けない
+     * @param overloads 関数名ごとのオーバーロード
+     * @return 関数名ごとの、引数の数を添え字にしたオーバーロード
+     * @throws IllegalArgumentException 選び方の決まらないオーバーロードがある
+     */
+    private static Map<String, Invoker[][]> index(final Map<String, List<Invoker>> overloads) {
+        final Map<String, Invoker[][]> index = new HashMap<>();
+        for (final Map.Entry<String, List<Invoker>> entry : overloads.entrySet()) {
+            int maxArity = 0;
+            for (final Invoker invoker : entry.getValue()) {
+                maxArity = Math.max(maxArity, invoker.getArity());
+            }
+            final List<List<Invoker>> byArity = new ArrayList<>();
+            for (int i = 0; i <= maxArity; i++) {
+                byArity.add(new ArrayList<Invoker>());
+            }
+            for (final Invoker invoker : entry.getValue()) {
+                byArity.get(invoker.getArity()).add(invoker);
+            }
+            final Invoker[][] table = new Invoker[maxArity + 1][];
+            for (int i = 0; i <= maxArity; i++) {
+                final List<Invoker> candidates = byArity.get(i);
+                checkAmbiguity(candidates);
+                // 安定ソートなので、絞り込み具合が同じものは登録順
+                Collections.sort(candidates, SPECIFICITY_ORDER);
+                table[i] = candidates.toArray(new Invoker[candidates.size()]);
+            }
+            index.put(entry.getKey(), table);
+        }
+        return index;
+    }
+
+    /**
+     * 同じ名前と引数の数のオーバーロードに、選び方の決まらない組が無いか調べる
+     * @param candidates 同じ名前と引数の数のオーバーロード
+     * @throws IllegalArgumentException 選び方の決まらない組がある
+     */
+    private static void checkAmbiguity(final List<Invoker> candidates) {
+        for (int i = 0; i < candidates.size(); i++) {
+            for (int j = i + 1; j < candidates.size(); j++) {
+                if (candidates.get(i).isAmbiguousWith(candidates.get(j))) {
+                    throw new IllegalArgumentException("ambiguous overloads: " + candidates.get(i).getMethod() + " and " + candidates.get(j).getMethod());
+                }
+            }
+        }
+    }
+
+    /**
+     * 結果の覚え書きをつくる。
+     * オーバーロードは同じ覚え書きを使う。引数が違えばキーも違うので混ざらない
+     * @param overloads 関数名ごとのオーバーロード
+     * @return 関数名ごとの覚え書き
+     */
+    private static Map<String, ResultCache> createCaches(final Map<String, List<Invoker>> overloads) {
+        final Map<String, ResultCache> caches = new HashMap<>();
+        for (final Map.Entry<String, List<Invoker>> entry : overloads.entrySet()) {
+            for (final Invoker invoker : entry.getValue()) {
+                final Cached cached = invoker.getCached();
+                if (cached != null && !invoker.isStream()) {
+                    caches.put(entry.getKey(), ResultCache.of(cached));
+                    break;
+                }
+            }
+        }
+        return caches;
+    }
+
+    /**
+     * 頻度の制限をつくる。
+     * オーバーロードは同じ制限を使う
+     * @param overloads 関数名ごとのオーバーロード
+     * @return 関数名ごとの制限
+     */
+    private static Map<String, TokenBucket> createRateLimits(final Map<String, List<Invoker>> overloads) {
+        final Map<String, TokenBucket> rateLimits = new ConcurrentHashMap<>();
+        for (final Map.Entry<String, List<Invoker>> entry : overloads.entrySet()) {
+            for (final Invoker invoker : entry.getValue()) {
+                final TokenBucket bucket = TokenBucket.of(invoker.getRateLimit());
+                if (bucket != null) {
+                    rateLimits.put(entry.getKey(), bucket);
+                    break;
+                }
+            }
+        }
+        return rateLimits;
+    }
+
+    /**
+     * 遮断器をつくる。
+     * オーバーロードは同じ遮断器を使う。関数に付いた設定をモジュールに付いた設定より優先する
+     * @param overloads 関数名ごとのオーバーロード
+     * @param moduleCircuitBreaker モジュールに付いた設定。無ければ null
+     * @return 関数名ごとの遮断器
+     */
+    private static Map<String, Circuit> createCircuits(final Map<String, List<Invoker>> overloads, final CircuitBreaker moduleCircuitBreaker) {
+        final Map<String, Circuit> circuits = new HashMap<>();
+        for (final Map.Entry<String, List<Invoker>> entry : overloads.entrySet()) {
+            CircuitBreaker circuitBreaker = moduleCircuitBreaker;
+            for (final Invoker invoker : entry.getValue()) {
+                final CircuitBreaker methodCircuitBreaker = invoker.getCircuitBreaker();
+                if (methodCircuitBreaker != null) {
+                    circuitBreaker = methodCircuitBreaker;
+                    break;
+                }
+            }
+            if (circuitBreaker != null) {
+                circuits.put(entry.getKey(), Circuit.of(circuitBreaker));
+            }
+        }
+        return circuits;
+    }
+
+    /**
+     * ModuleMethodProcessor が生成した呼び出し表を探す
+     * @param moduleClass モジュールのクラス
+     * @return 呼び出し表。無ければ null
+     */
+    private static ModuleDispatcher findDispatcher(final Class<?> moduleClass) {
+        final Class<?> dispatcherClass;
+        try {
+            dispatcherClass = Class.forName(moduleClass.getName() + ModuleDispatcher.SUFFIX, true, moduleClass.getClassLoader());
+        } catch (final ClassNotFoundException | LinkageError e) {
+            return null;
+        }
+        if (!ModuleDispatcher.class.isAssignableFrom(dispatcherClass)) {
+            return null;
+        }
+        try {
+            return (ModuleDispatcher) dispatcherClass.getConstructor().newInstance();
+        } catch (final ReflectiveOperationException e) {
+            LOG.warning("Cannot use dispatcher " + dispatcherClass.getName() + ": " + e);
+            return null;
         }
     }
 
@@ -59,25 +305,184 @@ final class Module {
         return this.description;
     }
 
+    /**
+     * モジュール関数の優先度を返す
+     * @param invoker モジュール関数
+     * @return 関数に付いた優先度。無ければモジュール全体の既定
+     */
+    int getPriority(final Invoker invoker) {
+        return invoker.getPriority() != null ? invoker.getPriority() : this.priority;
+    }
+
+    /**
+     * @param methodName 関数名
+     * @return 結果の覚え書き。Cached が付いていなければ null
+     */
+    ResultCache getCache(final String methodName) {
+        return this.caches.get(methodName);
+    }
+
+    /**
+     * モジュール関数の期限を返す
+     * @param invoker モジュール関数
+     * @return 関数に付いた期限 (ミリ秒)。無ければモジュール全体の既定。それも無ければ null
+     */
+    Long getDeadline(final Invoker invoker) {
+        return invoker.getDeadline() != null ? invoker.getDeadline() : this.deadline;
+    }
+
+    /**
+     * 頻度の制限に従って呼び出しを数える。
+     * 関数、モジュール全体の順に調べ、モジュール全体で断ったら関数の分は戻す。
+     * 無い関数は数えない
+     * @param methodName 関数名
+     * @return 呼べるなら 0。呼べなければ次に呼べるまでの時間 (ナノ秒)
+     */
+    long tryAcquireRate(final String methodName) {
+        if (!this.invokers.containsKey(methodName)) {
+            return 0;
+        }
+        final TokenBucket bucket = this.rateLimits.get(methodName);
+        if (bucket != null) {
+            final long wait = bucket.tryAcquire();
+            if (wait > 0) {
+                return wait;
+            }
+        }
+        final TokenBucket moduleBucket = this.rateLimit;
+        final long wait = (moduleBucket == null ? 0 : moduleBucket.tryAcquire());
+        if (wait > 0 && bucket != null) {
+            // 関数の制限を余計に狭めない
+            bucket.refund();
+        }
+        return wait;
+    }
+
+    /**
+     * @param methodName 関数名。null ならモジュール全体
+     * @return 頻度の制限。無ければ null
+     */
+    TokenBucket getRateLimit(final String methodName) {
+        return methodName == null ? this.rateLimit : this.rateLimits.get(methodName);
+    }
+
+    /**
+     * 頻度の制限を差し替える
+     * @param methodName 関数名。null ならモジュール全体
+     * @param bucket 新しい制限。null なら制限しない
+     */
+    void setRateLimit(final String methodName, final TokenBucket bucket) {
+        if (methodName == null) {
+            this.rateLimit = bucket;
+        } else if (bucket == null) {
+            this.rateLimits.remove(methodName);
+        } else {
+            this.rateLimits.put(methodName, bucket);
+        }
+    }
+
+    /**
+     * @param methodName 関数名
+     * @return 遮断器。CircuitBreaker が付いていなければ null
+     */
+    Circuit getCircuit(final String methodName) {
+        return this.circuits.get(methodName);
+    }
+
+    /**
+     * @return モジュールのクラスに付いた遮断器の設定。無ければ null
+     */
+    CircuitBreaker getCircuitBreaker() {
+        return this.instance.getClass().getAnnotation(CircuitBreaker.class);
+    }
+
+    /**
+     * @return モジュール全体の同時実行数の制限。無ければ null
+     */
+    ConcurrencyLimiter getLimiter() {
+        return this.limiter;
+    }
+
+    /**
+     * @return モジュール全体の、応答時間で調整する同時実行数の制限。無ければ null
+     */
+    AdaptiveConcurrencyLimiter getAdaptiveLimiter() {
+        return this.adaptiveLimiter;
+    }
+
+    /**
+     * @return 全モジュール関数の呼び出し口。オーバーロードも含む
+     */
+    List<Invoker> getInvokers() {
+        final List<Invoker> invokers = new ArrayList<>();
+        for (final Invoker[][] table : this.invokers.values()) {
+            for (final Invoker[] candidates : table) {
+                invokers.addAll(Arrays.asList(candidates));
+            }
+        }
+        return invokers;
+    }
+
+    /**
+     * @return 全モジュール関数。オーバーロードも含む
+     */
     List<Method> getMethods() {
-        return new ArrayList<>(this.methods.values());
+        final List<Method> methods = new ArrayList<>();
+        for (final Invoker invoker : getInvokers()) {
+            methods.add(invoker.getMethod());
+        }
+        return methods;
+    }
+
+    /**
+     * 引数に合うモジュール関数の呼び出し口を返す
+     * @param methodName 関数名
+     * @param args JSON の引数。Invoker.coerce を参照
+     * @return 呼び出し口。そんな関数無い場合は null
+     * @throws IllegalArgumentException 関数はあるが引数に合うオーバーロードが無い
+     */
+    Invoker getInvoker(final String methodName, final Object[] args) {
+        final Invoker[][] table = this.invokers.get(methodName);
+        if (table == null) {
+            return null;
+        }
+        final int arity = (args == null ? 0 : args.length);
+        final Invoker[] candidates = (arity < table.length ? table[arity] : null);
+        if (candidates == null || candidates.length == 0) {
+            throw new IllegalArgumentException("function " + methodName + " does not take " + arity + " arguments");
+        } else if (candidates.length == 1) {
+            // 型の確認は呼び出し時に任せる
+            return candidates[0];
+        }
+        for (final Invoker candidate : candidates) {
+            if (candidate.accepts(args)) {
+                return candidate;
+            }
+        }
+        throw new IllegalArgumentException("no overload of function " + methodName + " accepts the arguments");
     }
 
     /**
      * モジュール関数の返り値の型を返す
      * @param methodName 関数名
-     * @return 返り値の型。そんな関数無い場合は null
+     * @return 返り値の型。オーバーロードがあれば最も引数の少ないもの。そんな関数無い場合は null
      */
     Class<?> getReturnType(final String methodName) {
-        final Method method = this.methods.get(methodName);
-        if (method == null) {
+        final Invoker[][] table = this.invokers.get(methodName);
+        if (table == null) {
             return null;
         }
-        return method.getReturnType();
+        for (final Invoker[] candidates : table) {
+            if (candidates.length > 0) {
+                return candidates[0].getReturnType();
+            }
+        }
+        return null;
     }
 
-    Object invoke(final String methodName, final Object[] args) throws IllegalAccessException, IllegalArgumentException, InvocationTargetException {
-        return this.methods.get(methodName).invoke(this.instance, args);
+    Object invoke(final String methodName, final Object[] args) throws Exception {
+        final Invoker invoker = getInvoker(methodName, args);
+        return invoker.invoke(invoker.coerce(args));
     }
 
 }
@@ -0,0 +1,36 @@
+package jp.realglobe.sugo.actor;
+
+/**
+ * モジュール関数の呼び出し表。
+ * ModuleMethodProcessor がモジュールのクラスごとに生成する。
+ * 生成されたクラスがあれば Actor.addModule はリフレクションで関数を探す代わりにこれを使う
+ */
+public interface ModuleDispatcher {
+
+    /**
+     * 生成クラス名の接尾辞。
+     * モジュールのクラスのバイナリ名に付けたものが生成クラス名になる
+     */
+    String SUFFIX = "$$ModuleDispatcher";
+
+    /**
+     * @return モジュール関数の名前。添え字は invoke の index に対応する
+     */
+    String[] getMethodNames();
+
+    /**
+     * @return モジュール関数の引数の型。添え字は invoke の index に対応する
+     */
+    Class<?>[][] getParameterTypes();
+
+    /**
+     * モジュール関数を呼ぶ
+     * @param instance モジュール
+     * @param index 関数の番号
+     * @param args Invoker.coerce で引数の型に合わせた引数
+     * @return 返り値。返り値の型が void なら null
+     * @throws Throwable モジュール関数が投げたもの
+     */
+    Object invoke(Object instance, int index, Object[] args) throws Throwable;
+
+}
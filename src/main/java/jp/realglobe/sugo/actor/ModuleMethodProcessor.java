@@ -0,0 +1,221 @@
+package jp.realglobe.sugo.actor;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.NestingKind;
+import javax.lang.model.element.PackageElement;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.type.PrimitiveType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.ElementFilter;
+import javax.tools.Diagnostic;
+
+/**
+ * ModuleMethod の注釈処理器。
+ * モジュール関数を持つクラスごとに、switch で関数を呼び分ける ModuleDispatcher の実装を生成する。
+ * 生成クラスからアクセスできないクラス (private なクラスやローカルクラス) は飛ばし、実行時のリフレクションに任せる
+ */
+public class ModuleMethodProcessor extends AbstractProcessor {
+
+    @Override
+    public Set<String> getSupportedAnnotationTypes() {
+        return Collections.singleton(ModuleMethod.class.getName());
+    }
+
+    @Override
+    public SourceVersion getSupportedSourceVersion() {
+        return SourceVersion.latestSupported();
+    }
+
+    @Override
+    public boolean process(final Set<? extends TypeElement> annotations, final RoundEnvironment roundEnv) {
+        final Set<TypeElement> types = new LinkedHashSet<>();
+        for (final Element element : roundEnv.getElementsAnnotatedWith(ModuleMethod.class)) {
+            if (element.getKind() == ElementKind.METHOD && element.getEnclosingElement() instanceof TypeElement) {
+                types.add((TypeElement) element.getEnclosingElement());
+            }
+        }
+        for (final TypeElement type : types) {
+            if (!isAccessible(type)) {
+                continue;
+            }
+            try {
+                generate(type);
+            } catch (final IOException e) {
+                this.processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, "Cannot generate dispatcher: " + e, type);
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 同じパッケージの生成クラスから参照できるか
+     * @param type クラス
+     * @return 参照できるなら true
+     */
+    private static boolean isAccessible(final TypeElement type) {
+        if (type.getKind() != ElementKind.CLASS || type.getModifiers().contains(Modifier.ABSTRACT)) {
+            return false;
+        }
+        Element element = type;
+        while (element instanceof TypeElement) {
+            final TypeElement current = (TypeElement) element;
+            if (current.getModifiers().contains(Modifier.PRIVATE)) {
+                return false;
+            }
+            if (current.getNestingKind() == NestingKind.LOCAL || current.getNestingKind() == NestingKind.ANONYMOUS) {
+                return false;
+            }
+            element = current.getEnclosingElement();
+        }
+        return true;
+    }
+
+    /**
+     * モジュール関数を集める。
+     * java.lang.Class.getMethods() と同じく、継承したものも含めた public な関数が対象
+     * @param type クラス
+     * @return モジュール関数
+     */
+    private List<ExecutableElement> collectMethods(final TypeElement type) {
+        final List<ExecutableElement> methods = new ArrayList<>();
+        for (final ExecutableElement method : ElementFilter.methodsIn(this.processingEnv.getElementUtils().getAllMembers(type))) {
+            if (method.getModifiers().contains(Modifier.PUBLIC) && method.getAnnotation(ModuleMethod.class) != null) {
+                methods.add(method);
+            }
+        }
+        return methods;
+    }
+
+    private void generate(final TypeElement type) throws IOException {
+        final PackageElement packageElement = this.processingEnv.getElementUtils().getPackageOf(type);
+        final String packageName = packageElement.isUnnamed() ? "" : packageElement.getQualifiedName().toString();
+        final String binaryName = this.processingEnv.getElementUtils().getBinaryName(type).toString();
+        final String simpleName = (packageName.isEmpty() ? binaryName : binaryName.substring(packageName.length() + 1)) + ModuleDispatcher.SUFFIX;
+        final String qualifiedName = packageName.isEmpty() ? simpleName : packageName + "." + simpleName;
+        final String typeName = this.processingEnv.getTypeUtils().erasure(type.asType()).toString();
+        final List<ExecutableElement> methods = collectMethods(type);
+
+        try (final Writer writer = this.processingEnv.getFiler().createSourceFile(qualifiedName, type).openWriter();
+                final PrintWriter out = new PrintWriter(writer)) {
+            if (!packageName.isEmpty()) {
+                out.println("package " + packageName + ";");
+                out.println();
+            }
+            out.println("/**");
+            // 生成ソースの文字コードは利用側の設定次第なので ASCII だけで書く
+            out.println(" * Dispatcher for " + typeName + ". Generated by " + ModuleMethodProcessor.class.getName() + ".");
+            out.println(" */");
+            out.println("public final class " + simpleName + " implements " + ModuleDispatcher.class.getName() + " {");
+            out.println();
+
+            out.println("    private static final String[] NAMES = {");
+            for (final ExecutableElement method : methods) {
+                out.println("        \"" + method.getSimpleName() + "\",");
+            }
+            out.println("    };");
+            out.println();
+
+            out.println("    @Override");
+            out.println("    public String[] getMethodNames() {");
+            out.println("        return NAMES.clone();");
+            out.println("    }");
+            out.println();
+
+            out.println("    @Override");
+            out.println("    public Class<?>[][] getParameterTypes() {");
+            out.println("        return new Class<?>[][] {");
+            for (final ExecutableElement method : methods) {
+                final StringBuilder line = new StringBuilder("            { ");
+                for (final VariableElement parameter : method.getParameters()) {
+                    line.append(erasure(parameter.asType())).append(".class, ");
+                }
+                line.append("},");
+                out.println(line);
+            }
+            out.println("        };");
+            out.println("    }");
+            out.println();
+
+            out.println("    @Override");
+            out.println("    @SuppressWarnings({ \"unchecked\", \"rawtypes\" })");
+            out.println("    public Object invoke(final Object instance, final int index, final Object[] args) throws Throwable {");
+            out.println("        switch (index) {");
+            for (int i = 0; i < methods.size(); i++) {
+                final ExecutableElement method = methods.get(i);
+                final List<? extends VariableElement> parameters = method.getParameters();
+                out.println("        case " + i + ": {");
+                if (parameters.isEmpty()) {
+                    out.println("            if (args != null && args.length != 0) {");
+                } else {
+                    out.println("            if (args == null || args.length != " + parameters.size() + ") {");
+                }
+                out.println("                throw new IllegalArgumentException(\"wrong number of arguments\");");
+                out.println("            }");
+
+                final StringBuilder call = new StringBuilder();
+                if (method.getModifiers().contains(Modifier.STATIC)) {
+                    call.append(typeName);
+                } else {
+                    call.append("((").append(typeName).append(") instance)");
+                }
+                call.append(".").append(method.getSimpleName()).append("(");
+                for (int j = 0; j < parameters.size(); j++) {
+                    if (j > 0) {
+                        call.append(", ");
+                    }
+                    call.append(cast(parameters.get(j).asType(), "args[" + j + "]"));
+                }
+                call.append(")");
+                if (method.getReturnType().getKind() == TypeKind.VOID) {
+                    out.println("            " + call + ";");
+                    out.println("            return null;");
+                } else {
+                    out.println("            return " + call + ";");
+                }
+                out.println("        }");
+            }
+            out.println("        default:");
+            out.println("            throw new IllegalArgumentException(\"no such method: \" + index);");
+            out.println("        }");
+            out.println("    }");
+            out.println();
+            out.println("}");
+        }
+    }
+
+    private String erasure(final TypeMirror type) {
+        return this.processingEnv.getTypeUtils().erasure(type).toString();
+    }
+
+    /**
+     * 引数を型変換する式をつくる。
+     * 引数は Invoker.coerce で合わせてあるので、プリミティブ型はラッパー型にキャストするだけ
+     * @param type 引数の型
+     * @param expression 変換前の式
+     * @return 変換後の式
+     */
+    private String cast(final TypeMirror type, final String expression) {
+        if (type.getKind().isPrimitive()) {
+            return "(" + this.processingEnv.getTypeUtils().boxedClass((PrimitiveType) type).getQualifiedName() + ") " + expression;
+        }
+        return "(" + erasure(type) + ") " + expression;
+    }
+
+}
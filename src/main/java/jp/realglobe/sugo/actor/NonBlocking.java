@@ -0,0 +1,28 @@
+package jp.realglobe.sugo.actor;
+
+import static java.lang.annotation.ElementType.METHOD;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * すぐに終わり、待つことの無いモジュール関数であることを示す。
+ * 実行器を通さずに、実行依頼を受け取ったスレッドでそのまま実行して応答する。
+ * 実行依頼を受け取るスレッドは通信にも使うので、長く掛かると他の実行依頼や応答が滞る。
+ * そのため、warnAfter を超えて実行中なら警告を出す。
+ * 同時実行数の制限の空きを待った場合は、空きを返したスレッドでは実行せずに実行器に回す。
+ * 少しずつ返すモジュール関数や、CompletionStage でない Future を返すモジュール関数には効かない
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target(METHOD)
+@Documented
+public @interface NonBlocking {
+
+    /**
+     * @return 警告を出すまでの時間 (ミリ秒)
+     */
+    long warnAfter() default 50;
+
+}
@@ -0,0 +1,33 @@
+package jp.realglobe.sugo.actor;
+
+import static java.lang.annotation.ElementType.METHOD;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * 届いた順に実行するモジュール関数であることを示す。
+ * 指定した引数の値が同じ実行依頼は 1 つずつ届いた順に、違う値の実行依頼は並行して実行する。
+ * CompletionStage や少しずつ返す結果は、結果が出終わるまでを 1 つの実行とみなす。
+ * 引数を指定しなければ、Ordered の付いた同じモジュールの関数全体で順番を守る。
+ * MaxConcurrency などの同時実行数の制限の空きは順番が来てから得るので、後ろに並んでいる実行依頼は空きを占有しない。
+ * 順番を守るため NonBlocking は効かない
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target(METHOD)
+@Documented
+public @interface Ordered {
+
+    /**
+     * モジュール全体で順番を守ることを示す値
+     */
+    int MODULE = -1;
+
+    /**
+     * @return 順番を守る単位にする引数の位置 (0 始まり)。MODULE ならモジュール全体
+     */
+    int value() default MODULE;
+
+}
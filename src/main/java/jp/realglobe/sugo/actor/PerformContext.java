@@ -0,0 +1,129 @@
+package jp.realglobe.sugo.actor;
+
+import java.util.concurrent.CancellationException;
+
+/**
+ * 実行中のモジュール関数の情報。
+ * モジュール関数の中で current を呼ぶと取り出せて、期限切れや呼び出し元の取り消しで中断されたかを調べられる。
+ * 割り込みに応じない長い計算は、ときどき isCancelled を見て打ち切るとよい。
+ * 長く掛かる処理は progress で途中経過を呼び出し元に知らせられる。
+ * モジュール関数を呼んだスレッドでだけ取り出せるが、取り出したものは他のスレッドから使ってもよい
+ */
+public final class PerformContext {
+
+    private static final ThreadLocal<PerformContext> CURRENT = new ThreadLocal<>();
+
+    private final String module;
+    private final String method;
+    private final String pid;
+    private final Invocation invocation;
+    private final ProgressReporter progress;
+
+    /**
+     * 作成する
+     * @param module モジュール名
+     * @param method 関数名
+     * @param pid 実行 ID
+     * @param invocation 実行
+     * @param progress 途中経過の送り手
+     */
+    PerformContext(final String module, final String method, final String pid, final Invocation invocation, final ProgressReporter progress) {
+        this.module = module;
+        this.method = method;
+        this.pid = pid;
+        this.invocation = invocation;
+        this.progress = progress;
+    }
+
+    /**
+     * @return 実行中のモジュール関数の情報。モジュール関数の外なら null
+     */
+    public static PerformContext current() {
+        return CURRENT.get();
+    }
+
+    /**
+     * このスレッドで実行中にする
+     * @return それまでの情報。戻すときに exit に渡す
+     */
+    PerformContext enter() {
+        final PerformContext previous = CURRENT.get();
+        CURRENT.set(this);
+        return previous;
+    }
+
+    /**
+     * 実行を終える
+     * @param previous enter が返した情報
+     */
+    static void exit(final PerformContext previous) {
+        if (previous == null) {
+            CURRENT.remove();
+        } else {
+            CURRENT.set(previous);
+        }
+    }
+
+    /**
+     * @return モジュール名
+     */
+    public String getModule() {
+        return this.module;
+    }
+
+    /**
+     * @return 関数名
+     */
+    public String getMethod() {
+        return this.method;
+    }
+
+    /**
+     * @return 実行 ID
+     */
+    public String getPid() {
+        return this.pid;
+    }
+
+    /**
+     * @return 実行
+     */
+    Invocation getInvocation() {
+        return this.invocation;
+    }
+
+    /**
+     * @return 中断されたなら true。結果を返しても誰も受け取らない
+     */
+    public boolean isCancelled() {
+        return this.invocation.isCancelled();
+    }
+
+    /**
+     * 途中経過を知らせる。
+     * PIPE で実行 ID を付けて送る。短い間に何度も呼んだら最新のものだけを間を空けて送る。
+     * 応答した後は何もしない
+     * @param progress JSON 化可能な途中経過。進んだ割合など
+     */
+    public void progress(final Object progress) {
+        this.progress.report(progress);
+    }
+
+    /**
+     * @return 途中経過の送り手
+     */
+    ProgressReporter getProgressReporter() {
+        return this.progress;
+    }
+
+    /**
+     * 中断されていたら例外を投げる
+     * @throws CancellationException 中断された
+     */
+    public void throwIfCancelled() {
+        if (isCancelled()) {
+            throw new CancellationException(this.module + "." + this.method + " (" + this.pid + ") was cancelled");
+        }
+    }
+
+}
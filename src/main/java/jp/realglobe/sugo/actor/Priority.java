@@ -0,0 +1,42 @@
+package jp.realglobe.sugo.actor;
+
+import static java.lang.annotation.ElementType.METHOD;
+import static java.lang.annotation.ElementType.TYPE;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * モジュール関数の実行の優先度を示す。
+ * 関数に付ければその関数の、モジュールのクラスに付ければモジュール全体の既定になる。
+ * 実行依頼に priority があればそちらを優先する。
+ * 待ち行列では優先度の高いものから実行するが、長く待ったものは優先度を上げて扱う
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target({ METHOD, TYPE })
+@Documented
+public @interface Priority {
+
+    /**
+     * 最も低い優先度
+     */
+    int MIN = 0;
+
+    /**
+     * 普通の優先度
+     */
+    int NORMAL = 5;
+
+    /**
+     * 最も高い優先度
+     */
+    int MAX = 9;
+
+    /**
+     * @return 優先度。MIN 以上 MAX 以下で、大きいほど先に実行する
+     */
+    int value();
+
+}
@@ -0,0 +1,526 @@
+package jp.realglobe.sugo.actor;
+
+import java.util.AbstractQueue;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 優先度ごとに分けた待ち行列。
+ * 優先度の高いものから取り出すが、待った時間に応じて優先度を上げるので低い優先度のものも飢えない。
+ * 同じ優先度の中では先に入れたものから取り出す。
+ * 待ち時間の目標を決めれば CoDel のように、待ち行列が空にならない状態が interval 続いたら
+ * target より、そうでなければ interval より長く待ったものを取り出すときに捨てる。
+ * 捨てたものは DropHandler に渡す。
+ * adaptiveLifo なら、待ち行列が空にならない状態が続いている間は新しいものから取り出す
+ */
+final class PriorityTaskQueue extends AbstractQueue<Runnable> implements BlockingQueue<Runnable> {
+
+    /**
+     * この時間 (ミリ秒) 待つごとに優先度を 1 つ上げて扱う
+     */
+    static final long AGING_MILLIS = 1_000;
+
+    /**
+     * 優先度を持つ処理
+     */
+    interface Prioritized {
+
+        /**
+         * @return 優先度。Priority.MIN 以上 Priority.MAX 以下
+         */
+        int getPriority();
+
+    }
+
+    /**
+     * 待ち過ぎで捨てたものの受け取り口
+     */
+    interface DropHandler {
+
+        /**
+         * 捨てたものを受け取る。待ち行列のロックの外で呼ぶ
+         * @param task 捨てたもの
+         */
+        void dropped(Runnable task);
+
+    }
+
+    private static final class Node {
+
+        private final Runnable task;
+        private final long enqueuedAt;
+
+        Node(final Runnable task, final long enqueuedAt) {
+            this.task = task;
+            this.enqueuedAt = enqueuedAt;
+        }
+
+    }
+
+    private final int capacity;
+    private final long agingNanos;
+
+    /**
+     * 優先度を添え字にした待ち行列
+     */
+    private final ArrayDeque<Node>[] levels;
+    private int count;
+
+    private final ReentrantLock lock;
+    private final Condition notEmpty;
+
+    /**
+     * 待ち時間の目標 (ナノ秒)。0 なら捨てない
+     */
+    private final long targetNanos;
+
+    /**
+     * 混んでいると判断するまでの時間 (ナノ秒)
+     */
+    private final long intervalNanos;
+    private final boolean adaptiveLifo;
+    private final DropHandler dropHandler;
+
+    /**
+     * 最後に空だった時刻
+     */
+    private long lastEmpty;
+
+    /**
+     * 捨てて、まだ DropHandler に渡していないもの
+     */
+    private final List<Runnable> dropped;
+    private long droppedCount;
+
+    /**
+     * 作成する
+     * @param capacity 全優先度を合わせた長さの上限
+     */
+    PriorityTaskQueue(final int capacity) {
+        this(capacity, AGING_MILLIS);
+    }
+
+    /**
+     * 作成する
+     * @param capacity 全優先度を合わせた長さの上限
+     * @param agingMillis この時間 (ミリ秒) 待つごとに優先度を 1 つ上げて扱う
+     */
+    PriorityTaskQueue(final int capacity, final long agingMillis) {
+        this(capacity, agingMillis, 0, 0, false, null);
+    }
+
+    /**
+     * 作成する
+     * @param capacity 全優先度を合わせた長さの上限
+     * @param agingMillis この時間 (ミリ秒) 待つごとに優先度を 1 つ上げて扱う
+     * @param targetMillis 混んでいるときの待ち時間の目標 (ミリ秒)。0 なら捨てない
+     * @param intervalMillis 空にならない状態がこの時間 (ミリ秒) 続いたら混んでいるとみなす。
+     *            混んでいないときはこれが待ち時間の上限になる
+     * @param adaptiveLifo 混んでいる間は新しいものから取り出すなら true
+     * @param dropHandler 捨てたものの受け取り口。捨てないなら null でもよい
+     */
+    @SuppressWarnings("unchecked")
+    PriorityTaskQueue(final int capacity, final long agingMillis, final long targetMillis, final long intervalMillis, final boolean adaptiveLifo, final DropHandler dropHandler) {
+        this.capacity = capacity;
+        this.agingNanos = TimeUnit.MILLISECONDS.toNanos(agingMillis);
+        this.levels = new ArrayDeque[Priority.MAX - Priority.MIN + 1];
+        for (int i = 0; i < this.levels.length; i++) {
+            this.levels[i] = new ArrayDeque<>();
+        }
+        this.lock = new ReentrantLock();
+        this.notEmpty = this.lock.newCondition();
+        this.targetNanos = TimeUnit.MILLISECONDS.toNanos(targetMillis);
+        this.intervalNanos = TimeUnit.MILLISECONDS.toNanos(intervalMillis);
+        this.adaptiveLifo = adaptiveLifo;
+        this.dropHandler = dropHandler;
+        this.lastEmpty = System.nanoTime();
+        this.dropped = new ArrayList<>();
+    }
+
+    /**
+     * 優先度を範囲に収める
+     * @param priority 優先度
+     * @return Priority.MIN 以上 Priority.MAX 以下の優先度
+     */
+    static int clamp(final int priority) {
+        return Math.max(Priority.MIN, Math.min(Priority.MAX, priority));
+    }
+
+    private static int getPriority(final Runnable task) {
+        return task instanceof Prioritized ? clamp(((Prioritized) task).getPriority()) : Priority.NORMAL;
+    }
+
+    @Override
+    public boolean offer(final Runnable task) {
+        if (task == null) {
+            throw new NullPointerException();
+        }
+        this.lock.lock();
+        try {
+            if (this.count >= this.capacity) {
+                return false;
+            }
+            final long now = System.nanoTime();
+            if (this.count == 0) {
+                this.lastEmpty = now;
+            }
+            this.levels[getPriority(task) - Priority.MIN].addLast(new Node(task, now));
+            this.count++;
+            this.notEmpty.signal();
+            return true;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean offer(final Runnable task, final long timeout, final TimeUnit unit) {
+        // 実行依頼は待たせずに断るので、空きを待たない
+        return offer(task);
+    }
+
+    @Override
+    public void put(final Runnable task) {
+        if (!offer(task)) {
+            throw new IllegalStateException("Queue full");
+        }
+    }
+
+    /**
+     * 次に取り出すものがある優先度を返す。
+     * 先頭の待ち時間を加味した優先度が最も高いもの。同じなら元の優先度が高いもの
+     * @return 優先度の添え字。空なら -1
+     */
+    private int selectLevel() {
+        final long now = System.nanoTime();
+        int selected = -1;
+        long best = Long.MIN_VALUE;
+        for (int i = this.levels.length - 1; i >= 0; i--) {
+            final Node head = this.levels[i].peekFirst();
+            if (head == null) {
+                continue;
+            }
+            final long score = i + (now - head.enqueuedAt) / this.agingNanos;
+            if (score > best) {
+                best = score;
+                selected = i;
+            }
+        }
+        return selected;
+    }
+
+    /**
+     * @return 最も優先度の高いものがある優先度の添え字。空なら -1
+     */
+    private int selectHighestLevel() {
+        for (int i = this.levels.length - 1; i >= 0; i--) {
+            if (!this.levels[i].isEmpty()) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @param now 今の時刻
+     * @return 空にならない状態が interval 続いていたら true
+     */
+    private boolean isOverloaded(final long now) {
+        return this.intervalNanos > 0 && this.count > 0 && now - this.lastEmpty > this.intervalNanos;
+    }
+
+    /**
+     * 次のものを取り出す。待ち過ぎたものは捨てて dropped に入れる
+     * @return 取り出したもの。空なら null
+     */
+    private Runnable dequeue() {
+        final long now = System.nanoTime();
+        while (this.count > 0) {
+            final boolean overloaded = isOverloaded(now);
+            final boolean lifo = overloaded && this.adaptiveLifo;
+            final ArrayDeque<Node> level = this.levels[lifo ? selectHighestLevel() : selectLevel()];
+            final Node node = (lifo ? level.pollLast() : level.pollFirst());
+            this.count--;
+            if (this.count == 0) {
+                this.lastEmpty = now;
+            }
+            if (this.targetNanos > 0 && now - node.enqueuedAt > (overloaded ? this.targetNanos : this.intervalNanos)) {
+                // 呼び出し元はもう待っていなさそう
+                this.dropped.add(node.task);
+                this.droppedCount++;
+                continue;
+            }
+            return node.task;
+        }
+        return null;
+    }
+
+    /**
+     * 捨てたものを取り出す。ロックを持って呼ぶ
+     * @return 捨てたもの。無ければ null
+     */
+    private List<Runnable> takeDropped() {
+        if (this.dropped.isEmpty()) {
+            return null;
+        }
+        final List<Runnable> dropped0 = new ArrayList<>(this.dropped);
+        this.dropped.clear();
+        return dropped0;
+    }
+
+    /**
+     * 捨てたものを DropHandler に渡す。ロックの外で呼ぶ
+     * @param dropped0 捨てたもの
+     */
+    private void handleDropped(final List<Runnable> dropped0) {
+        if (dropped0 == null || this.dropHandler == null) {
+            return;
+        }
+        for (final Runnable task : dropped0) {
+            this.dropHandler.dropped(task);
+        }
+    }
+
+    @Override
+    public Runnable poll() {
+        final Runnable task;
+        final List<Runnable> dropped0;
+        this.lock.lock();
+        try {
+            task = dequeue();
+            dropped0 = takeDropped();
+        } finally {
+            this.lock.unlock();
+        }
+        handleDropped(dropped0);
+        return task;
+    }
+
+    @Override
+    public Runnable poll(final long timeout, final TimeUnit unit) throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        while (true) {
+            Runnable task = null;
+            List<Runnable> dropped0 = null;
+            this.lock.lockInterruptibly();
+            try {
+                while (this.count == 0) {
+                    if (nanos <= 0) {
+                        return null;
+                    }
+                    nanos = this.notEmpty.awaitNanos(nanos);
+                }
+                task = dequeue();
+            } finally {
+                dropped0 = takeDropped();
+                this.lock.unlock();
+            }
+            // 捨てたものは次を待つ前に断る
+            handleDropped(dropped0);
+            if (task != null) {
+                return task;
+            }
+        }
+    }
+
+    @Override
+    public Runnable take() throws InterruptedException {
+        while (true) {
+            Runnable task = null;
+            List<Runnable> dropped0 = null;
+            this.lock.lockInterruptibly();
+            try {
+                while (this.count == 0) {
+                    this.notEmpty.await();
+                }
+                task = dequeue();
+            } finally {
+                dropped0 = takeDropped();
+                this.lock.unlock();
+            }
+            // 捨てたものは次を待つ前に断る
+            handleDropped(dropped0);
+            if (task != null) {
+                return task;
+            }
+        }
+    }
+
+    @Override
+    public Runnable peek() {
+        this.lock.lock();
+        try {
+            final int level = selectLevel();
+            return level < 0 ? null : this.levels[level].peekFirst().task;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * 最も優先度の低いものの中で最も古いものを取り出す。
+     * 溢れたときに追い出すのに使う
+     * @return 取り出したもの。空なら null
+     */
+    Runnable evict() {
+        this.lock.lock();
+        try {
+            for (final ArrayDeque<Node> level : this.levels) {
+                final Node node = level.pollFirst();
+                if (node != null) {
+                    this.count--;
+                    if (this.count == 0) {
+                        this.lastEmpty = System.nanoTime();
+                    }
+                    return node.task;
+                }
+            }
+            return null;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean remove(final Object o) {
+        this.lock.lock();
+        try {
+            for (final ArrayDeque<Node> level : this.levels) {
+                final Iterator<Node> iterator = level.iterator();
+                while (iterator.hasNext()) {
+                    if (iterator.next().task.equals(o)) {
+                        iterator.remove();
+                        this.count--;
+                        return true;
+                    }
+                }
+            }
+            return false;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    @Override
+    public int size() {
+        this.lock.lock();
+        try {
+            return this.count;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * @param priority 優先度
+     * @return その優先度で待っている数
+     */
+    int size(final int priority) {
+        this.lock.lock();
+        try {
+            return this.levels[clamp(priority) - Priority.MIN].size();
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * @return これまでに待ち過ぎで捨てた数
+     */
+    long getDroppedCount() {
+        this.lock.lock();
+        try {
+            return this.droppedCount;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * @return 空にならない状態が interval 続いていたら true
+     */
+    boolean isOverloaded() {
+        this.lock.lock();
+        try {
+            return isOverloaded(System.nanoTime());
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    @Override
+    public int remainingCapacity() {
+        this.lock.lock();
+        try {
+            return this.capacity - this.count;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    @Override
+    public int drainTo(final Collection<? super Runnable> c) {
+        return drainTo(c, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public int drainTo(final Collection<? super Runnable> c, final int maxElements) {
+        int n = 0;
+        final List<Runnable> dropped0;
+        this.lock.lock();
+        try {
+            while (n < maxElements) {
+                final Runnable task = dequeue();
+                if (task == null) {
+                    break;
+                }
+                c.add(task);
+                n++;
+            }
+            dropped0 = takeDropped();
+        } finally {
+            this.lock.unlock();
+        }
+        handleDropped(dropped0);
+        return n;
+    }
+
+    /**
+     * その時点の中身を取り出す順に関係なく返す。
+     * 返した Iterator では取り除けない
+     */
+    @Override
+    public Iterator<Runnable> iterator() {
+        final List<Runnable> snapshot = new ArrayList<>();
+        this.lock.lock();
+        try {
+            for (final ArrayDeque<Node> level : this.levels) {
+                for (final Node node : level) {
+                    snapshot.add(node.task);
+                }
+            }
+        } finally {
+            this.lock.unlock();
+        }
+        final Iterator<Runnable> iterator = snapshot.iterator();
+        return new Iterator<Runnable>() {
+            @Override
+            public boolean hasNext() {
+                return iterator.hasNext();
+            }
+
+            @Override
+            public Runnable next() {
+                return iterator.next();
+            }
+        };
+    }
+
+}
@@ -0,0 +1,121 @@
+package jp.realglobe.sugo.actor;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 途中経過の送り手。
+ * 前に送ってから間隔が空いていればすぐ送り、空いていなければ最新の値だけを覚えておいて間隔が空いたときに送る。
+ * そのため何度報告しても、間隔ごとに高々 1 回しか送らない。
+ * 応答した後は送らない
+ */
+final class ProgressReporter {
+
+    /**
+     * 送り先
+     */
+    interface Sender {
+
+        /**
+         * 送る
+         * @param seq 何番目か。0 から
+         * @param progress 途中経過
+         */
+        void send(int seq, Object progress);
+
+    }
+
+    private final Invocation invocation;
+    private final long intervalNanos;
+    private final Sender sender;
+
+    private int seq;
+    private long lastSent;
+
+    /**
+     * 間隔が空くのを待っている最新の値
+     */
+    private Object pending;
+
+    /**
+     * 待っている値を送る予定。無ければ null
+     */
+    private HashedWheelTimer.Timeout flush;
+    private long coalesced;
+
+    /**
+     * 作成する
+     * @param invocation 実行
+     * @param intervalMillis 送る間隔 (ミリ秒)
+     * @param sender 送り先
+     */
+    ProgressReporter(final Invocation invocation, final long intervalMillis, final Sender sender) {
+        this.invocation = invocation;
+        this.intervalNanos = TimeUnit.MILLISECONDS.toNanos(intervalMillis);
+        this.sender = sender;
+    }
+
+    /**
+     * 途中経過を報告する
+     * @param progress JSON 化可能な途中経過
+     */
+    void report(final Object progress) {
+        if (this.invocation.isDone()) {
+            return;
+        }
+        final long now = System.nanoTime();
+        final int seq0;
+        synchronized (this) {
+            if (this.flush != null) {
+                // 送る予定の値を差し替える
+                this.pending = progress;
+                this.coalesced++;
+                return;
+            }
+            final long elapsed = now - this.lastSent;
+            if (this.seq > 0 && elapsed < this.intervalNanos) {
+                this.pending = progress;
+                this.flush = HashedWheelTimer.SHARED.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        flush();
+                    }
+                }, this.intervalNanos - elapsed, TimeUnit.NANOSECONDS);
+                return;
+            }
+            this.lastSent = now;
+            seq0 = this.seq++;
+        }
+        this.sender.send(seq0, progress);
+    }
+
+    private void flush() {
+        final Object progress;
+        final int seq0;
+        synchronized (this) {
+            progress = this.pending;
+            this.pending = null;
+            this.flush = null;
+            if (this.invocation.isDone()) {
+                return;
+            }
+            this.lastSent = System.nanoTime();
+            seq0 = this.seq++;
+        }
+        this.sender.send(seq0, progress);
+    }
+
+    /**
+     * @return 送った数
+     */
+    synchronized int getSentCount() {
+        return this.seq;
+    }
+
+    /**
+     * @return 後の値に差し替えて送らなかった数
+     */
+    synchronized long getCoalescedCount() {
+        return this.coalesced;
+    }
+
+}
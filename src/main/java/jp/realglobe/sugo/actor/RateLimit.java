@@ -0,0 +1,31 @@
+package jp.realglobe.sugo.actor;
+
+import static java.lang.annotation.ElementType.METHOD;
+import static java.lang.annotation.ElementType.TYPE;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * モジュール関数を呼べる頻度の上限を示す。
+ * 関数に付ければその関数の、モジュールのクラスに付ければモジュール全体の上限になる。
+ * 上限を超えた実行依頼は引数を変換する前に断り、いつ呼び直せばよいかを返す
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target({ METHOD, TYPE })
+@Documented
+public @interface RateLimit {
+
+    /**
+     * @return 1 秒あたりに呼べる回数。正の数
+     */
+    double value();
+
+    /**
+     * @return 間を空けずに続けて呼べる回数。1 以上
+     */
+    int burst() default 1;
+
+}
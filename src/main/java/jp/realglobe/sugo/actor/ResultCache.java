@@ -0,0 +1,158 @@
+package jp.realglobe.sugo.actor;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.json.JSONObject;
+
+/**
+ * モジュール関数の結果の覚え書き。
+ * 呼び出しのキーごとに成功の応答を覚え、期限切れか、数の上限を超えて最も長く使われていなければ忘れる
+ */
+public final class ResultCache {
+
+    private static final class CachedResponse {
+
+        private final JSONObject response;
+        private final long expiresAt;
+
+        CachedResponse(final JSONObject response, final long expiresAt) {
+            this.response = response;
+            this.expiresAt = expiresAt;
+        }
+
+    }
+
+    private final long ttlNanos;
+    private final int maxEntries;
+
+    /**
+     * 使った順に並べた覚え書き
+     */
+    private final LinkedHashMap<CallKey, CachedResponse> entries;
+
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    /**
+     * 作成する
+     * @param ttl 覚えておく時間 (ミリ秒)。0 なら期限無し
+     * @param maxEntries 覚えておく数の上限
+     */
+    ResultCache(final long ttl, final int maxEntries) {
+        if (ttl < 0) {
+            throw new IllegalArgumentException("ttl must not be negative: " + ttl);
+        } else if (maxEntries < 1) {
+            throw new IllegalArgumentException("maxEntries must be positive: " + maxEntries);
+        }
+        this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttl);
+        this.maxEntries = maxEntries;
+        this.entries = new LinkedHashMap<CallKey, CachedResponse>(16, 0.75f, true) {
+
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(final Map.Entry<CallKey, CachedResponse> eldest) {
+                if (size() <= ResultCache.this.maxEntries) {
+                    return false;
+                }
+                ResultCache.this.evictions++;
+                return true;
+            }
+        };
+    }
+
+    /**
+     * 注釈から作成する
+     * @param cached 注釈
+     * @return 覚え書き
+     */
+    static ResultCache of(final Cached cached) {
+        return new ResultCache(cached.ttl(), cached.maxEntries());
+    }
+
+    /**
+     * 覚えておいた応答を返す
+     * @param key 呼び出しのキー
+     * @return 応答。無いか期限切れなら null
+     */
+    synchronized JSONObject get(final CallKey key) {
+        final CachedResponse entry = this.entries.get(key);
+        if (entry == null) {
+            this.misses++;
+            return null;
+        } else if (this.ttlNanos > 0 && System.nanoTime() - entry.expiresAt > 0) {
+            this.entries.remove(key);
+            this.misses++;
+            return null;
+        }
+        this.hits++;
+        return entry.response;
+    }
+
+    /**
+     * 応答を覚える
+     * @param key 呼び出しのキー
+     * @param response 成功の応答
+     */
+    synchronized void put(final CallKey key, final JSONObject response) {
+        this.entries.put(key, new CachedResponse(response, System.nanoTime() + this.ttlNanos));
+    }
+
+    /**
+     * 全て忘れる
+     */
+    public synchronized void clear() {
+        this.entries.clear();
+    }
+
+    /**
+     * @return 覚えておく時間 (ミリ秒)。0 なら期限無し
+     */
+    public long getTtl() {
+        return TimeUnit.NANOSECONDS.toMillis(this.ttlNanos);
+    }
+
+    /**
+     * @return 覚えておく数の上限
+     */
+    public int getMaxEntries() {
+        return this.maxEntries;
+    }
+
+    /**
+     * @return 覚えている数。期限切れでまだ忘れていないものも含む
+     */
+    public synchronized int getSize() {
+        return this.entries.size();
+    }
+
+    /**
+     * @return 覚えておいた応答を返した数
+     */
+    public synchronized long getHitCount() {
+        return this.hits;
+    }
+
+    /**
+     * @return 覚えておいた応答が無かった数
+     */
+    public synchronized long getMissCount() {
+        return this.misses;
+    }
+
+    /**
+     * @return 数の上限を超えて忘れた数
+     */
+    public synchronized long getEvictionCount() {
+        return this.evictions;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "ResultCache[size=" + this.entries.size() + ", hits=" + this.hits + ", misses=" + this.misses + ", evictions=" + this.evictions + "]";
+    }
+
+}
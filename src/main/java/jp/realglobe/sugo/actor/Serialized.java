@@ -0,0 +1,26 @@
+package jp.realglobe.sugo.actor;
+
+import static java.lang.annotation.ElementType.METHOD;
+import static java.lang.annotation.ElementType.TYPE;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * モジュール関数を 1 つずつ実行することを示す。
+ * MaxConcurrency(1) と同じ。
+ * スレッドセーフでない機器を扱うモジュールで、関数の中で synchronized する代わりに使う
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target({ METHOD, TYPE })
+@Documented
+public @interface Serialized {
+
+    /**
+     * @return 順番を待たせる数の上限。超えた実行依頼は断る
+     */
+    int queueCapacity() default 256;
+
+}
@@ -0,0 +1,66 @@
+package jp.realglobe.sugo.actor;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 同じ呼び出しの相乗り。
+ * 実行中の呼び出しと同じキーの呼び出しは、実行せずに実行中のものの結果を受け取る。
+ * 期限切れや取り消しはそれぞれの呼び出しだけに効く
+ */
+final class SingleFlight {
+
+    /**
+     * 実行中の呼び出し
+     */
+    private final ConcurrentMap<CallKey, Invocation> flights;
+
+    private final AtomicLong coalesced;
+
+    SingleFlight() {
+        this.flights = new ConcurrentHashMap<>();
+        this.coalesced = new AtomicLong();
+    }
+
+    /**
+     * 相乗りする
+     * @param key 呼び出しのキー
+     * @param invocation 呼び出し
+     * @return 実行すべきなら true。実行中のものに相乗りしたら false
+     */
+    boolean join(final CallKey key, final Invocation invocation) {
+        while (true) {
+            final Invocation leader = this.flights.putIfAbsent(key, invocation);
+            if (leader == null) {
+                invocation.addOnFinished(new Runnable() {
+                    @Override
+                    public void run() {
+                        SingleFlight.this.flights.remove(key, invocation);
+                    }
+                });
+                return true;
+            } else if (leader.follow(invocation)) {
+                this.coalesced.incrementAndGet();
+                return false;
+            }
+            // 結果を送り始めたか、誰も待たなくなったものが残っていた
+            this.flights.remove(key, leader);
+        }
+    }
+
+    /**
+     * @return 実行中の呼び出しの数
+     */
+    int getInFlightCount() {
+        return this.flights.size();
+    }
+
+    /**
+     * @return これまでに相乗りした数
+     */
+    long getCoalescedCount() {
+        return this.coalesced.get();
+    }
+
+}
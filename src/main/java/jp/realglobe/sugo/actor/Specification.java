@@ -1,6 +1,7 @@
 package jp.realglobe.sugo.actor;
 
 import java.lang.reflect.Method;
+import java.lang.reflect.Type;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
@@ -18,6 +19,27 @@ final class Specification {
     private static final String KEY_TYPE = "type";
     private static final String KEY_RETURN = "return";
     private static final String KEY_PARAMS = "params";
+    private static final String KEY_OVERLOADS = "overloads";
+    private static final String KEY_FIELDS = "fields";
+    private static final String KEY_STREAM = "stream";
+    private static final String KEY_MAX_CONCURRENCY = "maxConcurrency";
+    private static final String KEY_PRIORITY = "priority";
+    private static final String KEY_DEADLINE = "deadline";
+    private static final String KEY_IDEMPOTENT = "idempotent";
+    private static final String KEY_CACHE = "cache";
+    private static final String KEY_NON_BLOCKING = "nonBlocking";
+    private static final String KEY_ORDERED = "ordered";
+    private static final String KEY_ORDER_KEY = "orderKey";
+    private static final String KEY_TTL = "ttl";
+    private static final String KEY_MAX_ENTRIES = "maxEntries";
+    private static final String KEY_RATE_LIMIT = "rateLimit";
+    private static final String KEY_ADAPTIVE_CONCURRENCY = "adaptiveConcurrency";
+    private static final String KEY_PERMITS_PER_SECOND = "permitsPerSecond";
+    private static final String KEY_BURST = "burst";
+    private static final String KEY_CIRCUIT_BREAKER = "circuitBreaker";
+    private static final String KEY_FAILURE_RATE = "failureRate";
+    private static final String KEY_SLOW_CALL = "slowCall";
+    private static final String KEY_OPEN = "open";
 
     private static final String UNDEFINED_VERSION = "unknown";
 
@@ -43,9 +65,39 @@ final class Specification {
             specification.put(KEY_DESC, module.getDescription());
         }
 
+        if (module.getLimiter() != null) {
+            specification.put(KEY_MAX_CONCURRENCY, module.getLimiter().getLimit());
+        }
+        if (module.getAdaptiveLimiter() != null) {
+            specification.put(KEY_ADAPTIVE_CONCURRENCY, true);
+        }
+        final TokenBucket rateLimit = module.getRateLimit(null);
+        if (rateLimit != null) {
+            specification.put(KEY_RATE_LIMIT, toSpecification(rateLimit));
+        }
+        final CircuitBreaker circuitBreaker = module.getCircuitBreaker();
+        if (circuitBreaker != null) {
+            // モジュール全体の遮断器は無く、各関数の遮断器がこの設定でつくられている
+            specification.put(KEY_CIRCUIT_BREAKER, toSpecification(circuitBreaker.failureRate(), circuitBreaker.slowCall(), circuitBreaker.open()));
+        }
+
+        final Map<String, List<Map<String, Object>>> overloads = new HashMap<>();
+        for (final Invoker invoker : module.getInvokers()) {
+            List<Map<String, Object>> list = overloads.get(invoker.getName());
+            if (list == null) {
+                list = new ArrayList<>();
+                overloads.put(invoker.getName(), list);
+            }
+            list.add(Specification.generateMethodSpecification(module, invoker));
+        }
         final Map<String, Object> methods = new HashMap<>();
-        for (final Method method : module.getMethods()) {
-            methods.put(method.getName(), Specification.generateMethodSpecification(method));
+        for (final Map.Entry<String, List<Map<String, Object>>> entry : overloads.entrySet()) {
+            // オーバーロードが無い場合と同じ形にしつつ、全オーバーロードを付ける
+            final Map<String, Object> methodSpecification = new HashMap<>(entry.getValue().get(0));
+            if (entry.getValue().size() > 1) {
+                methodSpecification.put(KEY_OVERLOADS, entry.getValue());
+            }
+            methods.put(entry.getKey(), methodSpecification);
         }
         specification.put(KEY_METHODS, methods);
 
@@ -53,29 +105,107 @@ final class Specification {
     }
 
     /**
-     * 関数の仕様データをつくる
-     * @param method 関数
+     * 関数の仕様データをつくる。
+     * 頻度の制限と遮断器は、実行中に差し替えたものも含めて今使っているものを載せる
+     * @param module モジュール
+     * @param invoker 関数
      * @return 関数の仕様データ
      */
-    private static Map<String, Object> generateMethodSpecification(final Method method) {
+    private static Map<String, Object> generateMethodSpecification(final Module module, final Invoker invoker) {
+        final Method method = invoker.getMethod();
         final Map<String, Object> specification = new HashMap<>();
 
         final List<Map<String, Object>> parameters = new ArrayList<>();
         for (final Class<?> type : method.getParameterTypes()) {
             final Map<String, Object> parameter = new HashMap<>();
             parameter.put(KEY_TYPE, type.getName());
+            final Map<String, Type> layout = Beans.getLayout(type);
+            if (layout != null) {
+                // JSON オブジェクトから組み立てる型なら、受け付ける要素を示す
+                final List<Map<String, Object>> fields = new ArrayList<>();
+                for (final Map.Entry<String, Type> entry : layout.entrySet()) {
+                    final Map<String, Object> field = new HashMap<>();
+                    field.put(KEY_NAME, entry.getKey());
+                    field.put(KEY_TYPE, entry.getValue() instanceof Class ? ((Class<?>) entry.getValue()).getName() : entry.getValue().toString());
+                    fields.add(field);
+                }
+                parameter.put(KEY_FIELDS, fields);
+            }
             parameters.add(parameter);
         }
         specification.put(KEY_PARAMS, parameters);
 
-        final Class<?> returnType = method.getReturnType();
-        if (returnType != Void.TYPE) {
+        final ConcurrencyLimiter limiter = invoker.getLimiter();
+        if (limiter != null) {
+            specification.put(KEY_MAX_CONCURRENCY, limiter.getLimit());
+        }
+        final TokenBucket rateLimit = module.getRateLimit(invoker.getName());
+        if (rateLimit != null) {
+            specification.put(KEY_RATE_LIMIT, toSpecification(rateLimit));
+        }
+        final Circuit circuit = module.getCircuit(invoker.getName());
+        if (circuit != null && (invoker.getCircuitBreaker() != null || module.getCircuitBreaker() == null)) {
+            // モジュール全体の設定でつくったものはモジュールの仕様に載せる
+            specification.put(KEY_CIRCUIT_BREAKER, toSpecification(circuit.getFailureRateThreshold(), circuit.getSlowCallMillis(), circuit.getOpenMillis()));
+        }
+        final Integer priority = invoker.getPriority();
+        if (priority != null) {
+            specification.put(KEY_PRIORITY, priority);
+        }
+        final Long deadline = invoker.getDeadline();
+        if (deadline != null) {
+            specification.put(KEY_DEADLINE, deadline);
+        }
+        if (method.isAnnotationPresent(Idempotent.class)) {
+            specification.put(KEY_IDEMPOTENT, true);
+        }
+        if (method.isAnnotationPresent(NonBlocking.class)) {
+            specification.put(KEY_NON_BLOCKING, true);
+        }
+        final Integer ordering = invoker.getOrdering();
+        if (ordering != null) {
+            specification.put(KEY_ORDERED, true);
+            if (ordering != Ordered.MODULE) {
+                specification.put(KEY_ORDER_KEY, ordering);
+            }
+        }
+        final Cached cached = invoker.getCached();
+        if (cached != null) {
+            final Map<String, Object> cache = new HashMap<>();
+            cache.put(KEY_TTL, cached.ttl());
+            cache.put(KEY_MAX_ENTRIES, cached.maxEntries());
+            specification.put(KEY_CACHE, cache);
+        }
+
+        // 非同期なモジュール関数は完了時の結果を、少しずつ返すモジュール関数は要素を返り値とする
+        final Class<?> returnType = Invoker.getResultType(method);
+        if (returnType != Void.TYPE && returnType != Void.class) {
             final Map<String, Object> returnParameter = new HashMap<>();
             returnParameter.put(KEY_TYPE, returnType.getName());
+            if (Streams.isStream(method.getReturnType())) {
+                returnParameter.put(KEY_STREAM, true);
+            }
             specification.put(KEY_RETURN, returnParameter);
         }
 
         return specification;
     }
 
+    private static Map<String, Object> toSpecification(final double failureRate, final long slowCallMillis, final long openMillis) {
+        final Map<String, Object> specification = new HashMap<>();
+        specification.put(KEY_FAILURE_RATE, failureRate);
+        if (slowCallMillis > 0) {
+            specification.put(KEY_SLOW_CALL, slowCallMillis);
+        }
+        specification.put(KEY_OPEN, openMillis);
+        return specification;
+    }
+
+    private static Map<String, Object> toSpecification(final TokenBucket rateLimit) {
+        final Map<String, Object> specification = new HashMap<>();
+        specification.put(KEY_PERMITS_PER_SECOND, rateLimit.getPermitsPerSecond());
+        specification.put(KEY_BURST, rateLimit.getBurst());
+        return specification;
+    }
+
 }
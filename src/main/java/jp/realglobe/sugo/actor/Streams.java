@@ -0,0 +1,217 @@
+package jp.realglobe.sugo.actor;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Iterator;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.BaseStream;
+
+/**
+ * 少しずつ返すモジュール関数の返り値の扱い。
+ * Iterator, java.util.stream.Stream, java.util.concurrent.Flow.Publisher を対象にする。
+ * Flow は Java 9 からなので、リフレクションで扱う
+ */
+final class Streams {
+
+    private Streams() {}
+
+    /**
+     * 一度に要求する要素の数。
+     * 受け取った分を送ってから次を要求するので、溜まる要素はこれだけ
+     */
+    private static final long WINDOW = 16;
+
+    private static final Class<?> PUBLISHER;
+    private static final Class<?> SUBSCRIBER;
+    private static final Method SUBSCRIBE;
+    private static final Method REQUEST;
+    private static final Method CANCEL;
+
+    static {
+        Class<?> publisher = null;
+        Class<?> subscriber = null;
+        Method subscribe = null;
+        Method request = null;
+        Method cancel = null;
+        try {
+            publisher = Class.forName("java.util.concurrent.Flow$Publisher");
+            subscriber = Class.forName("java.util.concurrent.Flow$Subscriber");
+            final Class<?> subscription = Class.forName("java.util.concurrent.Flow$Subscription");
+            subscribe = publisher.getMethod("subscribe", subscriber);
+            request = subscription.getMethod("request", long.class);
+            cancel = subscription.getMethod("cancel");
+        } catch (final ReflectiveOperationException e) {
+            // Java 8
+            publisher = null;
+        }
+        PUBLISHER = publisher;
+        SUBSCRIBER = subscriber;
+        SUBSCRIBE = subscribe;
+        REQUEST = request;
+        CANCEL = cancel;
+    }
+
+    /**
+     * 受け取り口
+     */
+    interface Sink {
+
+        /**
+         * Publisher を購読した。要素を受け取る前に呼ぶ
+         * @param cancel 購読をやめて、取り消しの失敗で終わらせる処理
+         */
+        void subscribed(Runnable cancel);
+
+        /**
+         * 要素を受け取る
+         * @param element 要素
+         */
+        void next(Object element);
+
+        /**
+         * 失敗で終わる
+         * @param error 原因
+         */
+        void error(Throwable error);
+
+        /**
+         * 成功で終わる
+         */
+        void complete();
+
+    }
+
+    /**
+     * 少しずつ返す型か
+     * @param type 返り値の型
+     * @return 少しずつ返すなら true
+     */
+    static boolean isStream(final Class<?> type) {
+        return Iterator.class.isAssignableFrom(type) || BaseStream.class.isAssignableFrom(type) || (PUBLISHER != null && PUBLISHER.isAssignableFrom(type));
+    }
+
+    /**
+     * 要素を順に受け取り口に渡す。
+     * Iterator と Stream はこのスレッドで全て渡し終える。
+     * Publisher は購読して、要素が届くたびに渡す。購読をやめる処理を Sink.subscribed で渡す
+     * @param value モジュール関数の返り値
+     * @param sink 受け取り口
+     */
+    static void drain(final Object value, final Sink sink) {
+        if (value == null) {
+            sink.complete();
+        } else if (value instanceof Iterator) {
+            drain((Iterator<?>) value, sink);
+        } else if (value instanceof BaseStream) {
+            try (final BaseStream<?, ?> stream = (BaseStream<?, ?>) value) {
+                drain(stream.iterator(), sink);
+            }
+        } else if (PUBLISHER != null && PUBLISHER.isInstance(value)) {
+            subscribe(value, sink);
+        } else {
+            sink.error(new IllegalArgumentException("not a stream: " + value.getClass().getName()));
+        }
+    }
+
+    private static void drain(final Iterator<?> iterator, final Sink sink) {
+        try {
+            while (iterator.hasNext()) {
+                sink.next(iterator.next());
+            }
+        } catch (final RuntimeException e) {
+            sink.error(e);
+            return;
+        }
+        sink.complete();
+    }
+
+    private static void subscribe(final Object publisher, final Sink sink) {
+        final Object subscriber = Proxy.newProxyInstance(Streams.class.getClassLoader(), new Class<?>[] { SUBSCRIBER }, new InvocationHandler() {
+
+            private Object subscription;
+            private long received;
+            private final AtomicBoolean done = new AtomicBoolean();
+
+            @Override
+            public Object invoke(final Object proxy, final Method method, final Object[] args) throws Throwable {
+                switch (method.getName()) {
+                case "onSubscribe":
+                    this.subscription = args[0];
+                    sink.subscribed(new Runnable() {
+                        @Override
+                        public void run() {
+                            cancel();
+                        }
+                    });
+                    if (!this.done.get()) {
+                        REQUEST.invoke(this.subscription, WINDOW);
+                    }
+                    return null;
+                case "onNext":
+                    if (this.done.get()) {
+                        return null;
+                    }
+                    try {
+                        sink.next(args[0]);
+                    } catch (final RuntimeException e) {
+                        CANCEL.invoke(this.subscription);
+                        if (this.done.compareAndSet(false, true)) {
+                            sink.error(e);
+                        }
+                        return null;
+                    }
+                    // 送り終えた分だけ次を要求する
+                    this.received++;
+                    if (this.received % WINDOW == 0) {
+                        REQUEST.invoke(this.subscription, WINDOW);
+                    }
+                    return null;
+                case "onError":
+                    if (this.done.compareAndSet(false, true)) {
+                        sink.error((Throwable) args[0]);
+                    }
+                    return null;
+                case "onComplete":
+                    if (this.done.compareAndSet(false, true)) {
+                        sink.complete();
+                    }
+                    return null;
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "equals":
+                    return proxy == args[0];
+                case "toString":
+                    return "StreamSubscriber@" + Integer.toHexString(System.identityHashCode(proxy));
+                default:
+                    throw new UnsupportedOperationException(method.getName());
+                }
+            }
+
+            /**
+             * 次の要素を待たずに購読をやめる
+             */
+            private void cancel() {
+                if (!this.done.compareAndSet(false, true)) {
+                    return;
+                }
+                try {
+                    CANCEL.invoke(this.subscription);
+                } catch (final ReflectiveOperationException e) {
+                    // やめられなくても、以降の要素は捨てる
+                }
+                sink.error(new CancellationException());
+            }
+        });
+        try {
+            SUBSCRIBE.invoke(publisher, subscriber);
+        } catch (final InvocationTargetException e) {
+            sink.error(e.getCause());
+        } catch (final IllegalAccessException e) {
+            sink.error(e);
+        }
+    }
+
+}
@@ -0,0 +1,163 @@
+package jp.realglobe.sugo.actor;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 処理ごとに新しいスレッドをつくる実行器。仮想スレッド向け。
+ * 同時に実行する数は Semaphore で抑え、空きが無ければ待ち行列に入れる。
+ * スレッドを使い回さないので、空いたスレッドを残すことも、待ち行列を見張るスレッドも無い
+ */
+final class ThreadPerTaskExecutor implements Executor {
+
+    private final ThreadFactory threadFactory;
+
+    /**
+     * 同時に実行する数の空き
+     */
+    private final Semaphore permits;
+
+    /**
+     * 待ち行列。待たせないなら null
+     */
+    private final PriorityTaskQueue queue;
+
+    private final AtomicInteger active;
+    private final AtomicInteger largest;
+    private final AtomicLong completed;
+    private volatile boolean shutdown;
+
+    /**
+     * 作成する
+     * @param threadFactory 処理ごとにスレッドをつくる
+     * @param limit 同時に実行する数の上限。1 以上
+     * @param queue 待ち行列。null なら待たせない
+     */
+    ThreadPerTaskExecutor(final ThreadFactory threadFactory, final int limit, final PriorityTaskQueue queue) {
+        if (limit < 1) {
+            throw new IllegalArgumentException("limit must be positive: " + limit);
+        }
+        this.threadFactory = threadFactory;
+        this.permits = new Semaphore(limit);
+        this.queue = queue;
+        this.active = new AtomicInteger();
+        this.largest = new AtomicInteger();
+        this.completed = new AtomicLong();
+    }
+
+    /**
+     * 実行を依頼する
+     * @param task 処理
+     * @throws RejectedExecutionException 止めたか、空きも待ち行列の空きも無い
+     */
+    @Override
+    public void execute(final Runnable task) {
+        if (this.shutdown) {
+            throw new RejectedExecutionException("shut down");
+        }
+        if (this.permits.tryAcquire()) {
+            start(task);
+            return;
+        }
+        if (this.queue == null || !this.queue.offer(task)) {
+            throw new RejectedExecutionException("no capacity");
+        }
+        // 入れている間に空いたかもしれない
+        drain();
+    }
+
+    /**
+     * 空きを得た処理を新しいスレッドで実行する
+     * @param task 処理
+     */
+    private void start(final Runnable task) {
+        final int count = this.active.incrementAndGet();
+        while (true) {
+            final int current = this.largest.get();
+            if (count <= current || this.largest.compareAndSet(current, count)) {
+                break;
+            }
+        }
+        final Thread thread = this.threadFactory.newThread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    task.run();
+                } finally {
+                    ThreadPerTaskExecutor.this.active.decrementAndGet();
+                    ThreadPerTaskExecutor.this.completed.incrementAndGet();
+                    next();
+                }
+            }
+        });
+        thread.start();
+    }
+
+    /**
+     * 終わった処理の空きを、待っている処理に渡すか返す
+     */
+    private void next() {
+        final Runnable task = (this.queue == null ? null : this.queue.poll());
+        if (task != null) {
+            start(task);
+            return;
+        }
+        this.permits.release();
+        drain();
+    }
+
+    /**
+     * 空きがあれば待っている処理を実行する
+     */
+    private void drain() {
+        while (this.queue != null && !this.queue.isEmpty() && this.permits.tryAcquire()) {
+            final Runnable task = this.queue.poll();
+            if (task == null) {
+                // 他で取り出されたか、待ち過ぎで捨てられた
+                this.permits.release();
+                continue;
+            }
+            start(task);
+        }
+    }
+
+    /**
+     * 新しい実行依頼を断る。待ち行列にあるものは実行する
+     */
+    void shutdown() {
+        this.shutdown = true;
+    }
+
+    /**
+     * @return 止めたなら true
+     */
+    boolean isShutdown() {
+        return this.shutdown;
+    }
+
+    /**
+     * @return 実行中の数
+     */
+    int getActiveCount() {
+        return this.active.get();
+    }
+
+    /**
+     * @return これまでに同時に実行した最大数
+     */
+    int getLargestPoolSize() {
+        return this.largest.get();
+    }
+
+    /**
+     * @return これまでに終わった数
+     */
+    long getCompletedTaskCount() {
+        return this.completed.get();
+    }
+
+}
@@ -0,0 +1,114 @@
+package jp.realglobe.sugo.actor;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * トークンバケツによる頻度の制限。
+ * 一定の速さでトークンが溜まり、溜まる上限が burst。1 回の呼び出しで 1 つ使う。
+ * トークンの数を持つ代わりに、バケツが満杯になる時刻を 1 つの AtomicLong で持つ。
+ * そのため補充の処理が無く、ロックも使わない
+ */
+final class TokenBucket {
+
+    private final double permitsPerSecond;
+    private final int burst;
+
+    /**
+     * トークン 1 つが溜まる時間 (ナノ秒)
+     */
+    private final long intervalNanos;
+
+    /**
+     * バケツが満杯から空になるまでに使える時間 (ナノ秒)
+     */
+    private final long capacityNanos;
+
+    /**
+     * これまでの呼び出しを全て返し終えて、バケツが満杯に戻る時刻 (System.nanoTime)
+     */
+    private final AtomicLong fullAt;
+
+    private final AtomicLong rejected;
+
+    /**
+     * 作成する
+     * @param permitsPerSecond 1 秒あたりに使えるトークンの数
+     * @param burst バケツの大きさ
+     */
+    TokenBucket(final double permitsPerSecond, final int burst) {
+        if (!(permitsPerSecond > 0)) {
+            throw new IllegalArgumentException("permitsPerSecond must be positive: " + permitsPerSecond);
+        } else if (burst < 1) {
+            throw new IllegalArgumentException("burst must be positive: " + burst);
+        }
+        this.permitsPerSecond = permitsPerSecond;
+        this.burst = burst;
+        this.intervalNanos = Math.max(1, (long) (TimeUnit.SECONDS.toNanos(1) / permitsPerSecond));
+        this.capacityNanos = this.intervalNanos * burst;
+        this.fullAt = new AtomicLong(System.nanoTime());
+        this.rejected = new AtomicLong();
+    }
+
+    /**
+     * 注釈から作成する
+     * @param rateLimit 注釈
+     * @return トークンバケツ。注釈が null なら null
+     */
+    static TokenBucket of(final RateLimit rateLimit) {
+        return rateLimit == null ? null : new TokenBucket(rateLimit.value(), rateLimit.burst());
+    }
+
+    /**
+     * トークンを 1 つ使う
+     * @return 使えたら 0。使えなければ次に使えるまでの時間 (ナノ秒)
+     */
+    long tryAcquire() {
+        final long now = System.nanoTime();
+        while (true) {
+            final long current = this.fullAt.get();
+            // 満杯より前の時刻は満杯と同じ
+            final long base = (current - now < 0 ? now : current);
+            final long next = base + this.intervalNanos;
+            final long wait = next - now - this.capacityNanos;
+            if (wait > 0) {
+                this.rejected.incrementAndGet();
+                return wait;
+            }
+            if (this.fullAt.compareAndSet(current, next)) {
+                return 0;
+            }
+        }
+    }
+
+    /**
+     * tryAcquire で使ったトークンを 1 つ戻す。
+     * 他の制限に断られて呼び出さなかったときに使う
+     */
+    void refund() {
+        // 満杯より前の時刻になっても満杯と同じに扱われる
+        this.fullAt.addAndGet(-this.intervalNanos);
+    }
+
+    /**
+     * @return 1 秒あたりに使えるトークンの数
+     */
+    double getPermitsPerSecond() {
+        return this.permitsPerSecond;
+    }
+
+    /**
+     * @return バケツの大きさ
+     */
+    int getBurst() {
+        return this.burst;
+    }
+
+    /**
+     * @return これまでに断った数
+     */
+    long getRejectedCount() {
+        return this.rejected.get();
+    }
+
+}
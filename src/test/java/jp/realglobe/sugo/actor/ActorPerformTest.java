@@ -0,0 +1,1124 @@
+package jp.realglobe.sugo.actor;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+import java.util.stream.Stream;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import io.socket.client.Ack;
+import jp.realglobe.sg.socket.Constants;
+
+/**
+ * Actor のモジュール関数実行のテスト
+ */
+public class ActorPerformTest {
+
+    private static final String KEY = "actor0";
+    private static final String MODULE = "module";
+
+    private static class TestClass {
+
+        private final CompletableFuture<String> pending = new CompletableFuture<>();
+        private final CountDownLatch blocking = new CountDownLatch(1);
+        private final CountDownLatch released = new CountDownLatch(1);
+        private final CountDownLatch interrupted = new CountDownLatch(1);
+        private final CountDownLatch reading = new CountDownLatch(1);
+        private final CountDownLatch readable = new CountDownLatch(1);
+        private final AtomicInteger reads = new AtomicInteger();
+        private final AtomicInteger lookups = new AtomicInteger();
+        private final CountDownLatch spinning = new CountDownLatch(1);
+        private final CountDownLatch spinStopped = new CountDownLatch(1);
+        private final Map<String, List<Integer>> appended = new ConcurrentHashMap<>();
+        private final CountDownLatch locked = new CountDownLatch(1);
+        private final CountDownLatch probing = new CountDownLatch(1);
+        private final CountDownLatch probed = new CountDownLatch(1);
+
+        @ModuleMethod
+        public String echo(final String s) {
+            return s;
+        }
+
+        @ModuleMethod
+        public void noReturn() {}
+
+        @ModuleMethod
+        public void fail() {
+            throw new IllegalStateException("fail");
+        }
+
+        @ModuleMethod
+        public CompletionStage<String> later() {
+            return this.pending;
+        }
+
+        @ModuleMethod
+        public CompletableFuture<Void> laterNoResult() {
+            return CompletableFuture.completedFuture(null);
+        }
+
+        @ModuleMethod
+        public CompletionStage<String> laterFail() {
+            final CompletableFuture<String> future = new CompletableFuture<>();
+            future.completeExceptionally(new IllegalStateException("fail"));
+            return future;
+        }
+
+        @ModuleMethod
+        public void block() throws InterruptedException {
+            this.blocking.countDown();
+            this.released.await();
+        }
+
+        @ModuleMethod
+        public String keep(final String value) throws InterruptedException {
+            block();
+            return value;
+        }
+
+        @ModuleMethod
+        public String hold(final String value) {
+            while (true) {
+                try {
+                    this.released.await();
+                    return value;
+                } catch (final InterruptedException e) {
+                    // 割り込みを無視する
+                }
+            }
+        }
+
+        @ModuleMethod
+        @Deadline(100)
+        public void hang() throws InterruptedException {
+            try {
+                Thread.sleep(60_000);
+            } catch (final InterruptedException e) {
+                this.interrupted.countDown();
+                throw e;
+            }
+        }
+
+        @ModuleMethod
+        @Idempotent
+        public String read(final String name) throws InterruptedException {
+            this.reads.incrementAndGet();
+            this.reading.countDown();
+            this.readable.await();
+            return name + this.reads.get();
+        }
+
+        @ModuleMethod
+        @Cached(ttl = 60_000)
+        public String lookup(final String name) {
+            if (name.isEmpty()) {
+                throw new IllegalArgumentException("empty");
+            }
+            return name + this.lookups.incrementAndGet();
+        }
+
+        @ModuleMethod
+        @NonBlocking
+        public int add(final int a, final int b) {
+            return a + b;
+        }
+
+        @ModuleMethod
+        @NonBlocking(warnAfter = 10)
+        public void sleep(final long millis) throws InterruptedException {
+            Thread.sleep(millis);
+        }
+
+        @ModuleMethod
+        @Ordered(0)
+        public void append(final String name, final int value) throws InterruptedException {
+            Thread.sleep(value % 3);
+            this.appended.computeIfAbsent(name, k -> Collections.synchronizedList(new ArrayList<Integer>())).add(value);
+        }
+
+        @ModuleMethod
+        @Ordered(0)
+        public void lock(final Object key) throws InterruptedException {
+            this.locked.await();
+        }
+
+        @ModuleMethod
+        @Ordered(0)
+        public String peek(final Object key) {
+            return "peek";
+        }
+
+        @ModuleMethod
+        public long spin() {
+            final PerformContext context = PerformContext.current();
+            long spins = 0;
+            this.spinning.countDown();
+            while (!context.isCancelled()) {
+                spins++;
+            }
+            this.spinStopped.countDown();
+            return spins;
+        }
+
+        @ModuleMethod
+        public String context() {
+            final PerformContext context = PerformContext.current();
+            return context.getModule() + "." + context.getMethod() + ":" + context.getPid();
+        }
+
+        @ModuleMethod
+        public void flash(final int n) throws InterruptedException {
+            final PerformContext context = PerformContext.current();
+            for (int i = 1; i <= n; i++) {
+                context.progress((double) i / n);
+                if (i % 100 == 0) {
+                    Thread.sleep(1);
+                }
+            }
+            // 最後の途中経過が送られるのを待つ
+            Thread.sleep(100);
+        }
+
+        @ModuleMethod
+        @CircuitBreaker(window = 4, minimumCalls = 2, open = 100, probes = 1)
+        public String flaky(final boolean fail) {
+            if (fail) {
+                throw new IllegalStateException("down");
+            }
+            return "up";
+        }
+
+        @ModuleMethod
+        @Idempotent
+        @CircuitBreaker(window = 4, minimumCalls = 2, open = 100, probes = 1)
+        public String probe(final String mode) throws InterruptedException {
+            if (mode.equals("fail")) {
+                throw new IllegalStateException("down");
+            } else if (mode.equals("wait")) {
+                this.probing.countDown();
+                this.probed.await();
+            }
+            return "up";
+        }
+
+        @ModuleMethod
+        @RateLimit(value = 0.1, burst = 2)
+        public String limited(final String s) {
+            return s;
+        }
+
+        @ModuleMethod
+        public Stream<Integer> count(final int n) {
+            return Stream.iterate(0, i -> i + 1).limit(n);
+        }
+
+        @ModuleMethod
+        public Iterator<String> countFail() {
+            return Stream.of("a", "b").map(s -> {
+                if (s.equals("b")) {
+                    throw new IllegalStateException("fail");
+                }
+                return s;
+            }).iterator();
+        }
+
+    }
+
+    @Serialized
+    private static class SerializedClass {
+
+        private final AtomicInteger running = new AtomicInteger();
+        private final AtomicInteger maxRunning = new AtomicInteger();
+
+        private void start() {
+            final int count = this.running.incrementAndGet();
+            synchronized (this.maxRunning) {
+                this.maxRunning.set(Math.max(this.maxRunning.get(), count));
+            }
+        }
+
+        @ModuleMethod
+        public void work() throws InterruptedException {
+            start();
+            Thread.sleep(20);
+            this.running.decrementAndGet();
+        }
+
+        @ModuleMethod
+        @NonBlocking
+        public int quick() {
+            return this.running.get();
+        }
+
+        @ModuleMethod
+        @Deadline(50)
+        public void stubborn() {
+            start();
+            final long end = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(300);
+            while (System.nanoTime() < end) {
+                try {
+                    Thread.sleep(10);
+                } catch (final InterruptedException e) {
+                    // 割り込みを無視する
+                }
+            }
+            this.running.decrementAndGet();
+        }
+
+    }
+
+    @Serialized
+    private static class OrderedClass {
+
+        private final CountDownLatch released = new CountDownLatch(1);
+        private final AtomicInteger holds = new AtomicInteger();
+        private final CompletableFuture<String> pending = new CompletableFuture<>();
+        private final AtomicInteger starts = new AtomicInteger();
+
+        @ModuleMethod
+        @Ordered(0)
+        public CompletionStage<String> start(final String key) {
+            if (this.starts.incrementAndGet() == 1) {
+                return this.pending;
+            }
+            return CompletableFuture.completedFuture(key + this.starts.get());
+        }
+
+        @ModuleMethod
+        @Ordered(0)
+        @Deadline(100)
+        public void hold(final String key) {
+            this.holds.incrementAndGet();
+            while (true) {
+                try {
+                    this.released.await();
+                    return;
+                } catch (final InterruptedException e) {
+                    // 割り込みを無視する
+                }
+            }
+        }
+
+        @ModuleMethod
+        @Ordered(0)
+        public String next(final String key) {
+            return key;
+        }
+
+    }
+
+    @AdaptiveConcurrency(initialLimit = 1, minLimit = 1, maxLimit = 1)
+    private static class AdaptiveClass {
+
+        private final CountDownLatch working = new CountDownLatch(1);
+        private final CountDownLatch released = new CountDownLatch(1);
+
+        @ModuleMethod
+        public void work() throws InterruptedException {
+            this.working.countDown();
+            this.released.await();
+        }
+
+        @ModuleMethod
+        @Idempotent
+        public String share() throws InterruptedException {
+            this.working.countDown();
+            this.released.await();
+            return "shared";
+        }
+
+    }
+
+    /**
+     * サーバーに送るものを溜める Actor
+     */
+    private static class RecordingActor extends Actor {
+
+        private final BlockingQueue<JSONObject> sent = new LinkedBlockingQueue<>();
+
+        RecordingActor() {
+            super(KEY, "actor", "test actor");
+        }
+
+        @Override
+        synchronized void send(final String event, final JSONObject data) {
+            this.sent.add(data);
+        }
+
+    }
+
+    private Actor actor;
+    private TestClass module;
+
+    /**
+     * 準備
+     */
+    @Before
+    public void before() {
+        this.actor = new Actor(KEY, "actor", "test actor");
+        this.module = new TestClass();
+        this.actor.addModule(MODULE, "1.0.0", "test module", this.module);
+    }
+
+    /**
+     * モジュール関数の実行を依頼する
+     * @param actor 依頼先
+     * @param method 関数名
+     * @param params 引数
+     * @return 応答が届くキュー
+     */
+    static BlockingQueue<JSONObject> perform(final Actor actor, final String method, final Object... params) {
+        final Map<String, Object> data = new HashMap<>();
+        data.put("key", KEY);
+        data.put("module", MODULE);
+        data.put("method", method);
+        data.put("params", new JSONArray(params));
+        final BlockingQueue<JSONObject> responses = new ArrayBlockingQueue<>(1);
+        actor.perform(new Object[] { new JSONObject(data), new Ack() {
+            @Override
+            public void call(final Object... args) {
+                responses.add((JSONObject) args[0]);
+            }
+        } });
+        return responses;
+    }
+
+    /**
+     * 応答を待つ
+     * @param responses 応答が届くキュー
+     * @return 応答
+     * @throws InterruptedException 割り込まれた
+     */
+    static JSONObject await(final BlockingQueue<JSONObject> responses) throws InterruptedException {
+        final JSONObject response = responses.poll(10, TimeUnit.SECONDS);
+        Assert.assertNotNull("no response", response);
+        return response;
+    }
+
+    /**
+     * 条件が満たされるのを待つ。
+     * 応答した後に実行を終えたときの後始末を待つのに使う
+     * @param condition 条件
+     * @throws InterruptedException 割り込まれた
+     */
+    static void awaitCondition(final BooleanSupplier condition) throws InterruptedException {
+        final long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (!condition.getAsBoolean()) {
+            Assert.assertTrue("condition not met", System.nanoTime() < end);
+            Thread.sleep(1);
+        }
+    }
+
+    /**
+     * 結果を返せるか
+     * @throws Exception エラー
+     */
+    @Test
+    public void testReturnValue() throws Exception {
+        final JSONObject response = await(perform(this.actor, "echo", "abcde"));
+        Assert.assertEquals(Constants.AcknowledgeStatus.OK, response.get("status"));
+        Assert.assertEquals("abcde", response.get("payload"));
+    }
+
+    /**
+     * 返り値の無い関数で結果を載せないか
+     * @throws Exception エラー
+     */
+    @Test
+    public void testNoReturn() throws Exception {
+        final JSONObject response = await(perform(this.actor, "noReturn"));
+        Assert.assertEquals(Constants.AcknowledgeStatus.OK, response.get("status"));
+        Assert.assertFalse(response.has("payload"));
+    }
+
+    /**
+     * 失敗を返せるか
+     * @throws Exception エラー
+     */
+    @Test
+    public void testFailure() throws Exception {
+        final JSONObject response = await(perform(this.actor, "fail"));
+        Assert.assertEquals(Constants.AcknowledgeStatus.NG, response.get("status"));
+    }
+
+    /**
+     * 引数が合わない場合に失敗を返せるか
+     * @throws Exception エラー
+     */
+    @Test
+    public void testWrongArguments() throws Exception {
+        final JSONObject response = await(perform(this.actor, "echo", "a", "b"));
+        Assert.assertEquals(Constants.AcknowledgeStatus.NG, response.get("status"));
+    }
+
+    /**
+     * 非同期な関数の完了時に応答するか
+     * @throws Exception エラー
+     */
+    @Test
+    public void testAsync() throws Exception {
+        final BlockingQueue<JSONObject> responses = perform(this.actor, "later");
+        Assert.assertNull(responses.poll(100, TimeUnit.MILLISECONDS));
+        this.module.pending.complete("done");
+        final JSONObject response = await(responses);
+        Assert.assertEquals(Constants.AcknowledgeStatus.OK, response.get("status"));
+        Assert.assertEquals("done", response.get("payload"));
+    }
+
+    /**
+     * 結果の無い非同期な関数で結果を載せないか
+     * @throws Exception エラー
+     */
+    @Test
+    public void testAsyncNoResult() throws Exception {
+        final JSONObject response = await(perform(this.actor, "laterNoResult"));
+        Assert.assertEquals(Constants.AcknowledgeStatus.OK, response.get("status"));
+        Assert.assertFalse(response.has("payload"));
+    }
+
+    /**
+     * 非同期な関数の失敗を返せるか
+     * @throws Exception エラー
+     */
+    @Test
+    public void testAsyncFailure() throws Exception {
+        final JSONObject response = await(perform(this.actor, "laterFail"));
+        Assert.assertEquals(Constants.AcknowledgeStatus.NG, response.get("status"));
+        Assert.assertTrue(response.get("payload").toString().contains("IllegalStateException"));
+    }
+
+    /**
+     * 少しずつ返す関数の要素を PIPE で送ってから応答するか
+     * @throws Exception エラー
+     */
+    @Test
+    public void testStream() throws Exception {
+        final RecordingActor recordingActor = new RecordingActor();
+        recordingActor.addModule(MODULE, "1.0.0", "test module", this.module);
+        final JSONObject response = await(perform(recordingActor, "count", 3));
+        Assert.assertEquals(Constants.AcknowledgeStatus.OK, response.get("status"));
+        final JSONObject summary = response.getJSONObject("payload");
+        Assert.assertEquals(3, summary.getInt("chunks"));
+        final String pid = summary.getString("pid");
+
+        Assert.assertEquals(3, recordingActor.sent.size());
+        for (int i = 0; i < 3; i++) {
+            final JSONObject message = recordingActor.sent.poll();
+            Assert.assertEquals(MODULE, message.get("module"));
+            Assert.assertEquals(Actor.STREAM_EVENT, message.get("event"));
+            final JSONObject chunk = message.getJSONObject("data");
+            Assert.assertEquals(pid, chunk.get("pid"));
+            Assert.assertEquals(i, chunk.getInt("seq"));
+            Assert.assertEquals(i, chunk.getInt("chunk"));
+        }
+    }
+
+    /**
+     * 少しずつ返す関数の途中の失敗を返せるか
+     * @throws Exception エラー
+     */
+    @Test
+    public void testStreamFailure() throws Exception {
+        final RecordingActor recordingActor = new RecordingActor();
+        recordingActor.addModule(MODULE, "1.0.0", "test module", this.module);
+        final JSONObject response = await(perform(recordingActor, "countFail"));
+        Assert.assertEquals(Constants.AcknowledgeStatus.NG, response.get("status"));
+        Assert.assertEquals(1, recordingActor.sent.size());
+    }
+
+    /**
+     * 実行器が埋まったモジュールの実行依頼をすぐに断り、他のモジュールは動くか
+     * @throws Exception エラー
+     */
+    @Test
+    public void testOverloaded() throws Exception {
+        this.actor.addModule(MODULE, "1.0.0", "test module", this.module, new Bulkhead.Config(1, 0));
+        final BlockingQueue<JSONObject> blocked = perform(this.actor, "block");
+        Assert.assertTrue(this.module.blocking.await(10, TimeUnit.SECONDS));
+
+        final JSONObject response = await(perform(this.actor, "echo", "abcde"));
+        Assert.assertEquals(Constants.AcknowledgeStatus.NG, response.get("status"));
+        final JSONObject payload = response.getJSONObject("payload");
+        Assert.assertEquals("overloaded", payload.get("reason"));
+        Assert.assertEquals(MODULE, payload.get("module"));
+        Assert.assertEquals("echo", payload.get("method"));
+        Assert.assertEquals(1, this.actor.getBulkhead(MODULE).getRejectedCount());
+        Assert.assertEquals(1, this.actor.getBulkhead(MODULE).getActiveCount());
+
+        this.module.released.countDown();
+        Assert.assertEquals(Constants.AcknowledgeStatus.OK, await(blocked).get("status"));
+    }
+
+    /**
+     * Serialized なモジュールの関数を 1 つずつ実行するか
+     * @throws Exception エラー
+     */
+    @Test
+    public void testSerialized() throws Exception {
+        final SerializedClass serialized = new SerializedClass();
+        this.actor.addModule(MODULE, "1.0.0", "test module", serialized);
+        final List<BlockingQueue<JSONObject>> responses = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            responses.add(perform(this.actor, "work"));
+        }
+        for (final BlockingQueue<JSONObject> response : responses) {
+            Assert.assertEquals(Constants.AcknowledgeStatus.OK, await(response).get("status"));
+        }
+        Assert.assertEquals(1, serialized.maxRunning.get());
+    }
+
+    /**
+     * 割り込みを無視する関数が期限切れの後も動いている間は、次を実行しないか
+     * @throws Exception エラー
+     */
+    @Test
+    public void testSerializedAfterTimeout() throws Exception {
+        final SerializedClass serialized = new SerializedClass();
+        this.actor.addModule(MODULE, "1.0.0", "test module", serialized);
+        final JSONObject response = await(perform(this.actor, "stubborn"));
+        Assert.assertEquals("timeout", response.getJSONObject("payload").get("reason"));
+        Assert.assertEquals(1, serialized.running.get());
+        Assert.assertEquals(Constants.AcknowledgeStatus.OK, await(perform(this.actor, "work")).get("status"));
+        Assert.assertEquals(1, serialized.maxRunning.get());
+    }
+
+    /**
+     * 期限を過ぎたら実行を中断して失敗を返すか
+     * @throws Exception エラー
+     */
+    @Test
+    public void testDeadline() throws Exception {
+        final long start = System.nanoTime();
+        final JSONObject response = await(perform(this.actor, "hang"));
+        Assert.assertTrue(TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - start) < 10);
+        Assert.assertEquals(Constants.AcknowledgeStatus.NG, response.get("status"));
+        Assert.assertEquals("timeout", response.getJSONObject("payload").get("reason"));
+        Assert.assertTrue(this.module.interrupted.await(10, TimeUnit.SECONDS));
+    }
+
+    /**
+     * Actor 全体の期限を使うか
+     * @throws Exception エラー
+     */
+    @Test
+    public void testDefaultDeadline() throws Exception {
+        this.actor.setDefaultDeadline(100);
+        final BlockingQueue<JSONObject> responses = perform(this.actor, "block");
+        final JSONObject response = await(responses);
+        Assert.assertEquals(Constants.AcknowledgeStatus.NG, response.get("status"));
+        Assert.assertEquals("timeout", response.getJSONObject("payload").get("reason"));
+        // 中断された関数の失敗は送らない
+        Assert.assertNull(responses.poll(100, TimeUnit.MILLISECONDS));
+        Assert.assertEquals(Constants.AcknowledgeStatus.OK, await(perform(this.actor, "echo", "abcde")).get("status"));
+    }
+
+    /**
+     * 同じ引数の Idempotent な関数の実行依頼を実行中のものに相乗りさせるか
+     * @throws Exception エラー
+     */
+    @Test
+    public void testCoalesce() throws Exception {
+        final BlockingQueue<JSONObject> first = perform(this.actor, "read", "a");
+        Assert.assertTrue(this.module.reading.await(10, TimeUnit.SECONDS));
+        final BlockingQueue<JSONObject> second = perform(this.actor, "read", "a");
+        final BlockingQueue<JSONObject> third = perform(this.actor, "read", "a");
+        Assert.assertEquals(2, this.actor.getCoalescedCount());
+        this.module.readable.countDown();
+
+        for (final BlockingQueue<JSONObject> responses : Arrays.asList(first, second, third)) {
+            final JSONObject response = await(responses);
+            Assert.assertEquals(Constants.AcknowledgeStatus.OK, response.get("status"));
+            Assert.assertEquals("a1", response.get("payload"));
+        }
+        Assert.assertEquals(1, this.module.reads.get());
+
+        // 終わったものには相乗りしない
+        Assert.assertEquals("a2", await(perform(this.actor, "read", "a")).get("payload"));
+    }
+
+    /**
+     * 先に実行した呼び出しを取り消しても、相乗りした呼び出しには結果を送るか
+     * @throws Exception エラー
+     */
+    @Test
+    public void testCancelLeader() throws Exception {
+        final LocalHub hub = new LocalHub(this.actor, KEY);
+        final LocalHub.Call leader = hub.perform(MODULE, "read", "a");
+        Assert.assertTrue(this.module.reading.await(10, TimeUnit.SECONDS));
+        final LocalHub.Call follower = hub.perform(MODULE, "read", "a");
+        Assert.assertTrue(hub.cancel(leader));
+        Assert.assertEquals("cancelled", await(leader.getResponses()).getJSONObject("payload").get("reason"));
+
+        this.module.readable.countDown();
+        final JSONObject response = await(follower.getResponses());
+        Assert.assertEquals(Constants.AcknowledgeStatus.OK, response.get("status"));
+        Assert.assertEquals("a1", response.get("payload"));
+        Assert.assertNull(leader.getResponses().poll(100, TimeUnit.MILLISECONDS));
+    }
+
+    /**
+     * Cached な関数の結果を覚えておき、このスレッドで返すか
+     * @throws Exception エラー
+     */
+    @Test
+    public void testCache() throws Exception {
+        Assert.assertEquals("a1", await(perform(this.actor, "lookup", "a")).get("payload"));
+        final BlockingQueue<JSONObject> responses = perform(this.actor, "lookup", "a");
+        final JSONObject response = responses.poll();
+        Assert.assertNotNull(response);
+        Assert.assertEquals("a1", response.get("payload"));
+        Assert.assertEquals("b2", await(perform(this.actor, "lookup", "b")).get("payload"));
+
+        // 失敗は覚えない
+        Assert.assertEquals(Constants.AcknowledgeStatus.NG, await(perform(this.actor, "lookup", "")).get("status"));
+        Assert.assertEquals(Constants.AcknowledgeStatus.NG, await(perform(this.actor, "lookup", "")).get("status"));
+
+        final ResultCache cache = this.actor.getResultCache(MODULE, "lookup");
+        Assert.assertEquals(1, cache.getHitCount());
+        Assert.assertEquals(4, cache.getMissCount());
+        Assert.assertNull(this.actor.getResultCache(MODULE, "echo"));
+    }
+
+    /**
+     * NonBlocking な関数をこのスレッドで実行して応答するか
+     * @throws Exception エラー
+     */
+    @Test
+    public void testNonBlocking() throws Exception {
+        final BlockingQueue<JSONObject> responses = perform(this.actor, "add", 1, 2);
+        final JSONObject response = responses.poll();
+        Assert.assertNotNull(response);
+        Assert.assertEquals(Constants.AcknowledgeStatus.OK, response.get("status"));
+        Assert.assertEquals(3, response.get("payload"));
+        Assert.assertEquals(0, this.actor.getBulkhead(MODULE).getAcceptedCount());
+        Assert.assertEquals(0, this.actor.getInlineOverrunCount());
+    }
+
+    /**
+     * 同時実行数の制限の空きを待った NonBlocking な関数を、空きを返したスレッドでなく実行器で実行するか
+     * @throws Exception エラー
+     */
+    @Test
+    public void testNonBlockingAfterWait() throws Exception {
+        final SerializedClass serialized = new SerializedClass();
+        this.actor.addModule(MODULE, "1.0.0", "test module", serialized);
+        final BlockingQueue<JSONObject> working = perform(this.actor, "work");
+        final BlockingQueue<JSONObject> waiting = perform(this.actor, "quick");
+        Assert.assertNull(waiting.poll());
+        Assert.assertEquals(Constants.AcknowledgeStatus.OK, await(working).get("status"));
+        final JSONObject response = await(waiting);
+        Assert.assertEquals(Constants.AcknowledgeStatus.OK, response.get("status"));
+        Assert.assertEquals(0, response.get("payload"));
+        Assert.assertEquals(2, this.actor.getBulkhead(MODULE).getAcceptedCount());
+    }
+
+    /**
+     * NonBlocking な関数が長く掛かったら数えるか
+     * @throws Exception エラー
+     */
+    @Test
+    public void testNonBlockingOverrun() throws Exception {
+        final BlockingQueue<JSONObject> responses = perform(this.actor, "sleep", 200L);
+        Assert.assertNotNull(responses.poll());
+        Assert.assertEquals(1, this.actor.getInlineOverrunCount());
+
+        Assert.assertNotNull(perform(this.actor, "sleep", 0L).poll());
+        Thread.sleep(100);
+        Assert.assertEquals(1, this.actor.getInlineOverrunCount());
+    }
+
+    /**
+     * Ordered な関数を同じ引数なら届いた順に実行するか
+     * @throws Exception エラー
+     */
+    @Test
+    public void testOrdered() throws Exception {
+        final int n = 30;
+        final List<BlockingQueue<JSONObject>> responses = new ArrayList<>();
+        for (int i = 0; i < n; i++) {
+            responses.add(perform(this.actor, "append", "a", i));
+            responses.add(perform(this.actor, "append", "b", i));
+        }
+        for (final BlockingQueue<JSONObject> response : responses) {
+            Assert.assertEquals(Constants.AcknowledgeStatus.OK, await(response).get("status"));
+        }
+        for (final String name : new String[] { "a", "b" }) {
+            final List<Integer> appended = this.module.appended.get(name);
+            Assert.assertEquals(n, appended.size());
+            for (int i = 0; i < n; i++) {
+                Assert.assertEquals(i, (int) appended.get(i));
+            }
+        }
+        Assert.assertEquals(0, this.actor.getBulkhead(MODULE).getOrderedWaitingCount());
+    }
+
+    /**
+     * Ordered な関数の非同期な結果が出るまで、同じ鍵の次の実行依頼を始めないか
+     * @throws Exception エラー
+     */
+    @Test
+    public void testOrderedAsync() throws Exception {
+        final OrderedClass ordered = new OrderedClass();
+        this.actor.addModule(MODULE, "1.0.0", "test module", ordered);
+        final BlockingQueue<JSONObject> first = perform(this.actor, "start", "a");
+        final BlockingQueue<JSONObject> second = perform(this.actor, "start", "a");
+        Assert.assertNull(second.poll(100, TimeUnit.MILLISECONDS));
+        Assert.assertEquals(1, ordered.starts.get());
+
+        ordered.pending.complete("a1");
+        Assert.assertEquals("a1", await(first).get("payload"));
+        Assert.assertEquals("a2", await(second).get("payload"));
+    }
+
+    /**
+     * 同じ鍵の後ろで待っている間に期限切れになっても、次の実行依頼に進むか
+     * @throws Exception エラー
+     */
+    @Test
+    public void testOrderedTimeoutWhileWaiting() throws Exception {
+        final OrderedClass ordered = new OrderedClass();
+        this.actor.addModule(MODULE, "1.0.0", "test module", ordered);
+        final BlockingQueue<JSONObject> running = perform(this.actor, "hold", "a");
+        final BlockingQueue<JSONObject> waiting = perform(this.actor, "hold", "a");
+        Assert.assertEquals("timeout", await(running).getJSONObject("payload").get("reason"));
+        Assert.assertEquals("timeout", await(waiting).getJSONObject("payload").get("reason"));
+        final BlockingQueue<JSONObject> next = perform(this.actor, "next", "a");
+
+        ordered.released.countDown();
+        final JSONObject response = await(next);
+        Assert.assertEquals(Constants.AcknowledgeStatus.OK, response.get("status"));
+        Assert.assertEquals("a", response.get("payload"));
+        // 期限切れで諦めたものは実行しない
+        Assert.assertEquals(1, ordered.holds.get());
+        Assert.assertEquals(0, this.actor.getBulkhead(MODULE).getOrderedWaitingCount());
+    }
+
+    /**
+     * Ordered な関数の鍵を、キーの順番や数の型によらず中身で比べるか
+     * @throws Exception エラー
+     */
+    @Test
+    public void testOrderedStructuredKey() throws Exception {
+        final Map<String, Object> key1 = new LinkedHashMap<>();
+        key1.put("a", 1);
+        key1.put("b", Collections.singletonList(2));
+        final Map<String, Object> key2 = new LinkedHashMap<>();
+        key2.put("b", Collections.singletonList(2L));
+        key2.put("a", 1L);
+        final BlockingQueue<JSONObject> first = perform(this.actor, "lock", new JSONObject(key1));
+        final BlockingQueue<JSONObject> second = perform(this.actor, "peek", new JSONObject(key2));
+        final BlockingQueue<JSONObject> other = perform(this.actor, "peek", new JSONObject(Collections.singletonMap("a", 2)));
+        Assert.assertEquals("peek", await(other).get("payload"));
+        Assert.assertNull(second.poll(100, TimeUnit.MILLISECONDS));
+
+        this.module.locked.countDown();
+        Assert.assertEquals(Constants.AcknowledgeStatus.OK, await(first).get("status"));
+        Assert.assertEquals("peek", await(second).get("payload"));
+    }
+
+    /**
+     * 実行中のモジュール関数の情報を取り出せるか
+     * @throws Exception エラー
+     */
+    @Test
+    public void testContext() throws Exception {
+        final LocalHub hub = new LocalHub(this.actor, KEY);
+        final LocalHub.Call call = hub.perform(MODULE, "context");
+        Assert.assertEquals(MODULE + ".context:" + call.getPid(), await(call.getResponses()).get("payload"));
+        Assert.assertNull(PerformContext.current());
+    }
+
+    /**
+     * 呼び出し元からの取り消しで、実行中のモジュール関数に割り込むか
+     * @throws Exception エラー
+     */
+    @Test
+    public void testCancelInterrupt() throws Exception {
+        final LocalHub hub = new LocalHub(this.actor, KEY);
+        final LocalHub.Call call = hub.perform(MODULE, "block");
+        Assert.assertTrue(this.module.blocking.await(10, TimeUnit.SECONDS));
+        Assert.assertEquals(1, this.actor.getCancellableCount());
+        Assert.assertTrue(hub.cancel(call));
+
+        final JSONObject response = await(call.getResponses());
+        Assert.assertEquals(Constants.AcknowledgeStatus.NG, response.get("status"));
+        Assert.assertEquals("cancelled", response.getJSONObject("payload").get("reason"));
+        Assert.assertEquals(0, this.actor.getCancellableCount());
+        // 割り込まれた結果は送らない
+        Assert.assertNull(call.getResponses().poll(100, TimeUnit.MILLISECONDS));
+        Assert.assertFalse(hub.cancel(call));
+    }
+
+    /**
+     * 呼び出し元からの取り消しを、モジュール関数が PerformContext で知れるか
+     * @throws Exception エラー
+     */
+    @Test
+    public void testCancelPoll() throws Exception {
+        final LocalHub hub = new LocalHub(this.actor, KEY);
+        final LocalHub.Call call = hub.perform(MODULE, "spin");
+        Assert.assertTrue(this.module.spinning.await(10, TimeUnit.SECONDS));
+        Assert.assertTrue(hub.cancel(call));
+        Assert.assertTrue(this.module.spinStopped.await(10, TimeUnit.SECONDS));
+        Assert.assertEquals(Constants.AcknowledgeStatus.NG, await(call.getResponses()).get("status"));
+    }
+
+    /**
+     * 待ち行列にいる間に取り消したら実行しないか
+     * @throws Exception エラー
+     */
+    @Test
+    public void testCancelQueued() throws Exception {
+        this.actor.addModule(MODULE, "1.0.0", "test module", this.module, new Bulkhead.Config(1, 1));
+        final LocalHub hub = new LocalHub(this.actor, KEY);
+        final LocalHub.Call blocking = hub.perform(MODULE, "block");
+        Assert.assertTrue(this.module.blocking.await(10, TimeUnit.SECONDS));
+        final LocalHub.Call queued = hub.perform(MODULE, "lookup", "a");
+        Assert.assertTrue(hub.cancel(queued));
+        Assert.assertEquals(Constants.AcknowledgeStatus.NG, await(queued.getResponses()).get("status"));
+
+        this.module.released.countDown();
+        Assert.assertEquals(Constants.AcknowledgeStatus.OK, await(blocking.getResponses()).get("status"));
+        Thread.sleep(100);
+        Assert.assertEquals(0, this.module.lookups.get());
+    }
+
+    /**
+     * 途中経過を間引いて PIPE で送るか
+     * @throws Exception エラー
+     */
+    @Test
+    public void testProgress() throws Exception {
+        final RecordingActor recordingActor = new RecordingActor();
+        recordingActor.addModule(MODULE, "1.0.0", "test module", this.module);
+        recordingActor.setProgressInterval(20);
+        final LocalHub hub = new LocalHub(recordingActor, KEY);
+        final LocalHub.Call call = hub.perform(MODULE, "flash", 1000);
+        Assert.assertEquals(Constants.AcknowledgeStatus.OK, await(call.getResponses()).get("status"));
+
+        final int count = recordingActor.sent.size();
+        Assert.assertTrue(count >= 2);
+        Assert.assertTrue(count < 1000);
+        double last = 0;
+        for (int i = 0; i < count; i++) {
+            final JSONObject message = recordingActor.sent.poll();
+            Assert.assertEquals(MODULE, message.get("module"));
+            Assert.assertEquals(Actor.PROGRESS_EVENT, message.get("event"));
+            final JSONObject data = message.getJSONObject("data");
+            Assert.assertEquals(call.getPid(), data.get("pid"));
+            Assert.assertEquals(i, data.getInt("seq"));
+            final double progress = data.getDouble("progress");
+            Assert.assertTrue(progress > last);
+            last = progress;
+        }
+        Assert.assertEquals(1.0, last, 0);
+    }
+
+    /**
+     * 頻度の上限を超えた実行依頼をすぐに断り、呼び直せる時間を返すか
+     * @throws Exception エラー
+     */
+    @Test
+    public void testRateLimit() throws Exception {
+        Assert.assertEquals(Constants.AcknowledgeStatus.OK, await(perform(this.actor, "limited", "a")).get("status"));
+        Assert.assertEquals(Constants.AcknowledgeStatus.OK, await(perform(this.actor, "limited", "a")).get("status"));
+        // 引数が合わなくても変換する前に断る
+        final JSONObject response = perform(this.actor, "limited", "a", "b").poll();
+        Assert.assertNotNull(response);
+        Assert.assertEquals(Constants.AcknowledgeStatus.NG, response.get("status"));
+        final JSONObject payload = response.getJSONObject("payload");
+        Assert.assertEquals("rateLimited", payload.get("reason"));
+        Assert.assertEquals("limited", payload.get("method"));
+        final long retryAfter = payload.getLong("retryAfter");
+        Assert.assertTrue(retryAfter > 0);
+        Assert.assertTrue(retryAfter <= 10_001);
+        Assert.assertEquals(1, this.actor.getRateLimitedCount(MODULE, "limited"));
+
+        // 実行中に緩める
+        this.actor.setRateLimit(MODULE, "limited", 0, 0);
+        Assert.assertEquals(Constants.AcknowledgeStatus.OK, await(perform(this.actor, "limited", "a")).get("status"));
+    }
+
+    /**
+     * モジュール全体の頻度の上限を実行中に設定できるか
+     * @throws Exception エラー
+     */
+    @Test
+    public void testModuleRateLimit() throws Exception {
+        this.actor.setRateLimit(MODULE, null, 0.1, 1);
+        Assert.assertEquals(Constants.AcknowledgeStatus.OK, await(perform(this.actor, "echo", "a")).get("status"));
+        Assert.assertEquals(Constants.AcknowledgeStatus.NG, await(perform(this.actor, "noReturn")).get("status"));
+        Assert.assertEquals(1, this.actor.getRateLimitedCount(MODULE, null));
+    }
+
+    /**
+     * AdaptiveConcurrency の上限を超えた実行依頼をすぐに断るか
+     * @throws Exception エラー
+     */
+    @Test
+    public void testAdaptiveConcurrency() throws Exception {
+        final AdaptiveClass adaptive = new AdaptiveClass();
+        this.actor.addModule(MODULE, "1.0.0", "test module", adaptive);
+        final BlockingQueue<JSONObject> first = perform(this.actor, "work");
+        Assert.assertTrue(adaptive.working.await(10, TimeUnit.SECONDS));
+        final JSONObject rejected = perform(this.actor, "work").poll();
+        Assert.assertNotNull(rejected);
+        Assert.assertEquals("overloaded", rejected.getJSONObject("payload").get("reason"));
+
+        final AdaptiveConcurrencyLimiter limiter = this.actor.getAdaptiveLimiter(MODULE);
+        Assert.assertEquals(1, limiter.getLimit());
+        Assert.assertEquals(1, limiter.getInFlightCount());
+        Assert.assertEquals(1, limiter.getRejectedCount());
+
+        adaptive.released.countDown();
+        Assert.assertEquals(Constants.AcknowledgeStatus.OK, await(first).get("status"));
+        awaitCondition(() -> limiter.getInFlightCount() == 0);
+        Assert.assertNull(new Actor(KEY, "actor", "test actor").getAdaptiveLimiter(MODULE));
+    }
+
+    /**
+     * メモリの上限を超える実行依頼を断り、応答したら返すか
+     * @throws Exception エラー
+     */
+    @Test
+    public void testMemoryBudget() throws Exception {
+        this.actor.setMemoryBudget(100_000);
+        final StringBuilder large = new StringBuilder();
+        for (int i = 0; i < 60_000; i++) {
+            large.append('a');
+        }
+        final JSONObject tooLarge = await(perform(this.actor, "echo", large.toString()));
+        Assert.assertEquals(Constants.AcknowledgeStatus.NG, tooLarge.get("status"));
+        Assert.assertEquals("tooLarge", tooLarge.getJSONObject("payload").get("reason"));
+
+        final BlockingQueue<JSONObject> blocked = perform(this.actor, "keep", large.substring(0, 10_000));
+        Assert.assertTrue(this.module.blocking.await(10, TimeUnit.SECONDS));
+        final MemoryBudget budget = this.actor.getMemoryBudget();
+        // 文字列は変換で写さないので 1 回だけ数える
+        Assert.assertTrue(budget.getUsed() > 20_000);
+        Assert.assertTrue(budget.getUsed() < 40_000);
+        this.module.released.countDown();
+        Assert.assertEquals(Constants.AcknowledgeStatus.OK, await(blocked).get("status"));
+        awaitCondition(() -> budget.getUsed() == 0);
+        Assert.assertEquals(1, budget.getRejectedCount());
+
+        this.actor.setMemoryBudget(0);
+        Assert.assertNull(this.actor.getMemoryBudget());
+        Assert.assertEquals(Constants.AcknowledgeStatus.OK, await(perform(this.actor, "echo", large.toString())).get("status"));
+    }
+
+    /**
+     * 期限切れで応答しても、実行が終わるまでメモリを返さないか
+     * @throws Exception エラー
+     */
+    @Test
+    public void testMemoryBudgetAfterTimeout() throws Exception {
+        this.actor.setMemoryBudget(100_000);
+        this.actor.setDefaultDeadline(50);
+        final JSONObject response = await(perform(this.actor, "hold", "abcde"));
+        Assert.assertEquals("timeout", response.getJSONObject("payload").get("reason"));
+        final MemoryBudget budget = this.actor.getMemoryBudget();
+        Assert.assertTrue(budget.getUsed() > 0);
+        this.module.released.countDown();
+        awaitCondition(() -> budget.getUsed() == 0);
+    }
+
+    /**
+     * 失敗が続いたら実行せずに断り、時間を置いて回復を確かめるか
+     * @throws Exception エラー
+     */
+    @Test
+    public void testCircuitBreaker() throws Exception {
+        Assert.assertEquals(Constants.AcknowledgeStatus.OK, await(perform(this.actor, "flaky", false)).get("status"));
+        Assert.assertEquals(Constants.AcknowledgeStatus.NG, await(perform(this.actor, "flaky", true)).get("status"));
+        final Circuit circuit = this.actor.getCircuit(MODULE, "flaky");
+        Assert.assertEquals(Circuit.State.OPEN, circuit.getState());
+
+        // 実行せずにこのスレッドで断る
+        final JSONObject rejected = perform(this.actor, "flaky", false).poll();
+        Assert.assertNotNull(rejected);
+        final JSONObject payload = rejected.getJSONObject("payload");
+        Assert.assertEquals("circuitOpen", payload.get("reason"));
+        Assert.assertTrue(payload.getLong("retryAfter") > 0);
+        Assert.assertEquals(1, circuit.getRejectedCount());
+
+        // 半開きで失敗したらまた開く
+        Thread.sleep(150);
+        Assert.assertEquals(Constants.AcknowledgeStatus.NG, await(perform(this.actor, "flaky", true)).get("status"));
+        Assert.assertEquals(Circuit.State.OPEN, circuit.getState());
+        Assert.assertEquals(2, circuit.getOpenedCount());
+
+        // 半開きで成功したら閉じる
+        Thread.sleep(150);
+        Assert.assertEquals(Constants.AcknowledgeStatus.OK, await(perform(this.actor, "flaky", false)).get("status"));
+        Assert.assertEquals(Circuit.State.CLOSED, circuit.getState());
+        Assert.assertNull(this.actor.getCircuit(MODULE, "echo"));
+    }
+
+    /**
+     * 相乗りした呼び出しは AdaptiveConcurrency の枠も応答時間の記録も使わないか
+     * @throws Exception エラー
+     */
+    @Test
+    public void testAdaptiveSingleFlight() throws Exception {
+        final AdaptiveClass adaptive = new AdaptiveClass();
+        this.actor.addModule(MODULE, "1.0.0", "test module", adaptive);
+        final BlockingQueue<JSONObject> leader = perform(this.actor, "share");
+        Assert.assertTrue(adaptive.working.await(10, TimeUnit.SECONDS));
+        final BlockingQueue<JSONObject> follower = perform(this.actor, "share");
+        Assert.assertNull(follower.poll(50, TimeUnit.MILLISECONDS));
+        final AdaptiveConcurrencyLimiter limiter = this.actor.getAdaptiveLimiter(MODULE);
+        Assert.assertEquals(1, limiter.getInFlightCount());
+        Assert.assertEquals(0, limiter.getRejectedCount());
+
+        adaptive.released.countDown();
+        Assert.assertEquals("shared", await(leader).get("payload"));
+        Assert.assertEquals("shared", await(follower).get("payload"));
+        awaitCondition(() -> limiter.getInFlightCount() == 0);
+    }
+
+    /**
+     * 半開きの遮断器で、相乗りした呼び出しが試しの枠を使わないか
+     * @throws Exception エラー
+     */
+    @Test
+    public void testCircuitBreakerSingleFlight() throws Exception {
+        Assert.assertEquals(Constants.AcknowledgeStatus.OK, await(perform(this.actor, "probe", "ok")).get("status"));
+        Assert.assertEquals(Constants.AcknowledgeStatus.NG, await(perform(this.actor, "probe", "fail")).get("status"));
+        final Circuit circuit = this.actor.getCircuit(MODULE, "probe");
+        Assert.assertEquals(Circuit.State.OPEN, circuit.getState());
+
+        Thread.sleep(150);
+        final BlockingQueue<JSONObject> leader = perform(this.actor, "probe", "wait");
+        Assert.assertTrue(this.module.probing.await(10, TimeUnit.SECONDS));
+        final BlockingQueue<JSONObject> follower = perform(this.actor, "probe", "wait");
+        Assert.assertNull(follower.poll(50, TimeUnit.MILLISECONDS));
+        Assert.assertEquals(0, circuit.getRejectedCount());
+
+        this.module.probed.countDown();
+        Assert.assertEquals("up", await(leader).get("payload"));
+        Assert.assertEquals("up", await(follower).get("payload"));
+        Assert.assertEquals(Circuit.State.CLOSED, circuit.getState());
+    }
+
+}
@@ -0,0 +1,122 @@
+package jp.realglobe.sugo.actor;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * AdaptiveConcurrencyLimiter のテスト
+ */
+public class AdaptiveConcurrencyLimiterTest {
+
+    /**
+     * 上限まで使い、応答時間を記録する
+     * @param limiter 制限
+     * @param rttMillis 応答時間 (ミリ秒)
+     * @return 得た空きの数
+     */
+    private static int round(final AdaptiveConcurrencyLimiter limiter, final long rttMillis) {
+        int count = 0;
+        while (limiter.tryAcquire()) {
+            count++;
+        }
+        for (int i = 0; i < count; i++) {
+            limiter.release(TimeUnit.MILLISECONDS.toNanos(rttMillis));
+        }
+        return count;
+    }
+
+    /**
+     * 上限に空きが無ければ断るか
+     */
+    @Test
+    public void testReject() {
+        final AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(2, 1, 10);
+        Assert.assertTrue(limiter.tryAcquire());
+        Assert.assertTrue(limiter.tryAcquire());
+        Assert.assertFalse(limiter.tryAcquire());
+        Assert.assertEquals(2, limiter.getInFlightCount());
+        Assert.assertEquals(1, limiter.getRejectedCount());
+        Assert.assertTrue(limiter.getRejectionRate() > 0);
+        limiter.release(1_000_000);
+        Assert.assertTrue(limiter.tryAcquire());
+    }
+
+    /**
+     * 実行しなかった呼び出しでは上限を変えずに空きだけ返すか
+     */
+    @Test
+    public void testAbandon() {
+        final AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(10, 1, 100);
+        for (int i = 0; i < 50; i++) {
+            int count = 0;
+            while (limiter.tryAcquire()) {
+                count++;
+            }
+            for (int j = 0; j < count; j++) {
+                limiter.abandon();
+            }
+        }
+        Assert.assertEquals(10, limiter.getLimit());
+        Assert.assertEquals(0, limiter.getInFlightCount());
+    }
+
+    /**
+     * 応答時間が変わらず上限まで使っていれば上限を広げるか
+     */
+    @Test
+    public void testIncrease() {
+        final AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(10, 1, 100);
+        for (int i = 0; i < 50; i++) {
+            round(limiter, 10);
+        }
+        Assert.assertTrue(limiter.getLimit() > 10);
+        Assert.assertTrue(limiter.getLimit() <= 100);
+    }
+
+    /**
+     * 応答時間が基準より遅れたら上限を縮めるか
+     */
+    @Test
+    public void testDecrease() {
+        final AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(20, 2, 100);
+        for (int i = 0; i < 5; i++) {
+            round(limiter, 10);
+        }
+        final int before = limiter.getLimit();
+        round(limiter, 100);
+        Assert.assertTrue(limiter.getLimit() < before);
+        Assert.assertTrue(limiter.getLimit() >= 2);
+        Assert.assertTrue(limiter.getRecentLatency() > limiter.getBaselineLatency());
+
+        // 遅いままなら基準が追い付き、また広げ始める
+        final int shrunk = limiter.getLimit();
+        for (int i = 0; i < 20; i++) {
+            round(limiter, 100);
+        }
+        Assert.assertTrue(limiter.getLimit() > shrunk);
+    }
+
+    /**
+     * 上限まで使っていなければ広げないか
+     */
+    @Test
+    public void testIdle() {
+        final AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(10, 1, 100);
+        for (int i = 0; i < 100; i++) {
+            Assert.assertTrue(limiter.tryAcquire());
+            limiter.release(TimeUnit.MILLISECONDS.toNanos(10));
+        }
+        Assert.assertEquals(10, limiter.getLimit());
+    }
+
+    /**
+     * おかしな設定を断るか
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalid() {
+        new AdaptiveConcurrencyLimiter(5, 10, 20);
+    }
+
+}
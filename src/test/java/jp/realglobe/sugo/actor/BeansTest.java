@@ -0,0 +1,156 @@
+package jp.realglobe.sugo.actor;
+
+import java.lang.reflect.Type;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.json.JSONObject;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Beans のテスト
+ */
+public class BeansTest {
+
+    /**
+     * フィールドで受けるクラス
+     */
+    public static class Point {
+        public double x;
+        public double y;
+    }
+
+    /**
+     * setter で受けるクラス
+     */
+    public static class Line {
+
+        private String name;
+        private Point start;
+        private List<Point> points;
+        private Line next;
+
+        public void setName(final String name) {
+            this.name = name;
+        }
+
+        public Line setStart(final Point start) {
+            this.start = start;
+            return this;
+        }
+
+        public void setPoints(final List<Point> points) {
+            this.points = points;
+        }
+
+        public void setNext(final Line next) {
+            this.next = next;
+        }
+
+    }
+
+    private static class TestClass {
+
+        @ModuleMethod
+        public double length(final Line line) {
+            double length = 0;
+            Point previous = line.start;
+            for (final Point point : line.points) {
+                length += Math.hypot(point.x - previous.x, point.y - previous.y);
+                previous = point;
+            }
+            return length;
+        }
+
+    }
+
+    private static Map<String, Object> point(final double x, final double y) {
+        final Map<String, Object> point = new HashMap<>();
+        point.put("x", x);
+        point.put("y", y);
+        return point;
+    }
+
+    /**
+     * 対象になるクラスを判別できるか
+     */
+    @Test
+    public void testIsBindable() {
+        Assert.assertTrue(Beans.isBindable(Point.class));
+        Assert.assertTrue(Beans.isBindable(Line.class));
+        Assert.assertFalse(Beans.isBindable(String.class));
+        Assert.assertFalse(Beans.isBindable(HashMap.class));
+        Assert.assertFalse(Beans.isBindable(Emitter.class));
+    }
+
+    /**
+     * JSONObject から直接つくれるか
+     */
+    @Test
+    public void testConvertJSONObject() {
+        final Map<String, Object> data = new HashMap<>();
+        data.put("name", "line");
+        data.put("start", point(1, 2));
+        data.put("points", new Object[] { point(3, 4) });
+        final Map<String, Object> next = new HashMap<>();
+        next.put("name", "next");
+        data.put("next", next);
+        data.put("unknown", true);
+
+        final Line line = (Line) Converters.of(Line.class).convert(new JSONObject(data));
+        Assert.assertEquals("line", line.name);
+        Assert.assertEquals(1.0, line.start.x, 0);
+        Assert.assertEquals(2.0, line.start.y, 0);
+        Assert.assertEquals(1, line.points.size());
+        Assert.assertEquals(3.0, line.points.get(0).x, 0);
+        Assert.assertEquals("next", line.next.name);
+    }
+
+    /**
+     * JsonUtils の出力からもつくれるか
+     */
+    @Test
+    public void testConvertMap() {
+        final Point point = (Point) Converters.of(Point.class).convert(point(1, 2));
+        Assert.assertEquals(1.0, point.x, 0);
+        Assert.assertEquals(2.0, point.y, 0);
+    }
+
+    /**
+     * 型の合わない要素を拒否するか
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void testMismatch() {
+        final Map<String, Object> data = new HashMap<>();
+        data.put("x", "a");
+        Converters.of(Point.class).convert(new JSONObject(data));
+    }
+
+    /**
+     * 要素の並びを返せるか
+     */
+    @Test
+    public void testGetLayout() {
+        final Map<String, Type> layout = Beans.getLayout(Point.class);
+        Assert.assertEquals(double.class, layout.get("x"));
+        Assert.assertEquals(double.class, layout.get("y"));
+        Assert.assertNull(Beans.getLayout(String.class));
+    }
+
+    /**
+     * モジュール関数の引数にできるか
+     * @throws Exception エラー
+     */
+    @Test
+    public void testModuleMethod() throws Exception {
+        final Map<String, Object> data = new HashMap<>();
+        data.put("start", point(0, 0));
+        data.put("points", new Object[] { point(3, 4), point(3, 0) });
+        final Module module = new Module("1.0.0", null, new TestClass());
+        Assert.assertEquals(9.0, module.invoke("length", new Object[] { new JSONObject(data) }));
+        Assert.assertEquals(9.0, module.invoke("length", new Object[] { data }));
+    }
+
+}
@@ -0,0 +1,108 @@
+package jp.realglobe.sugo.actor;
+
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Blocking のテスト
+ */
+public class BlockingTest {
+
+    private static final Runnable NOTHING = new Runnable() {
+        @Override
+        public void run() {}
+    };
+
+    private Bulkhead bulkhead;
+
+    /**
+     * 後始末
+     */
+    @After
+    public void after() {
+        if (this.bulkhead != null) {
+            this.bulkhead.shutdown();
+        }
+    }
+
+    /**
+     * ForkJoinPool の外ではそのまま実行するか
+     * @throws Exception エラー
+     */
+    @Test
+    public void testOutside() throws Exception {
+        Assert.assertEquals("a", Blocking.call(new Callable<String>() {
+            @Override
+            public String call() {
+                return "a";
+            }
+        }));
+        try {
+            Blocking.call(new Callable<String>() {
+                @Override
+                public String call() throws Exception {
+                    throw new IOException("fail");
+                }
+            });
+            Assert.fail();
+        } catch (final IOException e) {
+            Assert.assertEquals("fail", e.getMessage());
+        }
+    }
+
+    /**
+     * 待っている間はスレッドを補って、並列度 1 でも他の処理を実行するか
+     * @throws Exception エラー
+     */
+    @Test
+    public void testCompensation() throws Exception {
+        this.bulkhead = new Bulkhead("module", new Bulkhead.Config(1, 1, Bulkhead.RejectionPolicy.REJECT_NEW, Bulkhead.ThreadMode.WORK_STEALING));
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(1);
+        Assert.assertTrue(this.bulkhead.submit(new Runnable() {
+            @Override
+            public void run() {
+                started.countDown();
+                try {
+                    Blocking.call(new Callable<Boolean>() {
+                        @Override
+                        public Boolean call() throws InterruptedException {
+                            return release.await(10, TimeUnit.SECONDS);
+                        }
+                    });
+                } catch (final Exception e) {
+                    throw new RuntimeException(e);
+                }
+                done.countDown();
+            }
+        }, NOTHING));
+        Assert.assertTrue(started.await(10, TimeUnit.SECONDS));
+        Assert.assertTrue(this.bulkhead.submit(new Runnable() {
+            @Override
+            public void run() {
+                release.countDown();
+            }
+        }, NOTHING));
+        Assert.assertTrue(release.await(5, TimeUnit.SECONDS));
+        Assert.assertTrue(done.await(10, TimeUnit.SECONDS));
+    }
+
+    /**
+     * 眠れるか
+     * @throws Exception エラー
+     */
+    @Test
+    public void testSleep() throws Exception {
+        final long start = System.nanoTime();
+        Blocking.sleep(20);
+        Assert.assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(20));
+    }
+
+}
@@ -0,0 +1,91 @@
+package jp.realglobe.sugo.actor;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import io.socket.client.Ack;
+import jp.realglobe.sg.socket.Constants;
+
+/**
+ * 普通のスレッドと仮想スレッドでの実行の比較。
+ * 待ちの長いモジュール関数の実行依頼を一度に大量に送り、全ての応答が揃うまでの時間を計る
+ */
+public class BulkheadBenchmark {
+
+    private static final String KEY = "actor0";
+    private static final String MODULE = "module";
+
+    private static class TestClass {
+
+        @ModuleMethod
+        public String echoWithDelay(final String s, final double delay) {
+            try {
+                Thread.sleep((long) (delay * 1_000));
+            } catch (final InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+            return s;
+        }
+
+    }
+
+    private static final int CALLS = 10_000;
+    private static final double DELAY = 0.1;
+    private static final int PLATFORM_THREADS = 200;
+    private static final int VIRTUAL_THREADS = CALLS;
+
+    private static long measure(final Bulkhead.Config config) throws InterruptedException {
+        final Actor actor = new Actor(KEY, "actor", "benchmark actor");
+        actor.addModule(MODULE, "1.0.0", "benchmark module", new TestClass(), config);
+        final CountDownLatch done = new CountDownLatch(CALLS);
+        final AtomicInteger failures = new AtomicInteger();
+        final Ack ack = new Ack() {
+            @Override
+            public void call(final Object... args) {
+                if (!Constants.AcknowledgeStatus.OK.equals(((JSONObject) args[0]).get("status"))) {
+                    failures.incrementAndGet();
+                }
+                done.countDown();
+            }
+        };
+
+        final long start = System.nanoTime();
+        for (int i = 0; i < CALLS; i++) {
+            final Map<String, Object> data = new HashMap<>();
+            data.put("key", KEY);
+            data.put("module", MODULE);
+            data.put("method", "echoWithDelay");
+            data.put("params", new JSONArray(new Object[] { "abcde", DELAY }));
+            actor.perform(new Object[] { new JSONObject(data), ack });
+        }
+        if (!done.await(10, TimeUnit.MINUTES)) {
+            throw new IllegalStateException("timed out");
+        }
+        final long elapsed = System.nanoTime() - start;
+        if (failures.get() > 0) {
+            throw new IllegalStateException(failures.get() + " calls failed");
+        }
+        System.out.println(String.format("%s: %d ms, largest pool %d", config, TimeUnit.NANOSECONDS.toMillis(elapsed), actor.getBulkhead(MODULE).getLargestPoolSize()));
+        return elapsed;
+    }
+
+    /**
+     * 計測する
+     * @param args 実行引数
+     * @throws Exception エラー
+     */
+    public static void main(final String[] args) throws Exception {
+        if (!Bulkhead.isVirtualThreadSupported()) {
+            System.out.println("Virtual threads are not available on this JVM. Both runs use platform threads");
+        }
+        measure(new Bulkhead.Config(PLATFORM_THREADS, CALLS, Bulkhead.RejectionPolicy.REJECT_NEW, Bulkhead.ThreadMode.PLATFORM));
+        measure(new Bulkhead.Config(VIRTUAL_THREADS, CALLS, Bulkhead.RejectionPolicy.REJECT_NEW, Bulkhead.ThreadMode.VIRTUAL));
+    }
+
+}
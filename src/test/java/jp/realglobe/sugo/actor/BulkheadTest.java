@@ -0,0 +1,358 @@
+package jp.realglobe.sugo.actor;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Test;
+
+/**
+ * Bulkhead のテスト
+ */
+public class BulkheadTest {
+
+    private static final Runnable NOTHING = new Runnable() {
+        @Override
+        public void run() {}
+    };
+
+    private Bulkhead bulkhead;
+
+    /**
+     * 後始末
+     */
+    @After
+    public void after() {
+        if (this.bulkhead != null) {
+            this.bulkhead.shutdown();
+        }
+    }
+
+    private static Runnable await(final CountDownLatch started, final CountDownLatch release) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                started.countDown();
+                try {
+                    release.await();
+                } catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+    }
+
+    /**
+     * スレッドと待ち行列が埋まったら断るか
+     * @throws Exception エラー
+     */
+    @Test
+    public void testReject() throws Exception {
+        this.bulkhead = new Bulkhead("module", new Bulkhead.Config(2, 1));
+        final CountDownLatch started = new CountDownLatch(2);
+        final CountDownLatch release = new CountDownLatch(1);
+        Assert.assertTrue(this.bulkhead.submit(await(started, release), NOTHING));
+        Assert.assertTrue(this.bulkhead.submit(await(started, release), NOTHING));
+        Assert.assertTrue(started.await(10, TimeUnit.SECONDS));
+        Assert.assertTrue(this.bulkhead.submit(await(new CountDownLatch(1), release), NOTHING));
+        Assert.assertFalse(this.bulkhead.submit(await(new CountDownLatch(1), release), NOTHING));
+
+        Assert.assertEquals(2, this.bulkhead.getActiveCount());
+        Assert.assertEquals(1, this.bulkhead.getQueuedCount());
+        Assert.assertEquals(3, this.bulkhead.getAcceptedCount());
+        Assert.assertEquals(1, this.bulkhead.getRejectedCount());
+
+        release.countDown();
+        final long deadline = System.currentTimeMillis() + 10_000;
+        while (this.bulkhead.getCompletedCount() < 3 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        Assert.assertEquals(3, this.bulkhead.getCompletedCount());
+        Assert.assertEquals(2, this.bulkhead.getLargestPoolSize());
+        Assert.assertTrue(this.bulkhead.submit(await(new CountDownLatch(1), release), NOTHING));
+    }
+
+    /**
+     * 待ち行列の長さが 0 なら空きスレッドが無いときに断るか
+     * @throws Exception エラー
+     */
+    @Test
+    public void testNoQueue() throws Exception {
+        this.bulkhead = new Bulkhead("module", new Bulkhead.Config(1, 0));
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        Assert.assertTrue(this.bulkhead.submit(await(started, release), NOTHING));
+        Assert.assertTrue(started.await(10, TimeUnit.SECONDS));
+        Assert.assertFalse(this.bulkhead.submit(await(new CountDownLatch(1), release), NOTHING));
+        release.countDown();
+    }
+
+    /**
+     * DROP_OLDEST なら最も古い待ちを追い出して受け付けるか
+     * @throws Exception エラー
+     */
+    @Test
+    public void testDropOldest() throws Exception {
+        this.bulkhead = new Bulkhead("module", new Bulkhead.Config(1, 2, Bulkhead.RejectionPolicy.DROP_OLDEST));
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final List<Integer> rejected = new ArrayList<>();
+        Assert.assertTrue(this.bulkhead.submit(await(started, release), NOTHING));
+        Assert.assertTrue(started.await(10, TimeUnit.SECONDS));
+        for (int i = 0; i < 4; i++) {
+            final int id = i;
+            Assert.assertTrue(this.bulkhead.submit(await(new CountDownLatch(1), release), new Runnable() {
+                @Override
+                public void run() {
+                    rejected.add(id);
+                }
+            }));
+        }
+        Assert.assertEquals(Arrays.asList(0, 1), rejected);
+        Assert.assertEquals(2, this.bulkhead.getDroppedCount());
+        Assert.assertEquals(0, this.bulkhead.getRejectedCount());
+        Assert.assertEquals(2, this.bulkhead.getQueuedCount());
+        release.countDown();
+    }
+
+    /**
+     * 断ったときに断られたときの処理を呼ぶか
+     * @throws Exception エラー
+     */
+    @Test
+    public void testOnRejected() throws Exception {
+        this.bulkhead = new Bulkhead("module", new Bulkhead.Config(1, 0));
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        Assert.assertTrue(this.bulkhead.submit(await(started, release), NOTHING));
+        Assert.assertTrue(started.await(10, TimeUnit.SECONDS));
+        final boolean[] rejected = new boolean[1];
+        Assert.assertFalse(this.bulkhead.submit(await(new CountDownLatch(1), release), new Runnable() {
+            @Override
+            public void run() {
+                rejected[0] = true;
+            }
+        }));
+        Assert.assertTrue(rejected[0]);
+        release.countDown();
+    }
+
+    /**
+     * VIRTUAL なら仮想スレッドで実行するか。仮想スレッドの無い JVM では普通のスレッドで実行するか
+     * @throws Exception エラー
+     */
+    @Test
+    public void testVirtual() throws Exception {
+        this.bulkhead = new Bulkhead("module", new Bulkhead.Config(1, 1, Bulkhead.RejectionPolicy.REJECT_NEW, Bulkhead.ThreadMode.VIRTUAL));
+        Assert.assertEquals(Bulkhead.isVirtualThreadSupported(), this.bulkhead.isVirtual());
+        final Thread[] thread = new Thread[1];
+        final CountDownLatch done = new CountDownLatch(1);
+        Assert.assertTrue(this.bulkhead.submit(new Runnable() {
+            @Override
+            public void run() {
+                thread[0] = Thread.currentThread();
+                done.countDown();
+            }
+        }, NOTHING));
+        Assert.assertTrue(done.await(10, TimeUnit.SECONDS));
+        if (Bulkhead.isVirtualThreadSupported()) {
+            Assert.assertEquals(Boolean.TRUE, Thread.class.getMethod("isVirtual").invoke(thread[0]));
+        }
+    }
+
+    /**
+     * 仮想スレッドの無い JVM で VIRTUAL を指定しても、普通のスレッドを上限を超えてつくらないか
+     * @throws Exception エラー
+     */
+    @Test
+    public void testVirtualFallbackLimit() throws Exception {
+        Assume.assumeTrue(!Bulkhead.isVirtualThreadSupported());
+        this.bulkhead = new Bulkhead("module", new Bulkhead.Config(10_000, 0, Bulkhead.RejectionPolicy.REJECT_NEW, Bulkhead.ThreadMode.VIRTUAL));
+        final CountDownLatch started = new CountDownLatch(Bulkhead.PLATFORM_THREAD_LIMIT);
+        final CountDownLatch release = new CountDownLatch(1);
+        try {
+            for (int i = 0; i < Bulkhead.PLATFORM_THREAD_LIMIT; i++) {
+                Assert.assertTrue(this.bulkhead.submit(await(started, release), NOTHING));
+            }
+            Assert.assertTrue(started.await(10, TimeUnit.SECONDS));
+            Assert.assertFalse(this.bulkhead.submit(NOTHING, NOTHING));
+            Assert.assertEquals(Bulkhead.PLATFORM_THREAD_LIMIT, this.bulkhead.getLargestPoolSize());
+        } finally {
+            release.countDown();
+        }
+    }
+
+    private static final class Sum extends RecursiveTask<Long> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int from;
+        private final int to;
+
+        Sum(final int from, final int to) {
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected Long compute() {
+            if (this.to - this.from <= 100) {
+                long sum = 0;
+                for (int i = this.from; i < this.to; i++) {
+                    sum += i;
+                }
+                return sum;
+            }
+            final int middle = (this.from + this.to) / 2;
+            final Sum left = new Sum(this.from, middle);
+            left.fork();
+            return new Sum(middle, this.to).compute() + left.join();
+        }
+
+    }
+
+    /**
+     * WORK_STEALING なら ForkJoinPool で実行し、中で fork したものも同じプールで実行するか
+     * @throws Exception エラー
+     */
+    @Test
+    public void testWorkStealing() throws Exception {
+        this.bulkhead = new Bulkhead("module", new Bulkhead.Config(2, 0, Bulkhead.RejectionPolicy.REJECT_NEW, Bulkhead.ThreadMode.WORK_STEALING));
+        final Object[] result = new Object[2];
+        final CountDownLatch done = new CountDownLatch(1);
+        Assert.assertTrue(this.bulkhead.submit(new Runnable() {
+            @Override
+            public void run() {
+                result[0] = Thread.currentThread();
+                result[1] = new Sum(0, 10_000).fork().join();
+                done.countDown();
+            }
+        }, NOTHING));
+        Assert.assertTrue(done.await(10, TimeUnit.SECONDS));
+        Assert.assertTrue(result[0] instanceof ForkJoinWorkerThread);
+        Assert.assertTrue(((Thread) result[0]).getName().startsWith("sugo-actor-module-"));
+        Assert.assertEquals(49_995_000L, result[1]);
+        Assert.assertFalse(this.bulkhead.isVirtual());
+    }
+
+    /**
+     * WORK_STEALING でも並列度と待ち行列の長さを超えたら断るか
+     * @throws Exception エラー
+     */
+    @Test
+    public void testWorkStealingRejection() throws Exception {
+        this.bulkhead = new Bulkhead("module", new Bulkhead.Config(1, 1, Bulkhead.RejectionPolicy.REJECT_NEW, Bulkhead.ThreadMode.WORK_STEALING));
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        Assert.assertTrue(this.bulkhead.submit(await(started, release), NOTHING));
+        Assert.assertTrue(started.await(10, TimeUnit.SECONDS));
+        Assert.assertTrue(this.bulkhead.submit(NOTHING, NOTHING));
+        final boolean[] rejected = new boolean[1];
+        Assert.assertFalse(this.bulkhead.submit(NOTHING, new Runnable() {
+            @Override
+            public void run() {
+                rejected[0] = true;
+            }
+        }));
+        Assert.assertTrue(rejected[0]);
+        Assert.assertEquals(1, this.bulkhead.getRejectedCount());
+
+        release.countDown();
+        final long deadline = System.currentTimeMillis() + 10_000;
+        while (this.bulkhead.getCompletedCount() < 2 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        Assert.assertEquals(2, this.bulkhead.getCompletedCount());
+        Assert.assertTrue(this.bulkhead.submit(NOTHING, NOTHING));
+    }
+
+    /**
+     * 待ち行列から優先度の高いものを先に実行するか
+     * @throws Exception エラー
+     */
+    @Test
+    public void testPriority() throws Exception {
+        this.bulkhead = new Bulkhead("module", new Bulkhead.Config(1, 10));
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        Assert.assertTrue(this.bulkhead.submit(await(started, release), NOTHING));
+        Assert.assertTrue(started.await(10, TimeUnit.SECONDS));
+
+        final List<Integer> order = Collections.synchronizedList(new ArrayList<Integer>());
+        final CountDownLatch done = new CountDownLatch(3);
+        for (final int priority : new int[] { Priority.MIN, Priority.NORMAL, Priority.MAX }) {
+            Assert.assertTrue(this.bulkhead.submit(new Runnable() {
+                @Override
+                public void run() {
+                    order.add(priority);
+                    done.countDown();
+                }
+            }, NOTHING, priority));
+        }
+        Assert.assertEquals(1, this.bulkhead.getQueuedCount(Priority.MIN));
+        Assert.assertEquals(1, this.bulkhead.getQueuedCount(Priority.MAX));
+        Assert.assertEquals(0, this.bulkhead.getQueuedCount(Priority.MAX - 1));
+
+        release.countDown();
+        Assert.assertTrue(done.await(10, TimeUnit.SECONDS));
+        Assert.assertEquals(Arrays.asList(Priority.MAX, Priority.NORMAL, Priority.MIN), order);
+    }
+
+    /**
+     * おかしな設定を拒否するか
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidConfig() {
+        new Bulkhead.Config(0, 1);
+    }
+
+    /**
+     * 目標より短い interval を拒否するか
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidQueueDelay() {
+        new Bulkhead.Config(1, 1).withQueueDelay(100, 50, false);
+    }
+
+    /**
+     * 待ち行列で待ち過ぎた実行依頼を実行せずに断るか
+     * @throws Exception エラー
+     */
+    @Test
+    public void testQueueDelay() throws Exception {
+        this.bulkhead = new Bulkhead("module", new Bulkhead.Config(1, 10).withQueueDelay(20, 50, true));
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        Assert.assertTrue(this.bulkhead.submit(await(started, release), NOTHING));
+        Assert.assertTrue(started.await(10, TimeUnit.SECONDS));
+        final CountDownLatch rejected = new CountDownLatch(1);
+        final boolean[] ran = new boolean[1];
+        Assert.assertTrue(this.bulkhead.submit(new Runnable() {
+            @Override
+            public void run() {
+                ran[0] = true;
+            }
+        }, new Runnable() {
+            @Override
+            public void run() {
+                rejected.countDown();
+            }
+        }));
+        Thread.sleep(100);
+        Assert.assertTrue(this.bulkhead.isOverloaded());
+        release.countDown();
+        Assert.assertTrue(rejected.await(10, TimeUnit.SECONDS));
+        Assert.assertFalse(ran[0]);
+        Assert.assertEquals(1, this.bulkhead.getStaleCount());
+        Assert.assertTrue(this.bulkhead.getConfig().isAdaptiveLifo());
+    }
+
+}
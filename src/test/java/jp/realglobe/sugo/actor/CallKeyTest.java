@@ -0,0 +1,43 @@
+package jp.realglobe.sugo.actor;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * CallKey のテスト
+ */
+public class CallKeyTest {
+
+    /**
+     * 同じ引数を同じキーにするか
+     */
+    @Test
+    public void testEquals() {
+        final Map<String, Object> object = new HashMap<>();
+        object.put("a", Arrays.asList(1, 2));
+        final CallKey key1 = new CallKey("module", "method", new Object[] { 1, "s", new JSONArray(Arrays.asList(1, 2)), new JSONObject(object), null });
+        final CallKey key2 = new CallKey("module", "method", new Object[] { 1L, "s", new JSONArray(Arrays.asList(1L, 2L)), new JSONObject(object), null });
+        Assert.assertEquals(key1, key2);
+        Assert.assertEquals(key1.hashCode(), key2.hashCode());
+    }
+
+    /**
+     * 違う呼び出しを違うキーにするか
+     */
+    @Test
+    public void testNotEquals() {
+        final CallKey key = new CallKey("module", "method", new Object[] { 1 });
+        Assert.assertNotEquals(key, new CallKey("module", "method", new Object[] { 2 }));
+        Assert.assertNotEquals(key, new CallKey("module", "other", new Object[] { 1 }));
+        Assert.assertNotEquals(key, new CallKey("other", "method", new Object[] { 1 }));
+        Assert.assertNotEquals(key, new CallKey("module", "method", new Object[] { 1, 1 }));
+        Assert.assertEquals(new CallKey("module", "method", null), new CallKey("module", "method", new Object[0]));
+    }
+
+}
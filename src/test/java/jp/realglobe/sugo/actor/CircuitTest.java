@@ -0,0 +1,114 @@
+package jp.realglobe.sugo.actor;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Circuit のテスト
+ */
+public class CircuitTest {
+
+    /**
+     * 失敗の割合が閾値を超えたら開くか
+     */
+    @Test
+    public void testOpenOnFailures() {
+        final Circuit circuit = new Circuit(0.5, 0, 0.5, 4, 4, 60_000, 1);
+        for (int i = 0; i < 3; i++) {
+            final long generation = circuit.tryAcquire();
+            Assert.assertTrue(generation >= 0);
+            circuit.record(generation, i == 0, 1);
+        }
+        // まだ数が足りない
+        Assert.assertEquals(Circuit.State.CLOSED, circuit.getState());
+        circuit.record(circuit.tryAcquire(), true, 1);
+        Assert.assertEquals(Circuit.State.OPEN, circuit.getState());
+        Assert.assertEquals(-1, circuit.tryAcquire());
+        Assert.assertEquals(1, circuit.getRejectedCount());
+        Assert.assertTrue(circuit.getRetryAfter() > TimeUnit.SECONDS.toNanos(50));
+    }
+
+    /**
+     * 古い結果を忘れるか
+     */
+    @Test
+    public void testWindow() {
+        final Circuit circuit = new Circuit(0.5, 0, 0.5, 4, 4, 60_000, 1);
+        circuit.record(circuit.tryAcquire(), true, 1);
+        for (int i = 0; i < 5; i++) {
+            circuit.record(circuit.tryAcquire(), false, 1);
+        }
+        circuit.record(circuit.tryAcquire(), true, 1);
+        Assert.assertEquals(Circuit.State.CLOSED, circuit.getState());
+        Assert.assertEquals(0.25, circuit.getFailureRate(), 0);
+    }
+
+    /**
+     * 遅い応答の割合が閾値を超えたら開くか
+     */
+    @Test
+    public void testOpenOnSlowCalls() {
+        final Circuit circuit = new Circuit(1, 100, 0.5, 2, 2, 60_000, 1);
+        circuit.record(circuit.tryAcquire(), false, TimeUnit.MILLISECONDS.toNanos(10));
+        circuit.record(circuit.tryAcquire(), false, TimeUnit.MILLISECONDS.toNanos(200));
+        Assert.assertEquals(Circuit.State.OPEN, circuit.getState());
+    }
+
+    /**
+     * 半開きで probes だけ通し、結果で閉じるか開くかを決めるか
+     * @throws Exception エラー
+     */
+    @Test
+    public void testHalfOpen() throws Exception {
+        final Circuit circuit = new Circuit(0.5, 0, 0.5, 1, 1, 50, 2);
+        final long stale = circuit.tryAcquire();
+        circuit.record(circuit.tryAcquire(), true, 1);
+        Assert.assertEquals(Circuit.State.OPEN, circuit.getState());
+
+        Thread.sleep(80);
+        Assert.assertEquals(Circuit.State.HALF_OPEN, circuit.getState());
+        final long first = circuit.tryAcquire();
+        final long second = circuit.tryAcquire();
+        Assert.assertTrue(first >= 0);
+        Assert.assertTrue(second >= 0);
+        Assert.assertEquals(-1, circuit.tryAcquire());
+        // 開く前に通したものは数えない
+        circuit.record(stale, true, 1);
+        Assert.assertEquals(Circuit.State.HALF_OPEN, circuit.getState());
+        // 実行しなかったものの分はまた通せる
+        circuit.abandon(second);
+        final long third = circuit.tryAcquire();
+        Assert.assertTrue(third >= 0);
+
+        circuit.record(first, false, 1);
+        Assert.assertEquals(Circuit.State.HALF_OPEN, circuit.getState());
+        circuit.record(third, false, 1);
+        Assert.assertEquals(Circuit.State.CLOSED, circuit.getState());
+        Assert.assertEquals(1, circuit.getOpenedCount());
+    }
+
+    /**
+     * 半開きで失敗したらまた開くか
+     * @throws Exception エラー
+     */
+    @Test
+    public void testReopen() throws Exception {
+        final Circuit circuit = new Circuit(0.5, 0, 0.5, 1, 1, 50, 2);
+        circuit.record(circuit.tryAcquire(), true, 1);
+        Thread.sleep(80);
+        circuit.record(circuit.tryAcquire(), true, 1);
+        Assert.assertEquals(Circuit.State.OPEN, circuit.getState());
+        Assert.assertEquals(2, circuit.getOpenedCount());
+    }
+
+    /**
+     * おかしな設定を拒否するか
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalid() {
+        new Circuit(0.5, 0, 0.5, 4, 5, 1_000, 1);
+    }
+
+}
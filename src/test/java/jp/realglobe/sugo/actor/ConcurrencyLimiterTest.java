@@ -0,0 +1,130 @@
+package jp.realglobe.sugo.actor;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * ConcurrencyLimiter のテスト
+ */
+public class ConcurrencyLimiterTest {
+
+    private static Runnable record(final List<Integer> log, final int id) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                log.add(id);
+            }
+        };
+    }
+
+    /**
+     * 上限を超えたら待たせ、空いたら順に実行するか
+     */
+    @Test
+    public void testAcquireAndRelease() {
+        final ConcurrencyLimiter limiter = new ConcurrencyLimiter(2, 1);
+        final List<Integer> log = new ArrayList<>();
+        Assert.assertTrue(limiter.acquire(record(log, 0)));
+        Assert.assertTrue(limiter.acquire(record(log, 1)));
+        Assert.assertTrue(limiter.acquire(record(log, 2)));
+        Assert.assertFalse(limiter.acquire(record(log, 3)));
+        Assert.assertEquals(Arrays.asList(0, 1), log);
+        Assert.assertEquals(2, limiter.getRunningCount());
+        Assert.assertEquals(1, limiter.getWaitingCount());
+
+        limiter.release();
+        Assert.assertEquals(Arrays.asList(0, 1, 2), log);
+        Assert.assertEquals(2, limiter.getRunningCount());
+        Assert.assertEquals(0, limiter.getWaitingCount());
+
+        limiter.release();
+        limiter.release();
+        Assert.assertEquals(0, limiter.getRunningCount());
+    }
+
+    /**
+     * 注釈から作れるか
+     * @throws Exception エラー
+     */
+    @Test
+    public void testOf() throws Exception {
+        @Serialized
+        class TestClass {
+
+            @MaxConcurrency(value = 3, queueCapacity = 5)
+            public void limited() {}
+
+            public void free() {}
+
+        }
+        Assert.assertEquals(1, ConcurrencyLimiter.of(TestClass.class).getLimit());
+        final ConcurrencyLimiter limiter = ConcurrencyLimiter.of(TestClass.class.getMethod("limited"));
+        Assert.assertEquals(3, limiter.getLimit());
+        Assert.assertEquals(5, limiter.getQueueCapacity());
+        Assert.assertNull(ConcurrencyLimiter.of(TestClass.class.getMethod("free")));
+    }
+
+    /**
+     * 全ての空きを得てから実行し、得た分だけ返すか
+     */
+    @Test
+    public void testPermits() {
+        final ConcurrencyLimiter first = new ConcurrencyLimiter(1, 1);
+        final ConcurrencyLimiter second = new ConcurrencyLimiter(1, 0);
+        final List<Integer> log = new ArrayList<>();
+
+        final ConcurrencyLimiter.Permits permits0 = new ConcurrencyLimiter.Permits(first, null, second);
+        permits0.acquire(record(log, 0), record(log, -1));
+        Assert.assertEquals(Arrays.asList(0), log);
+
+        // first で待たされる
+        final ConcurrencyLimiter.Permits permits1 = new ConcurrencyLimiter.Permits(first, second);
+        permits1.acquire(record(log, 1), record(log, -1));
+        Assert.assertEquals(Arrays.asList(0), log);
+
+        permits0.release();
+        permits0.release();
+        Assert.assertEquals(Arrays.asList(0, 1), log);
+        Assert.assertEquals(1, first.getRunningCount());
+        Assert.assertEquals(1, second.getRunningCount());
+
+        // second で断られる
+        final ConcurrencyLimiter.Permits permits2 = new ConcurrencyLimiter.Permits(new ConcurrencyLimiter(1, 0), second);
+        permits2.acquire(record(log, 2), record(log, -2));
+        Assert.assertEquals(Arrays.asList(0, 1, -2), log);
+        permits2.release();
+
+        permits1.release();
+        Assert.assertEquals(0, first.getRunningCount());
+        Assert.assertEquals(0, second.getRunningCount());
+    }
+
+    /**
+     * 待っている間に諦めたら、空きを得てもすぐ返し、断られたことにするか
+     */
+    @Test
+    public void testAbandon() {
+        final ConcurrencyLimiter limiter = new ConcurrencyLimiter(1, 1);
+        final List<Integer> log = new ArrayList<>();
+        final ConcurrencyLimiter.Permits permits0 = new ConcurrencyLimiter.Permits(limiter);
+        permits0.acquire(record(log, 0), record(log, -1));
+        final ConcurrencyLimiter.Permits permits1 = new ConcurrencyLimiter.Permits(limiter);
+        permits1.acquire(record(log, 1), record(log, -1));
+        permits1.release();
+        permits0.release();
+        Assert.assertEquals(Arrays.asList(0, -1), log);
+        Assert.assertEquals(0, limiter.getRunningCount());
+
+        // 得る前に諦めていても断られたことにする
+        final ConcurrencyLimiter.Permits permits2 = new ConcurrencyLimiter.Permits(limiter);
+        permits2.release();
+        permits2.acquire(record(log, 2), record(log, -2));
+        Assert.assertEquals(Arrays.asList(0, -1, -2), log);
+        Assert.assertEquals(0, limiter.getRunningCount());
+    }
+
+}
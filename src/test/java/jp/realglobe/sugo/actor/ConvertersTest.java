@@ -0,0 +1,151 @@
+package jp.realglobe.sugo.actor;
+
+import java.lang.reflect.Type;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Converters のテスト
+ */
+public class ConvertersTest {
+
+    @SuppressWarnings("unused")
+    private static class TestClass {
+
+        public void list(final List<Integer> a) {}
+
+        public void set(final Set<String> a) {}
+
+        public void map(final Map<String, Long> o) {}
+
+        public void treeMap(final TreeMap<String, Object> o) {}
+
+    }
+
+    private static Type parameterType(final String methodName) {
+        for (final java.lang.reflect.Method method : TestClass.class.getMethods()) {
+            if (method.getName().equals(methodName)) {
+                return method.getGenericParameterTypes()[0];
+            }
+        }
+        throw new IllegalArgumentException(methodName);
+    }
+
+    /**
+     * 変換の要らない型で何もしないか
+     */
+    @Test
+    public void testIdentity() {
+        Assert.assertSame(Converters.IDENTITY, Converters.of(Object.class));
+        final Object[] array = new Object[] { 1, "a" };
+        Assert.assertSame(array, Converters.of(Object[].class).convert(array));
+        final Map<String, Object> map = new HashMap<>();
+        Assert.assertSame(map, Converters.of(Map.class).convert(map));
+    }
+
+    /**
+     * 数値の拡大・縮小変換ができるか
+     */
+    @Test
+    public void testNumber() {
+        Assert.assertEquals(1, Converters.of(int.class).convert(1.0));
+        Assert.assertEquals(1L, Converters.of(long.class).convert(1));
+        Assert.assertEquals(1.0, Converters.of(double.class).convert(1));
+        Assert.assertEquals(1.5f, Converters.of(float.class).convert(1.5));
+        Assert.assertEquals((byte) 12, Converters.of(Byte.class).convert(12));
+        Assert.assertNull(Converters.of(Integer.class).convert(null));
+    }
+
+    /**
+     * 値の変わる縮小変換を拒否するか
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void testLossyNarrowing() {
+        Converters.of(int.class).convert(1.5);
+    }
+
+    /**
+     * 範囲外の縮小変換を拒否するか
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void testOverflow() {
+        Converters.of(byte.class).convert(1000);
+    }
+
+    /**
+     * float の範囲外の値を拒否するか
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void testFloatOverflow() {
+        Converters.of(float.class).convert(1e300);
+    }
+
+    /**
+     * 有限でない値を float に変換しないか
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void testFloatNotFinite() {
+        Converters.of(Float.class).convert(Double.NaN);
+    }
+
+    /**
+     * プリミティブ型に null を拒否するか
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void testNullPrimitive() {
+        Converters.of(boolean.class).convert(null);
+    }
+
+    /**
+     * 配列に変換できるか
+     */
+    @Test
+    public void testArray() {
+        Assert.assertArrayEquals(new int[] { 1, 2, 3 }, (int[]) Converters.of(int[].class).convert(new Object[] { 1, 2.0, 3L }));
+        Assert.assertArrayEquals(new String[] { "a", null }, (String[]) Converters.of(String[].class).convert(new Object[] { "a", null }));
+        Assert.assertArrayEquals(new double[][] { { 1.0 }, {} }, (double[][]) Converters.of(double[][].class).convert(new Object[] { new Object[] { 1 }, new Object[0] }));
+    }
+
+    /**
+     * コレクションに変換できるか
+     */
+    @Test
+    public void testCollection() {
+        Assert.assertEquals(Arrays.asList(1, 2), Converters.of(parameterType("list")).convert(new Object[] { 1, 2.0 }));
+        final Object set = Converters.of(parameterType("set")).convert(new Object[] { "a", "b", "a" });
+        Assert.assertTrue(set instanceof LinkedHashSet);
+        Assert.assertEquals(2, ((Set<?>) set).size());
+    }
+
+    /**
+     * 連想配列に変換できるか
+     */
+    @Test
+    public void testMap() {
+        final Map<String, Object> map = new HashMap<>();
+        map.put("a", 1);
+        map.put("b", 2.0);
+        final Map<String, Long> expected = new HashMap<>();
+        expected.put("a", 1L);
+        expected.put("b", 2L);
+        Assert.assertEquals(expected, Converters.of(parameterType("map")).convert(map));
+        Assert.assertTrue(Converters.of(parameterType("treeMap")).convert(map) instanceof TreeMap);
+    }
+
+    /**
+     * 型の合わない値を拒否するか
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void testMismatch() {
+        Converters.of(String.class).convert(1);
+    }
+
+}
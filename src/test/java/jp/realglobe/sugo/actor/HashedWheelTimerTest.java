@@ -0,0 +1,76 @@
+package jp.realglobe.sugo.actor;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * HashedWheelTimer のテスト
+ */
+public class HashedWheelTimerTest {
+
+    /**
+     * 期限が来たら実行するか
+     * @throws Exception エラー
+     */
+    @Test
+    public void testSchedule() throws Exception {
+        final HashedWheelTimer timer = new HashedWheelTimer("test-timer", 5, TimeUnit.MILLISECONDS, 8);
+        final CountDownLatch fired = new CountDownLatch(1);
+        final long start = System.nanoTime();
+        timer.schedule(new Runnable() {
+            @Override
+            public void run() {
+                fired.countDown();
+            }
+        }, 100, TimeUnit.MILLISECONDS);
+        Assert.assertTrue(fired.await(10, TimeUnit.SECONDS));
+        // 枠の数より先の期限も周回して待つ
+        Assert.assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) >= 100);
+    }
+
+    /**
+     * 取り消したら実行しないか
+     * @throws Exception エラー
+     */
+    @Test
+    public void testCancel() throws Exception {
+        final HashedWheelTimer timer = new HashedWheelTimer("test-timer", 5, TimeUnit.MILLISECONDS, 8);
+        final AtomicBoolean fired = new AtomicBoolean();
+        final HashedWheelTimer.Timeout timeout = timer.schedule(new Runnable() {
+            @Override
+            public void run() {
+                fired.set(true);
+            }
+        }, 50, TimeUnit.MILLISECONDS);
+        Assert.assertTrue(timeout.cancel());
+        Assert.assertTrue(timeout.isCancelled());
+        Thread.sleep(150);
+        Assert.assertFalse(fired.get());
+        Assert.assertEquals(0, timer.getPendingCount());
+    }
+
+    /**
+     * 大量の期限を扱えるか
+     * @throws Exception エラー
+     */
+    @Test
+    public void testMany() throws Exception {
+        final HashedWheelTimer timer = new HashedWheelTimer("test-timer", 1, TimeUnit.MILLISECONDS, 64);
+        final int count = 50_000;
+        final CountDownLatch fired = new CountDownLatch(count);
+        for (int i = 0; i < count; i++) {
+            timer.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    fired.countDown();
+                }
+            }, i % 200, TimeUnit.MILLISECONDS);
+        }
+        Assert.assertTrue(fired.await(10, TimeUnit.SECONDS));
+    }
+
+}
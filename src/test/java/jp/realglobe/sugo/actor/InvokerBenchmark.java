@@ -0,0 +1,92 @@
+package jp.realglobe.sugo.actor;
+
+import java.lang.reflect.Method;
+
+/**
+ * Invoker とリフレクション呼び出しの比較。
+ * Actor.perform と同じく 1 つの呼び出し箇所から複数の関数を呼ぶ
+ */
+public class InvokerBenchmark {
+
+    private static class TestClass {
+
+        @ModuleMethod
+        public String echo(final String s, final double n) {
+            return s;
+        }
+
+        @ModuleMethod
+        public String first(final String s, final double n) {
+            return s.substring(0, 1);
+        }
+
+        @ModuleMethod
+        public String number(final String s, final double n) {
+            return s.isEmpty() ? null : "n";
+        }
+
+    }
+
+    private static final int WARMUP = 5;
+    private static final int ROUNDS = 10;
+    private static final int CALLS = 10_000_000;
+
+    private static long measureReflection(final Method[] methods, final Object instance, final Object[] args) throws Exception {
+        final long start = System.nanoTime();
+        Object sink = null;
+        for (int i = 0; i < CALLS; i++) {
+            sink = methods[i % methods.length].invoke(instance, args);
+        }
+        final long elapsed = System.nanoTime() - start;
+        if (sink == null) {
+            throw new IllegalStateException();
+        }
+        return elapsed;
+    }
+
+    private static long measureInvoker(final Invoker[] invokers, final Object[] args) throws Exception {
+        final long start = System.nanoTime();
+        Object sink = null;
+        for (int i = 0; i < CALLS; i++) {
+            sink = invokers[i % invokers.length].invoke(args);
+        }
+        final long elapsed = System.nanoTime() - start;
+        if (sink == null) {
+            throw new IllegalStateException();
+        }
+        return elapsed;
+    }
+
+    /**
+     * 計測する
+     * @param args 実行引数
+     * @throws Exception エラー
+     */
+    public static void main(final String[] args) throws Exception {
+        final TestClass instance = new TestClass();
+        final String[] names = new String[] { "echo", "first", "number" };
+        final Method[] methods = new Method[names.length];
+        final Invoker[] invokers = new Invoker[names.length];
+        for (int i = 0; i < names.length; i++) {
+            methods[i] = TestClass.class.getMethod(names[i], String.class, double.class);
+            methods[i].setAccessible(true);
+            invokers[i] = new Invoker(instance, methods[i]);
+        }
+        final Object[] parameters = new Object[] { "abcde", 123.45 };
+
+        for (int i = 0; i < WARMUP; i++) {
+            measureReflection(methods, instance, parameters);
+            measureInvoker(invokers, parameters);
+        }
+
+        long reflection = 0;
+        long handle = 0;
+        for (int i = 0; i < ROUNDS; i++) {
+            reflection += measureReflection(methods, instance, parameters);
+            handle += measureInvoker(invokers, parameters);
+        }
+        System.out.println(String.format("reflection: %.2f ns/call", (double) reflection / ROUNDS / CALLS));
+        System.out.println(String.format("invoker:    %.2f ns/call", (double) handle / ROUNDS / CALLS));
+    }
+
+}
@@ -0,0 +1,146 @@
+package jp.realglobe.sugo.actor;
+
+import java.util.Collections;
+
+import org.json.JSONObject;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Invoker のテスト
+ */
+public class InvokerTest {
+
+    private static class TestClass {
+
+        @ModuleMethod
+        public void noReturn() {}
+
+        @ModuleMethod
+        public double echoNumber(final double n) {
+            return n;
+        }
+
+        @ModuleMethod
+        public String join(final String... s) {
+            final StringBuilder buff = new StringBuilder();
+            for (final String e : s) {
+                buff.append(e);
+            }
+            return buff.toString();
+        }
+
+        @ModuleMethod
+        public static String staticEcho(final String s) {
+            return s;
+        }
+
+        @ModuleMethod
+        public Object echoObject(final Object o) {
+            return o;
+        }
+
+        @ModuleMethod
+        public void fail() {
+            throw new IllegalStateException("fail");
+        }
+
+    }
+
+    private static Invoker newInvoker(final String methodName) {
+        for (final java.lang.reflect.Method method : TestClass.class.getMethods()) {
+            if (method.getName().equals(methodName)) {
+                return new Invoker(new TestClass(), method);
+            }
+        }
+        throw new IllegalArgumentException(methodName);
+    }
+
+    /**
+     * 返り値の無い関数を呼べるか
+     * @throws Exception エラー
+     */
+    @Test
+    public void testNoReturn() throws Exception {
+        final Invoker invoker = newInvoker("noReturn");
+        Assert.assertEquals(Void.TYPE, invoker.getReturnType());
+        Assert.assertNull(invoker.invoke(null));
+        Assert.assertNull(invoker.invoke(new Object[0]));
+    }
+
+    /**
+     * 数値の拡大変換ができるか
+     * @throws Exception エラー
+     */
+    @Test
+    public void testWidening() throws Exception {
+        final Invoker invoker = newInvoker("echoNumber");
+        Assert.assertEquals(12345.0, invoker.invoke(new Object[] { 12345 }));
+        Assert.assertEquals(123.45, invoker.invoke(new Object[] { 123.45 }));
+    }
+
+    /**
+     * 可変長引数の関数を配列で呼べるか
+     * @throws Exception エラー
+     */
+    @Test
+    public void testVarargs() throws Exception {
+        final Invoker invoker = newInvoker("join");
+        Assert.assertEquals("abc", invoker.invoke(new Object[] { new String[] { "a", "b", "c" } }));
+    }
+
+    /**
+     * static 関数を呼べるか
+     * @throws Exception エラー
+     */
+    @Test
+    public void testStatic() throws Exception {
+        Assert.assertEquals("abcde", newInvoker("staticEcho").invoke(new Object[] { "abcde" }));
+    }
+
+    /**
+     * 関数の例外がそのまま投げられるか
+     * @throws Exception エラー
+     */
+    @Test(expected = IllegalStateException.class)
+    public void testException() throws Exception {
+        newInvoker("fail").invoke(null);
+    }
+
+    /**
+     * 引数の数が合わない場合に失敗するか
+     * @throws Exception エラー
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void testWrongArity() throws Exception {
+        newInvoker("echoNumber").invoke(new Object[0]);
+    }
+
+    /**
+     * 引数が変わらなければ、配列をつくり直さずにそのまま返すか
+     */
+    @Test
+    public void testCoerceUnchanged() {
+        final Object[] strings = new Object[] { "abc" };
+        Assert.assertSame(strings, newInvoker("staticEcho").coerce(strings));
+        final Object[] numbers = new Object[] { 1.5 };
+        Assert.assertSame(numbers, newInvoker("echoNumber").coerce(numbers));
+        final Object[] objects = new Object[] { Collections.singletonMap("a", 1) };
+        Assert.assertSame(objects, newInvoker("echoObject").coerce(objects));
+    }
+
+    /**
+     * 変わる引数があれば、元の配列を変えずに新しい配列で返すか
+     */
+    @Test
+    public void testCoerceChanged() {
+        final Object[] numbers = new Object[] { 1 };
+        final Object[] coerced = newInvoker("echoNumber").coerce(numbers);
+        Assert.assertNotSame(numbers, coerced);
+        Assert.assertEquals(1.0, coerced[0]);
+        Assert.assertEquals(1, numbers[0]);
+        final Object[] objects = new Object[] { new JSONObject(Collections.singletonMap("a", 1)) };
+        Assert.assertEquals(Collections.singletonMap("a", 1), newInvoker("echoObject").coerce(objects)[0]);
+    }
+
+}
@@ -70,4 +70,49 @@ public class JsonUtilsTest {
         Assert.assertArrayEquals(data, obj);
     }
 
+    /**
+     * 大きさの見積もりが中身の量に沿って増えるか
+     */
+    @Test
+    public void testEstimateSize() {
+        final JSONArray small = new JSONArray(new Object[] { "abc", 1 });
+        final JSONArray large = new JSONArray();
+        for (int i = 0; i < 1000; i++) {
+            large.put("abcdefghij");
+        }
+        final long smallSize = JsonUtils.estimateSize(small);
+        final long largeSize = JsonUtils.estimateSize(large);
+        Assert.assertTrue(smallSize > 0);
+        // 文字だけで 20000 バイト
+        Assert.assertTrue(largeSize > 20_000);
+
+        // 変換後も同じくらいに見積もる
+        final long converted = JsonUtils.estimateSize(JsonUtils.convertToObject(large));
+        Assert.assertTrue(converted > largeSize / 2);
+        Assert.assertTrue(converted < largeSize * 2);
+    }
+
+    /**
+     * 実行依頼の引数の見積もりで、写しをつくる JSON の入れ物だけを 2 回数えるか
+     */
+    @Test
+    public void testEstimateRequestSize() {
+        final StringBuilder buff = new StringBuilder();
+        for (int i = 0; i < 10_000; i++) {
+            buff.append('a');
+        }
+        final String text = buff.toString();
+        final long textSize = JsonUtils.estimateRequestSize(new Object[] { text });
+        Assert.assertTrue(textSize > 20_000);
+        Assert.assertTrue(textSize < 2 * JsonUtils.estimateSize(text));
+
+        final JSONArray numbers = new JSONArray();
+        for (int i = 0; i < 1000; i++) {
+            numbers.put(i);
+        }
+        final long numbersSize = JsonUtils.estimateRequestSize(new Object[] { numbers });
+        Assert.assertTrue(numbersSize > JsonUtils.estimateSize(numbers) + 1000 * 8);
+        Assert.assertTrue(numbersSize < 2 * JsonUtils.estimateSize(numbers));
+    }
+
 }
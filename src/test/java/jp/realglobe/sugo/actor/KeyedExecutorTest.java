@@ -0,0 +1,240 @@
+package jp.realglobe.sugo.actor;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * KeyedExecutor のテスト
+ */
+public class KeyedExecutorTest {
+
+    private ExecutorService pool;
+    private KeyedExecutor executor;
+
+    /**
+     * 準備
+     */
+    @Before
+    public void setUp() {
+        this.pool = Executors.newFixedThreadPool(4);
+        this.executor = new KeyedExecutor(new KeyedExecutor.Submitter() {
+            @Override
+            public boolean submit(final Runnable task, final Runnable onRejected, final int priority) {
+                try {
+                    KeyedExecutorTest.this.pool.execute(task);
+                    return true;
+                } catch (final RejectedExecutionException e) {
+                    onRejected.run();
+                    return false;
+                }
+            }
+        });
+    }
+
+    /**
+     * 後始末
+     */
+    @After
+    public void tearDown() {
+        this.pool.shutdownNow();
+    }
+
+    /**
+     * 同じ鍵の処理を届いた順に実行するか
+     * @throws Exception エラー
+     */
+    @Test
+    public void testOrder() throws Exception {
+        final int keys = 3;
+        final int n = 50;
+        final Map<Integer, List<Integer>> results = new HashMap<>();
+        for (int key = 0; key < keys; key++) {
+            results.put(key, Collections.synchronizedList(new ArrayList<Integer>()));
+        }
+        final CountDownLatch done = new CountDownLatch(keys * n);
+        final Random random = new Random(0);
+        for (int i = 0; i < n; i++) {
+            for (int key = 0; key < keys; key++) {
+                final List<Integer> result = results.get(key);
+                final int value = i;
+                final int sleep = random.nextInt(3);
+                this.executor.submit(key, new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            Thread.sleep(sleep);
+                        } catch (final InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        }
+                        result.add(value);
+                        done.countDown();
+                    }
+                }, null, Priority.NORMAL);
+            }
+        }
+        Assert.assertTrue(done.await(10, TimeUnit.SECONDS));
+        for (final List<Integer> result : results.values()) {
+            Assert.assertEquals(n, result.size());
+            for (int i = 0; i < n; i++) {
+                Assert.assertEquals(i, (int) result.get(i));
+            }
+        }
+        // 終わった鍵は忘れる
+        Thread.sleep(100);
+        Assert.assertEquals(0, this.executor.getKeyCount());
+        Assert.assertEquals(0, this.executor.getWaitingCount());
+    }
+
+    /**
+     * 違う鍵の処理を並行して実行するか
+     * @throws Exception エラー
+     */
+    @Test
+    public void testParallel() throws Exception {
+        final CountDownLatch started = new CountDownLatch(2);
+        final CountDownLatch released = new CountDownLatch(1);
+        final AtomicInteger after = new AtomicInteger();
+        for (final String key : new String[] { "a", "b" }) {
+            this.executor.submit(key, new Runnable() {
+                @Override
+                public void run() {
+                    started.countDown();
+                    try {
+                        released.await();
+                    } catch (final InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            }, null, Priority.NORMAL);
+        }
+        this.executor.submit("a", new Runnable() {
+            @Override
+            public void run() {
+                after.incrementAndGet();
+            }
+        }, null, Priority.NORMAL);
+        Assert.assertTrue(started.await(1, TimeUnit.SECONDS));
+        Assert.assertEquals(2, this.executor.getKeyCount());
+        Assert.assertEquals(1, this.executor.getWaitingCount());
+        Thread.sleep(50);
+        Assert.assertEquals(0, after.get());
+
+        released.countDown();
+        Thread.sleep(100);
+        Assert.assertEquals(1, after.get());
+        Assert.assertEquals(0, this.executor.getKeyCount());
+    }
+
+    /**
+     * 断られても次の処理に進むか
+     * @throws Exception エラー
+     */
+    @Test
+    public void testRejected() throws Exception {
+        this.pool.shutdown();
+        final AtomicInteger rejected = new AtomicInteger();
+        for (int i = 0; i < 3; i++) {
+            this.executor.submit("a", new Runnable() {
+                @Override
+                public void run() {
+                    Assert.fail();
+                }
+            }, new Runnable() {
+                @Override
+                public void run() {
+                    rejected.incrementAndGet();
+                }
+            }, Priority.NORMAL);
+        }
+        Assert.assertEquals(3, rejected.get());
+        Assert.assertEquals(0, this.executor.getKeyCount());
+    }
+
+    /**
+     * 同じ鍵の後ろに並んでいる処理が同時実行数の制限の空きを占有しないか
+     * @throws Exception エラー
+     */
+    @Test
+    public void testPermits() throws Exception {
+        final ConcurrencyLimiter limiter = new ConcurrencyLimiter(2, 10);
+        final CountDownLatch started = new CountDownLatch(2);
+        final CountDownLatch released = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(4);
+        for (final String key : new String[] { "a", "a", "a", "b" }) {
+            final ConcurrencyLimiter.Permits permits = new ConcurrencyLimiter.Permits(limiter);
+            this.executor.submit(key, permits, new KeyedExecutor.Task() {
+                @Override
+                public void run(final Runnable finished) {
+                    try {
+                        started.countDown();
+                        released.await();
+                    } catch (final InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    } finally {
+                        permits.release();
+                        finished.run();
+                        done.countDown();
+                    }
+                }
+            }, null, Priority.NORMAL);
+        }
+        // a の先頭と b が空きを得る
+        Assert.assertTrue(started.await(10, TimeUnit.SECONDS));
+        Assert.assertEquals(2, limiter.getRunningCount());
+        Assert.assertEquals(0, limiter.getWaitingCount());
+        Assert.assertEquals(2, this.executor.getWaitingCount());
+
+        released.countDown();
+        Assert.assertTrue(done.await(10, TimeUnit.SECONDS));
+        Assert.assertEquals(0, limiter.getRunningCount());
+    }
+
+    /**
+     * Task が終わったと知らせるまで、同じ鍵の次の処理を始めないか
+     * @throws Exception エラー
+     */
+    @Test
+    public void testDeferredDone() throws Exception {
+        final Runnable[] done = new Runnable[1];
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch second = new CountDownLatch(1);
+        this.executor.submit("a", null, new KeyedExecutor.Task() {
+            @Override
+            public void run(final Runnable finished) {
+                // 終わったことは後で知らせる
+                done[0] = finished;
+                started.countDown();
+            }
+        }, null, Priority.NORMAL);
+        this.executor.submit("a", new Runnable() {
+            @Override
+            public void run() {
+                second.countDown();
+            }
+        }, null, Priority.NORMAL);
+        Assert.assertTrue(started.await(10, TimeUnit.SECONDS));
+        Assert.assertFalse(second.await(100, TimeUnit.MILLISECONDS));
+        Assert.assertEquals(1, this.executor.getWaitingCount());
+
+        done[0].run();
+        // 2 回目以降は何もしない
+        done[0].run();
+        Assert.assertTrue(second.await(10, TimeUnit.SECONDS));
+    }
+
+}
@@ -0,0 +1,107 @@
+package jp.realglobe.sugo.actor;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import io.socket.client.Ack;
+
+/**
+ * テスト用のサーバーの代わり。
+ * サーバーにつながずに、実行依頼や取り消しを pid を付けて直接 Actor に渡し、応答を溜める
+ */
+final class LocalHub {
+
+    /**
+     * 1 回の実行依頼
+     */
+    static final class Call {
+
+        private final String pid;
+        private final BlockingQueue<JSONObject> responses;
+
+        Call(final String pid) {
+            this.pid = pid;
+            this.responses = new LinkedBlockingQueue<>();
+        }
+
+        /**
+         * @return 実行 ID
+         */
+        String getPid() {
+            return this.pid;
+        }
+
+        /**
+         * @return 応答が届くキュー
+         */
+        BlockingQueue<JSONObject> getResponses() {
+            return this.responses;
+        }
+
+    }
+
+    private final Actor actor;
+    private final String key;
+    private final AtomicLong count;
+
+    /**
+     * 作成する
+     * @param actor つなぐ Actor
+     * @param key Actor のキー
+     */
+    LocalHub(final Actor actor, final String key) {
+        this.actor = actor;
+        this.key = key;
+        this.count = new AtomicLong();
+    }
+
+    /**
+     * モジュール関数の実行を依頼する
+     * @param module モジュール名
+     * @param method 関数名
+     * @param params 引数
+     * @return 実行依頼
+     */
+    Call perform(final String module, final String method, final Object... params) {
+        final Call call = new Call("hub-" + this.count.incrementAndGet());
+        final Map<String, Object> data = new HashMap<>();
+        data.put("key", this.key);
+        data.put("module", module);
+        data.put("method", method);
+        data.put("params", new JSONArray(params));
+        data.put("pid", call.pid);
+        this.actor.perform(new Object[] { new JSONObject(data), new Ack() {
+            @Override
+            public void call(final Object... args) {
+                call.responses.add((JSONObject) args[0]);
+            }
+        } });
+        return call;
+    }
+
+    /**
+     * 実行依頼を取り消す
+     * @param call 実行依頼
+     * @return 応答前の実行を取り消したら true
+     */
+    boolean cancel(final Call call) {
+        final Map<String, Object> data = new HashMap<>();
+        data.put("key", this.key);
+        data.put("pid", call.pid);
+        final boolean[] cancelled = new boolean[1];
+        this.actor.cancel(new Object[] { new JSONObject(data), new Ack() {
+            @Override
+            public void call(final Object... args) {
+                cancelled[0] = ((JSONObject) args[0]).getBoolean("payload");
+            }
+        } });
+        return cancelled[0];
+    }
+
+}
@@ -0,0 +1,63 @@
+package jp.realglobe.sugo.actor;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * MemoryBudget のテスト
+ */
+public class MemoryBudgetTest {
+
+    /**
+     * 上限まで確保でき、返せばまた確保できるか
+     */
+    @Test
+    public void testAcquire() {
+        final MemoryBudget budget = new MemoryBudget(1600);
+        for (int i = 0; i < 16; i++) {
+            Assert.assertTrue(budget.tryAcquire(100));
+        }
+        Assert.assertFalse(budget.tryAcquire(100));
+        Assert.assertEquals(1600, budget.getUsed());
+        Assert.assertEquals(1, budget.getRejectedCount());
+
+        budget.release(100);
+        Assert.assertTrue(budget.tryAcquire(100));
+        Assert.assertEquals(1600, budget.getPeak());
+    }
+
+    /**
+     * 大きな実行依頼が使い切らず、小さな実行依頼の分を残すか
+     */
+    @Test
+    public void testLargeShare() {
+        final MemoryBudget budget = new MemoryBudget(1600);
+        Assert.assertTrue(budget.tryAcquire(600));
+        Assert.assertTrue(budget.tryAcquire(600));
+        // 大きいものは 1200 まで
+        Assert.assertFalse(budget.tryAcquire(200));
+        Assert.assertTrue(budget.tryAcquire(100));
+        Assert.assertTrue(budget.tryAcquire(100));
+        Assert.assertTrue(budget.tryAcquire(100));
+        Assert.assertTrue(budget.tryAcquire(100));
+        Assert.assertFalse(budget.tryAcquire(100));
+
+        Assert.assertFalse(budget.isTooLarge(1200));
+        Assert.assertTrue(budget.isTooLarge(1201));
+    }
+
+    /**
+     * 断れないものは上限を超えても確保するか
+     */
+    @Test
+    public void testForceAcquire() {
+        final MemoryBudget budget = new MemoryBudget(100);
+        Assert.assertTrue(budget.tryAcquire(70));
+        budget.acquire(50);
+        Assert.assertEquals(120, budget.getUsed());
+        Assert.assertEquals(120, budget.getPeak());
+        budget.release(120);
+        Assert.assertEquals(0, budget.getUsed());
+    }
+
+}
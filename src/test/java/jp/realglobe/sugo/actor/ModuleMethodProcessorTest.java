@@ -0,0 +1,175 @@
+package jp.realglobe.sugo.actor;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.tools.JavaCompiler;
+import javax.tools.ToolProvider;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * ModuleMethodProcessor のテスト
+ */
+public class ModuleMethodProcessorTest {
+
+    private static final String SOURCE = "" //
+            + "package sample;\n" //
+            + "import jp.realglobe.sugo.actor.ModuleMethod;\n" //
+            + "public class Sample {\n" //
+            + "    @ModuleMethod public String echo(String s) { return s; }\n" //
+            + "    @ModuleMethod public double add(double a, int b) { return a + b; }\n" //
+            + "    @ModuleMethod public void noReturn() {}\n" //
+            + "    @ModuleMethod public static String hello() { return \"hello\"; }\n" //
+            + "    public void notModuleMethod() {}\n" //
+            + "    public static class Nested {\n" //
+            + "        @ModuleMethod public java.util.Map<String, Object> echoObject(java.util.Map<String, Object> o) { return o; }\n" //
+            + "    }\n" //
+            + "    private static class Hidden {\n" //
+            + "        @ModuleMethod public void hidden() {}\n" //
+            + "    }\n" //
+            + "}\n";
+
+    private Path directory;
+    private ClassLoader loader;
+
+    /**
+     * 注釈処理器を通してコンパイルする
+     * @throws IOException 入出力エラー
+     */
+    @Before
+    public void before() throws IOException {
+        final JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+        Assume.assumeNotNull(compiler);
+
+        this.directory = Files.createTempDirectory("processor");
+        final Path source = this.directory.resolve("sample").resolve("Sample.java");
+        Files.createDirectories(source.getParent());
+        Files.write(source, SOURCE.getBytes(StandardCharsets.UTF_8));
+
+        final int result = compiler.run(null, null, null, Arrays.asList("-classpath", System.getProperty("java.class.path"), "-processor", ModuleMethodProcessor.class.getName(), "-d",
+                this.directory.toString(), source.toString()).toArray(new String[0]));
+        Assert.assertEquals(0, result);
+        this.loader = new URLClassLoader(new URL[] { this.directory.toUri().toURL() }, getClass().getClassLoader());
+    }
+
+    /**
+     * 後片付け
+     * @throws IOException 入出力エラー
+     */
+    @After
+    public void after() throws IOException {
+        if (this.directory == null) {
+            return;
+        }
+        Files.walkFileTree(this.directory, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(final Path file, final BasicFileAttributes attrs) throws IOException {
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(final Path dir, final IOException exc) throws IOException {
+                Files.delete(dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    /**
+     * 呼び出し表が生成されるか
+     * @throws Exception エラー
+     */
+    @Test
+    public void testGenerate() throws Exception {
+        final ModuleDispatcher dispatcher = (ModuleDispatcher) this.loader.loadClass("sample.Sample" + ModuleDispatcher.SUFFIX).getConstructor().newInstance();
+        final String[] names = dispatcher.getMethodNames();
+        Arrays.sort(names);
+        Assert.assertArrayEquals(new String[] { "add", "echo", "hello", "noReturn" }, names);
+        Assert.assertEquals(names.length, dispatcher.getParameterTypes().length);
+
+        Assert.assertNotNull(this.loader.loadClass("sample.Sample$Nested" + ModuleDispatcher.SUFFIX));
+        Assert.assertFalse(new File(this.directory.toFile(), "sample/Sample$Hidden" + ModuleDispatcher.SUFFIX + ".class").exists());
+    }
+
+    /**
+     * 生成された呼び出し表でモジュール関数を呼べるか
+     * @throws Exception エラー
+     */
+    @Test
+    public void testInvoke() throws Exception {
+        final Module module = new Module("1.0.0", null, this.loader.loadClass("sample.Sample").getConstructor().newInstance());
+        Assert.assertEquals("abcde", module.invoke("echo", new Object[] { "abcde" }));
+        Assert.assertEquals(3.5, module.invoke("add", new Object[] { 1.5, 2 }));
+        Assert.assertEquals("hello", module.invoke("hello", null));
+        Assert.assertNull(module.invoke("noReturn", null));
+        Assert.assertNull(module.getInvoker("notModuleMethod", null));
+        Assert.assertEquals(Void.TYPE, module.getReturnType("noReturn"));
+
+        final Module nested = new Module("1.0.0", null, this.loader.loadClass("sample.Sample$Nested").getConstructor().newInstance());
+        final Map<String, Object> object = new HashMap<>();
+        object.put("a", 1);
+        Assert.assertEquals(object, nested.invoke("echoObject", new Object[] { object }));
+    }
+
+    /**
+     * 引数の数が合わない場合に失敗するか
+     * @throws Exception エラー
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void testWrongArity() throws Exception {
+        final Module module = new Module("1.0.0", null, this.loader.loadClass("sample.Sample").getConstructor().newInstance());
+        module.invoke("echo", new Object[0]);
+    }
+
+    /**
+     * 生成された呼び出し表を使っても、リフレクションと同じく小数を整数に切り捨てずに断るか
+     * @throws Exception エラー
+     */
+    @Test
+    public void testNoTruncation() throws Exception {
+        final Module module = new Module("1.0.0", null, this.loader.loadClass("sample.Sample").getConstructor().newInstance());
+        Assert.assertEquals(3.5, module.invoke("add", new Object[] { 1.5, 2.0 }));
+        try {
+            module.invoke("add", new Object[] { 1.5, 2.5 });
+            Assert.fail();
+        } catch (final IllegalArgumentException e) {
+            // 期待通り
+        }
+    }
+
+    /**
+     * 生成された呼び出し表は、合わせ済みの引数をキャストするだけで渡すか
+     * @throws Throwable エラー
+     */
+    @Test
+    public void testCoercedArguments() throws Throwable {
+        final Object instance = this.loader.loadClass("sample.Sample").getConstructor().newInstance();
+        final ModuleDispatcher dispatcher = (ModuleDispatcher) this.loader.loadClass("sample.Sample" + ModuleDispatcher.SUFFIX).getConstructor().newInstance();
+        final int index = Arrays.asList(dispatcher.getMethodNames()).indexOf("add");
+        Assert.assertEquals(3.5, dispatcher.invoke(instance, index, new Object[] { 1.5, 2 }));
+        try {
+            dispatcher.invoke(instance, index, new Object[] { 1.5, 2.0 });
+            Assert.fail();
+        } catch (final ClassCastException e) {
+            // 合わせるのは Invoker.coerce の役目
+        }
+    }
+
+}
@@ -26,6 +26,47 @@ public class ModuleTest {
             return s;
         }
 
+        @ModuleMethod
+        public String overload(final Object o) {
+            return "object";
+        }
+
+        @ModuleMethod
+        public String overload(final double n) {
+            return "double";
+        }
+
+        @ModuleMethod
+        public String overload(final long n) {
+            return "long";
+        }
+
+        @ModuleMethod
+        public String overload(final String s) {
+            return "string";
+        }
+
+        @ModuleMethod
+        public String overload(final String s, final Object[] a) {
+            return "string, array";
+        }
+
+    }
+
+    private interface Handler<T> {
+
+        String handle(T value);
+
+    }
+
+    private static class BridgedClass implements Handler<String> {
+
+        @Override
+        @ModuleMethod
+        public String handle(final String value) {
+            return value;
+        }
+
     }
 
     private static final String VERSION = "1.2.3";
@@ -94,6 +135,42 @@ public class ModuleTest {
         Assert.assertEquals(Void.TYPE, this.module.getReturnType("noReturn"));
     }
 
+    /**
+     * オーバーロードを全て返せるか
+     */
+    @Test
+    public void testGetOverloadedMethods() {
+        int count = 0;
+        for (final Method method : this.module.getMethods()) {
+            if (method.getName().equals("overload")) {
+                count++;
+            }
+        }
+        Assert.assertEquals(5, count);
+    }
+
+    /**
+     * 引数に合うオーバーロードを選べるか
+     * @throws Exception エラー
+     */
+    @Test
+    public void testOverload() throws Exception {
+        Assert.assertEquals("long", this.module.invoke("overload", new Object[] { 1 }));
+        Assert.assertEquals("double", this.module.invoke("overload", new Object[] { 1.5 }));
+        Assert.assertEquals("string", this.module.invoke("overload", new Object[] { "a" }));
+        Assert.assertEquals("object", this.module.invoke("overload", new Object[] { true }));
+        Assert.assertEquals("string", this.module.invoke("overload", new Object[] { null }));
+        Assert.assertEquals("string, array", this.module.invoke("overload", new Object[] { "a", new Object[0] }));
+    }
+
+    /**
+     * 引数の数が合わない場合に失敗するか
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void testNoOverload() {
+        this.module.getInvoker("overload", new Object[] { 1, 2, 3 });
+    }
+
     /**
      * 関数を呼び出せるか
      * @throws Exception エラー
@@ -112,4 +189,83 @@ public class ModuleTest {
         Assert.assertEquals("abcde", this.module.invoke("echo", new Object[] { "abcde" }));
     }
 
+    /**
+     * 関数の優先度を、関数に無ければモジュールの既定を返すか
+     */
+    @Test
+    public void testGetPriority() {
+        @Priority(Priority.MIN)
+        class PrioritizedClass {
+
+            @ModuleMethod
+            public void background() {}
+
+            @ModuleMethod
+            @Priority(Priority.MAX)
+            public void stop() {}
+
+        }
+        final Module prioritized = new Module(VERSION, DESCRIPTION, new PrioritizedClass());
+        Assert.assertEquals(Priority.MIN, prioritized.getPriority(prioritized.getInvoker("background", null)));
+        Assert.assertEquals(Priority.MAX, prioritized.getPriority(prioritized.getInvoker("stop", null)));
+        Assert.assertEquals(Priority.NORMAL, this.module.getPriority(this.module.getInvoker("noReturn", null)));
+    }
+
+    /**
+     * モジュール全体の制限で断ったときに関数の分を使わず、無い関数は数えないか
+     */
+    @Test
+    public void testTryAcquireRate() {
+        @RateLimit(value = 0.1, burst = 1)
+        class LimitedClass {
+
+            @ModuleMethod
+            @RateLimit(value = 0.1, burst = 2)
+            public void ping() {}
+
+        }
+        final Module limited = new Module(VERSION, DESCRIPTION, new LimitedClass());
+        // 無い関数ではモジュール全体の分を使わない
+        Assert.assertEquals(0, limited.tryAcquireRate("missing"));
+        Assert.assertEquals(0, limited.tryAcquireRate("ping"));
+        Assert.assertTrue(limited.tryAcquireRate("ping") > 0);
+        Assert.assertTrue(limited.tryAcquireRate("ping") > 0);
+
+        // モジュール全体を緩めれば、関数の残りの 1 回を使える
+        limited.setRateLimit(null, null);
+        Assert.assertEquals(0, limited.tryAcquireRate("ping"));
+        Assert.assertTrue(limited.tryAcquireRate("ping") > 0);
+    }
+
+    /**
+     * 総称型の実装でできる橋渡しの関数をオーバーロードとして数えないか
+     */
+    @Test
+    public void testBridge() {
+        final Module bridged = new Module(VERSION, DESCRIPTION, new BridgedClass());
+        Assert.assertEquals(1, bridged.getMethods().size());
+        Assert.assertEquals(String.class, bridged.getInvoker("handle", new Object[] { "a" }).getMethod().getParameterTypes()[0]);
+    }
+
+    /**
+     * 選び方の決まらないオーバーロードを登録時に断るか
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void testAmbiguousOverloads() {
+        class AmbiguousClass {
+
+            @ModuleMethod
+            public String ambiguous(final int n) {
+                return "int";
+            }
+
+            @ModuleMethod
+            public String ambiguous(final Integer n) {
+                return "Integer";
+            }
+
+        }
+        new Module(VERSION, DESCRIPTION, new AmbiguousClass());
+    }
+
 }
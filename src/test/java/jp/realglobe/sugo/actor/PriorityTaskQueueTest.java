@@ -0,0 +1,200 @@
+package jp.realglobe.sugo.actor;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * PriorityTaskQueue のテスト
+ */
+public class PriorityTaskQueueTest {
+
+    private static final class Task implements Runnable, PriorityTaskQueue.Prioritized {
+
+        private final int priority;
+
+        Task(final int priority) {
+            this.priority = priority;
+        }
+
+        @Override
+        public int getPriority() {
+            return this.priority;
+        }
+
+        @Override
+        public void run() {}
+
+    }
+
+    /**
+     * 優先度の高いものから、同じ優先度では先に入れたものから取り出すか
+     */
+    @Test
+    public void testOrder() {
+        final PriorityTaskQueue queue = new PriorityTaskQueue(10, 60_000);
+        final Task low = new Task(Priority.MIN);
+        final Task normal1 = new Task(Priority.NORMAL);
+        final Task normal2 = new Task(Priority.NORMAL);
+        final Task high = new Task(Priority.MAX);
+        Assert.assertTrue(queue.offer(low));
+        Assert.assertTrue(queue.offer(normal1));
+        Assert.assertTrue(queue.offer(high));
+        Assert.assertTrue(queue.offer(normal2));
+        Assert.assertEquals(4, queue.size());
+        Assert.assertEquals(2, queue.size(Priority.NORMAL));
+
+        Assert.assertSame(high, queue.peek());
+        Assert.assertSame(high, queue.poll());
+        Assert.assertSame(normal1, queue.poll());
+        Assert.assertSame(normal2, queue.poll());
+        Assert.assertSame(low, queue.poll());
+        Assert.assertNull(queue.poll());
+    }
+
+    /**
+     * 長く待ったものを先に取り出すか
+     * @throws Exception エラー
+     */
+    @Test
+    public void testAging() throws Exception {
+        final PriorityTaskQueue queue = new PriorityTaskQueue(10, 10);
+        final Task low = new Task(Priority.NORMAL - 1);
+        queue.offer(low);
+        Thread.sleep(50);
+        final Task high = new Task(Priority.NORMAL + 1);
+        queue.offer(high);
+        Assert.assertSame(low, queue.poll());
+        Assert.assertSame(high, queue.poll());
+    }
+
+    /**
+     * 長さの上限を超えて入れないか
+     * @throws Exception エラー
+     */
+    @Test
+    public void testCapacity() throws Exception {
+        final PriorityTaskQueue queue = new PriorityTaskQueue(2);
+        Assert.assertTrue(queue.offer(new Task(Priority.NORMAL)));
+        Assert.assertTrue(queue.offer(new Task(Priority.MAX), 1, TimeUnit.SECONDS));
+        Assert.assertFalse(queue.offer(new Task(Priority.MAX)));
+        Assert.assertEquals(0, queue.remainingCapacity());
+    }
+
+    /**
+     * 最も優先度の低いものの中で最も古いものを追い出すか
+     */
+    @Test
+    public void testEvict() {
+        final PriorityTaskQueue queue = new PriorityTaskQueue(10);
+        final Task low1 = new Task(Priority.MIN);
+        final Task low2 = new Task(Priority.MIN);
+        final Task high = new Task(Priority.MAX);
+        queue.offer(high);
+        queue.offer(low1);
+        queue.offer(low2);
+        Assert.assertSame(low1, queue.evict());
+        Assert.assertSame(low2, queue.evict());
+        Assert.assertSame(high, queue.evict());
+        Assert.assertNull(queue.evict());
+        Assert.assertEquals(0, queue.size());
+    }
+
+    /**
+     * 待っていれば入れられたときに取り出せるか
+     * @throws Exception エラー
+     */
+    @Test
+    public void testTake() throws Exception {
+        final PriorityTaskQueue queue = new PriorityTaskQueue(10);
+        Assert.assertNull(queue.poll(10, TimeUnit.MILLISECONDS));
+        final Task task = new Task(Priority.NORMAL);
+        new Thread() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(50);
+                } catch (final InterruptedException e) {
+                    return;
+                }
+                queue.offer(task);
+            }
+        }.start();
+        Assert.assertSame(task, queue.take());
+    }
+
+    private static PriorityTaskQueue.DropHandler collect(final List<Runnable> dropped) {
+        return new PriorityTaskQueue.DropHandler() {
+            @Override
+            public void dropped(final Runnable task) {
+                dropped.add(task);
+            }
+        };
+    }
+
+    /**
+     * 空にならない状態が続いたら、目標より長く待ったものを捨てるか
+     * @throws Exception エラー
+     */
+    @Test
+    public void testQueueDelay() throws Exception {
+        final List<Runnable> dropped = new ArrayList<>();
+        final PriorityTaskQueue queue = new PriorityTaskQueue(10, 60_000, 20, 50, false, collect(dropped));
+        final Task stale = new Task(Priority.NORMAL);
+        queue.offer(stale);
+        Thread.sleep(80);
+        Assert.assertTrue(queue.isOverloaded());
+        final Task fresh = new Task(Priority.NORMAL);
+        queue.offer(fresh);
+        Assert.assertSame(fresh, queue.take());
+        Assert.assertEquals(1, dropped.size());
+        Assert.assertSame(stale, dropped.get(0));
+        Assert.assertEquals(1, queue.getDroppedCount());
+        Assert.assertFalse(queue.isOverloaded());
+    }
+
+    /**
+     * 混んでいなければ interval までは待たせるか
+     * @throws Exception エラー
+     */
+    @Test
+    public void testQueueDelayNotOverloaded() throws Exception {
+        final List<Runnable> dropped = new ArrayList<>();
+        final PriorityTaskQueue queue = new PriorityTaskQueue(10, 60_000, 10, 1_000, false, collect(dropped));
+        final Task task = new Task(Priority.NORMAL);
+        queue.offer(task);
+        Thread.sleep(50);
+        Assert.assertSame(task, queue.poll());
+        Assert.assertTrue(dropped.isEmpty());
+    }
+
+    /**
+     * 混んでいる間は新しいものから取り出すか
+     * @throws Exception エラー
+     */
+    @Test
+    public void testAdaptiveLifo() throws Exception {
+        final PriorityTaskQueue queue = new PriorityTaskQueue(10, 60_000, 0, 50, true, null);
+        final Task first = new Task(Priority.NORMAL);
+        final Task second = new Task(Priority.NORMAL);
+        queue.offer(first);
+        queue.offer(second);
+        // 混んでいなければ先に入れたものから
+        Assert.assertSame(first, queue.poll());
+        queue.offer(first);
+        Thread.sleep(80);
+        final Task third = new Task(Priority.NORMAL);
+        final Task high = new Task(Priority.MAX);
+        queue.offer(third);
+        queue.offer(high);
+        Assert.assertSame(high, queue.poll());
+        Assert.assertSame(third, queue.poll());
+        Assert.assertSame(first, queue.poll());
+        Assert.assertSame(second, queue.poll());
+        Assert.assertNull(queue.poll());
+    }
+
+}
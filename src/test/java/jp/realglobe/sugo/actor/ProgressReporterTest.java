@@ -0,0 +1,87 @@
+package jp.realglobe.sugo.actor;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import io.socket.client.Ack;
+
+/**
+ * ProgressReporter のテスト
+ */
+public class ProgressReporterTest {
+
+    private static Invocation newInvocation() {
+        return new Invocation(new Ack() {
+            @Override
+            public void call(final Object... args) {}
+        }, new ConcurrencyLimiter.Permits());
+    }
+
+    private static ProgressReporter newReporter(final Invocation invocation, final long interval, final List<Object> sent) {
+        return new ProgressReporter(invocation, interval, new ProgressReporter.Sender() {
+            @Override
+            public void send(final int seq, final Object progress) {
+                Assert.assertEquals(sent.size(), seq);
+                sent.add(progress);
+            }
+        });
+    }
+
+    /**
+     * 短い間の報告をまとめて最新のものだけを送るか
+     * @throws Exception エラー
+     */
+    @Test
+    public void testCoalesce() throws Exception {
+        final List<Object> sent = Collections.synchronizedList(new ArrayList<>());
+        final ProgressReporter reporter = newReporter(newInvocation(), 100, sent);
+        for (int i = 0; i < 1000; i++) {
+            reporter.report(i);
+        }
+        Assert.assertEquals(1, sent.size());
+        Assert.assertEquals(0, sent.get(0));
+        Thread.sleep(300);
+        Assert.assertEquals(2, sent.size());
+        Assert.assertEquals(999, sent.get(1));
+        Assert.assertEquals(998, reporter.getCoalescedCount());
+
+        // 間隔が空いていればすぐ送る
+        reporter.report(1000);
+        Assert.assertEquals(3, sent.size());
+    }
+
+    /**
+     * 間隔が 0 なら報告ごとに送るか
+     */
+    @Test
+    public void testNoInterval() {
+        final List<Object> sent = new ArrayList<>();
+        final ProgressReporter reporter = newReporter(newInvocation(), 0, sent);
+        for (int i = 0; i < 10; i++) {
+            reporter.report(i);
+        }
+        Assert.assertEquals(10, sent.size());
+    }
+
+    /**
+     * 応答した後は送らないか
+     * @throws Exception エラー
+     */
+    @Test
+    public void testDone() throws Exception {
+        final List<Object> sent = Collections.synchronizedList(new ArrayList<>());
+        final Invocation invocation = newInvocation();
+        final ProgressReporter reporter = newReporter(invocation, 100, sent);
+        reporter.report(0);
+        reporter.report(1);
+        invocation.call("done");
+        Thread.sleep(300);
+        reporter.report(2);
+        Assert.assertEquals(1, sent.size());
+    }
+
+}
@@ -0,0 +1,65 @@
+package jp.realglobe.sugo.actor;
+
+import org.json.JSONObject;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * ResultCache のテスト
+ */
+public class ResultCacheTest {
+
+    private static CallKey key(final Object... parameters) {
+        return new CallKey("module", "method", parameters);
+    }
+
+    /**
+     * 覚えた応答を返し、使われ具合を数えるか
+     */
+    @Test
+    public void testGetAndPut() {
+        final ResultCache cache = new ResultCache(0, 10);
+        Assert.assertNull(cache.get(key(1)));
+        final JSONObject response = new JSONObject();
+        cache.put(key(1), response);
+        Assert.assertSame(response, cache.get(key(1L)));
+        Assert.assertNull(cache.get(key(2)));
+        Assert.assertEquals(1, cache.getHitCount());
+        Assert.assertEquals(2, cache.getMissCount());
+        Assert.assertEquals(1, cache.getSize());
+
+        cache.clear();
+        Assert.assertNull(cache.get(key(1)));
+    }
+
+    /**
+     * 期限が切れたら忘れるか
+     * @throws Exception エラー
+     */
+    @Test
+    public void testTtl() throws Exception {
+        final ResultCache cache = new ResultCache(50, 10);
+        cache.put(key(1), new JSONObject());
+        Assert.assertNotNull(cache.get(key(1)));
+        Thread.sleep(100);
+        Assert.assertNull(cache.get(key(1)));
+        Assert.assertEquals(0, cache.getSize());
+    }
+
+    /**
+     * 数の上限を超えたら最も長く使われていないものを忘れるか
+     */
+    @Test
+    public void testEviction() {
+        final ResultCache cache = new ResultCache(0, 2);
+        cache.put(key(1), new JSONObject());
+        cache.put(key(2), new JSONObject());
+        Assert.assertNotNull(cache.get(key(1)));
+        cache.put(key(3), new JSONObject());
+        Assert.assertNotNull(cache.get(key(1)));
+        Assert.assertNull(cache.get(key(2)));
+        Assert.assertNotNull(cache.get(key(3)));
+        Assert.assertEquals(1, cache.getEvictionCount());
+    }
+
+}
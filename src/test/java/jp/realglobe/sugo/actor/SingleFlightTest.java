@@ -0,0 +1,118 @@
+package jp.realglobe.sugo.actor;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import io.socket.client.Ack;
+
+/**
+ * SingleFlight のテスト
+ */
+public class SingleFlightTest {
+
+    private static Invocation newInvocation(final List<Object> responses) {
+        return new Invocation(new Ack() {
+            @Override
+            public void call(final Object... args) {
+                responses.add(args[0]);
+            }
+        }, new ConcurrencyLimiter.Permits());
+    }
+
+    /**
+     * 実行中の呼び出しに相乗りして同じ応答を受け取るか
+     */
+    @Test
+    public void testJoin() {
+        final SingleFlight singleFlight = new SingleFlight();
+        final CallKey key = new CallKey("module", "method", new Object[] { "a" });
+        final List<Object> responses = new ArrayList<>();
+        final Invocation leader = newInvocation(responses);
+        Assert.assertTrue(singleFlight.join(key, leader));
+        Assert.assertFalse(singleFlight.join(key, newInvocation(responses)));
+        Assert.assertFalse(singleFlight.join(key, newInvocation(responses)));
+        Assert.assertTrue(singleFlight.join(new CallKey("module", "method", new Object[] { "b" }), newInvocation(new ArrayList<>())));
+        Assert.assertEquals(2, singleFlight.getInFlightCount());
+        Assert.assertEquals(2, singleFlight.getCoalescedCount());
+
+        leader.call("result");
+        Assert.assertEquals(3, responses.size());
+        for (final Object response : responses) {
+            Assert.assertEquals("result", response);
+        }
+        Assert.assertEquals(1, singleFlight.getInFlightCount());
+
+        // 応答済みのものには相乗りしない
+        Assert.assertTrue(singleFlight.join(key, newInvocation(responses)));
+    }
+
+    /**
+     * 先に実行した呼び出しの期限切れを相乗りした呼び出しに送らないか
+     */
+    @Test
+    public void testLeaderTimeout() {
+        final SingleFlight singleFlight = new SingleFlight();
+        final CallKey key = new CallKey("module", "method", new Object[] { "a" });
+        final List<Object> leaderResponses = new ArrayList<>();
+        final List<Object> followerResponses = new ArrayList<>();
+        final Invocation leader = newInvocation(leaderResponses);
+        Assert.assertTrue(singleFlight.join(key, leader));
+        Assert.assertTrue(leader.enter(true));
+        Assert.assertFalse(singleFlight.join(key, newInvocation(followerResponses)));
+
+        leader.abort("timeout");
+        Assert.assertEquals(Arrays.asList("timeout"), leaderResponses);
+        Assert.assertTrue(followerResponses.isEmpty());
+        // 待っている呼び出しがあるので中断しない
+        Assert.assertFalse(leader.isCancelled());
+
+        leader.call("result");
+        leader.exit();
+        Assert.assertEquals(Arrays.asList("timeout"), leaderResponses);
+        Assert.assertEquals(Arrays.asList("result"), followerResponses);
+        Assert.assertEquals(0, singleFlight.getInFlightCount());
+    }
+
+    /**
+     * 取り消した呼び出しだけが抜け、誰も待っていなくなったら中断するか
+     */
+    @Test
+    public void testCancel() {
+        final SingleFlight singleFlight = new SingleFlight();
+        final CallKey key = new CallKey("module", "method", new Object[] { "a" });
+        final List<Object> leaderResponses = new ArrayList<>();
+        final List<Object> followerResponses = new ArrayList<>();
+        final Invocation leader = newInvocation(leaderResponses);
+        final Invocation follower = newInvocation(followerResponses);
+        Assert.assertTrue(singleFlight.join(key, leader));
+        Assert.assertTrue(leader.enter(true));
+        Assert.assertFalse(singleFlight.join(key, follower));
+
+        leader.abort("cancelled");
+        Assert.assertEquals(Arrays.asList("cancelled"), leaderResponses);
+        Assert.assertFalse(leader.isCancelled());
+        // 実行中なので相乗りできる
+        final List<Object> lateResponses = new ArrayList<>();
+        final Invocation late = newInvocation(lateResponses);
+        Assert.assertFalse(singleFlight.join(key, late));
+
+        follower.abort("timeout");
+        Assert.assertFalse(leader.isCancelled());
+        late.abort("cancelled");
+        Assert.assertTrue(leader.isCancelled());
+        Assert.assertEquals(Arrays.asList("timeout"), followerResponses);
+        Assert.assertEquals(Arrays.asList("cancelled"), lateResponses);
+
+        // 中断された実行の結果は誰にも送らない
+        leader.call("interrupted");
+        Assert.assertEquals(Arrays.asList("cancelled"), leaderResponses);
+        Assert.assertEquals(1, singleFlight.getInFlightCount());
+        leader.exit();
+        Assert.assertEquals(0, singleFlight.getInFlightCount());
+    }
+
+}
@@ -1,5 +1,6 @@
 package jp.realglobe.sugo.actor;
 
+import java.util.List;
 import java.util.Map;
 
 import org.junit.Assert;
@@ -17,6 +18,25 @@ public class SpecificationTest {
             return s;
         }
 
+        @ModuleMethod
+        public String echo(final String s, final double n) {
+            return s;
+        }
+
+        @ModuleMethod
+        @MaxConcurrency(2)
+        @CircuitBreaker(failureRate = 0.25, slowCall = 500, open = 3_000)
+        public void limited() {}
+
+        @ModuleMethod
+        @Ordered(1)
+        public void write(final String data, final String device) {}
+
+        @ModuleMethod
+        @Ordered
+        @RateLimit(value = 2.5, burst = 5)
+        public void reset() {}
+
     }
 
     /**
@@ -36,6 +56,133 @@ public class SpecificationTest {
         final Map<String, Object> method = (Map<String, Object>) methods.get("echo");
         Assert.assertTrue(method.containsKey("params"));
         Assert.assertTrue(method.containsKey("return"));
+        @SuppressWarnings("unchecked")
+        final List<Map<String, Object>> overloads = (List<Map<String, Object>>) method.get("overloads");
+        Assert.assertEquals(2, overloads.size());
+    }
+
+    /**
+     * 同時実行数の制限を仕様データに載せるか
+     */
+    @Test
+    public void testMaxConcurrency() {
+        @Serialized
+        class SerializedClass {
+
+            @ModuleMethod
+            public void run() {}
+
+        }
+        Assert.assertEquals(1, Specification.generateSpecification(new Module("1.0.0", null, new SerializedClass())).get("maxConcurrency"));
+
+        final Map<String, Object> specification = Specification.generateSpecification(new Module("1.0.0", null, new TestClass()));
+        Assert.assertFalse(specification.containsKey("maxConcurrency"));
+        @SuppressWarnings("unchecked")
+        final Map<String, Map<String, Object>> methods = (Map<String, Map<String, Object>>) specification.get("methods");
+        Assert.assertEquals(2, methods.get("limited").get("maxConcurrency"));
+        Assert.assertFalse(methods.get("echo").containsKey("maxConcurrency"));
+    }
+
+    /**
+     * 順番を守る関数を仕様データに載せるか
+     */
+    @Test
+    public void testOrdered() {
+        @SuppressWarnings("unchecked")
+        final Map<String, Map<String, Object>> methods = (Map<String, Map<String, Object>>) Specification
+                .generateSpecification(new Module("1.0.0", null, new TestClass())).get("methods");
+        Assert.assertEquals(true, methods.get("write").get("ordered"));
+        Assert.assertEquals(1, methods.get("write").get("orderKey"));
+        Assert.assertEquals(true, methods.get("reset").get("ordered"));
+        Assert.assertFalse(methods.get("reset").containsKey("orderKey"));
+        Assert.assertFalse(methods.get("echo").containsKey("ordered"));
+    }
+
+    /**
+     * 頻度の上限を仕様データに載せるか
+     */
+    @Test
+    public void testRateLimit() {
+        @SuppressWarnings("unchecked")
+        final Map<String, Map<String, Object>> methods = (Map<String, Map<String, Object>>) Specification
+                .generateSpecification(new Module("1.0.0", null, new TestClass())).get("methods");
+        @SuppressWarnings("unchecked")
+        final Map<String, Object> rateLimit = (Map<String, Object>) methods.get("reset").get("rateLimit");
+        Assert.assertEquals(2.5, rateLimit.get("permitsPerSecond"));
+        Assert.assertEquals(5, rateLimit.get("burst"));
+        Assert.assertFalse(methods.get("echo").containsKey("rateLimit"));
+    }
+
+    /**
+     * 遮断器の設定を仕様データに載せるか
+     */
+    @Test
+    public void testCircuitBreaker() {
+        @SuppressWarnings("unchecked")
+        final Map<String, Map<String, Object>> methods = (Map<String, Map<String, Object>>) Specification
+                .generateSpecification(new Module("1.0.0", null, new TestClass())).get("methods");
+        @SuppressWarnings("unchecked")
+        final Map<String, Object> circuitBreaker = (Map<String, Object>) methods.get("limited").get("circuitBreaker");
+        Assert.assertEquals(0.25, circuitBreaker.get("failureRate"));
+        Assert.assertEquals(500L, circuitBreaker.get("slowCall"));
+        Assert.assertEquals(3_000L, circuitBreaker.get("open"));
+        Assert.assertFalse(methods.get("echo").containsKey("circuitBreaker"));
+    }
+
+    /**
+     * 実行中に差し替えた頻度の上限を仕様データに載せるか
+     */
+    @Test
+    public void testRateLimitOverride() {
+        final Module module = new Module("1.0.0", null, new TestClass());
+        module.setRateLimit("reset", new TokenBucket(10, 20));
+        module.setRateLimit("echo", new TokenBucket(1, 1));
+        module.setRateLimit(null, new TokenBucket(100, 50));
+        final Map<String, Object> specification = Specification.generateSpecification(module);
+        @SuppressWarnings("unchecked")
+        final Map<String, Object> moduleRateLimit = (Map<String, Object>) specification.get("rateLimit");
+        Assert.assertEquals(100.0, moduleRateLimit.get("permitsPerSecond"));
+        Assert.assertEquals(50, moduleRateLimit.get("burst"));
+        @SuppressWarnings("unchecked")
+        final Map<String, Map<String, Object>> methods = (Map<String, Map<String, Object>>) specification.get("methods");
+        @SuppressWarnings("unchecked")
+        final Map<String, Object> rateLimit = (Map<String, Object>) methods.get("reset").get("rateLimit");
+        Assert.assertEquals(10.0, rateLimit.get("permitsPerSecond"));
+        Assert.assertEquals(20, rateLimit.get("burst"));
+        Assert.assertTrue(methods.get("echo").containsKey("rateLimit"));
+
+        module.setRateLimit("reset", null);
+        @SuppressWarnings("unchecked")
+        final Map<String, Map<String, Object>> removed = (Map<String, Map<String, Object>>) Specification.generateSpecification(module).get("methods");
+        Assert.assertFalse(removed.get("reset").containsKey("rateLimit"));
+    }
+
+    /**
+     * モジュール全体の遮断器の設定は、モジュールの仕様データにだけ載せるか
+     */
+    @Test
+    public void testModuleCircuitBreaker() {
+        @CircuitBreaker(failureRate = 0.75, open = 1_000)
+        class GuardedClass {
+
+            @ModuleMethod
+            public void run() {}
+
+            @ModuleMethod
+            @CircuitBreaker(failureRate = 0.5)
+            public void own() {}
+
+        }
+        final Map<String, Object> specification = Specification.generateSpecification(new Module("1.0.0", null, new GuardedClass()));
+        @SuppressWarnings("unchecked")
+        final Map<String, Object> circuitBreaker = (Map<String, Object>) specification.get("circuitBreaker");
+        Assert.assertEquals(0.75, circuitBreaker.get("failureRate"));
+        Assert.assertEquals(1_000L, circuitBreaker.get("open"));
+        Assert.assertFalse(circuitBreaker.containsKey("slowCall"));
+        @SuppressWarnings("unchecked")
+        final Map<String, Map<String, Object>> methods = (Map<String, Map<String, Object>>) specification.get("methods");
+        Assert.assertFalse(methods.get("run").containsKey("circuitBreaker"));
+        Assert.assertEquals(0.5, ((Map<?, ?>) methods.get("own").get("circuitBreaker")).get("failureRate"));
     }
 
 }
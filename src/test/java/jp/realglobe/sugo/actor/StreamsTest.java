@@ -0,0 +1,185 @@
+package jp.realglobe.sugo.actor;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Test;
+
+/**
+ * Streams のテスト
+ */
+public class StreamsTest {
+
+    private static class Recorder implements Streams.Sink {
+
+        private final List<Object> elements = new ArrayList<>();
+        private final CountDownLatch done = new CountDownLatch(1);
+        private Throwable error;
+        private Runnable cancel;
+
+        @Override
+        public void subscribed(final Runnable cancel) {
+            this.cancel = cancel;
+        }
+
+        @Override
+        public void next(final Object element) {
+            this.elements.add(element);
+        }
+
+        @Override
+        public void error(final Throwable e) {
+            this.error = e;
+            this.done.countDown();
+        }
+
+        @Override
+        public void complete() {
+            this.done.countDown();
+        }
+
+        void await() throws InterruptedException {
+            Assert.assertTrue("not completed", this.done.await(10, TimeUnit.SECONDS));
+        }
+
+    }
+
+    /**
+     * 少しずつ返す型を見分けられるか
+     */
+    @Test
+    public void testIsStream() {
+        Assert.assertTrue(Streams.isStream(Iterator.class));
+        Assert.assertTrue(Streams.isStream(Stream.class));
+        Assert.assertFalse(Streams.isStream(List.class));
+        Assert.assertFalse(Streams.isStream(String.class));
+    }
+
+    /**
+     * Iterator の要素を全て渡せるか
+     * @throws Exception エラー
+     */
+    @Test
+    public void testIterator() throws Exception {
+        final Recorder recorder = new Recorder();
+        Streams.drain(Arrays.asList("a", "b", "c").iterator(), recorder);
+        recorder.await();
+        Assert.assertNull(recorder.error);
+        Assert.assertEquals(Arrays.asList("a", "b", "c"), recorder.elements);
+    }
+
+    /**
+     * Stream の要素を全て渡し、閉じるか
+     * @throws Exception エラー
+     */
+    @Test
+    public void testStream() throws Exception {
+        final boolean[] closed = new boolean[1];
+        final Recorder recorder = new Recorder();
+        Streams.drain(Stream.of(1, 2, 3).onClose(() -> closed[0] = true), recorder);
+        recorder.await();
+        Assert.assertNull(recorder.error);
+        Assert.assertEquals(Arrays.asList(1, 2, 3), recorder.elements);
+        Assert.assertTrue(closed[0]);
+    }
+
+    /**
+     * 途中の失敗を渡せるか
+     * @throws Exception エラー
+     */
+    @Test
+    public void testFailure() throws Exception {
+        final Recorder recorder = new Recorder();
+        Streams.drain(Stream.of(1, 0).map(i -> 1 / i).iterator(), recorder);
+        recorder.await();
+        Assert.assertEquals(Arrays.asList(1), recorder.elements);
+        Assert.assertTrue(recorder.error instanceof ArithmeticException);
+    }
+
+    /**
+     * Flow.Publisher の要素を要求の窓を超えて全て渡せるか
+     * @throws Exception エラー
+     */
+    @Test
+    public void testPublisher() throws Exception {
+        final Class<?> type;
+        try {
+            type = Class.forName("java.util.concurrent.SubmissionPublisher");
+        } catch (final ClassNotFoundException e) {
+            Assume.assumeNoException(e);
+            return;
+        }
+        final Object publisher = type.getConstructor(Executor.class, int.class).newInstance((Executor) Runnable::run, 4);
+        final Recorder recorder = new Recorder();
+        Streams.drain(publisher, recorder);
+        final Method submit = type.getMethod("submit", Object.class);
+        final List<Object> expected = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            submit.invoke(publisher, i);
+            expected.add(i);
+        }
+        type.getMethod("close").invoke(publisher);
+        recorder.await();
+        Assert.assertNull(recorder.error);
+        Assert.assertEquals(expected, recorder.elements);
+    }
+
+    /**
+     * 要素を返さない Flow.Publisher を中断したら、すぐに購読をやめて同時実行数の制限を返すか
+     * @throws Exception エラー
+     */
+    @Test
+    public void testPublisherCancel() throws Exception {
+        final Class<?> type;
+        try {
+            type = Class.forName("java.util.concurrent.SubmissionPublisher");
+        } catch (final ClassNotFoundException e) {
+            Assume.assumeNoException(e);
+            return;
+        }
+        final Object publisher = type.getConstructor(Executor.class, int.class).newInstance((Executor) Runnable::run, 4);
+        final ConcurrencyLimiter limiter = new ConcurrencyLimiter(1, 0);
+        final ConcurrencyLimiter.Permits permits = new ConcurrencyLimiter.Permits(limiter);
+        permits.acquire(() -> {}, () -> {});
+        final List<Object> responses = new ArrayList<>();
+        final Invocation invocation = new Invocation(args -> responses.add(args[0]), permits);
+        Assert.assertTrue(invocation.enter(false));
+        invocation.defer();
+        final Recorder recorder = new Recorder() {
+            @Override
+            public void subscribed(final Runnable cancel) {
+                super.subscribed(cancel);
+                invocation.addOnCancel(cancel);
+            }
+
+            @Override
+            public void error(final Throwable e) {
+                super.error(e);
+                invocation.finish();
+            }
+        };
+        Streams.drain(publisher, recorder);
+        invocation.exit();
+        Assert.assertNotNull(recorder.cancel);
+        Assert.assertEquals(1, type.getMethod("getNumberOfSubscribers").invoke(publisher));
+        Assert.assertEquals(1, limiter.getRunningCount());
+
+        invocation.abort("timeout");
+        recorder.await();
+        Assert.assertTrue(recorder.error instanceof CancellationException);
+        Assert.assertEquals(Arrays.asList("timeout"), responses);
+        Assert.assertEquals(0, limiter.getRunningCount());
+        Assert.assertEquals(0, type.getMethod("getNumberOfSubscribers").invoke(publisher));
+    }
+
+}
@@ -0,0 +1,104 @@
+package jp.realglobe.sugo.actor;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * ThreadPerTaskExecutor のテスト
+ */
+public class ThreadPerTaskExecutorTest {
+
+    /**
+     * つくったスレッドを数える ThreadFactory
+     */
+    private static final class CountingThreadFactory implements ThreadFactory {
+
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(final Runnable r) {
+            return new Thread(r, "test-" + this.count.incrementAndGet());
+        }
+
+    }
+
+    /**
+     * 上限までは処理ごとにスレッドをつくり、超えたら待たせ、待ち行列も埋まったら断るか
+     * @throws Exception エラー
+     */
+    @Test
+    public void testLimit() throws Exception {
+        final CountingThreadFactory threadFactory = new CountingThreadFactory();
+        final ThreadPerTaskExecutor executor = new ThreadPerTaskExecutor(threadFactory, 2, new PriorityTaskQueue(2));
+        final CountDownLatch started = new CountDownLatch(2);
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(4);
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger maxRunning = new AtomicInteger();
+        final Set<Thread> threads = Collections.synchronizedSet(new HashSet<Thread>());
+        for (int i = 0; i < 4; i++) {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    final int count = running.incrementAndGet();
+                    synchronized (maxRunning) {
+                        maxRunning.set(Math.max(maxRunning.get(), count));
+                    }
+                    threads.add(Thread.currentThread());
+                    started.countDown();
+                    try {
+                        release.await();
+                    } catch (final InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    running.decrementAndGet();
+                    done.countDown();
+                }
+            });
+        }
+        Assert.assertTrue(started.await(10, TimeUnit.SECONDS));
+        Assert.assertEquals(2, executor.getActiveCount());
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    Assert.fail();
+                }
+            });
+            Assert.fail();
+        } catch (final RejectedExecutionException e) {
+            // 期待通り
+        }
+
+        release.countDown();
+        Assert.assertTrue(done.await(10, TimeUnit.SECONDS));
+        Assert.assertEquals(2, maxRunning.get());
+        Assert.assertEquals(2, executor.getLargestPoolSize());
+        // スレッドを使い回さない
+        Assert.assertEquals(4, threads.size());
+        Assert.assertEquals(4, threadFactory.count.get());
+    }
+
+    /**
+     * 止めたら新しい処理を断るか
+     */
+    @Test(expected = RejectedExecutionException.class)
+    public void testShutdown() {
+        final ThreadPerTaskExecutor executor = new ThreadPerTaskExecutor(new CountingThreadFactory(), 1, null);
+        executor.shutdown();
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {}
+        });
+    }
+
+}
@@ -0,0 +1,104 @@
+package jp.realglobe.sugo.actor;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * TokenBucket のテスト
+ */
+public class TokenBucketTest {
+
+    /**
+     * burst まで続けて使え、超えたら次に使えるまでの時間を返すか
+     */
+    @Test
+    public void testBurst() {
+        final TokenBucket bucket = new TokenBucket(1, 3);
+        for (int i = 0; i < 3; i++) {
+            Assert.assertEquals(0, bucket.tryAcquire());
+        }
+        final long wait = bucket.tryAcquire();
+        Assert.assertTrue(wait > 0);
+        Assert.assertTrue(wait <= TimeUnit.SECONDS.toNanos(1));
+        Assert.assertEquals(1, bucket.getRejectedCount());
+    }
+
+    /**
+     * 時間が経てばトークンが溜まるか
+     * @throws Exception エラー
+     */
+    @Test
+    public void testRefill() throws Exception {
+        final TokenBucket bucket = new TokenBucket(20, 1);
+        Assert.assertEquals(0, bucket.tryAcquire());
+        Assert.assertTrue(bucket.tryAcquire() > 0);
+        Thread.sleep(60);
+        Assert.assertEquals(0, bucket.tryAcquire());
+
+        // 長く空いても burst より多くは溜まらない
+        Thread.sleep(200);
+        Assert.assertEquals(0, bucket.tryAcquire());
+        Assert.assertTrue(bucket.tryAcquire() > 0);
+    }
+
+    /**
+     * 並行して使っても burst より多くは使えないか
+     * @throws Exception エラー
+     */
+    @Test
+    public void testConcurrent() throws Exception {
+        final TokenBucket bucket = new TokenBucket(0.001, 100);
+        final AtomicInteger granted = new AtomicInteger();
+        final int threads = 8;
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(threads);
+        for (int i = 0; i < threads; i++) {
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        for (int j = 0; j < 1000; j++) {
+                            if (bucket.tryAcquire() == 0) {
+                                granted.incrementAndGet();
+                            }
+                        }
+                    } catch (final InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }).start();
+        }
+        start.countDown();
+        Assert.assertTrue(done.await(10, TimeUnit.SECONDS));
+        Assert.assertEquals(100, granted.get());
+        Assert.assertEquals(threads * 1000 - 100, bucket.getRejectedCount());
+    }
+
+    /**
+     * 戻したトークンをまた使えるか
+     */
+    @Test
+    public void testRefund() {
+        final TokenBucket bucket = new TokenBucket(0.1, 1);
+        Assert.assertEquals(0, bucket.tryAcquire());
+        bucket.refund();
+        Assert.assertEquals(0, bucket.tryAcquire());
+        Assert.assertTrue(bucket.tryAcquire() > 0);
+    }
+
+    /**
+     * おかしな設定を断るか
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalid() {
+        new TokenBucket(0, 1);
+    }
+
+}
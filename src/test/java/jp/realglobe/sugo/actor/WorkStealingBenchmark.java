@@ -0,0 +1,134 @@
+package jp.realglobe.sugo.actor;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import io.socket.client.Ack;
+import jp.realglobe.sg.socket.Constants;
+
+/**
+ * 普通のスレッドと work-stealing での実行の比較。
+ * 中で細かく分けて計算するモジュール関数と、待ちのあるモジュール関数の実行依頼を混ぜて大量に送り、
+ * 全ての応答が揃うまでの時間を計る
+ */
+public class WorkStealingBenchmark {
+
+    private static final String KEY = "actor0";
+    private static final String MODULE = "module";
+
+    private static final class Sum extends RecursiveTask<Long> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final long from;
+        private final long to;
+
+        Sum(final long from, final long to) {
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected Long compute() {
+            if (this.to - this.from <= 10_000) {
+                long sum = 0;
+                for (long i = this.from; i < this.to; i++) {
+                    sum += i * i % 7;
+                }
+                return sum;
+            }
+            final long middle = (this.from + this.to) / 2;
+            final Sum left = new Sum(this.from, middle);
+            left.fork();
+            return new Sum(middle, this.to).compute() + left.join();
+        }
+
+    }
+
+    private static class TestClass {
+
+        @ModuleMethod
+        public long crunch(final long n) {
+            // WORK_STEALING なら同じプールで、そうでなければ共通のプールで分けて計算する
+            return new Sum(0, n).invoke();
+        }
+
+        @ModuleMethod
+        public String fetch(final String s, final double delay) throws InterruptedException {
+            Blocking.sleep((long) (delay * 1_000));
+            return s;
+        }
+
+    }
+
+    private static final int CALLS = 2_000;
+
+    /**
+     * この数ごとに 1 つ待ちのある実行依頼を混ぜる
+     */
+    private static final int BLOCKING_EVERY = 5;
+    private static final long SIZE = 2_000_000;
+    private static final double DELAY = 0.05;
+    private static final int PLATFORM_THREADS = 200;
+
+    private static long measure(final Bulkhead.Config config) throws InterruptedException {
+        final Actor actor = new Actor(KEY, "actor", "benchmark actor");
+        actor.addModule(MODULE, "1.0.0", "benchmark module", new TestClass(), config);
+        final CountDownLatch done = new CountDownLatch(CALLS);
+        final AtomicInteger failures = new AtomicInteger();
+        final Ack ack = new Ack() {
+            @Override
+            public void call(final Object... args) {
+                if (!Constants.AcknowledgeStatus.OK.equals(((JSONObject) args[0]).get("status"))) {
+                    failures.incrementAndGet();
+                }
+                done.countDown();
+            }
+        };
+
+        final long start = System.nanoTime();
+        for (int i = 0; i < CALLS; i++) {
+            final Map<String, Object> data = new HashMap<>();
+            data.put("key", KEY);
+            data.put("module", MODULE);
+            if (i % BLOCKING_EVERY == 0) {
+                data.put("method", "fetch");
+                data.put("params", new JSONArray(new Object[] { "abcde", DELAY }));
+            } else {
+                data.put("method", "crunch");
+                data.put("params", new JSONArray(new Object[] { SIZE }));
+            }
+            actor.perform(new Object[] { new JSONObject(data), ack });
+        }
+        if (!done.await(10, TimeUnit.MINUTES)) {
+            throw new IllegalStateException("timed out");
+        }
+        final long elapsed = System.nanoTime() - start;
+        if (failures.get() > 0) {
+            throw new IllegalStateException(failures.get() + " calls failed");
+        }
+        System.out.println(String.format("%s: %d ms, pool %d", config, TimeUnit.NANOSECONDS.toMillis(elapsed), actor.getBulkhead(MODULE).getLargestPoolSize()));
+        return elapsed;
+    }
+
+    /**
+     * 計測する
+     * @param args 実行引数
+     * @throws Exception エラー
+     */
+    public static void main(final String[] args) throws Exception {
+        final int processors = Runtime.getRuntime().availableProcessors();
+        // 最初の計測は JIT の暖機を兼ねる
+        measure(new Bulkhead.Config(PLATFORM_THREADS, CALLS, Bulkhead.RejectionPolicy.REJECT_NEW, Bulkhead.ThreadMode.PLATFORM));
+        measure(new Bulkhead.Config(PLATFORM_THREADS, CALLS, Bulkhead.RejectionPolicy.REJECT_NEW, Bulkhead.ThreadMode.PLATFORM));
+        measure(new Bulkhead.Config(processors, CALLS, Bulkhead.RejectionPolicy.REJECT_NEW, Bulkhead.ThreadMode.WORK_STEALING));
+    }
+
+}